@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of the LinkStore operations used in the request
+ * phase.  Each method starts the operation and returns immediately.
+ * The result is available from the returned Future and, if a callback is
+ * provided, is passed to the callback when the operation completes.
+ *
+ * See LinkStore for the semantics of each operation.  Arguments such as
+ * links and id2 arrays may be reused by the caller once the operation has
+ * completed and the callback has been invoked, but not before.  Stores that
+ * only support blocking operations can be used through BlockingAsyncStore.
+ */
+public interface AsyncLinkStore {
+
+  public Future<Boolean> addLinkAsync(String dbid, Link a, boolean noinverse,
+                                  StoreCallback<? super Boolean> callback);
+
+  public Future<Boolean> deleteLinkAsync(String dbid, long id1,
+          long link_type, long id2, boolean noinverse, boolean expunge,
+          StoreCallback<? super Boolean> callback);
+
+  public Future<Boolean> updateLinkAsync(String dbid, Link a,
+          boolean noinverse, StoreCallback<? super Boolean> callback);
+
+  public Future<Link> getLinkAsync(String dbid, long id1, long link_type,
+          long id2, StoreCallback<? super Link> callback);
+
+  public Future<Link[]> multigetLinksAsync(String dbid, long id1,
+          long link_type, long id2s[], StoreCallback<? super Link[]> callback);
+
+  public Future<Link[]> getLinkListAsync(String dbid, long id1,
+          long link_type, StoreCallback<? super Link[]> callback);
+
+  public Future<Link[]> getLinkListAsync(String dbid, long id1,
+          long link_type, long minTimestamp, long maxTimestamp,
+          int offset, int limit, StoreCallback<? super Link[]> callback);
+
+  public Future<Long> countLinksAsync(String dbid, long id1, long link_type,
+          StoreCallback<? super Long> callback);
+
+  public Future<long[]> multiCountLinksAsync(String dbid, long id1s[],
+          long link_types[], StoreCallback<? super long[]> callback);
+
+  public Future<Link[][]> multigetLinkListsAsync(String dbid, long id1s[],
+          long link_type, StoreCallback<? super Link[][]> callback);
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of the NodeStore operations used in the request
+ * phase.  See AsyncLinkStore for conventions and NodeStore for semantics
+ * of each operation.
+ */
+public interface AsyncNodeStore {
+
+  public Future<Long> addNodeAsync(String dbid, Node node,
+                                   StoreCallback<? super Long> callback);
+
+  public Future<Node> getNodeAsync(String dbid, int type, long id,
+                                   StoreCallback<? super Node> callback);
+
+  public Future<Node[]> multigetNodesAsync(String dbid, int type, long ids[],
+                                   StoreCallback<? super Node[]> callback);
+
+  public Future<Boolean> updateNodeAsync(String dbid, Node node,
+                                   StoreCallback<? super Boolean> callback);
+
+  public Future<Boolean> deleteNodeAsync(String dbid, int type, long id,
+                                   StoreCallback<? super Boolean> callback);
+}
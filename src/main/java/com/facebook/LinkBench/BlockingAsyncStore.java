@@ -0,0 +1,506 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Adapter that provides the asynchronous store interfaces on top of
+ * blocking LinkStore and NodeStore implementations.
+ *
+ * Blocking stores generally hold a single connection and are not thread-safe,
+ * so the adapter is given a separate store handle for each operation that
+ * can be in flight at once.  Each handle is owned by a worker thread, and
+ * operations are run by whichever worker is free.
+ *
+ * The adapter is itself a GraphStore: the blocking operations are
+ * implemented by issuing the asynchronous operation and waiting for it.
+ */
+public class BlockingAsyncStore extends GraphStore
+                        implements AsyncLinkStore, AsyncNodeStore {
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final List<LinkStore> linkStores;
+  private final List<NodeStore> nodeStores;
+
+  /** Index of handles owned by each worker thread */
+  private final ThreadLocal<Integer> workerHandle = new ThreadLocal<Integer>();
+
+  private ExecutorService executor = null;
+
+  /** Thread id that store was initialized with */
+  private int threadId = -1;
+
+  /**
+   * @param linkStores link store handles, one for each operation that can be
+   *            in flight at once
+   * @param nodeStores node store handles, same length as linkStores.  May be
+   *            the same objects as linkStores, or null if node operations
+   *            are not needed
+   */
+  public BlockingAsyncStore(List<? extends LinkStore> linkStores,
+                            List<? extends NodeStore> nodeStores) {
+    if (linkStores.isEmpty() ||
+        (nodeStores != null && nodeStores.size() != linkStores.size())) {
+      throw new IllegalArgumentException("Need one node store per link store");
+    }
+    this.linkStores = new ArrayList<LinkStore>(linkStores);
+    this.nodeStores = nodeStores == null ? null :
+                                      new ArrayList<NodeStore>(nodeStores);
+    this.rangeLimit = this.linkStores.get(0).getRangeLimit();
+  }
+
+  @Override
+  public void setRangeLimit(int rangeLimit) {
+    super.setRangeLimit(rangeLimit);
+    for (LinkStore linkStore: linkStores) {
+      linkStore.setRangeLimit(rangeLimit);
+    }
+  }
+
+  /** @return number of operations that can be in flight at once */
+  public int getConcurrency() {
+    return linkStores.size();
+  }
+
+  @Override
+  public void initialize(Properties p, Phase currentPhase, int threadId)
+      throws IOException, Exception {
+    this.threadId = threadId;
+    for (int i = 0; i < linkStores.size(); i++) {
+      LinkStore linkStore = linkStores.get(i);
+      linkStore.initialize(p, currentPhase, threadId);
+      NodeStore nodeStore = nodeStore(i);
+      if (nodeStore != null && nodeStore != linkStore) {
+        nodeStore.initialize(p, currentPhase, threadId);
+      }
+    }
+
+    final BlockingQueue<Integer> freeHandles =
+              new ArrayBlockingQueue<Integer>(linkStores.size());
+    for (int i = 0; i < linkStores.size(); i++) {
+      freeHandles.add(i);
+    }
+    final int storeThreadId = threadId;
+    executor = Executors.newFixedThreadPool(linkStores.size(),
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+          Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              // Claim a handle for the lifetime of this worker
+              Integer handle = freeHandles.poll();
+              workerHandle.set(handle);
+              try {
+                r.run();
+              } finally {
+                freeHandles.add(handle);
+              }
+            }
+          });
+          t.setName("store-" + storeThreadId + "-worker");
+          t.setDaemon(true);
+          return t;
+        }
+    });
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while waiting for store operations", e);
+      }
+      executor = null;
+    }
+    for (int i = 0; i < linkStores.size(); i++) {
+      LinkStore linkStore = linkStores.get(i);
+      linkStore.close();
+      NodeStore nodeStore = nodeStore(i);
+      if (nodeStore != null && nodeStore != linkStore) {
+        nodeStore.close();
+      }
+    }
+  }
+
+  /**
+   * Errors are cleared on the handle that failed as part of the failed
+   * operation, so nothing needs to be done here
+   */
+  @Override
+  public void clearErrors(int threadID) {
+  }
+
+  private NodeStore nodeStore(int handle) {
+    return nodeStores == null ? null : nodeStores.get(handle);
+  }
+
+  /**
+   * An operation to run against a single store handle
+   */
+  private static abstract class StoreOp<T> {
+    abstract T run(LinkStore linkStore, NodeStore nodeStore) throws Exception;
+  }
+
+  private <T> Future<T> submit(final StoreOp<T> op,
+                               final StoreCallback<? super T> callback) {
+    if (executor == null) {
+      throw new IllegalStateException("Store not initialized");
+    }
+    return executor.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        int handle = workerHandle.get();
+        LinkStore linkStore = linkStores.get(handle);
+        NodeStore nodeStore = nodeStore(handle);
+        T result;
+        try {
+          result = op.run(linkStore, nodeStore);
+        } catch (Throwable e) {
+          // Errors must reach the callback too, or waiters never wake up
+          linkStore.clearErrors(threadId);
+          if (nodeStore != null && nodeStore != linkStore) {
+            nodeStore.clearErrors(threadId);
+          }
+          if (callback != null) {
+            callback.failed(e);
+          }
+          throw e;
+        }
+        if (callback != null) {
+          callback.completed(result);
+        }
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Wait for an operation and rethrow any exception it threw
+   */
+  private static <T> T await(Future<T> f) throws Exception {
+    try {
+      return f.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  private static NodeStore checkNodeStore(NodeStore nodeStore) {
+    if (nodeStore == null) {
+      throw new UnsupportedOperationException("No node store provided");
+    }
+    return nodeStore;
+  }
+
+  @Override
+  public Future<Boolean> addLinkAsync(final String dbid, final Link a,
+      final boolean noinverse, StoreCallback<? super Boolean> callback) {
+    return submit(new StoreOp<Boolean>() {
+      @Override
+      Boolean run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.addLink(dbid, a, noinverse);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Boolean> deleteLinkAsync(final String dbid, final long id1,
+      final long link_type, final long id2, final boolean noinverse,
+      final boolean expunge, StoreCallback<? super Boolean> callback) {
+    return submit(new StoreOp<Boolean>() {
+      @Override
+      Boolean run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.deleteLink(dbid, id1, link_type, id2, noinverse,
+                                    expunge);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Boolean> updateLinkAsync(final String dbid, final Link a,
+      final boolean noinverse, StoreCallback<? super Boolean> callback) {
+    return submit(new StoreOp<Boolean>() {
+      @Override
+      Boolean run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.updateLink(dbid, a, noinverse);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Link> getLinkAsync(final String dbid, final long id1,
+      final long link_type, final long id2,
+      StoreCallback<? super Link> callback) {
+    return submit(new StoreOp<Link>() {
+      @Override
+      Link run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.getLink(dbid, id1, link_type, id2);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Link[]> multigetLinksAsync(final String dbid, final long id1,
+      final long link_type, final long[] id2s,
+      StoreCallback<? super Link[]> callback) {
+    return submit(new StoreOp<Link[]>() {
+      @Override
+      Link[] run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.multigetLinks(dbid, id1, link_type, id2s);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Link[]> getLinkListAsync(final String dbid, final long id1,
+      final long link_type, StoreCallback<? super Link[]> callback) {
+    return submit(new StoreOp<Link[]>() {
+      @Override
+      Link[] run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.getLinkList(dbid, id1, link_type);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Link[]> getLinkListAsync(final String dbid, final long id1,
+      final long link_type, final long minTimestamp, final long maxTimestamp,
+      final int offset, final int limit,
+      StoreCallback<? super Link[]> callback) {
+    return submit(new StoreOp<Link[]>() {
+      @Override
+      Link[] run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.getLinkList(dbid, id1, link_type, minTimestamp,
+                                     maxTimestamp, offset, limit);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Long> countLinksAsync(final String dbid, final long id1,
+      final long link_type, StoreCallback<? super Long> callback) {
+    return submit(new StoreOp<Long>() {
+      @Override
+      Long run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.countLinks(dbid, id1, link_type);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<long[]> multiCountLinksAsync(final String dbid,
+      final long[] id1s, final long[] link_types,
+      StoreCallback<? super long[]> callback) {
+    return submit(new StoreOp<long[]>() {
+      @Override
+      long[] run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.multiCountLinks(dbid, id1s, link_types);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Link[][]> multigetLinkListsAsync(final String dbid,
+      final long[] id1s, final long link_type,
+      StoreCallback<? super Link[][]> callback) {
+    return submit(new StoreOp<Link[][]>() {
+      @Override
+      Link[][] run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return linkStore.multigetLinkLists(dbid, id1s, link_type);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Long> addNodeAsync(final String dbid, final Node node,
+      StoreCallback<? super Long> callback) {
+    return submit(new StoreOp<Long>() {
+      @Override
+      Long run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return checkNodeStore(nodeStore).addNode(dbid, node);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Node> getNodeAsync(final String dbid, final int type,
+      final long id, StoreCallback<? super Node> callback) {
+    return submit(new StoreOp<Node>() {
+      @Override
+      Node run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return checkNodeStore(nodeStore).getNode(dbid, type, id);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Node[]> multigetNodesAsync(final String dbid, final int type,
+      final long[] ids, StoreCallback<? super Node[]> callback) {
+    return submit(new StoreOp<Node[]>() {
+      @Override
+      Node[] run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return checkNodeStore(nodeStore).multigetNodes(dbid, type, ids);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Boolean> updateNodeAsync(final String dbid, final Node node,
+      StoreCallback<? super Boolean> callback) {
+    return submit(new StoreOp<Boolean>() {
+      @Override
+      Boolean run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return checkNodeStore(nodeStore).updateNode(dbid, node);
+      }
+    }, callback);
+  }
+
+  @Override
+  public Future<Boolean> deleteNodeAsync(final String dbid, final int type,
+      final long id, StoreCallback<? super Boolean> callback) {
+    return submit(new StoreOp<Boolean>() {
+      @Override
+      Boolean run(LinkStore linkStore, NodeStore nodeStore) throws Exception {
+        return checkNodeStore(nodeStore).deleteNode(dbid, type, id);
+      }
+    }, callback);
+  }
+
+  @Override
+  public boolean addLink(String dbid, Link a, boolean noinverse)
+      throws Exception {
+    return await(addLinkAsync(dbid, a, noinverse, null));
+  }
+
+  @Override
+  public boolean deleteLink(String dbid, long id1, long link_type, long id2,
+      boolean noinverse, boolean expunge) throws Exception {
+    return await(deleteLinkAsync(dbid, id1, link_type, id2, noinverse,
+                                 expunge, null));
+  }
+
+  @Override
+  public boolean updateLink(String dbid, Link a, boolean noinverse)
+      throws Exception {
+    return await(updateLinkAsync(dbid, a, noinverse, null));
+  }
+
+  @Override
+  public Link getLink(String dbid, long id1, long link_type, long id2)
+      throws Exception {
+    return await(getLinkAsync(dbid, id1, link_type, id2, null));
+  }
+
+  @Override
+  public Link[] multigetLinks(String dbid, long id1, long link_type,
+      long[] id2s) throws Exception {
+    return await(multigetLinksAsync(dbid, id1, link_type, id2s, null));
+  }
+
+  @Override
+  public Link[] getLinkList(String dbid, long id1, long link_type)
+      throws Exception {
+    return await(getLinkListAsync(dbid, id1, link_type, null));
+  }
+
+  @Override
+  public Link[] getLinkList(String dbid, long id1, long link_type,
+      long minTimestamp, long maxTimestamp, int offset, int limit)
+      throws Exception {
+    return await(getLinkListAsync(dbid, id1, link_type, minTimestamp,
+                                  maxTimestamp, offset, limit, null));
+  }
+
+  @Override
+  public long countLinks(String dbid, long id1, long link_type)
+      throws Exception {
+    return await(countLinksAsync(dbid, id1, link_type, null));
+  }
+
+  @Override
+  public long[] multiCountLinks(String dbid, long[] id1s, long[] link_types)
+      throws Exception {
+    return await(multiCountLinksAsync(dbid, id1s, link_types, null));
+  }
+
+  @Override
+  public Link[][] multigetLinkLists(String dbid, long[] id1s, long link_type)
+      throws Exception {
+    return await(multigetLinkListsAsync(dbid, id1s, link_type, null));
+  }
+
+  @Override
+  public void resetNodeStore(String dbid, long startID) throws Exception {
+    checkNodeStore(nodeStore(0)).resetNodeStore(dbid, startID);
+  }
+
+  @Override
+  public long addNode(String dbid, Node node) throws Exception {
+    return await(addNodeAsync(dbid, node, null));
+  }
+
+  @Override
+  public int bulkLoadBatchSize() {
+    return 0;
+  }
+
+  @Override
+  public Node getNode(String dbid, int type, long id) throws Exception {
+    return await(getNodeAsync(dbid, type, id, null));
+  }
+
+  @Override
+  public Node[] multigetNodes(String dbid, int type, long[] ids)
+      throws Exception {
+    return await(multigetNodesAsync(dbid, type, ids, null));
+  }
+
+  @Override
+  public boolean updateNode(String dbid, Node node) throws Exception {
+    return await(updateNodeAsync(dbid, node, null));
+  }
+
+  @Override
+  public boolean deleteNode(String dbid, int type, long id) throws Exception {
+    return await(deleteNodeAsync(dbid, type, id, null));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+/**
+ * Callback that the thread which issued an asynchronous operation can
+ * wait on.  Can be reset and reused for one operation at a time.
+ */
+class BlockingCallback<T> implements StoreCallback<T> {
+  private boolean done;
+  private T result;
+  private Throwable error;
+
+  /**
+   * Prepare for another operation
+   */
+  synchronized void reset() {
+    done = false;
+    result = null;
+    error = null;
+  }
+
+  /**
+   * Wait for the operation to complete
+   * @return result of the operation
+   * @throws Exception the error the operation failed with
+   */
+  synchronized T await() throws Exception {
+    while (!done) {
+      wait();
+    }
+    if (error == null) {
+      return result;
+    } else if (error instanceof Exception) {
+      throw (Exception) error;
+    } else if (error instanceof Error) {
+      throw (Error) error;
+    } else {
+      throw new RuntimeException(error);
+    }
+  }
+
+  @Override
+  public synchronized void completed(T result) {
+    this.result = result;
+    done = true;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void failed(Throwable error) {
+    this.error = error;
+    done = true;
+    notifyAll();
+  }
+}
@@ -0,0 +1,530 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import com.facebook.LinkBench.GraphCache.CachedList;
+import com.facebook.LinkBench.GraphCache.Key;
+import com.facebook.LinkBench.util.ClassLoadUtil;
+
+/**
+ * Store that models a look-aside cache in front of another store.
+ *
+ * Reads of link lists, link counts, individual links and nodes are served
+ * from a GraphCache if present, and otherwise read from the backing store
+ * and added to the cache.  Reads that find nothing are cached too, unless
+ * cache_negative is false.  Writes go to the backing store, then invalidate
+ * the cached values they affect, including those of inverse links.
+ * Invalidating rather than updating means that concurrent writes from
+ * different requesters cannot leave the cache out of date.
+ *
+ * To use, set linkstore (and nodestore) to this class, and cache_linkstore
+ * (and cache_nodestore) to the class of the backing store.  All requesters
+ * share one cache of cache_size_mb megabytes, which is dropped once they
+ * have all closed their stores.  Hit rates for each type of read are
+ * logged when the requesters finish.
+ */
+public class CachingLinkStore extends GraphStore {
+  private GraphCache cache;
+  /** True if the cache was opened from the configuration */
+  private boolean sharedCache = false;
+  private LinkStore links;
+  private NodeStore nodes;
+
+  /**
+   * Create a store that caches the stores named in the configuration
+   */
+  public CachingLinkStore() {
+  }
+
+  /**
+   * Create a store that caches the given stores
+   * @param cache cache, which should only be shared with stores that have
+   *    the same backing data
+   * @param nodes may be null if there are no node operations
+   */
+  public CachingLinkStore(GraphCache cache, LinkStore links,
+                          NodeStore nodes) {
+    this.cache = cache;
+    this.links = links;
+    this.nodes = nodes;
+  }
+
+  public GraphCache getCache() {
+    return cache;
+  }
+
+  @Override
+  public void initialize(Properties p, Phase currentPhase, int threadId)
+      throws IOException, Exception {
+    initInverseTypes(p);
+    if (links == null) {
+      String linkClass = ConfigUtil.getPropertyRequired(p,
+                              Config.CACHE_LINKSTORE_CLASS).trim();
+      links = ClassLoadUtil.newInstance(linkClass, LinkStore.class);
+      String nodeClass = p.getProperty(Config.CACHE_NODESTORE_CLASS);
+      if (nodeClass != null && nodeClass.trim().length() > 0) {
+        if (nodeClass.trim().equals(linkClass) && links instanceof NodeStore) {
+          // Same class, reuse object
+          nodes = (NodeStore) links;
+        } else {
+          nodes = ClassLoadUtil.newInstance(nodeClass.trim(), NodeStore.class);
+        }
+      }
+    }
+    links.initialize(p, currentPhase, threadId);
+    if (nodes != null && nodes != links) {
+      nodes.initialize(p, currentPhase, threadId);
+    }
+    if (cache == null) {
+      cache = GraphCache.openShared(p);
+      sharedCache = true;
+    } else {
+      cache.open();
+    }
+  }
+
+  @Override
+  public void close() {
+    links.close();
+    if (nodes != null && nodes != links) {
+      nodes.close();
+    }
+    cache.close();
+    if (sharedCache) {
+      // Open the current shared cache if initialized again
+      cache = null;
+      sharedCache = false;
+    }
+  }
+
+  @Override
+  public void clearErrors(int threadID) {
+    links.clearErrors(threadID);
+    if (nodes != null && nodes != links) {
+      nodes.clearErrors(threadID);
+    }
+  }
+
+  @Override
+  public int getRangeLimit() {
+    return links.getRangeLimit();
+  }
+
+  @Override
+  public void setRangeLimit(int rangeLimit) {
+    links.setRangeLimit(rangeLimit);
+  }
+
+  private NodeStore nodeStore() {
+    if (nodes == null) {
+      throw new IllegalStateException("No " + Config.CACHE_NODESTORE_CLASS +
+                                      " configured");
+    }
+    return nodes;
+  }
+
+  /**
+   * Invalidate everything a write of link (id1, link_type, id2) affects
+   */
+  private void invalidateLink(String dbid, long id1, long link_type,
+                              long id2, boolean noinverse) {
+    cache.invalidate(GraphCache.linkKey(dbid, id1, link_type, id2));
+    cache.invalidate(GraphCache.listKey(dbid, id1, link_type));
+    cache.invalidate(GraphCache.countKey(dbid, id1, link_type));
+    if (writeInverse(link_type, noinverse)) {
+      long inverse = inverseTypes.getInverse(link_type);
+      cache.invalidate(GraphCache.linkKey(dbid, id2, inverse, id1));
+      cache.invalidate(GraphCache.listKey(dbid, id2, inverse));
+      cache.invalidate(GraphCache.countKey(dbid, id2, inverse));
+    }
+  }
+
+  @Override
+  public boolean addLink(String dbid, Link a, boolean noinverse)
+      throws Exception {
+    boolean added = links.addLink(dbid, a, noinverse);
+    invalidateLink(dbid, a.id1, a.link_type, a.id2, noinverse);
+    return added;
+  }
+
+  @Override
+  public boolean deleteLink(String dbid, long id1, long link_type, long id2,
+      boolean noinverse, boolean expunge) throws Exception {
+    boolean found = links.deleteLink(dbid, id1, link_type, id2, noinverse,
+                                     expunge);
+    invalidateLink(dbid, id1, link_type, id2, noinverse);
+    return found;
+  }
+
+  @Override
+  public boolean updateLink(String dbid, Link a, boolean noinverse)
+      throws Exception {
+    boolean found = links.updateLink(dbid, a, noinverse);
+    invalidateLink(dbid, a.id1, a.link_type, a.id2, noinverse);
+    return found;
+  }
+
+  @Override
+  public int bulkLoadBatchSize() {
+    return links.bulkLoadBatchSize();
+  }
+
+  @Override
+  public void addBulkLinks(String dbid, List<Link> a, boolean noinverse)
+      throws Exception {
+    links.addBulkLinks(dbid, a, noinverse);
+    for (Link l: a) {
+      invalidateLink(dbid, l.id1, l.link_type, l.id2, noinverse);
+    }
+  }
+
+  @Override
+  public void addBulkCounts(String dbid, List<LinkCount> a) throws Exception {
+    links.addBulkCounts(dbid, a);
+    for (LinkCount c: a) {
+      cache.invalidate(GraphCache.countKey(dbid, c.id1, c.link_type));
+    }
+  }
+
+  @Override
+  public Link getLink(String dbid, long id1, long link_type, long id2)
+      throws Exception {
+    Key key = GraphCache.linkKey(dbid, id1, link_type, id2);
+    Object cached = cache.get(key);
+    if (cached != null) {
+      cache.recordHit(LinkBenchOp.MULTIGET_LINK);
+      return cached == GraphCache.NOT_FOUND ? null : ((Link) cached).clone();
+    }
+    cache.recordMiss(LinkBenchOp.MULTIGET_LINK);
+    long stamp = cache.stamp(key);
+    Link link = links.getLink(dbid, id1, link_type, id2);
+    fillLink(key, link, stamp);
+    return link;
+  }
+
+  private void fillLink(Key key, Link link, long stamp) {
+    if (link != null) {
+      cache.fill(key, link.clone(), stamp);
+    } else if (cache.cacheNegative()) {
+      cache.fill(key, GraphCache.NOT_FOUND, stamp);
+    }
+  }
+
+  @Override
+  public Link[] multigetLinks(String dbid, long id1, long link_type,
+      long[] id2s) throws Exception {
+    ArrayList<Link> result = new ArrayList<Link>(id2s.length);
+    long missIds[] = new long[id2s.length];
+    Key missKeys[] = new Key[id2s.length];
+    long stamps[] = new long[id2s.length];
+    int nmisses = 0;
+    for (long id2: id2s) {
+      Key key = GraphCache.linkKey(dbid, id1, link_type, id2);
+      Object cached = cache.get(key);
+      if (cached != null) {
+        cache.recordHit(LinkBenchOp.MULTIGET_LINK);
+        if (cached != GraphCache.NOT_FOUND) {
+          result.add(((Link) cached).clone());
+        }
+      } else {
+        cache.recordMiss(LinkBenchOp.MULTIGET_LINK);
+        missIds[nmisses] = id2;
+        missKeys[nmisses] = key;
+        stamps[nmisses] = cache.stamp(key);
+        nmisses++;
+      }
+    }
+
+    if (nmisses > 0) {
+      long fetchIds[] = new long[nmisses];
+      System.arraycopy(missIds, 0, fetchIds, 0, nmisses);
+      Link fetched[] = links.multigetLinks(dbid, id1, link_type, fetchIds);
+      HashMap<Long, Link> byId2 = new HashMap<Long, Link>();
+      if (fetched != null) {
+        for (Link l: fetched) {
+          byId2.put(l.id2, l);
+          result.add(l);
+        }
+      }
+      for (int i = 0; i < nmisses; i++) {
+        fillLink(missKeys[i], byId2.get(missIds[i]), stamps[i]);
+      }
+    }
+    return result.toArray(new Link[result.size()]);
+  }
+
+  @Override
+  public Link[] getLinkList(String dbid, long id1, long link_type)
+      throws Exception {
+    Key key = GraphCache.listKey(dbid, id1, link_type);
+    int limit = getRangeLimit();
+    Link cached[] = cachedList(key, limit);
+    if (cached != null) {
+      return cached.length == 0 ? null : cached;
+    }
+    long stamp = cache.stamp(key);
+    Link list[] = links.getLinkList(dbid, id1, link_type);
+    fillList(key, limit, list, stamp);
+    return list;
+  }
+
+  /**
+   * Look up a link list read with the given range limit, recording a
+   * hit or miss
+   * @return copy of list, empty if list was cached as having no links, or
+   *    null if not cached
+   */
+  private Link[] cachedList(Key key, int limit) {
+    Object cached = cache.get(key);
+    if (cached != null && ((CachedList) cached).limit == limit) {
+      cache.recordHit(LinkBenchOp.GET_LINKS_LIST);
+      Link links[] = ((CachedList) cached).links;
+      return links == null ? new Link[0] : cloneLinks(links);
+    }
+    cache.recordMiss(LinkBenchOp.GET_LINKS_LIST);
+    return null;
+  }
+
+  private void fillList(Key key, int limit, Link list[], long stamp) {
+    if (list != null) {
+      cache.fill(key, new CachedList(limit, cloneLinks(list)), stamp);
+    } else if (cache.cacheNegative()) {
+      cache.fill(key, new CachedList(limit, null), stamp);
+    }
+  }
+
+  private static Link[] cloneLinks(Link links[]) {
+    Link copy[] = new Link[links.length];
+    for (int i = 0; i < links.length; i++) {
+      copy[i] = links[i].clone();
+    }
+    return copy;
+  }
+
+  /**
+   * Ranged queries for history are not cached
+   */
+  @Override
+  public Link[] getLinkList(String dbid, long id1, long link_type,
+      long minTimestamp, long maxTimestamp, int offset, int limit)
+      throws Exception {
+    return links.getLinkList(dbid, id1, link_type, minTimestamp,
+                             maxTimestamp, offset, limit);
+  }
+
+  @Override
+  public long countLinks(String dbid, long id1, long link_type)
+      throws Exception {
+    Key key = GraphCache.countKey(dbid, id1, link_type);
+    Object cached = cache.get(key);
+    if (cached != null) {
+      cache.recordHit(LinkBenchOp.COUNT_LINK);
+      return (Long) cached;
+    }
+    cache.recordMiss(LinkBenchOp.COUNT_LINK);
+    long stamp = cache.stamp(key);
+    long count = links.countLinks(dbid, id1, link_type);
+    fillCount(key, count, stamp);
+    return count;
+  }
+
+  private void fillCount(Key key, long count, long stamp) {
+    if (count != 0 || cache.cacheNegative()) {
+      cache.fill(key, count, stamp);
+    }
+  }
+
+  @Override
+  public long[] multiCountLinks(String dbid, long[] id1s, long[] link_types)
+      throws Exception {
+    long counts[] = new long[id1s.length];
+    int missIx[] = new int[id1s.length];
+    Key missKeys[] = new Key[id1s.length];
+    long stamps[] = new long[id1s.length];
+    int nmisses = 0;
+    for (int i = 0; i < id1s.length; i++) {
+      Key key = GraphCache.countKey(dbid, id1s[i], link_types[i]);
+      Object cached = cache.get(key);
+      if (cached != null) {
+        cache.recordHit(LinkBenchOp.COUNT_LINK);
+        counts[i] = (Long) cached;
+      } else {
+        cache.recordMiss(LinkBenchOp.COUNT_LINK);
+        missIx[nmisses] = i;
+        missKeys[nmisses] = key;
+        stamps[nmisses] = cache.stamp(key);
+        nmisses++;
+      }
+    }
+
+    if (nmisses > 0) {
+      long fetchId1s[] = new long[nmisses];
+      long fetchTypes[] = new long[nmisses];
+      for (int j = 0; j < nmisses; j++) {
+        fetchId1s[j] = id1s[missIx[j]];
+        fetchTypes[j] = link_types[missIx[j]];
+      }
+      long fetched[] = links.multiCountLinks(dbid, fetchId1s, fetchTypes);
+      for (int j = 0; j < nmisses; j++) {
+        counts[missIx[j]] = fetched[j];
+        fillCount(missKeys[j], fetched[j], stamps[j]);
+      }
+    }
+    return counts;
+  }
+
+  @Override
+  public Link[][] multigetLinkLists(String dbid, long[] id1s, long link_type)
+      throws Exception {
+    int limit = getRangeLimit();
+    Link lists[][] = new Link[id1s.length][];
+    int missIx[] = new int[id1s.length];
+    Key missKeys[] = new Key[id1s.length];
+    long stamps[] = new long[id1s.length];
+    int nmisses = 0;
+    for (int i = 0; i < id1s.length; i++) {
+      Key key = GraphCache.listKey(dbid, id1s[i], link_type);
+      Link cached[] = cachedList(key, limit);
+      if (cached != null) {
+        lists[i] = cached.length == 0 ? null : cached;
+      } else {
+        missIx[nmisses] = i;
+        missKeys[nmisses] = key;
+        stamps[nmisses] = cache.stamp(key);
+        nmisses++;
+      }
+    }
+
+    if (nmisses > 0) {
+      long fetchId1s[] = new long[nmisses];
+      for (int j = 0; j < nmisses; j++) {
+        fetchId1s[j] = id1s[missIx[j]];
+      }
+      Link fetched[][] = links.multigetLinkLists(dbid, fetchId1s, link_type);
+      for (int j = 0; j < nmisses; j++) {
+        lists[missIx[j]] = fetched[j];
+        fillList(missKeys[j], limit, fetched[j], stamps[j]);
+      }
+    }
+    return lists;
+  }
+
+  @Override
+  public void resetNodeStore(String dbid, long startID) throws Exception {
+    nodeStore().resetNodeStore(dbid, startID);
+    cache.clear();
+  }
+
+  @Override
+  public long addNode(String dbid, Node node) throws Exception {
+    long id = nodeStore().addNode(dbid, node);
+    // Id may have been cached as not found
+    cache.invalidate(GraphCache.nodeKey(dbid, node.type, id));
+    return id;
+  }
+
+  @Override
+  public long[] bulkAddNodes(String dbid, List<Node> nodes) throws Exception {
+    long ids[] = nodeStore().bulkAddNodes(dbid, nodes);
+    int i = 0;
+    for (Node node: nodes) {
+      cache.invalidate(GraphCache.nodeKey(dbid, node.type, ids[i++]));
+    }
+    return ids;
+  }
+
+  @Override
+  public Node getNode(String dbid, int type, long id) throws Exception {
+    Key key = GraphCache.nodeKey(dbid, type, id);
+    Object cached = cache.get(key);
+    if (cached != null) {
+      cache.recordHit(LinkBenchOp.GET_NODE);
+      return cached == GraphCache.NOT_FOUND ? null : ((Node) cached).clone();
+    }
+    cache.recordMiss(LinkBenchOp.GET_NODE);
+    long stamp = cache.stamp(key);
+    Node node = nodeStore().getNode(dbid, type, id);
+    fillNode(key, node, stamp);
+    return node;
+  }
+
+  private void fillNode(Key key, Node node, long stamp) {
+    if (node != null) {
+      cache.fill(key, node.clone(), stamp);
+    } else if (cache.cacheNegative()) {
+      cache.fill(key, GraphCache.NOT_FOUND, stamp);
+    }
+  }
+
+  @Override
+  public Node[] multigetNodes(String dbid, int type, long[] ids)
+      throws Exception {
+    Node result[] = new Node[ids.length];
+    int missIx[] = new int[ids.length];
+    Key missKeys[] = new Key[ids.length];
+    long stamps[] = new long[ids.length];
+    int nmisses = 0;
+    for (int i = 0; i < ids.length; i++) {
+      Key key = GraphCache.nodeKey(dbid, type, ids[i]);
+      Object cached = cache.get(key);
+      if (cached != null) {
+        cache.recordHit(LinkBenchOp.GET_NODE);
+        if (cached != GraphCache.NOT_FOUND) {
+          result[i] = ((Node) cached).clone();
+        }
+      } else {
+        cache.recordMiss(LinkBenchOp.GET_NODE);
+        missIx[nmisses] = i;
+        missKeys[nmisses] = key;
+        stamps[nmisses] = cache.stamp(key);
+        nmisses++;
+      }
+    }
+
+    if (nmisses > 0) {
+      long fetchIds[] = new long[nmisses];
+      for (int j = 0; j < nmisses; j++) {
+        fetchIds[j] = ids[missIx[j]];
+      }
+      Node fetched[] = nodeStore().multigetNodes(dbid, type, fetchIds);
+      for (int j = 0; j < nmisses; j++) {
+        result[missIx[j]] = fetched[j];
+        fillNode(missKeys[j], fetched[j], stamps[j]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean updateNode(String dbid, Node node) throws Exception {
+    boolean found = nodeStore().updateNode(dbid, node);
+    cache.invalidate(GraphCache.nodeKey(dbid, node.type, node.id));
+    return found;
+  }
+
+  @Override
+  public boolean deleteNode(String dbid, int type, long id) throws Exception {
+    boolean found = nodeStore().deleteNode(dbid, type, id);
+    cache.invalidate(GraphCache.nodeKey(dbid, type, id));
+    return found;
+  }
+}
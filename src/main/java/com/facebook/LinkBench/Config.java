@@ -29,6 +29,12 @@ public class Config {
   public static final String LINKSTORE_CLASS = "linkstore";
   public static final String NODESTORE_CLASS = "nodestore";
 
+  /* Caching store in front of another store */
+  public static final String CACHE_LINKSTORE_CLASS = "cache_linkstore";
+  public static final String CACHE_NODESTORE_CLASS = "cache_nodestore";
+  public static final String CACHE_SIZE_MB = "cache_size_mb";
+  public static final String CACHE_NEGATIVE = "cache_negative";
+
   /* Schema and tables used */
   public static final String DBID = "dbid";
   public static final String LINK_TABLE = "linktable";
@@ -46,6 +52,7 @@ public class Config {
   public static final String NLINKS_CONFIG = "nlinks_config";
   public static final String NLINKS_DEFAULT = "nlinks_default";
   public static final String LINK_TYPE_COUNT ="link_type_count";
+  public static final String INVERSE_LINK_TYPES = "inverse_link_types";
 
   /* Data generation */
   public static final String LINK_DATASIZE = "link_datasize";
@@ -66,6 +73,10 @@ public class Config {
   public static final double LINK_DATASIZE_SIGMA = 1.0;
   public static final double NODE_DATASIZE_SIGMA = 1.0;
 
+  /* Execution of loader and requester tasks */
+  public static final String EXEC_MODE = "exec_mode";
+  public static final String EXEC_POOL_THREADS = "exec_pool_threads";
+
   /* Loading performance tuning */
   public static final String NUM_LOADERS = "loaders";
   public static final String LOADER_CHUNK_SIZE = "loader_chunk_size";
@@ -109,10 +120,50 @@ public class Config {
   public static final String PR_UPDATE_NODE = "updatenode";
   public static final String PR_DELETE_NODE = "deletenode";
   public static final String PR_GET_NODE = "getnode";
+  public static final String PR_PAGE_LOAD = "pageload";
+  public static final String PR_GET_2HOP = "get2hop";
+  public static final String PR_MULTIGET_NODE = "multigetnode";
+  public static final String PR_MULTICOUNT_LINK = "multicountlink";
+  public static final String PR_MULTIGET_LINK_LIST = "multigetlinklist";
+  public static final String READ_BATCH_SIZE = "read_batch_size";
   public static final String PR_GETLINKLIST_HISTORY = "getlinklist_history";
+  public static final String GETLINKLIST_HISTORY_LIMIT =
+                                        "getlinklist_history_limit";
+  public static final String PAGELOAD_MULTIGET_IDS = "pageload_multiget_ids";
+  public static final String PAGELOAD_NODE_FANOUT = "pageload_node_fanout";
+  public static final String GET2HOP_FANOUT = "get2hop_fanout";
+  public static final String GET2HOP_FANOUT_DIST = "get2hop_fanout_dist";
+  public static final String GET2HOP_FANOUT_DIST_MIN = "get2hop_fanout_dist_min";
+  public static final String GET2HOP_FANOUT_DIST_MAX = "get2hop_fanout_dist_max";
+  public static final String GET2HOP_FANOUT_DIST_PREFIX = "get2hop_fanout_dist_";
+  public static final String GET2HOP_COUNT = "get2hop_count";
+  public static final String GET2HOP_PARALLELISM = "get2hop_parallelism";
   public static final String WARMUP_TIME = "warmup_time";
   public static final String MAX_TIME = "maxtime";
   public static final String REQUEST_RATE = "requestrate";
+  public static final String REQUEST_OPEN_LOOP = "requestrate_open_loop";
+  public static final String REQUEST_GLOBAL_RATE = "requestrate_global";
+  public static final String REQUEST_RATE_BURST = "requestrate_burst";
+  public static final String REQUEST_OP_RATE_LIMIT_PREFIX = "requestrate_max_";
+  public static final String REQUEST_PIPELINE_DEPTH = "requester_pipeline_depth";
+  public static final String REQUEST_REUSE_BUFFERS = "request_reuse_buffers";
+  public static final String REQUEST_WRITE_INVERSES = "request_write_inverses";
+  public static final String REQUEST_ALLOC_STATS = "request_alloc_stats";
+  public static final String REQUEST_OVERHEAD_STATS = "request_overhead_stats";
+  public static final String REQUEST_OP_STREAM_DIR = "request_op_stream_dir";
+  public static final String REQUEST_JOURNAL_DIR = "request_journal_dir";
+  public static final String REPLAY_JOURNAL_DIR = "replay_journal_dir";
+  public static final String REPLAY_SPEED = "replay_speed";
+  public static final String SLO_OP = "slo_op";
+  public static final String SLO_PERCENTILE = "slo_percentile";
+  public static final String SLO_LATENCY_MS = "slo_latency_ms";
+  public static final String SLO_MAX_ERROR_RATE = "slo_max_error_rate";
+  public static final String SEARCH_MIN_RATE = "search_min_rate";
+  public static final String SEARCH_MAX_RATE = "search_max_rate";
+  public static final String SEARCH_STEP_TIME = "search_step_time";
+  public static final String SEARCH_WARMUP_TIME = "search_warmup_time";
+  public static final String SEARCH_PRECISION = "search_precision";
+  public static final String SEARCH_MAX_STEPS = "search_max_steps";
   public static final String NUM_REQUESTS = "requests";
   public static final String MAX_FAILED_REQUESTS = "max_failed_requests";
   public static final String ID2GEN_CONFIG = "id2gen_config";
@@ -127,6 +178,14 @@ public class Config {
   /* Statistics collection and reporting */
   public static final String MAX_STAT_SAMPLES = "maxsamples";
   public static final String DISPLAY_FREQ = "displayfreq";
+  public static final String GLOBAL_DISPLAY_FREQ = "global_displayfreq";
+  public static final String LATENCY_PRECISION = "latency_precision_digits";
+  public static final String HISTOGRAM_LOG = "histogram_log";
+  public static final String HISTOGRAM_LOG_INTERVAL = "histogram_log_interval_ms";
+  public static final String METRICS_PORT = "metrics_port";
+  public static final String JMX_CONTROL = "jmx_control";
+  public static final String CSV_STREAM_FORMAT = "csvstream_format";
+  public static final String CSV_STREAM_BUFFER = "csvstream_buffer_rows";
   public static final String MAPRED_REPORT_PROGRESS = "reportprogress";
   public static final String PROGRESS_FREQ = "progressfreq";
 
@@ -139,7 +198,14 @@ public class Config {
   public static final String LOAD_DATA = "loaddata";
   public static final String MAPRED_USE_INPUT_FILES = "useinputfiles";
 
+  /* Distributed coordinator/agent configuration */
+  public static final String DIST_AGENTS = "dist_agents";
+  public static final String DIST_HOST = "dist_coordinator_host";
+  public static final String DIST_PORT = "dist_coordinator_port";
+  public static final String DIST_REPORT_FREQ = "dist_report_freq";
+
   /* External data */
   public static final String DISTRIBUTION_DATA_FILE = "data_file";
   public static final String WORKLOAD_CONFIG_FILE = "workload_file";
+  public static final String WORKLOAD_SCRIPT = "workload_script";
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.util.TinyLfuCache;
+
+/**
+ * Look-aside cache of graph store reads, shared by all CachingLinkStore
+ * handles for a run.  Holds the cached values and counts hits and misses
+ * for each type of read.
+ *
+ * A shared cache lives while any store handle has it open: once the last
+ * handle is closed it is dropped, so that each phase starts with a cold
+ * cache and the memory is freed.
+ */
+public class GraphCache {
+  private static final Logger logger = Logger.getLogger(
+                                          ConfigUtil.LINKBENCH_LOGGER);
+
+  /** Default cache size in megabytes */
+  public static final long DEFAULT_SIZE_MB = 64;
+
+  /** Rough per-entry overhead of key, entry and value objects */
+  static final int ENTRY_OVERHEAD = 128;
+
+  /** Weight assumed when sizing the frequency sketch */
+  private static final int TYPICAL_WEIGHT = 256;
+
+  private static final int SEGMENTS = 16;
+
+  /**
+   * Caches shared by open stores initialized with the same configuration.
+   * Also guards open handle counts, so that a cache is not handed out
+   * while it is being dropped.
+   */
+  private static final Map<Properties, GraphCache> sharedCaches =
+                            new IdentityHashMap<Properties, GraphCache>();
+
+  /** Kinds of cached values */
+  static final int LINK = 0; // (id1, link_type, id2) -> Link or NOT_FOUND
+  static final int LIST = 1; // (id1, link_type) -> CachedList
+  static final int COUNT = 2; // (id1, link_type) -> Long
+  static final int NODE = 3; // (type, id) -> Node or NOT_FOUND
+
+  /** Cached value for a read that found nothing */
+  static final Object NOT_FOUND = new Object();
+
+  private final TinyLfuCache<Key, Object> cache;
+  private final boolean negative;
+  private final AtomicLongArray hits;
+  private final AtomicLongArray misses;
+  private int openHandles = 0;
+  /** Key in sharedCaches, or null if not shared */
+  private Properties sharedKey = null;
+
+  public GraphCache(long maxBytes, boolean negative) {
+    this.cache = new TinyLfuCache<Key, Object>(maxBytes, SEGMENTS,
+                                      maxBytes / TYPICAL_WEIGHT);
+    this.negative = negative;
+    this.hits = new AtomicLongArray(LinkBenchOp.values().length);
+    this.misses = new AtomicLongArray(LinkBenchOp.values().length);
+  }
+
+  public static GraphCache fromConfig(Properties props) {
+    long sizeMB = ConfigUtil.getLong(props, Config.CACHE_SIZE_MB,
+                                     DEFAULT_SIZE_MB);
+    if (sizeMB <= 0) {
+      throw new LinkBenchConfigError(Config.CACHE_SIZE_MB + " must be > 0");
+    }
+    boolean negative = ConfigUtil.getBool(props, Config.CACHE_NEGATIVE, true);
+    return new GraphCache(sizeMB * 1024 * 1024, negative);
+  }
+
+  /**
+   * Open the cache shared by all open stores initialized with props,
+   * creating it if there is none
+   */
+  public static GraphCache openShared(Properties props) {
+    synchronized (sharedCaches) {
+      GraphCache cache = sharedCaches.get(props);
+      if (cache == null) {
+        cache = fromConfig(props);
+        cache.sharedKey = props;
+        sharedCaches.put(props, cache);
+        logger.info("Created cache of " + ConfigUtil.getLong(props,
+            Config.CACHE_SIZE_MB, DEFAULT_SIZE_MB) + "MB");
+      }
+      cache.open();
+      return cache;
+    }
+  }
+
+  /**
+   * Register a store handle using this cache
+   */
+  void open() {
+    synchronized (sharedCaches) {
+      openHandles++;
+    }
+  }
+
+  /**
+   * Unregister a store handle.  Once the last handle is closed, hit rates
+   * are logged and a shared cache is dropped.
+   */
+  void close() {
+    boolean last;
+    synchronized (sharedCaches) {
+      last = --openHandles == 0;
+      if (last && sharedKey != null) {
+        sharedCaches.remove(sharedKey);
+        sharedKey = null;
+      }
+    }
+    if (last) {
+      logStats();
+    }
+  }
+
+  boolean cacheNegative() {
+    return negative;
+  }
+
+  static final class Key {
+    final int kind;
+    final String dbid;
+    final long a;
+    final long b;
+    final long c;
+
+    Key(int kind, String dbid, long a, long b, long c) {
+      this.kind = kind;
+      this.dbid = dbid;
+      this.a = a;
+      this.b = b;
+      this.c = c;
+    }
+
+    @Override
+    public int hashCode() {
+      long h = kind;
+      h = h * 0x9E3779B97F4A7C15L + a;
+      h = h * 0x9E3779B97F4A7C15L + b;
+      h = h * 0x9E3779B97F4A7C15L + c;
+      return (int)(h ^ (h >>> 32)) ^ dbid.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return kind == other.kind && a == other.a && b == other.b &&
+             c == other.c && dbid.equals(other.dbid);
+    }
+  }
+
+  /** Link list together with the range limit used to read it */
+  static final class CachedList {
+    final int limit;
+    final Link links[];
+
+    CachedList(int limit, Link links[]) {
+      this.limit = limit;
+      this.links = links;
+    }
+  }
+
+  static Key linkKey(String dbid, long id1, long link_type, long id2) {
+    return new Key(LINK, dbid, id1, link_type, id2);
+  }
+
+  static Key listKey(String dbid, long id1, long link_type) {
+    return new Key(LIST, dbid, id1, link_type, 0);
+  }
+
+  static Key countKey(String dbid, long id1, long link_type) {
+    return new Key(COUNT, dbid, id1, link_type, 0);
+  }
+
+  static Key nodeKey(String dbid, int type, long id) {
+    return new Key(NODE, dbid, type, id, 0);
+  }
+
+  /**
+   * @return cached value, or null if not present
+   */
+  Object get(Key key) {
+    return cache.get(key);
+  }
+
+  void recordHit(LinkBenchOp op) {
+    hits.incrementAndGet(op.ordinal());
+  }
+
+  void recordMiss(LinkBenchOp op) {
+    misses.incrementAndGet(op.ordinal());
+  }
+
+  long stamp(Key key) {
+    return cache.stamp(key);
+  }
+
+  /**
+   * Add a value read from the backing store, unless there was a write to
+   * key since stamp was taken, in which case the value may be stale
+   */
+  void fill(Key key, Object value, long stamp) {
+    cache.putIfUnchanged(key, value, weigh(value), stamp);
+  }
+
+  void invalidate(Key key) {
+    cache.invalidate(key);
+  }
+
+  void clear() {
+    cache.clear();
+  }
+
+  /**
+   * @return approximate size in bytes of a cached value
+   */
+  static int weigh(Object value) {
+    int weight = ENTRY_OVERHEAD;
+    if (value instanceof Link) {
+      weight += linkBytes((Link) value);
+    } else if (value instanceof CachedList) {
+      Link links[] = ((CachedList) value).links;
+      if (links != null) {
+        for (Link l: links) {
+          weight += linkBytes(l);
+        }
+      }
+    } else if (value instanceof Node) {
+      byte data[] = ((Node) value).data;
+      weight += 48 + (data == null ? 0 : data.length);
+    }
+    return weight;
+  }
+
+  private static int linkBytes(Link l) {
+    return 64 + (l.data == null ? 0 : l.data.length);
+  }
+
+  public long getHits(LinkBenchOp op) {
+    return hits.get(op.ordinal());
+  }
+
+  public long getMisses(LinkBenchOp op) {
+    return misses.get(op.ordinal());
+  }
+
+  /**
+   * @return fraction of lookups for op that hit, or NaN if none
+   */
+  public double getHitRate(LinkBenchOp op) {
+    long h = getHits(op);
+    long total = h + getMisses(op);
+    return total == 0 ? Double.NaN : h / (double) total;
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  public long weight() {
+    return cache.weight();
+  }
+
+  public long evictions() {
+    return cache.evictions();
+  }
+
+  public void logStats() {
+    StringBuilder sb = new StringBuilder("Cache: " + size() + " entries, " +
+        weight() / 1024 + "KB, " + evictions() + " evictions.");
+    for (LinkBenchOp op: LinkBenchOp.values()) {
+      long h = getHits(op);
+      long total = h + getMisses(op);
+      if (total > 0) {
+        sb.append(String.format(" %s hit rate = %.2f%% (%d/%d)",
+                  op.displayName(), 100 * h / (double) total, h, total));
+      }
+    }
+    logger.info(sb.toString());
+  }
+}
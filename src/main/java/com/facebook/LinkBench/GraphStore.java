@@ -33,4 +33,14 @@ public abstract class GraphStore extends LinkStore implements NodeStore {
     }
     return ids;
   }
+
+  /** Provide generic implementation */
+  public Node[] multigetNodes(String dbid, int type, long ids[])
+      throws Exception {
+    Node nodes[] = new Node[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      nodes[i] = getNode(dbid, type, ids[i]);
+    }
+    return nodes;
+  }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.facebook.LinkBench.stats.HistogramLogReader;
+import com.facebook.LinkBench.stats.LatencyStats;
+import com.facebook.LinkBench.stats.LogLinearHistogram;
+
+/**
+ * Command line tool to report latency percentiles from histogram logs
+ * written with histogram_log, over any time range and per operation type.
+ * The range can be split into windows, e.g. of 10 seconds, with one line
+ * of CSV output per window and operation type, to see how latency changed
+ * over the run.  Logs from several drivers, e.g. the agents of a
+ * distributed run, are merged by wall clock time.
+ */
+public class HistogramLogTool {
+
+  /** Percentiles reported for each window */
+  static final double PERCENTILES[] = {50, 90, 99, 99.9, 99.99};
+
+  /** Start of range in seconds after start of earliest log */
+  private double from_s = 0.0;
+  /** End of range in seconds after start of earliest log */
+  private double to_s = Double.MAX_VALUE;
+  /** Window size in seconds, or 0 for a single window */
+  private double window_s = 0.0;
+  /** Names of operation types to report, or null for all */
+  private Set<String> ops = null;
+
+  public void setRange(double from_s, double to_s) {
+    this.from_s = from_s;
+    this.to_s = to_s;
+  }
+
+  public void setWindow(double window_s) {
+    this.window_s = window_s;
+  }
+
+  public void setOps(Set<String> ops) {
+    this.ops = ops;
+  }
+
+  /**
+   * Read the logs and print percentiles per window and operation type as
+   * CSV
+   */
+  public void slice(List<HistogramLogReader> logs, PrintStream out)
+                    throws IOException {
+    if (logs.isEmpty()) {
+      return;
+    }
+    long base_ms = Long.MAX_VALUE;
+    int digits = logs.get(0).getPrecisionDigits();
+    for (HistogramLogReader log: logs) {
+      base_ms = Math.min(base_ms, log.getStartTime_ms());
+      if (log.getPrecisionDigits() != digits) {
+        throw new IOException("Cannot merge histogram logs with " + digits +
+            " and " + log.getPrecisionDigits() + " digits precision");
+      }
+    }
+    long from_ms = base_ms + (long) (from_s * 1000);
+    long to_ms = to_s >= Long.MAX_VALUE / 1000 ? Long.MAX_VALUE :
+                 base_ms + (long) (to_s * 1000);
+    long window_ms = (long) (window_s * 1000);
+
+    // Histograms by window start and op type name
+    TreeMap<Long, TreeMap<String, LogLinearHistogram>> windows =
+                      new TreeMap<Long, TreeMap<String, LogLinearHistogram>>();
+    for (HistogramLogReader log: logs) {
+      HistogramLogReader.Interval interval;
+      while ((interval = log.next()) != null) {
+        if (interval.start_ms < from_ms || interval.start_ms >= to_ms) {
+          continue;
+        }
+        long windowStart_ms = window_ms <= 0 ? from_ms :
+            from_ms + ((interval.start_ms - from_ms) / window_ms) * window_ms;
+        TreeMap<String, LogLinearHistogram> window =
+                                        windows.get(windowStart_ms);
+        if (window == null) {
+          window = new TreeMap<String, LogLinearHistogram>();
+          windows.put(windowStart_ms, window);
+        }
+        for (Map.Entry<String, LogLinearHistogram> e:
+                                      interval.histograms.entrySet()) {
+          if (ops != null && !ops.contains(e.getKey())) {
+            continue;
+          }
+          LogLinearHistogram hist = window.get(e.getKey());
+          if (hist == null) {
+            window.put(e.getKey(), e.getValue());
+          } else {
+            hist.add(e.getValue());
+          }
+        }
+      }
+    }
+
+    out.print("time,offset_s,op,count");
+    for (double percentile: PERCENTILES) {
+      out.print(",");
+      out.print(LatencyStats.percentileName(percentile));
+    }
+    out.println(",max");
+
+    SimpleDateFormat timeFormat = new SimpleDateFormat(
+                                          "yyyy-MM-dd HH:mm:ss.SSS");
+    DecimalFormat df = new DecimalFormat("#.###");
+    for (Map.Entry<Long, TreeMap<String, LogLinearHistogram>> window:
+                                                    windows.entrySet()) {
+      long start_ms = window.getKey();
+      for (Map.Entry<String, LogLinearHistogram> e:
+                                      window.getValue().entrySet()) {
+        LogLinearHistogram hist = e.getValue();
+        out.print(timeFormat.format(new Date(start_ms)));
+        out.print(",");
+        out.print(df.format((start_ms - base_ms) / 1000.0));
+        out.print(",");
+        out.print(e.getKey());
+        out.print(",");
+        out.print(hist.getTotalCount());
+        for (double percentile: PERCENTILES) {
+          out.print(",");
+          out.print(df.format(hist.getValueAtPercentile(percentile) / 1000.0));
+        }
+        out.print(",");
+        out.print(df.format(hist.getMaxValue() / 1000.0));
+        out.println();
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    Options options = initializeOptions();
+    CommandLine cmd = null;
+    try {
+      CommandLineParser parser = new GnuParser();
+      cmd = parser.parse(options, args);
+    } catch (ParseException ex) {
+      // Use Apache CLI-provided messages
+      System.err.println(ex.getMessage());
+      printUsage(options);
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+    if (cmd.getArgs().length == 0) {
+      printUsage(options);
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+
+    HistogramLogTool tool = new HistogramLogTool();
+    try {
+      double from_s = cmd.hasOption("from") ?
+          Double.parseDouble(cmd.getOptionValue("from")) : 0.0;
+      double to_s = cmd.hasOption("to") ?
+          Double.parseDouble(cmd.getOptionValue("to")) : Double.MAX_VALUE;
+      tool.setRange(from_s, to_s);
+      if (cmd.hasOption("window")) {
+        tool.setWindow(Double.parseDouble(cmd.getOptionValue("window")));
+      }
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid number: " + e.getMessage());
+      printUsage(options);
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+    if (cmd.hasOption("op")) {
+      Set<String> ops = new HashSet<String>();
+      for (String op: cmd.getOptionValue("op").split(",")) {
+        ops.add(op.trim().toUpperCase());
+      }
+      tool.setOps(ops);
+    }
+
+    List<HistogramLogReader> logs = new ArrayList<HistogramLogReader>();
+    try {
+      try {
+        for (String file: cmd.getArgs()) {
+          logs.add(new HistogramLogReader(new File(file)));
+        }
+        tool.slice(logs, System.out);
+      } finally {
+        for (HistogramLogReader log: logs) {
+          log.close();
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Error reading histogram log: " + e.getMessage());
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+  }
+
+  private static void printUsage(Options options) {
+    HelpFormatter fmt = new HelpFormatter();
+    fmt.printHelp("linkbench histlog [options] <log file>...", options);
+  }
+
+  private static Options initializeOptions() {
+    Options options = new Options();
+    Option from = new Option("from", true,
+        "Start of range in seconds after start of log (default: start)");
+    from.setArgName("seconds");
+    options.addOption(from);
+
+    Option to = new Option("to", true,
+        "End of range in seconds after start of log (default: end)");
+    to.setArgName("seconds");
+    options.addOption(to);
+
+    Option window = new Option("window", true,
+        "Report percentiles for each window of this many seconds " +
+        "(default: whole range)");
+    window.setArgName("seconds");
+    options.addOption(window);
+
+    Option op = new Option("op", true,
+        "Comma-separated operation types to report (default: all)");
+    op.setArgName("ops");
+    options.addOption(op);
+    return options;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Mapping from link types to the types of their inverse links.  When a
+ * link (id1, type, id2) is written with inverses enabled, the inverse link
+ * (id2, inverse type, id1) is written in the same transaction or batch,
+ * as is done for symmetric associations such as friendship.
+ *
+ * Configured with inverse_link_types, which is either "symmetric", meaning
+ * every link type is its own inverse, or a comma separated list of
+ * type:inverse pairs.  Each pair applies in both directions, and a type
+ * may be paired with itself.
+ */
+public class InverseLinkTypes {
+  public static final String SYMMETRIC = "symmetric";
+
+  /** If true, every type is its own inverse */
+  private final boolean symmetric;
+
+  private final Map<Long, Long> inverses;
+
+  private InverseLinkTypes(boolean symmetric, Map<Long, Long> inverses) {
+    this.symmetric = symmetric;
+    this.inverses = inverses;
+  }
+
+  /**
+   * @return the configured inverse link types, or null if not configured
+   */
+  public static InverseLinkTypes fromConfig(Properties props) {
+    String spec = props.getProperty(Config.INVERSE_LINK_TYPES);
+    if (spec == null || spec.trim().length() == 0) {
+      return null;
+    }
+    return parse(spec.trim());
+  }
+
+  /**
+   * @param spec "symmetric" or list of type:inverse pairs
+   */
+  public static InverseLinkTypes parse(String spec) {
+    if (spec.equalsIgnoreCase(SYMMETRIC)) {
+      return new InverseLinkTypes(true, null);
+    }
+    Map<Long, Long> inverses = new HashMap<Long, Long>();
+    for (String pair: spec.split(",")) {
+      String types[] = pair.trim().split(":");
+      if (types.length != 2) {
+        throw new LinkBenchConfigError("Bad entry in " +
+            Config.INVERSE_LINK_TYPES + ": \"" + pair + "\", expected " +
+            "type:inverse");
+      }
+      long type, inverse;
+      try {
+        type = Long.parseLong(types[0].trim());
+        inverse = Long.parseLong(types[1].trim());
+      } catch (NumberFormatException e) {
+        throw new LinkBenchConfigError("Bad link type in " +
+            Config.INVERSE_LINK_TYPES + ": \"" + pair + "\"");
+      }
+      addPair(inverses, type, inverse);
+      addPair(inverses, inverse, type);
+    }
+    return new InverseLinkTypes(false, inverses);
+  }
+
+  private static void addPair(Map<Long, Long> inverses, long type,
+                              long inverse) {
+    Long prev = inverses.put(type, inverse);
+    if (prev != null && prev != inverse) {
+      throw new LinkBenchConfigError("Link type " + type + " given two " +
+          "inverses in " + Config.INVERSE_LINK_TYPES + ": " + prev + " and " +
+          inverse);
+    }
+  }
+
+  public boolean hasInverse(long link_type) {
+    return symmetric || inverses.containsKey(link_type);
+  }
+
+  /**
+   * @return the inverse type of link_type.  Only valid if
+   *    hasInverse(link_type)
+   */
+  public long getInverse(long link_type) {
+    return symmetric ? link_type : inverses.get(link_type);
+  }
+
+  /**
+   * @return the inverse link of l, with the same visibility, data, time
+   *    and version, or null if the link type has no inverse
+   */
+  public Link inverseOf(Link l) {
+    if (!hasInverse(l.link_type)) {
+      return null;
+    }
+    return new Link(l.id2, getInverse(l.link_type), l.id1, l.visibility,
+                    l.data, l.version, l.time);
+  }
+
+  @Override
+  public String toString() {
+    return symmetric ? SYMMETRIC : inverses.toString();
+  }
+}
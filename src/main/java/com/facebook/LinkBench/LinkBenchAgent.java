@@ -0,0 +1,347 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.LinkBenchDriver.LoadResult;
+import com.facebook.LinkBench.LinkBenchLoad.LoadProgress;
+import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.stats.LatencyStats;
+
+/**
+ * Agent that runs part of a distributed benchmark on behalf of a
+ * LinkBenchCoordinator.  The agent connects to the coordinator, then for
+ * each phase receives the configuration and its share of the work, runs
+ * it once the coordinator signals all agents to start, reports progress at
+ * regular intervals and finally sends back its latency histograms.
+ *
+ * Settings given on the agent command line override those sent by the
+ * coordinator, e.g. to point agents at different database hosts.
+ */
+public class LinkBenchAgent {
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final String host;
+  private final int port;
+  private final Properties overrideProps;
+  private final String logFile;
+
+  private DataInputStream in;
+  private DataOutputStream out;
+  private boolean loggingSetup = false;
+
+  public LinkBenchAgent(String host, int port, Properties overrideProps,
+                        String logFile) {
+    this.host = host;
+    this.port = port;
+    this.overrideProps = overrideProps;
+    this.logFile = logFile;
+  }
+
+  /**
+   * Connect to coordinator and run phases until told to shut down
+   */
+  public void run() throws Throwable {
+    Socket socket = new Socket(host, port);
+    try {
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(
+                                            socket.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(
+                                            socket.getOutputStream()));
+      out.writeInt(LinkBenchCoordinator.PROTOCOL_MAGIC);
+      out.writeInt(LinkBenchCoordinator.PROTOCOL_VERSION);
+      out.flush();
+
+      while (true) {
+        byte msg = in.readByte();
+        if (msg == LinkBenchCoordinator.MSG_SHUTDOWN) {
+          break;
+        } else if (msg != LinkBenchCoordinator.MSG_PHASE) {
+          throw new IOException("Unexpected message " + msg +
+                                " from coordinator");
+        }
+        runPhase();
+      }
+    } finally {
+      socket.close();
+    }
+  }
+
+  private void runPhase() throws Throwable {
+    Phase phase = Phase.values()[in.readInt()];
+    int agentID = in.readInt();
+    int nagents = in.readInt();
+    byte propBytes[] = new byte[in.readInt()];
+    in.readFully(propBytes);
+    Properties props = LinkBenchCoordinator.deserializeProps(propBytes);
+    props.putAll(overrideProps);
+    if (!loggingSetup) {
+      ConfigUtil.setupLogging(props, logFile);
+      loggingSetup = true;
+    }
+
+    try {
+      if (phase == Phase.LOAD) {
+        long startid1 = in.readLong();
+        long endid1 = in.readLong();
+        boolean genNodes = in.readBoolean();
+        runLoad(props, agentID, nagents, startid1, endid1, genNodes);
+      } else {
+        int firstRequester = in.readInt();
+        int totalRequesters = in.readInt();
+        runRequests(props, agentID, nagents, firstRequester,
+                    totalRequesters);
+      }
+    } catch (Exception e) {
+      logger.error("Agent #" + agentID + " failed in " + phase + " phase", e);
+      synchronized (out) {
+        out.writeByte(LinkBenchCoordinator.MSG_ERROR);
+        out.writeUTF(String.valueOf(e));
+        out.flush();
+      }
+      throw e;
+    }
+  }
+
+  private void runLoad(Properties props, int agentID, int nagents,
+        long startid1, long endid1, boolean genNodes) throws Throwable {
+    logger.info(String.format("Agent #%d/%d loading id1s [%d, %d)%s",
+        agentID, nagents, startid1, endid1, genNodes ? " and nodes" : ""));
+    LinkBenchDriver driver = new LinkBenchDriver(props);
+    final LoadProgress tracker = LoadProgress.create(logger, props,
+                                                     endid1 - startid1);
+    ready();
+
+    ProgressReporter reporter = new ProgressReporter(props) {
+      @Override
+      long getProgress() {
+        return tracker.getLinksLoaded();
+      }
+    };
+    reporter.start();
+    LoadResult result;
+    try {
+      result = driver.loadRange(startid1, endid1, genNodes, tracker);
+    } finally {
+      reporter.finish();
+    }
+    sendResult(result.links, result.nodes, 0, 0, result.loadTime,
+               result.latencyStats);
+  }
+
+  private void runRequests(Properties props, int agentID, int nagents,
+      int firstRequester, int totalRequesters) throws Throwable {
+    int nrequesters = ConfigUtil.getInt(props, Config.NUM_REQUESTERS);
+    logger.info(String.format("Agent #%d/%d running requesters [%d, %d) " +
+        "of %d", agentID, nagents, firstRequester,
+        firstRequester + nrequesters, totalRequesters));
+    LinkBenchDriver driver = new LinkBenchDriver(props);
+    LatencyStats latencyStats = LatencyStats.create(props, nrequesters,
+                                                   firstRequester);
+    final RequestProgress progress = LinkBenchRequest.createProgress(logger,
+                                                                     props);
+    // Rate limits are divided between agents
+    List<LinkBenchRequest> requesters = driver.createRequesters(props,
+        nrequesters, firstRequester, totalRequesters, nagents, latencyStats,
+        null, progress);
+    ready();
+
+    ProgressReporter reporter = new ProgressReporter(props) {
+      @Override
+      long getProgress() {
+        return progress.getRequestsDone();
+      }
+    };
+    progress.startTimer();
+    reporter.start();
+    try {
+      driver.execTasks(requesters);
+    } finally {
+      reporter.finish();
+    }
+    long benchmarkTime = System.currentTimeMillis() -
+                         progress.getBenchmarkStartTime();
+
+    long requestsDone = 0, errors = 0;
+    int aborted = 0;
+    for (LinkBenchRequest requester: requesters) {
+      requestsDone += requester.getRequestsDone();
+      errors += requester.getErrors();
+      if (requester.didAbort()) {
+        aborted++;
+      }
+    }
+    sendResult(requestsDone, 0, errors, aborted, benchmarkTime, latencyStats);
+  }
+
+  /**
+   * Tell coordinator that setup is done and wait for signal to start
+   */
+  private void ready() throws IOException {
+    synchronized (out) {
+      out.writeByte(LinkBenchCoordinator.MSG_READY);
+      out.flush();
+    }
+    byte msg = in.readByte();
+    if (msg != LinkBenchCoordinator.MSG_START) {
+      throw new IOException("Expected start message from coordinator, got "
+                            + msg);
+    }
+  }
+
+  private void sendResult(long ops, long nodes, long errors, int aborted,
+        long elapsed, LatencyStats latencyStats) throws IOException {
+    synchronized (out) {
+      out.writeByte(LinkBenchCoordinator.MSG_RESULT);
+      out.writeLong(ops);
+      out.writeLong(nodes);
+      out.writeLong(errors);
+      out.writeInt(aborted);
+      out.writeLong(elapsed);
+      latencyStats.writeTo(out);
+      out.flush();
+    }
+  }
+
+  /**
+   * Thread that sends the operation count to the coordinator at regular
+   * intervals while a phase runs
+   */
+  private abstract class ProgressReporter extends Thread {
+    private final long reportFreq_ms;
+    private volatile boolean done = false;
+
+    ProgressReporter(Properties props) {
+      super("agent-progress");
+      setDaemon(true);
+      reportFreq_ms = ConfigUtil.getLong(props, Config.DIST_REPORT_FREQ, 1L)
+                      * 1000;
+    }
+
+    abstract long getProgress();
+
+    @Override
+    public void run() {
+      try {
+        while (!done) {
+          Thread.sleep(reportFreq_ms);
+          synchronized (out) {
+            out.writeByte(LinkBenchCoordinator.MSG_PROGRESS);
+            out.writeLong(getProgress());
+            out.flush();
+          }
+        }
+      } catch (InterruptedException e) {
+        // Finished
+      } catch (IOException e) {
+        logger.warn("Error sending progress to coordinator", e);
+      }
+    }
+
+    void finish() throws InterruptedException {
+      done = true;
+      interrupt();
+      join();
+    }
+  }
+
+  public static void main(String[] args) throws Throwable {
+    Options options = initializeOptions();
+    CommandLine cmd = null;
+    try {
+      CommandLineParser parser = new GnuParser();
+      cmd = parser.parse(options, args);
+    } catch (ParseException ex) {
+      // Use Apache CLI-provided messages
+      System.err.println(ex.getMessage());
+      printUsage(options);
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+    if (cmd.getArgs().length > 0) {
+      printUsage(options);
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+
+    String host = cmd.getOptionValue("host", "localhost");
+    int port = LinkBenchCoordinator.DEFAULT_PORT;
+    if (cmd.hasOption("port")) {
+      try {
+        port = Integer.parseInt(cmd.getOptionValue("port"));
+      } catch (NumberFormatException e) {
+        System.err.println("Invalid port " + cmd.getOptionValue("port"));
+        System.exit(LinkBenchDriver.EXIT_BADARGS);
+      }
+    }
+    LinkBenchAgent agent = new LinkBenchAgent(host, port,
+               cmd.getOptionProperties("D"), cmd.getOptionValue('L'));
+    try {
+      agent.run();
+    } catch (LinkBenchConfigError e) {
+      System.err.println("Configuration error: " + e.toString());
+      System.exit(LinkBenchDriver.EXIT_BADCONFIG);
+    }
+  }
+
+  private static void printUsage(Options options) {
+    HelpFormatter fmt = new HelpFormatter();
+    fmt.printHelp("linkbench-agent", options, true);
+  }
+
+  private static Options initializeOptions() {
+    Options options = new Options();
+    Option host = new Option("host", true,
+                             "Coordinator host (default localhost)");
+    host.setArgName("host");
+    options.addOption(host);
+
+    Option port = new Option("port", true, "Coordinator port (default " +
+                             LinkBenchCoordinator.DEFAULT_PORT + ")");
+    port.setArgName("port");
+    options.addOption(port);
+
+    Option log = new Option("L", true, "Log to this file");
+    log.setArgName("file");
+    options.addOption(log);
+
+    // Java-style properties to override coordinator config
+    // -Dkey=value
+    Option property = new Option("D", "Override a config setting");
+    property.setArgs(2);
+    property.setArgName("property=value");
+    property.setValueSeparator('=');
+    options.addOption(property);
+
+    return options;
+  }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.stats.IntervalAggregator;
+
+/**
+ * Runtime control of the request phase through JMX, so that several
+ * request rates or operation mixes can be tried in one run without
+ * warming up the database again for each.
+ *
+ * Changes are published as an immutable Settings object through a
+ * volatile field.  Each requester compares the settings with the ones it
+ * last applied before each request, and applies any changes itself, so
+ * requesters never take a lock.  Statistics are read from the same
+ * counters as the MetricsServer.
+ */
+public class LinkBenchControl implements LinkBenchControlMXBean {
+  public static final String OBJECT_NAME =
+                                  "com.facebook.LinkBench:type=Control";
+
+  /** Keys that are always part of the operation mix */
+  private static final String REQUIRED_MIX_KEYS[] = {
+    Config.PR_ADD_LINK, Config.PR_DELETE_LINK, Config.PR_UPDATE_LINK,
+    Config.PR_COUNT_LINKS, Config.PR_GET_LINK, Config.PR_GET_LINK_LIST };
+
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  /** Configuration the benchmark was started with */
+  private final Properties props;
+
+  private volatile Settings settings = Settings.INITIAL;
+
+  /* Request phase being controlled, set by the driver */
+  private volatile List<LinkBenchRequest> requesters =
+                              Collections.<LinkBenchRequest>emptyList();
+  private volatile RequestProgress requestProgress = null;
+  private volatile IntervalAggregator intervalAggregator = null;
+
+  private ObjectName registeredName = null;
+
+  public LinkBenchControl(Properties props) {
+    this.props = props;
+  }
+
+  /**
+   * @return control registered with the platform MBean server, or null if
+   *    not enabled in the configuration
+   */
+  public static LinkBenchControl create(Properties props) {
+    if (!ConfigUtil.getBool(props, Config.JMX_CONTROL, false)) {
+      return null;
+    }
+    LinkBenchControl control = new LinkBenchControl(props);
+    control.register();
+    return control;
+  }
+
+  public void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      server.registerMBean(this, name);
+      registeredName = name;
+      logger.info("Registered JMX control as " + OBJECT_NAME);
+    } catch (JMException e) {
+      throw new LinkBenchConfigError("Could not register JMX control " +
+                                     OBJECT_NAME + ": " + e.getMessage());
+    }
+  }
+
+  public void unregister() {
+    if (registeredName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                                                        registeredName);
+      } catch (JMException e) {
+        logger.warn("Could not unregister JMX control", e);
+      }
+      registeredName = null;
+    }
+  }
+
+  /**
+   * @return current settings, to be applied by requesters.  Cheap enough
+   *    to call before every request.
+   */
+  public Settings getSettings() {
+    return settings;
+  }
+
+  public void setRequesters(List<LinkBenchRequest> requesters) {
+    this.requesters = requesters == null ?
+        Collections.<LinkBenchRequest>emptyList() : requesters;
+  }
+
+  public void setRequestProgress(RequestProgress requestProgress) {
+    this.requestProgress = requestProgress;
+  }
+
+  public void setIntervalAggregator(IntervalAggregator intervalAggregator) {
+    this.intervalAggregator = intervalAggregator;
+  }
+
+  @Override
+  public long getRequestsDone() {
+    RequestProgress progress = requestProgress;
+    return progress == null ? 0 : progress.getRequestsDone();
+  }
+
+  @Override
+  public long getRequestsTarget() {
+    RequestProgress progress = requestProgress;
+    return progress == null ? 0 : progress.getTotalRequests();
+  }
+
+  @Override
+  public int getRequestsInFlight() {
+    int inFlight = 0;
+    for (LinkBenchRequest r: requesters) {
+      inFlight += r.getRequestsInFlight();
+    }
+    return inFlight;
+  }
+
+  @Override
+  public Map<String, Long> getOpCounts() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      if (!type.isOperation()) {
+        continue;
+      }
+      long count = 0;
+      for (LinkBenchRequest r: requesters) {
+        count += r.getOpCount(type);
+      }
+      if (count > 0) {
+        counts.put(type.name(), count);
+      }
+    }
+    return counts;
+  }
+
+  @Override
+  public Map<String, Long> getOpErrors() {
+    Map<String, Long> errors = new TreeMap<String, Long>();
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      if (!type.isOperation()) {
+        continue;
+      }
+      long count = 0, errorCount = 0;
+      for (LinkBenchRequest r: requesters) {
+        count += r.getOpCount(type);
+        errorCount += r.getOpErrors(type);
+      }
+      if (count > 0) {
+        errors.put(type.name(), errorCount);
+      }
+    }
+    return errors;
+  }
+
+  @Override
+  public Map<String, Double> getIntervalOpsPerSec() {
+    Map<String, Double> rates = new TreeMap<String, Double>();
+    IntervalAggregator.Snapshot snap = latestInterval();
+    if (snap != null) {
+      for (LinkBenchOp type: LinkBenchOp.values()) {
+        if (type.isOperation() && snap.getOps(type) > 0) {
+          rates.put(type.name(), snap.getOpsPerSec(type));
+        }
+      }
+    }
+    return rates;
+  }
+
+  @Override
+  public Map<String, Long> getIntervalP99Latency_us() {
+    Map<String, Long> latencies = new TreeMap<String, Long>();
+    IntervalAggregator.Snapshot snap = latestInterval();
+    if (snap != null) {
+      int p99 = -1;
+      double percentiles[] = IntervalAggregator.getPercentiles();
+      for (int p = 0; p < percentiles.length; p++) {
+        if (percentiles[p] == 99) {
+          p99 = p;
+        }
+      }
+      for (LinkBenchOp type: LinkBenchOp.values()) {
+        long values[] = snap.getPercentileValues(type);
+        if (type.isOperation() && values != null) {
+          latencies.put(type.name(), values[p99]);
+        }
+      }
+    }
+    return latencies;
+  }
+
+  private IntervalAggregator.Snapshot latestInterval() {
+    IntervalAggregator agg = intervalAggregator;
+    return agg == null ? null : agg.getLatest();
+  }
+
+  @Override
+  public long getRequestRate() {
+    long rate = settings.getRequestRate();
+    return rate >= 0 ? rate :
+           ConfigUtil.getLong(props, Config.REQUEST_RATE, 0L);
+  }
+
+  @Override
+  public synchronized void setRequestRate(long rate) {
+    if (rate < 0) {
+      throw new IllegalArgumentException("Request rate must be >= 0");
+    }
+    checkNoScript(Config.REQUEST_RATE);
+    if (ConfigUtil.getDouble(props, Config.REQUEST_GLOBAL_RATE, 0.0) > 0) {
+      throw new IllegalStateException(Config.REQUEST_RATE + " cannot be " +
+          "changed when " + Config.REQUEST_GLOBAL_RATE + " is set");
+    }
+    if (rate == 0 &&
+        ConfigUtil.getBool(props, Config.REQUEST_OPEN_LOOP, false)) {
+      throw new IllegalArgumentException(Config.REQUEST_OPEN_LOOP +
+                                         " requires a request rate > 0");
+    }
+    logger.info("JMX control: changing request rate to " + rate +
+                " requests/s per requester");
+    Settings s = settings;
+    settings = new Settings(rate, s.opMix, s.paused, s.activeRequesters,
+                            s.snapshotGeneration);
+  }
+
+  @Override
+  public Map<String, Double> getOpMix() {
+    Properties mix = settings.getOpMix();
+    if (mix == null) {
+      mix = props;
+    }
+    Map<String, Double> result = new TreeMap<String, Double>();
+    for (String key: WorkloadPhase.MIX_KEYS) {
+      result.put(key, ConfigUtil.getDouble(mix, key, 0.0));
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void changeOpMix(String mix) {
+    checkNoScript("Operation mix");
+    String opStreamDir = props.getProperty(Config.REQUEST_OP_STREAM_DIR);
+    if (opStreamDir != null && opStreamDir.trim().length() > 0) {
+      throw new IllegalStateException("Operation mix cannot be changed " +
+          "when reading operations from " + Config.REQUEST_OP_STREAM_DIR);
+    }
+    Properties newMix = parseMix(settings.getOpMix() == null ? props :
+                                 settings.getOpMix(), mix);
+    logger.info("JMX control: changing operation mix to " + mix);
+    Settings s = settings;
+    settings = new Settings(s.requestRate, newMix, s.paused,
+                            s.activeRequesters, s.snapshotGeneration);
+  }
+
+  /**
+   * @param current configuration with the current mix
+   * @param mix changes to the mix, as for changeOpMix
+   * @return copy of configuration with the mix changed
+   */
+  Properties parseMix(Properties current, String mix) {
+    Properties result = new Properties();
+    result.putAll(current);
+    for (String pair: mix.split(",")) {
+      pair = pair.trim();
+      if (pair.length() == 0) {
+        continue;
+      }
+      int eq = pair.indexOf('=');
+      if (eq < 0) {
+        throw new IllegalArgumentException("Expected key=percentage: " +
+                                           pair);
+      }
+      String key = pair.substring(0, eq).trim();
+      String value = pair.substring(eq + 1).trim();
+      if (!isMixKey(key)) {
+        throw new IllegalArgumentException("Not an operation mix key: " +
+                                           key);
+      }
+      double pc;
+      try {
+        pc = Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid percentage for " + key +
+                                           ": " + value);
+      }
+      if (pc < 0) {
+        throw new IllegalArgumentException("Percentage for " + key +
+                                           " must be >= 0");
+      }
+      // Requesters only set up the stores and statistics needed for the
+      // operations configured at startup
+      if (pc > 0 && !isRequiredMixKey(key) &&
+          !WorkloadPhase.mixIncludes(props, key)) {
+        throw new IllegalArgumentException(key + " was not enabled when " +
+            "the benchmark started, so cannot be enabled while running");
+      }
+      result.setProperty(key, value);
+    }
+    double total = 0;
+    for (String key: WorkloadPhase.MIX_KEYS) {
+      total += ConfigUtil.getDouble(result, key, 0.0);
+    }
+    if (Math.abs(total - 100.0) > 1e-5) {
+      throw new IllegalArgumentException("Percentages of request types do " +
+          "not add to 100, only " + total);
+    }
+    return result;
+  }
+
+  private static boolean isMixKey(String key) {
+    for (String mixKey: WorkloadPhase.MIX_KEYS) {
+      if (mixKey.equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isRequiredMixKey(String key) {
+    for (String mixKey: REQUIRED_MIX_KEYS) {
+      if (mixKey.equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void checkNoScript(String what) {
+    if (WorkloadPhase.loadScript(props) != null) {
+      throw new IllegalStateException(what + " cannot be changed when " +
+          "running the workload script " + Config.WORKLOAD_SCRIPT);
+    }
+  }
+
+  @Override
+  public int getRequesters() {
+    return requesters.size();
+  }
+
+  @Override
+  public int getActiveRequesters() {
+    Settings s = settings;
+    return s.paused ? 0 : Math.min(s.activeRequesters, requesters.size());
+  }
+
+  @Override
+  public synchronized void setActiveRequesters(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("Active requesters must be >= 0");
+    }
+    logger.info("JMX control: " + n + " requesters active");
+    Settings s = settings;
+    settings = new Settings(s.requestRate, s.opMix, s.paused, n,
+                            s.snapshotGeneration);
+  }
+
+  @Override
+  public boolean isPaused() {
+    return settings.paused;
+  }
+
+  @Override
+  public synchronized void pause() {
+    logger.info("JMX control: pausing requesters");
+    Settings s = settings;
+    settings = new Settings(s.requestRate, s.opMix, true,
+                            s.activeRequesters, s.snapshotGeneration);
+  }
+
+  @Override
+  public synchronized void resume() {
+    logger.info("JMX control: resuming requesters");
+    Settings s = settings;
+    settings = new Settings(s.requestRate, s.opMix, false,
+                            s.activeRequesters, s.snapshotGeneration);
+  }
+
+  @Override
+  public synchronized void snapshotStats() {
+    logger.info("JMX control: stats snapshot requested.  " +
+        getRequestsDone() + "/" + getRequestsTarget() + " requests done");
+    Settings s = settings;
+    settings = new Settings(s.requestRate, s.opMix, s.paused,
+                            s.activeRequesters, s.snapshotGeneration + 1);
+  }
+
+  /**
+   * Settings for requesters at one point in time
+   */
+  public static final class Settings {
+    static final Settings INITIAL = new Settings(-1, null, false,
+                                                 Integer.MAX_VALUE, 0);
+
+    private final long requestRate;
+    private final Properties opMix;
+    private final boolean paused;
+    private final int activeRequesters;
+    private final long snapshotGeneration;
+
+    private Settings(long requestRate, Properties opMix, boolean paused,
+                     int activeRequesters, long snapshotGeneration) {
+      this.requestRate = requestRate;
+      this.opMix = opMix;
+      this.paused = paused;
+      this.activeRequesters = activeRequesters;
+      this.snapshotGeneration = snapshotGeneration;
+    }
+
+    /** @return requests/s per requester, or -1 to use configuration */
+    public long getRequestRate() {
+      return requestRate;
+    }
+
+    /**
+     * @return configuration with the operation mix, or null to use the
+     *    configuration the requester was created with.  Not to be modified.
+     */
+    public Properties getOpMix() {
+      return opMix;
+    }
+
+    /** @return true if requester should pause */
+    public boolean isPaused(int requesterID) {
+      return paused || requesterID >= activeRequesters;
+    }
+
+    /** @return incremented each time a stats snapshot is requested */
+    public long getSnapshotGeneration() {
+      return snapshotGeneration;
+    }
+  }
+}
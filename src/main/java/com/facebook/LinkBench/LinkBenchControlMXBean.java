@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Map;
+
+/**
+ * JMX interface for watching and steering the request phase of a running
+ * benchmark, e.g. from jconsole.  See LinkBenchControl.
+ */
+public interface LinkBenchControlMXBean {
+
+  /* Live statistics for the request phase */
+
+  /** @return requests registered as done by requester threads */
+  public long getRequestsDone();
+
+  /** @return requests to be done in the request phase */
+  public long getRequestsTarget();
+
+  /** @return requests issued to the store and not yet completed */
+  public int getRequestsInFlight();
+
+  /** @return operations completed since warmup, by operation type */
+  public Map<String, Long> getOpCounts();
+
+  /** @return failed operations since warmup, by operation type */
+  public Map<String, Long> getOpErrors();
+
+  /**
+   * @return throughput in the last interval aggregated over all
+   *    requesters, by operation type.  Empty unless global_displayfreq
+   *    is enabled.
+   */
+  public Map<String, Double> getIntervalOpsPerSec();
+
+  /**
+   * @return 99th percentile latency in microseconds in the last interval
+   *    aggregated over all requesters, by operation type.  Empty unless
+   *    global_displayfreq is enabled.
+   */
+  public Map<String, Long> getIntervalP99Latency_us();
+
+  /* Settings that can be changed while running */
+
+  /** @return requests per second per requester, 0 if unthrottled */
+  public long getRequestRate();
+
+  /**
+   * Change requests per second for each requester, as with requestrate
+   * @param rate new rate, or 0 for no limit
+   */
+  public void setRequestRate(long rate);
+
+  /** @return current percentage for each operation mix key */
+  public Map<String, Double> getOpMix();
+
+  /**
+   * Change the operation mix.  Keys not given keep their current
+   * percentage, and the percentages must still add to 100.
+   * @param mix comma separated key=percentage pairs with operation mix
+   *    keys from the configuration, e.g. "getlinklist=60,addlink=10"
+   */
+  public void changeOpMix(String mix);
+
+  /** @return number of requesters in the request phase */
+  public int getRequesters();
+
+  /** @return number of requesters that are not paused */
+  public int getActiveRequesters();
+
+  /**
+   * Pause all requesters numbered n or above, and resume the others
+   */
+  public void setActiveRequesters(int n);
+
+  public boolean isPaused();
+
+  /** Pause all requesters after their current request */
+  public void pause();
+
+  /** Resume requesters paused with pause() */
+  public void resume();
+
+  /**
+   * Have each requester display and reset its statistics, as it does
+   * every displayfreq seconds
+   */
+  public void snapshotStats();
+}
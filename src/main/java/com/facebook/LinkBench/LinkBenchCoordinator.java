@@ -0,0 +1,535 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.stats.LatencyStats;
+
+/**
+ * Coordinator for running the benchmark from several client machines.
+ *
+ * The coordinator listens for connections from the configured number of
+ * LinkBenchAgent processes.  For each phase, it sends every agent the
+ * configuration and its share of the work: a range of id1s to load, or a
+ * range of requester numbers.  Once all agents are ready, it starts them
+ * together, logs the combined throughput reported by the agents while they
+ * run and then merges the latency histograms from all agents.
+ *
+ * Random seeds are fixed by the coordinator so that agents generate the
+ * same graph and requests as a single driver with the same total number of
+ * requesters would.
+ */
+public class LinkBenchCoordinator {
+  /* Protocol between coordinator and agents */
+  static final int PROTOCOL_MAGIC = 0x4c424e44;
+  static final int PROTOCOL_VERSION = 1;
+  static final byte MSG_PHASE = 1;
+  static final byte MSG_READY = 2;
+  static final byte MSG_START = 3;
+  static final byte MSG_PROGRESS = 4;
+  static final byte MSG_RESULT = 5;
+  static final byte MSG_ERROR = 6;
+  static final byte MSG_SHUTDOWN = 7;
+
+  public static final int DEFAULT_PORT = 6790;
+
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final Properties props;
+  private final int nagents;
+  private final long reportFreq_ms;
+  private final PrintStream csvStatsFile;
+
+  private ServerSocket serverSocket = null;
+  private final List<AgentConnection> agents =
+                                  new ArrayList<AgentConnection>();
+
+  /** Command line arguments */
+  private static String configFile = null;
+  private static Properties cmdLineProps = null;
+  private static String logFile = null;
+  private static PrintStream csvStatsOut = null;
+  private static boolean doLoad = false;
+  private static boolean doRequest = false;
+
+  /**
+   * @param csvStatsFile final statistics output, or null
+   */
+  public LinkBenchCoordinator(Properties props, PrintStream csvStatsFile) {
+    this.props = props;
+    this.csvStatsFile = csvStatsFile;
+    nagents = ConfigUtil.getInt(props, Config.DIST_AGENTS);
+    if (nagents <= 0) {
+      throw new LinkBenchConfigError(Config.DIST_AGENTS + " must be > 0");
+    }
+    reportFreq_ms = ConfigUtil.getLong(props, Config.DIST_REPORT_FREQ, 1L)
+                    * 1000;
+    if (reportFreq_ms <= 0) {
+      throw new LinkBenchConfigError(Config.DIST_REPORT_FREQ + " must be > 0");
+    }
+    fixSeed(Config.LOAD_RANDOM_SEED);
+    fixSeed(Config.REQUEST_RANDOM_SEED);
+  }
+
+  /**
+   * All agents must use the same seed, so choose one now if not configured
+   */
+  private void fixSeed(String key) {
+    if (!props.containsKey(key)) {
+      long seed = new Random().nextLong();
+      logger.info("Using random seed " + key + "=" + seed + " for all agents");
+      props.setProperty(key, Long.toString(seed));
+    }
+  }
+
+  /**
+   * Start listening for agents on the configured port
+   * @return the port listened on
+   */
+  public int listen() throws IOException {
+    int port = ConfigUtil.getInt(props, Config.DIST_PORT, DEFAULT_PORT);
+    serverSocket = new ServerSocket(port);
+    logger.info("Waiting for " + nagents + " agents on port " +
+                serverSocket.getLocalPort());
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Block until all agents have connected
+   */
+  public void acceptAgents() throws IOException {
+    while (agents.size() < nagents) {
+      Socket socket = serverSocket.accept();
+      AgentConnection agent = new AgentConnection(agents.size(), socket);
+      int magic = agent.in.readInt();
+      int version = agent.in.readInt();
+      if (magic != PROTOCOL_MAGIC || version != PROTOCOL_VERSION) {
+        logger.warn("Rejecting connection from " +
+            socket.getRemoteSocketAddress() + ": not a compatible agent");
+        socket.close();
+        continue;
+      }
+      agents.add(agent);
+      logger.info("Agent #" + agent.agentID + " connected from " +
+                  socket.getRemoteSocketAddress() + " (" + agents.size() +
+                  "/" + nagents + ")");
+    }
+    serverSocket.close();
+  }
+
+  /** Combined outcome of a phase on all agents */
+  public static class PhaseResult {
+    /** Links loaded or requests done */
+    public final long ops;
+    public final long nodes;
+    public final long errors;
+    public final int abortedRequesters;
+    /** Elapsed time of the slowest agent in milliseconds */
+    public final long elapsed;
+    public final LatencyStats latencyStats;
+
+    PhaseResult(long ops, long nodes, long errors, int abortedRequesters,
+                long elapsed, LatencyStats latencyStats) {
+      this.ops = ops;
+      this.nodes = nodes;
+      this.errors = errors;
+      this.abortedRequesters = abortedRequesters;
+      this.elapsed = elapsed;
+      this.latencyStats = latencyStats;
+    }
+  }
+
+  /**
+   * Run a phase of the benchmark on all agents and report the results
+   */
+  public PhaseResult runPhase(Phase phase) throws IOException,
+                                                  InterruptedException {
+    int requestersPerAgent = 0;
+    if (phase == Phase.REQUEST) {
+      requestersPerAgent = ConfigUtil.getInt(props, Config.NUM_REQUESTERS);
+      if (requestersPerAgent <= 0) {
+        throw new LinkBenchConfigError(Config.NUM_REQUESTERS + " must be > 0");
+      }
+    }
+    long startid1 = ConfigUtil.getLong(props, Config.MIN_ID);
+    long maxid1 = ConfigUtil.getLong(props, Config.MAX_ID);
+    boolean genNodes = ConfigUtil.getBool(props, Config.GENERATE_NODES, false);
+    byte propBytes[] = serializeProps(props);
+
+    for (AgentConnection agent: agents) {
+      DataOutputStream out = agent.out;
+      out.writeByte(MSG_PHASE);
+      out.writeInt(phase.ordinal());
+      out.writeInt(agent.agentID);
+      out.writeInt(nagents);
+      out.writeInt(propBytes.length);
+      out.write(propBytes);
+      if (phase == Phase.LOAD) {
+        // Contiguous ranges of id1s.  Nodes are loaded by the first agent
+        // since node ids are allocated by the store in order.
+        long nids = maxid1 - startid1;
+        out.writeLong(startid1 + nids * agent.agentID / nagents);
+        out.writeLong(startid1 + nids * (agent.agentID + 1) / nagents);
+        out.writeBoolean(genNodes && agent.agentID == 0);
+      } else {
+        out.writeInt(agent.agentID * requestersPerAgent);
+        out.writeInt(nagents * requestersPerAgent);
+      }
+      out.flush();
+    }
+
+    // Barrier: wait for all agents to set up before starting any
+    for (AgentConnection agent: agents) {
+      byte msg = agent.in.readByte();
+      if (msg == MSG_ERROR) {
+        throw new IOException("Agent #" + agent.agentID + " failed to " +
+                              "start: " + agent.in.readUTF());
+      } else if (msg != MSG_READY) {
+        throw new IOException("Unexpected message " + msg + " from agent #"
+                              + agent.agentID);
+      }
+    }
+    logger.info("Starting " + phase + " phase on " + nagents + " agents");
+    for (AgentConnection agent: agents) {
+      agent.out.writeByte(MSG_START);
+      agent.out.flush();
+    }
+
+    LatencyStats latencyStats = LatencyStats.create(props, nagents);
+    AtomicLongArray progress = new AtomicLongArray(nagents);
+    List<AgentReader> readers = new ArrayList<AgentReader>();
+    for (AgentConnection agent: agents) {
+      AgentReader reader = new AgentReader(agent, progress, latencyStats);
+      reader.start();
+      readers.add(reader);
+    }
+
+    reportProgress(phase, readers, progress);
+
+    long ops = 0, nodes = 0, errors = 0, elapsed = 0;
+    int aborted = 0;
+    for (AgentReader reader: readers) {
+      reader.join();
+      if (reader.error != null) {
+        throw new IOException("Agent #" + reader.agent.agentID + " failed: "
+                              + reader.error);
+      }
+      ops += reader.ops;
+      nodes += reader.nodes;
+      errors += reader.errors;
+      aborted += reader.aborted;
+      elapsed = Math.max(elapsed, reader.elapsed);
+    }
+    PhaseResult result = new PhaseResult(ops, nodes, errors, aborted,
+                                         elapsed, latencyStats);
+    displayResult(phase, result);
+    return result;
+  }
+
+  /**
+   * Log the combined throughput of all agents at regular intervals until
+   * all have finished
+   */
+  private void reportProgress(Phase phase, List<AgentReader> readers,
+            AtomicLongArray progress) throws InterruptedException {
+    String unit = phase == Phase.LOAD ? "links" : "requests";
+    long lastTotal = 0;
+    long lastTime = System.currentTimeMillis();
+    int finished = 0;
+    while (finished < readers.size()) {
+      AgentReader reader = readers.get(finished);
+      long remaining = lastTime + reportFreq_ms - System.currentTimeMillis();
+      if (remaining > 0) {
+        reader.join(remaining);
+      }
+      if (!reader.isAlive()) {
+        finished++;
+        continue;
+      }
+
+      long now = System.currentTimeMillis();
+      if (now >= lastTime + reportFreq_ms) {
+        long total = 0;
+        for (int i = 0; i < nagents; i++) {
+          total += progress.get(i);
+        }
+        logger.info(String.format("%d %s done by %d agents: %.1f %s/sec " +
+            "over last %.1f secs", total, unit, nagents,
+            (total - lastTotal) * 1000.0 / (now - lastTime), unit,
+            (now - lastTime) / 1000.0));
+        lastTotal = total;
+        lastTime = now;
+      }
+    }
+  }
+
+  private void displayResult(Phase phase, PhaseResult result) {
+    result.latencyStats.displayLatencyStats();
+    if (csvStatsFile != null) {
+      result.latencyStats.printCSVStats(csvStatsFile, true);
+    }
+
+    double elapsed_s = Math.max(1, result.elapsed) / 1000.0;
+    if (phase == Phase.LOAD) {
+      logger.info(String.format("LOAD PHASE COMPLETED on %d agents. " +
+          " Loaded %d nodes. Loaded %d links. Took %.1f seconds. " +
+          " Links/second = %d", nagents, result.nodes, result.ops, elapsed_s,
+          Math.round(result.ops / elapsed_s)));
+    } else {
+      logger.info(String.format("REQUEST PHASE COMPLETED on %d agents. " +
+          "%d requests done in %.1f seconds. Requests/second = %d",
+          nagents, result.ops, elapsed_s,
+          Math.round(result.ops / elapsed_s)));
+      if (result.abortedRequesters > 0) {
+        logger.error(String.format("Benchmark did not complete cleanly: %d " +
+            "request threads aborted.  See agent logs for details.",
+            result.abortedRequesters));
+      }
+    }
+  }
+
+  /**
+   * Tell agents that there are no more phases and disconnect
+   */
+  public void shutdown() {
+    for (AgentConnection agent: agents) {
+      try {
+        agent.out.writeByte(MSG_SHUTDOWN);
+        agent.out.flush();
+        agent.socket.close();
+      } catch (IOException e) {
+        logger.warn("Error disconnecting agent #" + agent.agentID, e);
+      }
+    }
+    agents.clear();
+  }
+
+  static byte[] serializeProps(Properties props) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    props.store(bytes, null);
+    return bytes.toByteArray();
+  }
+
+  static Properties deserializeProps(byte bytes[]) throws IOException {
+    Properties props = new Properties();
+    props.load(new ByteArrayInputStream(bytes));
+    return props;
+  }
+
+  private static class AgentConnection {
+    final int agentID;
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+
+    AgentConnection(int agentID, Socket socket) throws IOException {
+      this.agentID = agentID;
+      this.socket = socket;
+      socket.setTcpNoDelay(true);
+      in = new DataInputStream(new BufferedInputStream(
+                                            socket.getInputStream()));
+      out = new DataOutputStream(new BufferedOutputStream(
+                                            socket.getOutputStream()));
+    }
+  }
+
+  /**
+   * Read progress updates and the final result from an agent
+   */
+  private static class AgentReader extends Thread {
+    final AgentConnection agent;
+    private final AtomicLongArray progress;
+    private final LatencyStats latencyStats;
+
+    /* Set once finished */
+    String error = null;
+    long ops, nodes, errors, elapsed;
+    int aborted;
+
+    AgentReader(AgentConnection agent, AtomicLongArray progress,
+                LatencyStats latencyStats) {
+      super("agent-reader-" + agent.agentID);
+      this.agent = agent;
+      this.progress = progress;
+      this.latencyStats = latencyStats;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          byte msg = agent.in.readByte();
+          if (msg == MSG_PROGRESS) {
+            progress.set(agent.agentID, agent.in.readLong());
+          } else if (msg == MSG_RESULT) {
+            ops = agent.in.readLong();
+            nodes = agent.in.readLong();
+            errors = agent.in.readLong();
+            aborted = agent.in.readInt();
+            elapsed = agent.in.readLong();
+            // Each agent's latencies are merged into a separate slot
+            latencyStats.merge(agent.agentID, agent.in);
+            progress.set(agent.agentID, ops);
+            return;
+          } else if (msg == MSG_ERROR) {
+            error = agent.in.readUTF();
+            return;
+          } else {
+            error = "unexpected message " + msg;
+            return;
+          }
+        }
+      } catch (IOException e) {
+        error = e.toString();
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    processArgs(args);
+    try {
+      LinkBenchDriver d = new LinkBenchDriver(configFile, cmdLineProps,
+                                              logFile);
+      LinkBenchCoordinator coordinator = new LinkBenchCoordinator(
+                                    d.getProperties(), csvStatsOut);
+      coordinator.listen();
+      coordinator.acceptAgents();
+      try {
+        if (doLoad) {
+          coordinator.runPhase(Phase.LOAD);
+        }
+        if (doRequest) {
+          coordinator.runPhase(Phase.REQUEST);
+        }
+      } finally {
+        coordinator.shutdown();
+      }
+    } catch (LinkBenchConfigError e) {
+      System.err.println("Configuration error: " + e.toString());
+      System.exit(LinkBenchDriver.EXIT_BADCONFIG);
+    }
+  }
+
+  private static void printUsage(Options options) {
+    HelpFormatter fmt = new HelpFormatter();
+    fmt.printHelp("linkbench-coordinator", options, true);
+  }
+
+  private static Options initializeOptions() {
+    Options options = new Options();
+    Option config = new Option("c", true, "Linkbench config file");
+    config.setArgName("file");
+    options.addOption(config);
+
+    Option log = new Option("L", true, "Log to this file");
+    log.setArgName("file");
+    options.addOption(log);
+
+    Option csvStats = new Option("csvstats", "csvstats", true,
+                                 "CSV stats output");
+    csvStats.setArgName("file");
+    options.addOption(csvStats);
+
+    options.addOption("l", false,
+               "Execute loading stage of benchmark on agents");
+    options.addOption("r", false,
+               "Execute request stage of benchmark on agents");
+
+    // Java-style properties to override config file
+    // -Dkey=value
+    Option property = new Option("D", "Override a config setting");
+    property.setArgs(2);
+    property.setArgName("property=value");
+    property.setValueSeparator('=');
+    options.addOption(property);
+
+    return options;
+  }
+
+  /**
+   * Process command line arguments and set static variables
+   * exits program if invalid arguments provided
+   */
+  private static void processArgs(String[] args) {
+    Options options = initializeOptions();
+
+    CommandLine cmd = null;
+    try {
+      CommandLineParser parser = new GnuParser();
+      cmd = parser.parse(options, args);
+    } catch (ParseException ex) {
+      // Use Apache CLI-provided messages
+      System.err.println(ex.getMessage());
+      printUsage(options);
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+
+    if (cmd.getArgs().length > 0 || !cmd.hasOption('c')) {
+      printUsage(options);
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+
+    doLoad = cmd.hasOption('l');
+    doRequest = cmd.hasOption('r');
+    logFile = cmd.getOptionValue('L'); // May be null
+    configFile = cmd.getOptionValue('c');
+    cmdLineProps = cmd.getOptionProperties("D");
+
+    String csvStatsFileName = cmd.getOptionValue("csvstats"); // May be null
+    if (csvStatsFileName != null) {
+      try {
+        csvStatsOut = new PrintStream(new FileOutputStream(csvStatsFileName));
+      } catch (FileNotFoundException e) {
+        System.err.println("Could not open file " + csvStatsFileName +
+                           " for writing");
+        printUsage(options);
+        System.exit(LinkBenchDriver.EXIT_BADARGS);
+      }
+    }
+
+    if (!(doLoad || doRequest)) {
+      System.err.println("Did not select benchmark mode");
+      printUsage(options);
+      System.exit(LinkBenchDriver.EXIT_BADARGS);
+    }
+  }
+}
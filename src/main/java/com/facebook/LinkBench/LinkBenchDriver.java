@@ -20,6 +20,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
@@ -46,9 +47,15 @@ import org.apache.log4j.Logger;
 import com.facebook.LinkBench.LinkBenchLoad.LoadChunk;
 import com.facebook.LinkBench.LinkBenchLoad.LoadProgress;
 import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.TaskPool.ExecMode;
+import com.facebook.LinkBench.stats.AllocationStats;
+import com.facebook.LinkBench.stats.HistogramLogWriter;
+import com.facebook.LinkBench.stats.IntervalAggregator;
+import com.facebook.LinkBench.stats.OverheadStats;
 import com.facebook.LinkBench.stats.LatencyStats;
-import com.facebook.LinkBench.stats.SampledStats;
+import com.facebook.LinkBench.stats.StatsOutput;
 import com.facebook.LinkBench.util.ClassLoadUtil;
+import com.facebook.LinkBench.util.SplitMixRandom;
 
 /*
  LinkBenchDriver class.
@@ -72,14 +79,36 @@ public class LinkBenchDriver {
   /** File for final statistics */
   private static PrintStream csvStatsFile = null;
   /** File for output of incremental csv data */
-  private static PrintStream csvStreamFile = null;
+  private static OutputStream csvStreamFile = null;
   private static boolean doLoad = false;
   private static boolean doRequest = false;
+  private static boolean doCompile = false;
+  private static boolean doReplay = false;
+  private static boolean doSearch = false;
+
+  /**
+   * In search mode, a step fails if the requesters complete less than this
+   * fraction of the offered rate, since the store cannot keep up
+   */
+  private static final double SEARCH_MIN_ACHIEVED = 0.9;
 
   private Properties props;
 
+  Properties getProperties() {
+    return props;
+  }
+
   private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
 
+  /** Serves live metrics while running, or null if not configured */
+  private MetricsServer metricsServer = null;
+
+  /** Runtime control through JMX, or null if not configured */
+  private LinkBenchControl control = null;
+
+  /** Writes incremental stats to csvStreamFile, or null if none */
+  private StatsOutput statsOutput = null;
+
   LinkBenchDriver(String configfile, Properties
                   overrideProps, String logFile)
     throws java.io.FileNotFoundException, IOException, LinkBenchConfigError {
@@ -98,6 +127,14 @@ public class LinkBenchDriver {
     logger.info("Workload config file: " + workloadConfigFile);
   }
 
+  /**
+   * Create a driver with already loaded configuration, e.g. for an agent
+   * running part of a distributed benchmark
+   */
+  LinkBenchDriver(Properties props) {
+    this.props = props;
+  }
+
   /**
    * Load properties from auxilliary workload properties file if provided.
    * Properties from workload properties file do not override existing
@@ -150,6 +187,33 @@ public class LinkBenchDriver {
     return new Stores(linkStore, nodeStore);
   }
 
+  /**
+   * Generate stores for a requester that keeps multiple requests in flight.
+   * Stores without native support for the async interfaces are wrapped in
+   * a BlockingAsyncStore with a separate handle for each request in flight.
+   */
+  private Stores initAsyncStores(int pipelineDepth) throws Exception {
+    Stores stores = initStores();
+    if (stores.linkStore instanceof AsyncLinkStore &&
+        (stores.nodeStore == null || stores.nodeStore instanceof AsyncNodeStore)) {
+      return stores;
+    }
+
+    List<LinkStore> linkStores = new ArrayList<LinkStore>();
+    List<NodeStore> nodeStores = new ArrayList<NodeStore>();
+    linkStores.add(stores.linkStore);
+    nodeStores.add(stores.nodeStore);
+    for (int i = 1; i < pipelineDepth; i++) {
+      Stores handle = initStores();
+      linkStores.add(handle.linkStore);
+      nodeStores.add(handle.nodeStore);
+    }
+    boolean haveNodeStore = stores.nodeStore != null;
+    BlockingAsyncStore asyncStore = new BlockingAsyncStore(linkStores,
+                                        haveNodeStore ? nodeStores : null);
+    return new Stores(asyncStore, haveNodeStore ? asyncStore : null);
+  }
+
   private LinkStore createLinkStore() throws Exception, IOException {
     // The property "linkstore" defines the class name that will be used to
     // store data in a database. The folowing class names are pre-packaged
@@ -215,17 +279,65 @@ public class LinkBenchDriver {
       logger.info("Skipping load data per the cmdline arg");
       return;
     }
-    // load data
-    int nLinkLoaders = ConfigUtil.getInt(props, Config.NUM_LOADERS);
 
+    // max id1 to generate
+    long maxid1 = ConfigUtil.getLong(props, Config.MAX_ID);
+    // id1 at which to start
+    long startid1 = ConfigUtil.getLong(props, Config.MIN_ID);
+    boolean genNodes = ConfigUtil.getBool(props, Config.GENERATE_NODES);
+
+    LoadResult result = loadRange(startid1, maxid1, genNodes, null);
+
+    result.latencyStats.displayLatencyStats();
+
+    if (csvStatsFile != null) {
+      result.latencyStats.printCSVStats(csvStatsFile, true);
+    }
+
+    long expectedNodes = maxid1 - startid1;
+    double loadTime_s = (result.loadTime/1000.0);
+    logger.info(String.format("LOAD PHASE COMPLETED. " +
+        " Loaded %d nodes (Expected %d)." +
+        " Loaded %d links (%.2f links per node). " +
+        " Took %.1f seconds.  Links/second = %d",
+        result.nodes, expectedNodes, result.links,
+        result.links / (double) result.nodes, loadTime_s,
+        (long) Math.round(result.links / loadTime_s)));
+  }
+
+  /** Outcome of loading part of the graph */
+  static class LoadResult {
+    final long nodes;
+    final long links;
+    /** Elapsed time in milliseconds */
+    final long loadTime;
+    final LatencyStats latencyStats;
+
+    LoadResult(long nodes, long links, long loadTime,
+               LatencyStats latencyStats) {
+      this.nodes = nodes;
+      this.links = links;
+      this.loadTime = loadTime;
+      this.latencyStats = latencyStats;
+    }
+  }
+
+  /**
+   * Load links for id1s in [startid1, endid1), and optionally all nodes.
+   * The links generated for each id1 don't depend on the range, so a
+   * graph can be loaded in several parts.
+   * @param loadTracker tracks progress of load, or null to create one
+   *      for the range
+   */
+  LoadResult loadRange(long startid1, long endid1, boolean genNodes,
+                       LoadProgress loadTracker) throws Throwable {
+    int nLinkLoaders = ConfigUtil.getInt(props, Config.NUM_LOADERS);
 
     boolean bulkLoad = true;
     BlockingQueue<LoadChunk> chunk_q = new LinkedBlockingQueue<LoadChunk>();
 
-    // max id1 to generate
     long maxid1 = ConfigUtil.getLong(props, Config.MAX_ID);
-    // id1 at which to start
-    long startid1 = ConfigUtil.getLong(props, Config.MIN_ID);
+    long startid1Config = ConfigUtil.getLong(props, Config.MIN_ID);
 
     // Create loaders
     logger.info("Starting loaders " + nLinkLoaders);
@@ -233,20 +345,25 @@ public class LinkBenchDriver {
 
     Random masterRandom = createMasterRNG(props, Config.LOAD_RANDOM_SEED);
 
-
-    boolean genNodes = ConfigUtil.getBool(props, Config.GENERATE_NODES);
     int nTotalLoaders = genNodes ? nLinkLoaders + 1 : nLinkLoaders;
 
-    LatencyStats latencyStats = new LatencyStats(nTotalLoaders);
+    LatencyStats latencyStats = LatencyStats.create(props, nTotalLoaders);
     List<Runnable> loaders = new ArrayList<Runnable>(nTotalLoaders);
 
-    LoadProgress loadTracker = LoadProgress.create(logger, props);
+    if (loadTracker == null) {
+      loadTracker = LoadProgress.create(logger, props, endid1 - startid1);
+    }
+    if (metricsServer != null) {
+      metricsServer.setLoadProgress(loadTracker);
+    }
     for (int i = 0; i < nLinkLoaders; i++) {
       LinkStore linkStore = createLinkStore();
 
       bulkLoad = bulkLoad && linkStore.bulkLoadBatchSize() > 0;
       LinkBenchLoad l = new LinkBenchLoad(linkStore, props, latencyStats,
-              csvStreamFile, i, maxid1 == startid1 + 1, chunk_q, loadTracker);
+              null, i, maxid1 == startid1Config + 1, chunk_q,
+              loadTracker);
+      l.setStatsOutput(statsOutput);
       loaders.add(l);
     }
 
@@ -255,16 +372,22 @@ public class LinkBenchDriver {
       int loaderId = nTotalLoaders - 1;
       NodeStore nodeStore = createNodeStore(null);
       Random rng = new Random(masterRandom.nextLong());
-      loaders.add(new NodeLoader(props, logger, nodeStore, rng,
-          latencyStats, csvStreamFile, loaderId));
+      NodeLoader nodeLoader = new NodeLoader(props, logger, nodeStore, rng,
+          latencyStats, null, loaderId);
+      nodeLoader.setStatsOutput(statsOutput);
+      loaders.add(nodeLoader);
+    }
+    // Skip node seed if not generating nodes, so that link seed is the
+    // same for every part of a graph loaded in several parts
+    if (!genNodes) {
+      masterRandom.nextLong();
     }
-    enqueueLoadWork(chunk_q, startid1, maxid1, nLinkLoaders,
-                    new Random(masterRandom.nextLong()));
+    enqueueLoadWork(chunk_q, startid1, endid1, nLinkLoaders,
+                    masterRandom.nextLong());
     // run loaders
     loadTracker.startTimer();
-    long loadTime = concurrentExec(loaders);
+    long loadTime = execTasks(loaders);
 
-    long expectedNodes = maxid1 - startid1;
     long actualLinks = 0;
     long actualNodes = 0;
     for (final Runnable l:loaders) {
@@ -275,21 +398,7 @@ public class LinkBenchDriver {
         actualNodes += ((NodeLoader)l).getNodesLoaded();
       }
     }
-
-    latencyStats.displayLatencyStats();
-
-    if (csvStatsFile != null) {
-      latencyStats.printCSVStats(csvStatsFile, true);
-    }
-
-    double loadTime_s = (loadTime/1000.0);
-    logger.info(String.format("LOAD PHASE COMPLETED. " +
-        " Loaded %d nodes (Expected %d)." +
-        " Loaded %d links (%.2f links per node). " +
-        " Took %.1f seconds.  Links/second = %d",
-        actualNodes, expectedNodes, actualLinks,
-        actualLinks / (double) actualNodes, loadTime_s,
-        (long) Math.round(actualLinks / loadTime_s)));
+    return new LoadResult(actualNodes, actualLinks, loadTime, latencyStats);
   }
 
   /**
@@ -328,7 +437,7 @@ public class LinkBenchDriver {
   }
 
   private void enqueueLoadWork(BlockingQueue<LoadChunk> chunk_q, long startid1,
-      long maxid1, int nloaders, Random rng) {
+      long maxid1, int nloaders, long seed) {
     // Enqueue work chunks.  Do it in reverse order as a heuristic to improve
     // load balancing, since queue is FIFO and later chunks tend to be larger
 
@@ -337,7 +446,7 @@ public class LinkBenchDriver {
     ArrayList<LoadChunk> stack = new ArrayList<LoadChunk>();
     for (long id1 = startid1; id1 < maxid1; id1 += chunkSize) {
       stack.add(new LoadChunk(chunk_num, id1,
-                    Math.min(id1 + chunkSize, maxid1), rng));
+                    Math.min(id1 + chunkSize, maxid1), seed));
       chunk_num++;
     }
 
@@ -351,6 +460,45 @@ public class LinkBenchDriver {
     }
   }
 
+  /**
+   * Generate the operations for each requester ahead of the request phase
+   * and write them to op stream files
+   */
+  void compile() throws IOException, InterruptedException, Throwable {
+    if (!doCompile) {
+      return;
+    }
+
+    String opStreamDir = props.getProperty(Config.REQUEST_OP_STREAM_DIR);
+    if (opStreamDir == null || opStreamDir.trim().length() == 0) {
+      throw new LinkBenchConfigError("Compiling op streams requires " +
+                                     Config.REQUEST_OP_STREAM_DIR);
+    }
+    opStreamDir = opStreamDir.trim();
+    File dir = new File(opStreamDir);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new LinkBenchConfigError("Could not create op stream directory "
+                                     + opStreamDir);
+    }
+
+    int nrequesters = ConfigUtil.getInt(props, Config.NUM_REQUESTERS);
+    long numRequests = ConfigUtil.getLong(props, Config.NUM_REQUESTS);
+    // Use same seeds as request phase
+    Random masterRandom = createMasterRNG(props, Config.REQUEST_RANDOM_SEED);
+
+    long requestSeed = masterRandom.nextLong();
+    List<OpStreamCompiler> compilers = new LinkedList<OpStreamCompiler>();
+    for (int i = 0; i < nrequesters; i++) {
+      compilers.add(new OpStreamCompiler(props,
+          OpStreamWriter.streamFile(opStreamDir, i), numRequests,
+          SplitMixRandom.forKey(requestSeed, i), i, nrequesters));
+    }
+    long compileTime = concurrentExec(compilers);
+    logger.info("COMPILE PHASE COMPLETED. " + numRequests + " operations for "
+        + nrequesters + " requesters compiled to " + opStreamDir + " in "
+        + (compileTime/1000) + " seconds.");
+  }
+
   void sendrequests() throws IOException, InterruptedException, Throwable {
 
     if (!doRequest) {
@@ -364,27 +512,80 @@ public class LinkBenchDriver {
       logger.info("NO REQUEST PHASE CONFIGURED. ");
       return;
     }
-    LatencyStats latencyStats = new LatencyStats(nrequesters);
-    List<LinkBenchRequest> requesters = new LinkedList<LinkBenchRequest>();
-
+    LatencyStats latencyStats = LatencyStats.create(props, nrequesters);
+    // In open loop mode latencyStats measures from the intended start time,
+    // so track service time of the store operations separately
+    LatencyStats serviceLatencyStats = null;
+    if (ConfigUtil.getBool(props, Config.REQUEST_OPEN_LOOP, false)) {
+      serviceLatencyStats = LatencyStats.create(props, nrequesters);
+    }
+    // Latency for each phase, if running a workload script
+    List<WorkloadPhase> phases = WorkloadPhase.loadScript(props);
+    LatencyStats phaseLatencyStats[] = null;
+    if (phases != null) {
+      phaseLatencyStats = new LatencyStats[phases.size()];
+      for (int i = 0; i < phases.size(); i++) {
+        phaseLatencyStats[i] = LatencyStats.create(props, nrequesters);
+      }
+    }
+    AllocationStats allocationStats = null;
+    if (ConfigUtil.getBool(props, Config.REQUEST_ALLOC_STATS, false)) {
+      if (AllocationStats.isSupported()) {
+        allocationStats = new AllocationStats(nrequesters);
+      } else {
+        logger.warn(Config.REQUEST_ALLOC_STATS + " ignored: JVM does not " +
+                    "support measuring allocation per thread");
+      }
+    }
+    OverheadStats overheadStats = null;
+    if (ConfigUtil.getBool(props, Config.REQUEST_OVERHEAD_STATS, false)) {
+      overheadStats = new OverheadStats(nrequesters);
+    }
+    HistogramLogWriter histogramLog = openHistogramLog();
+    IntervalAggregator intervalAggregator = createIntervalAggregator();
     RequestProgress progress = LinkBenchRequest.createProgress(logger, props);
 
-    Random masterRandom = createMasterRNG(props, Config.REQUEST_RANDOM_SEED);
-
-    // create requesters
-    for (int i = 0; i < nrequesters; i++) {
-      Stores stores = initStores();
-      LinkBenchRequest l = new LinkBenchRequest(stores.linkStore,
-              stores.nodeStore, props, latencyStats, csvStreamFile,
-              progress, new Random(masterRandom.nextLong()), i, nrequesters);
-      requesters.add(l);
+    List<LinkBenchRequest> requesters = createRequesters(props, nrequesters,
+                              latencyStats, serviceLatencyStats, progress);
+    for (LinkBenchRequest l: requesters) {
+      l.setAllocationStats(allocationStats);
+      l.setOverheadStats(overheadStats);
+      l.setHistogramLog(histogramLog);
+      l.setIntervalAggregator(intervalAggregator);
+      l.setPhaseLatencyStats(phaseLatencyStats);
+      l.setControl(control);
+    }
+    if (control != null) {
+      control.setRequestProgress(progress);
+      control.setRequesters(requesters);
+      control.setIntervalAggregator(intervalAggregator);
+    }
+    if (metricsServer != null) {
+      metricsServer.setRequestProgress(progress);
+      metricsServer.setRequesters(requesters);
+      metricsServer.setIntervalAggregator(intervalAggregator);
     }
     progress.startTimer();
+    if (intervalAggregator != null) {
+      intervalAggregator.start();
+    }
+    if (histogramLog != null) {
+      histogramLog.start();
+    }
     // run requesters
-    concurrentExec(requesters);
+    execTasks(requesters);
+    if (intervalAggregator != null) {
+      intervalAggregator.stop();
+    }
     long finishTime = System.currentTimeMillis();
     // Calculate duration accounting for warmup time
     long benchmarkTime = finishTime - progress.getBenchmarkStartTime();
+    if (histogramLog != null) {
+      histogramLog.close();
+      logger.info("Wrote " + histogramLog.getIntervalsWritten() +
+                  " intervals to histogram log " +
+                  props.getProperty(Config.HISTOGRAM_LOG).trim());
+    }
 
     long requestsdone = 0;
     int abortedRequesters = 0;
@@ -397,6 +598,25 @@ public class LinkBenchDriver {
     }
 
     latencyStats.displayLatencyStats();
+    if (serviceLatencyStats != null) {
+      logger.info("Service times, excluding delay behind request schedule:");
+      serviceLatencyStats.displayLatencyStats();
+    }
+    if (phases != null) {
+      for (int i = 0; i < phases.size(); i++) {
+        logger.info("Latency for workload phase " + (i + 1) + "/" +
+                    phases.size() + ": " + phases.get(i));
+        phaseLatencyStats[i].displayLatencyStats();
+      }
+    }
+    if (allocationStats != null) {
+      logger.info("Heap memory allocated per request:");
+      allocationStats.displayAllocationStats();
+    }
+    if (overheadStats != null) {
+      logger.info("Driver overhead per request:");
+      overheadStats.displayOverheadStats();
+    }
 
     if (csvStatsFile != null) {
       latencyStats.printCSVStats(csvStatsFile, true);
@@ -412,6 +632,350 @@ public class LinkBenchDriver {
     }
   }
 
+  /**
+   * @return aggregator for statistics across requesters, or null if
+   *    disabled
+   */
+  private IntervalAggregator createIntervalAggregator() {
+    long displayFreq = ConfigUtil.getLong(props, Config.DISPLAY_FREQ, 60L);
+    long globalFreq = ConfigUtil.getLong(props, Config.GLOBAL_DISPLAY_FREQ,
+                                         displayFreq);
+    if (globalFreq <= 0) {
+      return null;
+    }
+    int maxsamples = ConfigUtil.getInt(props, Config.MAX_STAT_SAMPLES);
+    IntervalAggregator aggregator = new IntervalAggregator(globalFreq * 1000,
+                                                   maxsamples, null);
+    aggregator.setStatsOutput(statsOutput);
+    return aggregator;
+  }
+
+  /**
+   * @return log of latency histograms per interval, or null if not
+   *    configured
+   */
+  private HistogramLogWriter openHistogramLog() {
+    String logFile = props.getProperty(Config.HISTOGRAM_LOG);
+    if (logFile == null || logFile.trim().length() == 0) {
+      return null;
+    }
+    logFile = logFile.trim();
+    long interval_ms = ConfigUtil.getLong(props,
+                                 Config.HISTOGRAM_LOG_INTERVAL, 1000L);
+    if (interval_ms <= 0) {
+      throw new LinkBenchConfigError(Config.HISTOGRAM_LOG_INTERVAL +
+                                     " must be positive");
+    }
+    try {
+      return new HistogramLogWriter(new File(logFile), interval_ms,
+                                    LatencyStats.getPrecision(props));
+    } catch (IOException e) {
+      throw new LinkBenchConfigError("Could not open histogram log " +
+                                     logFile + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Create a requester with its own stores for each requester thread
+   * @param reqProps configuration for requesters
+   */
+  private List<LinkBenchRequest> createRequesters(Properties reqProps,
+          int nrequesters, LatencyStats latencyStats,
+          LatencyStats serviceLatencyStats, RequestProgress progress)
+          throws Exception {
+    return createRequesters(reqProps, nrequesters, 0, nrequesters, 1,
+                            latencyStats, serviceLatencyStats, progress);
+  }
+
+  /**
+   * Create requesters firstRequester, firstRequester + 1, ... out of
+   * totalRequesters, e.g. when requesters are spread over several agents.
+   * Each requester's random stream depends only on its number, and
+   * latencies are recorded in the slot for its number.
+   * @param rateShares configured rate limits are divided between this many
+   *    processes
+   */
+  List<LinkBenchRequest> createRequesters(Properties reqProps,
+          int nrequesters, int firstRequester, int totalRequesters,
+          int rateShares, LatencyStats latencyStats,
+          LatencyStats serviceLatencyStats, RequestProgress progress)
+          throws Exception {
+    List<LinkBenchRequest> requesters = new LinkedList<LinkBenchRequest>();
+
+    Random masterRandom = createMasterRNG(reqProps, Config.REQUEST_RANDOM_SEED);
+    // Each requester gets its own stream keyed by requester number
+    long requestSeed = masterRandom.nextLong();
+
+    int pipelineDepth = ConfigUtil.getInt(reqProps,
+                                      Config.REQUEST_PIPELINE_DEPTH, 1);
+    // Each request in flight can be a page load or two hop traversal
+    // with parallel operations
+    int concurrency = pipelineDepth *
+                      LinkBenchRequest.getOpConcurrency(reqProps);
+
+    // Rate limits are shared between all requesters
+    RequestRateLimits rateLimits = RequestRateLimits.fromConfig(reqProps,
+                                                                rateShares);
+    if (rateLimits != null) {
+      logger.info("Request rate limits: " + rateLimits);
+    }
+
+    // History for paging through link lists is shared by all requesters
+    LinkHistoryCache history = LinkHistoryCache.fromConfig(reqProps,
+                                                           nrequesters);
+
+    // create requesters
+    for (int i = firstRequester; i < firstRequester + nrequesters; i++) {
+      Stores stores = concurrency > 1 ? initAsyncStores(concurrency) :
+                                        initStores();
+      LinkBenchRequest l = new LinkBenchRequest(stores.linkStore,
+              stores.nodeStore, reqProps, latencyStats, serviceLatencyStats,
+              null, progress, SplitMixRandom.forKey(requestSeed, i),
+              i, totalRequesters);
+      l.setStatsOutput(statsOutput);
+      if (rateLimits != null) {
+        l.setRateLimits(rateLimits);
+      }
+      l.setHistoryCache(history);
+      requesters.add(l);
+    }
+    return requesters;
+  }
+
+  /**
+   * Search for the highest request rate at which the latency and error
+   * rate objectives are met, running the request phase for a short window
+   * at each rate tried.  Reports the rate found, along with the latency
+   * statistics at that rate.
+   */
+  void search() throws IOException, InterruptedException, Throwable {
+    if (!doSearch) {
+      return;
+    }
+
+    int nrequesters = ConfigUtil.getInt(props, Config.NUM_REQUESTERS);
+    if (nrequesters <= 0) {
+      throw new LinkBenchConfigError(Config.NUM_REQUESTERS +
+                                     " must be > 0 for search");
+    }
+
+    String sloOpName = props.getProperty(Config.SLO_OP,
+                                         LinkBenchOp.GET_LINKS_LIST.name());
+    LinkBenchOp sloOp;
+    try {
+      sloOp = LinkBenchOp.valueOf(sloOpName.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new LinkBenchConfigError("Invalid " + Config.SLO_OP + ": " +
+                                     sloOpName);
+    }
+    double percentile = ConfigUtil.getDouble(props, Config.SLO_PERCENTILE,
+                                             99.0);
+    if (percentile <= 0 || percentile > 100) {
+      throw new LinkBenchConfigError(Config.SLO_PERCENTILE +
+                                     " must be above 0 and at most 100");
+    }
+    String percentileName = LatencyStats.percentileName(percentile);
+    double sloLatency_ms = ConfigUtil.getDouble(props, Config.SLO_LATENCY_MS);
+    // Convert from percentage
+    double maxErrorRate = ConfigUtil.getDouble(props,
+                                Config.SLO_MAX_ERROR_RATE, 0.1) / 100;
+
+    // Rates are in total requests per second, but requestrate is per
+    // requester, so search over per requester rates
+    long minRate = ConfigUtil.getLong(props, Config.SEARCH_MIN_RATE,
+                                      (long)nrequesters);
+    long maxRate = ConfigUtil.getLong(props, Config.SEARCH_MAX_RATE);
+    ThroughputSearch search = new ThroughputSearch(
+        Math.max(1, minRate / nrequesters),
+        Math.max(1, maxRate / nrequesters),
+        ConfigUtil.getDouble(props, Config.SEARCH_PRECISION, 0.05),
+        ConfigUtil.getInt(props, Config.SEARCH_MAX_STEPS, 20));
+
+    Properties stepProps = new Properties();
+    stepProps.putAll(props);
+    stepProps.setProperty(Config.MAX_TIME, Long.toString(
+          ConfigUtil.getLong(props, Config.SEARCH_STEP_TIME, 30L)));
+    stepProps.setProperty(Config.WARMUP_TIME, Long.toString(
+          ConfigUtil.getLong(props, Config.SEARCH_WARMUP_TIME, 5L)));
+    // Steps are limited by time only
+    stepProps.setProperty(Config.NUM_REQUESTS,
+                          Long.toString(Long.MAX_VALUE / nrequesters));
+    for (String key: new String[] {Config.WORKLOAD_SCRIPT,
+                  Config.REQUEST_GLOBAL_RATE,
+                  Config.REQUEST_OP_STREAM_DIR, Config.REQUEST_JOURNAL_DIR}) {
+      if (stepProps.remove(key) != null) {
+        logger.info("Ignoring " + key + " in search mode");
+      }
+    }
+
+    logger.info(String.format("Searching for highest rate in [%d, %d] " +
+        "requests/s with %s %s latency < %.1fms and error rate <= %.3f%%",
+        minRate, maxRate, sloOp.displayName(), percentileName, sloLatency_ms,
+        maxErrorRate * 100));
+
+    LatencyStats bestStats = null;
+    double bestThroughput = 0.0;
+    while (search.hasNextStep()) {
+      int step = search.getSteps() + 1;
+      long rate = search.nextRate();
+      long offered = rate * nrequesters;
+      logger.info(String.format("Search step %d: offering %d requests/s " +
+          "(%d per requester)", step, offered, rate));
+      stepProps.setProperty(Config.REQUEST_RATE, Long.toString(rate));
+
+      LatencyStats latencyStats = LatencyStats.create(props, nrequesters);
+      RequestProgress progress = LinkBenchRequest.createProgress(logger,
+                                                                 stepProps);
+      List<LinkBenchRequest> requesters = createRequesters(stepProps,
+                                 nrequesters, latencyStats, null, progress);
+      if (metricsServer != null) {
+        metricsServer.setRequestProgress(progress);
+        metricsServer.setRequesters(requesters);
+      }
+      progress.startTimer();
+      execTasks(requesters);
+      long benchmarkTime = Math.max(1, System.currentTimeMillis() -
+                                       progress.getBenchmarkStartTime());
+
+      long requestsdone = 0;
+      long errors = 0;
+      boolean aborted = false;
+      for (LinkBenchRequest requester: requesters) {
+        requestsdone += requester.getRequestsDone();
+        errors += requester.getErrors();
+        aborted = aborted || requester.didAbort();
+      }
+      double throughput = (1000.0 * requestsdone) / benchmarkTime;
+      double errorRate = errors / (double)Math.max(1, requestsdone);
+      long latencyBound_us = latencyStats.getPercentileBound(sloOp,
+                                                             percentile);
+
+      boolean met = !aborted && latencyBound_us >= 0 &&
+                    latencyBound_us <= sloLatency_ms * 1000 &&
+                    errorRate <= maxErrorRate &&
+                    throughput >= SEARCH_MIN_ACHIEVED * offered;
+      logger.info(String.format("Search step %d: offered %d requests/s, " +
+          "achieved %.1f requests/s, %s %s < %s, error rate %.3f%%%s: " +
+          "objective %s", step, offered, throughput, sloOp.displayName(),
+          percentileName, latencyBound_us < 0 ? "(no samples)" :
+          (latencyBound_us / 1000.0) + "ms", errorRate * 100,
+          aborted ? ", requesters aborted" : "", met ? "met" : "NOT met"));
+
+      search.record(rate, met);
+      if (met && rate == search.getBestRate()) {
+        bestStats = latencyStats;
+        bestThroughput = throughput;
+      }
+    }
+
+    if (bestStats == null) {
+      logger.error(String.format("SEARCH COMPLETED. Objective not met at " +
+          "the minimum rate of %d requests/s", minRate));
+      return;
+    }
+    long bestRate = search.getBestRate() * nrequesters;
+    logger.info(String.format("SEARCH COMPLETED after %d steps. Highest " +
+        "rate meeting objective: %d requests/s offered, %.1f requests/s " +
+        "achieved%s", search.getSteps(), bestRate, bestThroughput,
+        search.getBestRate() * nrequesters >= maxRate ?
+        " (limited by " + Config.SEARCH_MAX_RATE + ")" : ""));
+    logger.info("Latency at " + bestRate + " requests/s:");
+    bestStats.displayLatencyStats();
+    if (csvStatsFile != null) {
+      bestStats.printCSVStats(csvStatsFile, true);
+    }
+  }
+
+  /**
+   * Re-issue the operations recorded in op journals against the store
+   */
+  void replay() throws IOException, InterruptedException, Throwable {
+    if (!doReplay) {
+      return;
+    }
+
+    String journalDir = props.getProperty(Config.REPLAY_JOURNAL_DIR);
+    if (journalDir == null || journalDir.trim().length() == 0) {
+      throw new LinkBenchConfigError("Replay requires " +
+                                     Config.REPLAY_JOURNAL_DIR);
+    }
+    journalDir = journalDir.trim();
+    double speed = ConfigUtil.getDouble(props, Config.REPLAY_SPEED, 1.0);
+
+    // Journals are numbered consecutively by requester
+    List<File> journals = new ArrayList<File>();
+    while (OpJournalWriter.journalFile(journalDir, journals.size()).exists()) {
+      journals.add(OpJournalWriter.journalFile(journalDir, journals.size()));
+    }
+    if (journals.isEmpty()) {
+      throw new LinkBenchConfigError("No op journals found in " + journalDir);
+    }
+
+    int nreplayers = journals.size();
+    LatencyStats latencyStats = LatencyStats.create(props, nreplayers);
+    List<OpJournalReplayer> replayers = new ArrayList<OpJournalReplayer>();
+    int opConcurrency = LinkBenchRequest.getOpConcurrency(props);
+    for (int i = 0; i < nreplayers; i++) {
+      Stores stores = opConcurrency > 1 ?
+          initAsyncStores(opConcurrency) : initStores();
+      replayers.add(new OpJournalReplayer(stores.linkStore, stores.nodeStore,
+          props, journals.get(i), latencyStats, i, nreplayers, speed));
+    }
+    logger.info("Replaying " + nreplayers + " op journals from " + journalDir
+        + (speed > 0 ? " at " + speed + "x original speed" :
+                       " as fast as possible"));
+
+    long replayTime = execTasks(replayers);
+
+    long opsDone = 0, errors = 0, mismatches = 0;
+    for (OpJournalReplayer replayer: replayers) {
+      opsDone += replayer.getOpsDone();
+      errors += replayer.getErrors();
+      mismatches += replayer.getMismatches();
+    }
+
+    latencyStats.displayLatencyStats();
+    if (csvStatsFile != null) {
+      latencyStats.printCSVStats(csvStatsFile, true);
+    }
+
+    logger.info("REPLAY PHASE COMPLETED. " + opsDone + " operations replayed"
+        + " in " + (replayTime/1000) + " seconds." +
+        " Operations/second = " + (1000*opsDone)/Math.max(1, replayTime) +
+        ". Errors = " + errors + ", result mismatches = " + mismatches);
+  }
+
+  /**
+   * Run all tasks, using the configured execution mode, and block till
+   * all are completed.
+   * @return elapsed time in milliseconds
+   */
+  long execTasks(List<? extends Runnable> tasks) throws Throwable {
+    String modeStr = props.getProperty(Config.EXEC_MODE,
+                                       ExecMode.THREAD.name());
+    ExecMode mode;
+    try {
+      mode = ExecMode.valueOf(modeStr.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new LinkBenchConfigError("Invalid " + Config.EXEC_MODE +
+                                     ": " + modeStr);
+    }
+
+    switch (mode) {
+    case THREAD:
+      return concurrentExec(tasks);
+    case POOL:
+      int nthreads = ConfigUtil.getInt(props, Config.EXEC_POOL_THREADS,
+                               Runtime.getRuntime().availableProcessors());
+      TaskPool pool = new TaskPool(nthreads);
+      long elapsed = pool.runAll(tasks);
+      pool.displayStats();
+      return elapsed;
+    default:
+      throw new RuntimeException("Unknown execution mode " + mode);
+    }
+  }
+
   /**
    * Start all runnables at the same time. Then block till all
    * tasks are completed. Returns the elapsed time (in millisec)
@@ -452,8 +1016,34 @@ public class LinkBenchDriver {
   }
 
   void drive() throws IOException, InterruptedException, Throwable {
-    load();
-    sendrequests();
+    metricsServer = MetricsServer.create(props);
+    if (metricsServer != null) {
+      metricsServer.start();
+    }
+    try {
+      control = LinkBenchControl.create(props);
+      if (csvStreamFile != null) {
+        statsOutput = StatsOutput.create(props, csvStreamFile);
+        statsOutput.start();
+      }
+      load();
+      compile();
+      sendrequests();
+      search();
+      replay();
+    } finally {
+      if (metricsServer != null) {
+        metricsServer.stop();
+      }
+      if (control != null) {
+        control.unregister();
+      }
+      if (statsOutput != null) {
+        statsOutput.close();
+        logger.info("Wrote " + statsOutput.getRowsWritten() + " rows of " +
+            "streaming stats in " + statsOutput.getFormat() + " format");
+      }
+    }
   }
 
   public static void main(String[] args)
@@ -499,6 +1089,12 @@ public class LinkBenchDriver {
                "Execute loading stage of benchmark");
     options.addOption("r", false,
                "Execute request stage of benchmark");
+    options.addOption("compile", false,
+               "Compile request stage operations into op stream files");
+    options.addOption("replay", false,
+               "Replay operations from op journal files");
+    options.addOption("search", false,
+               "Search for highest request rate meeting latency objective");
 
     // Java-style properties to override config file
     // -Dkey=value
@@ -551,6 +1147,9 @@ public class LinkBenchDriver {
     // Set static option variables
     doLoad = cmd.hasOption('l');
     doRequest = cmd.hasOption('r');
+    doCompile = cmd.hasOption("compile");
+    doReplay = cmd.hasOption("replay");
+    doSearch = cmd.hasOption("search");
 
     logFile = cmd.getOptionValue('L'); // May be null
 
@@ -585,10 +1184,8 @@ public class LinkBenchDriver {
     String csvStreamFileName = cmd.getOptionValue("csvstream"); // May be null
     if (csvStreamFileName != null) {
       try {
-        csvStreamFile = new PrintStream(
-                        new FileOutputStream(csvStreamFileName));
-        // File is written to by multiple threads, first write header
-        SampledStats.writeCSVHeader(csvStreamFile);
+        // Header is written once the format is known from configuration
+        csvStreamFile = new FileOutputStream(csvStreamFileName);
       } catch (FileNotFoundException e) {
         System.err.println("Could not open file " + csvStreamFileName +
                            " for writing");
@@ -599,7 +1196,7 @@ public class LinkBenchDriver {
 
     cmdLineProps = cmd.getOptionProperties("D");
 
-    if (!(doLoad || doRequest)) {
+    if (!(doLoad || doRequest || doCompile || doReplay || doSearch)) {
       System.err.println("Did not select benchmark mode");
       printUsage(options);
       System.exit(EXIT_BADARGS);
@@ -320,7 +320,7 @@ public class LinkBenchDriverMR extends Configured implements Tool {
                     Reporter reporter) throws IOException {
       ConfigUtil.setupLogging(props, null);
       LinkStore store = initStore(Phase.LOAD, loaderid.get());
-      LatencyStats latencyStats = new LatencyStats(nloaders.get());
+      LatencyStats latencyStats = LatencyStats.create(props, nloaders.get());
 
       long maxid1 = ConfigUtil.getLong(props, Config.MAX_ID);
       long startid1 = ConfigUtil.getLong(props, Config.MIN_ID);
@@ -364,7 +364,7 @@ public class LinkBenchDriverMR extends Configured implements Tool {
                     Reporter reporter) throws IOException {
       ConfigUtil.setupLogging(props, null);
       LinkStore store = initStore(Phase.REQUEST, requesterid.get());
-      LatencyStats latencyStats = new LatencyStats(nrequesters.get());
+      LatencyStats latencyStats = LatencyStats.create(props, nrequesters.get());
       RequestProgress progress =
                               LinkBenchRequest.createProgress(logger, props);
       progress.startTimer();
@@ -34,7 +34,9 @@ import com.facebook.LinkBench.distributions.LogNormalDistribution;
 import com.facebook.LinkBench.generators.DataGenerator;
 import com.facebook.LinkBench.stats.LatencyStats;
 import com.facebook.LinkBench.stats.SampledStats;
+import com.facebook.LinkBench.stats.StatsOutput;
 import com.facebook.LinkBench.util.ClassLoadUtil;
+import com.facebook.LinkBench.util.SplitMixRandom;
 
 
 /*
@@ -67,6 +69,9 @@ public class LinkBenchLoad implements Runnable {
 
   private ID2Chooser id2chooser;
 
+  /** Reseeded for each id1 from chunk seed */
+  private final SplitMixRandom rng = new SplitMixRandom();
+
   // Counters for load statistics
   long sameShuffle;
   long diffShuffle;
@@ -105,7 +110,7 @@ public class LinkBenchLoad implements Runnable {
               new ArrayBlockingQueue<LoadChunk>(2), prog_tracker);
 
     // Just add a single chunk to the queue
-    chunk_q.add(new LoadChunk(loaderID, startid1, maxid1, rng));
+    chunk_q.add(new LoadChunk(loaderID, startid1, maxid1, rng.nextLong()));
     chunk_q.add(LoadChunk.SHUTDOWN);
   }
 
@@ -180,6 +185,13 @@ public class LinkBenchLoad implements Runnable {
     return linksloaded;
   }
 
+  /**
+   * Write streaming stats through output instead of csvStreamOut
+   */
+  public void setStatsOutput(StatsOutput output) {
+    stats.setStatsOutput(output);
+  }
+
   @Override
   public void run() {
     try {
@@ -270,7 +282,10 @@ public class LinkBenchLoad implements Runnable {
 
     long prevPercentPrinted = 0;
     for (long id1 = chunk.start; id1 < chunk.end; id1 += chunk.step) {
-      long added_links= createOutLinks(chunk.rng, link, loadBuffer, countLoadBuffer,
+      // Links for an id1 depend only on seed and id1, not on how the id
+      // space was divided into chunks or between loaders
+      rng.reseed(chunk.seed, id1);
+      long added_links= createOutLinks(rng, link, loadBuffer, countLoadBuffer,
           id1, singleAssoc, bulkLoad, bulkLoadBatchSize);
       links_in_chunk += added_links;
 
@@ -527,13 +542,13 @@ public class LinkBenchLoad implements Runnable {
    */
   public static class LoadChunk {
     public static LoadChunk SHUTDOWN = new LoadChunk(true,
-                                              0, 0, 0, 1, null);
+                                              0, 0, 0, 1, 0);
 
-    public LoadChunk(long id, long start, long end, Random rng) {
-      this(false, id, start, end, 1, rng);
+    public LoadChunk(long id, long start, long end, long seed) {
+      this(false, id, start, end, 1, seed);
     }
     public LoadChunk(boolean shutdown,
-                      long id, long start, long end, long step, Random rng) {
+                      long id, long start, long end, long step, long seed) {
       super();
       this.shutdown = shutdown;
       this.id = id;
@@ -541,7 +556,7 @@ public class LinkBenchLoad implements Runnable {
       this.end = end;
       this.step = step;
       this.size = (end - start) / step;
-      this.rng = rng;
+      this.seed = seed;
     }
     public final boolean shutdown;
     public final long id;
@@ -549,7 +564,8 @@ public class LinkBenchLoad implements Runnable {
     public final long end;
     public final long step;
     public final long size;
-    public Random rng;
+    /** Base seed for generating links of each id1 in chunk */
+    public final long seed;
 
     public String toString() {
       if (shutdown) {
@@ -582,7 +598,14 @@ public class LinkBenchLoad implements Runnable {
     public static LoadProgress create(Logger progressLogger, Properties props) {
       long maxid1 = ConfigUtil.getLong(props, Config.MAX_ID);
       long startid1 = ConfigUtil.getLong(props, Config.MIN_ID);
-      long nids = maxid1 - startid1;
+      return create(progressLogger, props, maxid1 - startid1);
+    }
+
+    /**
+     * @param nids number of id1s to be loaded
+     */
+    public static LoadProgress create(Logger progressLogger, Properties props,
+                                      long nids) {
       long progressReportInterval = ConfigUtil.getLong(props,
                            Config.LOAD_PROG_INTERVAL, 50000L);
       return new LoadProgress(progressLogger, nids, progressReportInterval);
@@ -594,6 +617,21 @@ public class LinkBenchLoad implements Runnable {
     private final long id1s_total; // goal
     private long starttime_ms;
 
+    /** @return links loaded so far */
+    public long getLinksLoaded() {
+      return links_loaded.get();
+    }
+
+    /** @return id1s loaded so far */
+    public long getId1sLoaded() {
+      return id1s_loaded.get();
+    }
+
+    /** @return id1s to be loaded in total */
+    public long getId1sTotal() {
+      return id1s_total;
+    }
+
     /** Mark current time as start time for load */
     public void startTimer() {
       starttime_ms = System.currentTimeMillis();
@@ -27,6 +27,15 @@ public enum LinkBenchOp {
   COUNT_LINK,
   MULTIGET_LINK,
   GET_LINKS_LIST,
+  PAGE_LOAD, // composite of several of the above
+  GET_2HOP, // two hop traversal from id1
+  MULTIGET_NODE, // batch of nodes
+  MULTICOUNT_LINK, // counts for batch of (id1, link_type)
+  MULTIGET_LINKS_LIST, // link lists for batch of id1s
+  // Link writes that also wrote an inverse link
+  ADD_LINK_INVERSE,
+  DELETE_LINK_INVERSE,
+  UPDATE_LINK_INVERSE,
   LOAD_NODE_BULK,
   LOAD_LINK,
   LOAD_LINKS_BULK,
@@ -36,9 +45,38 @@ public enum LinkBenchOp {
   RANGE_SIZE,    // how big range scans are
   LOAD_LINKS_BULK_NLINKS, // how many links inserted in bulk
   LOAD_COUNTS_BULK_NLINKS, // how many counts inserted in bulk
+  GET_2HOP_FANOUT, // how many id2s followed in two hop traversal
+  GET_2HOP_ROWS, // how many rows read in two hop traversal
+  // Latency of the operations that made up page loads, kept apart from the
+  // standalone operations so that they do not distort the op mix
+  PAGE_LOAD_GET_NODE,
+  PAGE_LOAD_GET_LINKS_LIST,
+  PAGE_LOAD_MULTIGET_LINK,
   UNKNOWN;
 
   public String displayName() {
     return name();
   }
+
+  /**
+   * @return false for the types that only collect stats about other
+   *    operations, such as range sizes or parts of page loads, and for
+   *    UNKNOWN
+   */
+  public boolean isOperation() {
+    switch (this) {
+    case RANGE_SIZE:
+    case LOAD_LINKS_BULK_NLINKS:
+    case LOAD_COUNTS_BULK_NLINKS:
+    case GET_2HOP_FANOUT:
+    case GET_2HOP_ROWS:
+    case PAGE_LOAD_GET_NODE:
+    case PAGE_LOAD_GET_LINKS_LIST:
+    case PAGE_LOAD_MULTIGET_LINK:
+    case UNKNOWN:
+      return false;
+    default:
+      return true;
+    }
+  }
 }
@@ -15,30 +15,32 @@
  */
 package com.facebook.LinkBench;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
-import com.facebook.LinkBench.RealDistribution.DistributionType;
-import com.facebook.LinkBench.distributions.AccessDistributions;
-import com.facebook.LinkBench.distributions.AccessDistributions.AccessDistribution;
-import com.facebook.LinkBench.distributions.ID2Chooser;
-import com.facebook.LinkBench.distributions.LogNormalDistribution;
-import com.facebook.LinkBench.distributions.ProbabilityDistribution;
-import com.facebook.LinkBench.generators.DataGenerator;
+import com.facebook.LinkBench.stats.AllocationStats;
+import com.facebook.LinkBench.stats.HistogramLogWriter;
+import com.facebook.LinkBench.stats.IntervalAggregator;
 import com.facebook.LinkBench.stats.LatencyStats;
+import com.facebook.LinkBench.stats.OverheadStats;
 import com.facebook.LinkBench.stats.SampledStats;
-import com.facebook.LinkBench.util.ClassLoadUtil;
+import com.facebook.LinkBench.stats.StatsOutput;
 
 
-public class LinkBenchRequest implements Runnable {
+public class LinkBenchRequest implements SteppedTask {
   private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
   Properties props;
   LinkStore linkStore;
@@ -50,6 +52,52 @@ public class LinkBenchRequest implements Runnable {
   /** Requests per second: <= 0 for unlimited rate */
   private long requestrate;
 
+  /**
+   * Aggregate rate and per operation ceilings shared with other requesters,
+   * or null if none are configured
+   */
+  private RequestRateLimits rateLimits;
+
+  /**
+   * If true, each request has an intended start time determined by the
+   * arrival process, and latency is measured from that time rather than from
+   * when the request was actually issued.  This means that time spent queued
+   * behind a slow request is counted, as it would be for a real client.
+   */
+  private boolean openLoop;
+
+  /**
+   * Maximum number of requests this requester keeps in flight at once.
+   * If > 1, requests are issued through the asynchronous store interfaces
+   */
+  private int pipelineDepth;
+  private AsyncLinkStore asyncLinkStore;
+  private AsyncNodeStore asyncNodeStore;
+
+  /** Asynchronous requests completed, but not yet processed */
+  private BlockingQueue<PendingRequest> completedRequests;
+  /**
+   * Requests issued but not completed.  Only written by this thread; read
+   * without synchronization by monitoring, so other threads may see a
+   * slightly stale value.
+   */
+  private int requestsInFlight = 0;
+
+  /** Processed requests kept for reuse, if reusing buffers */
+  private ArrayDeque<PendingRequest> freeRequests;
+
+  /** Used for page loads when requests are not pipelined */
+  private PageLoad pageLoad = null;
+
+  /** Used for two hop traversals when requests are not pipelined */
+  private TwoHopTraversal twoHop = null;
+
+  /** Operation types shown in periodic stats output */
+  private List<LinkBenchOp> displayOps;
+
+  /** Type of the request issued by the last step */
+  private LinkBenchOp stepOpType = LinkBenchOp.UNKNOWN;
+
   /** Maximum number of failed requests: < 0 for unlimited */
   private long maxFailedRequests;
 
@@ -71,77 +119,80 @@ public class LinkBenchRequest implements Runnable {
   String dbid;
   boolean singleAssoc = false;
 
-  // Control data generation settings
-  private LogNormalDistribution linkDataSize;
-  private DataGenerator linkAddDataGen;
-  private DataGenerator linkUpDataGen;
-  private LogNormalDistribution nodeDataSize;
-  private DataGenerator nodeAddDataGen;
-  private DataGenerator nodeUpDataGen;
-
-  // cummulative percentages
-  double pc_addlink;
-  double pc_deletelink;
-  double pc_updatelink;
-  double pc_countlink;
-  double pc_getlink;
-  double pc_getlinklist;
-  double pc_addnode;
-  double pc_deletenode;
-  double pc_updatenode;
-  double pc_getnode;
-
-  // Chance of doing historical range query
-  double p_historical_getlinklist;
-
-  private static class HistoryKey {
-    public final long id1;
-    public final long link_type;
-    public HistoryKey(long id1, long link_type) {
-      super();
-      this.id1 = id1;
-      this.link_type = link_type;
-    }
-
-    public HistoryKey(Link l) {
-      this(l.id1, l.link_type);
-    }
+  /** Chooses operations, unless they are read from a compiled op stream */
+  private RequestGenerator generator;
 
-    @Override
-    public int hashCode() {
-      final int prime = 31;
-      int result = 1;
-      result = prime * result + (int) (id1 ^ (id1 >>> 32));
-      result = prime * result + (int) (link_type ^ (link_type >>> 32));
-      return result;
-    }
+  /**
+   * If not null, operations are read from this stream rather than being
+   * generated as the benchmark runs
+   */
+  private OpStreamReader opStream;
 
-    @Override
-    public boolean equals(Object obj) {
-      if (!(obj instanceof HistoryKey))
-        return false;
-      HistoryKey other = (HistoryKey) obj;
-      return id1 == other.id1 && link_type == other.link_type;
-    }
+  /** If not null, record each operation executed here */
+  private OpJournalWriter journal;
 
-  }
+  /** Operation being executed, reused between requests */
+  private final RequestOp op = new RequestOp();
+
+  /**
+   * If true, reuse links, nodes, payloads and id2 arrays between requests
+   * instead of allocating new ones
+   */
+  private boolean reuseBuffers;
+
+  /**
+   * Inverse link types, if link writes also write inverse links, otherwise
+   * null
+   */
+  private InverseLinkTypes inverseTypes = null;
 
-  // Cache of last link in lists where full list wasn't retrieved
-  ArrayList<Link> listTailHistory;
+  /** Passed to link writes: false if inverse links are written */
+  private boolean noinverse = true;
 
-  // Index of history to avoid duplicates
-  HashMap<HistoryKey, Integer> listTailHistoryIndex;
+  /** If not null, record memory allocated per request here */
+  private AllocationStats allocationStats = null;
 
-  // Limit of cache size
-  private int listTailHistoryLimit;
+  /** If not null, record breakdown of time spent per request here */
+  private OverheadStats overheadStats = null;
+  /** Start of first store call in current step, or 0 if none made */
+  private long stepStoreStart_ns;
+  /** Time spent in store calls in current step */
+  private long stepStore_ns;
+  /** Time held back by rate limits in current step */
+  private long stepThrottle_ns;
+  /** End of previous step, or 0 if none yet */
+  private long lastStepEnd_ns = 0;
 
-  // Probability distribution for ids in multiget
-  ProbabilityDistribution multigetDist;
+  /** If not null, record latency histograms per interval for a log */
+  private HistogramLogWriter.Recorder histogramRecorder = null;
+
+  /** Phases of workload script, or null if not running a script */
+  private List<WorkloadPhase> phases = null;
+
+  /** Configuration for each phase, with the phase's operation mix */
+  private Properties phaseProps[];
+
+  /** If not null, latency is also recorded for each phase here */
+  private LatencyStats phaseLatencyStats[] = null;
+
+  // Cache of last link in lists where full list wasn't retrieved,
+  // possibly shared with other requesters, else created at start
+  LinkHistoryCache listTailHistory = null;
 
   // Statistics
   SampledStats stats;
   LatencyStats latencyStats;
 
+  /**
+   * In open loop mode, latencyStats records response time measured from
+   * the intended start.  If not null, this records the service time of the
+   * store call alone.
+   */
+  LatencyStats serviceLatencyStats;
+
+  /** Maximum lag behind the open loop request schedule seen */
+  long maxScheduleLag_ns = 0;
+
   // Other informational counters
   long numfound = 0;
   long numnotfound = 0;
@@ -154,25 +205,10 @@ public class LinkBenchRequest implements Runnable {
    */
   Random rng;
 
-  // Last node id accessed
-  long lastNodeId;
-
   long requestsDone = 0;
   long errors = 0;
   boolean aborted;
 
-  // Access distributions
-  private AccessDistribution writeDist; // link writes
-  private AccessDistribution writeDistUncorr; // to blend with link writes
-  private double writeDistUncorrBlend; // Percentage to used writeDist2 for
-  private AccessDistribution readDist; // link reads
-  private AccessDistribution readDistUncorr; // to blend with link reads
-  private double readDistUncorrBlend; // Percentage to used readDist2 for
-  private AccessDistribution nodeReadDist; // node reads
-  private AccessDistribution nodeUpdateDist; // node writes
-  private AccessDistribution nodeDeleteDist; // node deletes
-
-  private ID2Chooser id2chooser;
   public LinkBenchRequest(LinkStore linkStore,
                           NodeStore nodeStore,
                           Properties props,
@@ -182,6 +218,24 @@ public class LinkBenchRequest implements Runnable {
                           Random rng,
                           int requesterID,
                           int nrequesters) {
+    this(linkStore, nodeStore, props, latencyStats, null, csvStreamOut,
+         progressTracker, rng, requesterID, nrequesters);
+  }
+
+  /**
+   * @param serviceLatencyStats if not null and in open loop mode, record
+   *    service time of each operation here
+   */
+  public LinkBenchRequest(LinkStore linkStore,
+                          NodeStore nodeStore,
+                          Properties props,
+                          LatencyStats latencyStats,
+                          LatencyStats serviceLatencyStats,
+                          PrintStream csvStreamOut,
+                          RequestProgress progressTracker,
+                          Random rng,
+                          int requesterID,
+                          int nrequesters) {
     assert(linkStore != null);
     if (requesterID < 0 ||  requesterID >= nrequesters) {
       throw new IllegalArgumentException("Bad requester id "
@@ -192,6 +246,7 @@ public class LinkBenchRequest implements Runnable {
     this.nodeStore = nodeStore;
     this.props = props;
     this.latencyStats = latencyStats;
+    this.serviceLatencyStats = serviceLatencyStats;
     this.progressTracker = progressTracker;
     this.rng = rng;
     this.nrequesters = nrequesters;
@@ -201,478 +256,576 @@ public class LinkBenchRequest implements Runnable {
     dbid = ConfigUtil.getPropertyRequired(props, Config.DBID);
     numRequests = ConfigUtil.getLong(props, Config.NUM_REQUESTS);
     requestrate = ConfigUtil.getLong(props, Config.REQUEST_RATE, 0L);
+    // Until shared limits are provided, limit this requester to its share
+    rateLimits = RequestRateLimits.fromConfig(props, nrequesters);
+    boolean globalRate = rateLimits != null && rateLimits.hasGlobalLimit();
+    if (globalRate && requestrate > 0) {
+      throw new LinkBenchConfigError("Only one of " + Config.REQUEST_RATE +
+              " and " + Config.REQUEST_GLOBAL_RATE + " can be set");
+    }
+    openLoop = ConfigUtil.getBool(props, Config.REQUEST_OPEN_LOOP, false);
+    if (openLoop && requestrate <= 0 && !globalRate) {
+      throw new LinkBenchConfigError(Config.REQUEST_OPEN_LOOP + " requires " +
+              Config.REQUEST_RATE + " or " + Config.REQUEST_GLOBAL_RATE +
+              " > 0");
+    }
     maxFailedRequests = ConfigUtil.getLong(props,  Config.MAX_FAILED_REQUESTS, 0L);
+    pipelineDepth = ConfigUtil.getInt(props, Config.REQUEST_PIPELINE_DEPTH, 1);
+    if (pipelineDepth < 1) {
+      throw new LinkBenchConfigError(Config.REQUEST_PIPELINE_DEPTH +
+                                     " must be >= 1");
+    }
+    reuseBuffers = ConfigUtil.getBool(props, Config.REQUEST_REUSE_BUFFERS,
+                                      false);
+    op.reuseBuffers = reuseBuffers;
+    if (ConfigUtil.getBool(props, Config.REQUEST_WRITE_INVERSES, false)) {
+      inverseTypes = InverseLinkTypes.fromConfig(props);
+      if (inverseTypes == null) {
+        throw new LinkBenchConfigError(Config.REQUEST_WRITE_INVERSES +
+            " requires " + Config.INVERSE_LINK_TYPES + " to be set");
+      }
+      noinverse = false;
+    }
     warmupTime = Math.max(0, ConfigUtil.getLong(props, Config.WARMUP_TIME, 0L));
     maxTime = ConfigUtil.getLong(props, Config.MAX_TIME);
+    generator = new RequestGenerator(props, requesterID, nrequesters);
     maxid1 = ConfigUtil.getLong(props, Config.MAX_ID);
     startid1 = ConfigUtil.getLong(props, Config.MIN_ID);
 
-    // math functions may cause problems for id1 < 1
-    if (startid1 <= 0) {
-      throw new LinkBenchConfigError("startid1 must be >= 1");
-    }
-    if (maxid1 <= startid1) {
-      throw new LinkBenchConfigError("maxid1 must be > startid1");
-    }
-
     // is this a single assoc test?
     if (startid1 + 1 == maxid1) {
       singleAssoc = true;
       logger.info("Testing single row assoc read.");
     }
 
-    initRequestProbabilities(props);
-    initLinkDataGeneration(props);
-    initLinkRequestDistributions(props, requesterID, nrequesters);
-    if (pc_getnode > pc_getlinklist) {
-      // Load stuff for node workload if needed
-      if (nodeStore == null) {
-        throw new IllegalArgumentException("nodeStore not provided but non-zero " +
+    boolean nodeOps = generator.hasNodeOps();
+    boolean pageLoads = generator.hasPageLoads();
+    boolean twoHops = generator.hasTwoHops();
+    boolean batchedReads = generator.hasBatchedReads();
+    phases = WorkloadPhase.loadScript(props);
+    if (phases != null) {
+      if (props.getProperty(Config.REQUEST_OP_STREAM_DIR) != null) {
+        throw new LinkBenchConfigError(Config.WORKLOAD_SCRIPT + " cannot be" +
+                      " used with " + Config.REQUEST_OP_STREAM_DIR);
+      }
+      if (globalRate) {
+        throw new LinkBenchConfigError(Config.WORKLOAD_SCRIPT + " cannot be" +
+                      " used with " + Config.REQUEST_GLOBAL_RATE);
+      }
+      // Check the mix of each phase up front
+      phaseProps = new Properties[phases.size()];
+      for (int i = 0; i < phases.size(); i++) {
+        phaseProps[i] = phases.get(i).applyMix(props);
+        generator.setOpMix(phaseProps[i]);
+        nodeOps = nodeOps || generator.hasNodeOps();
+        pageLoads = pageLoads || generator.hasPageLoads();
+        twoHops = twoHops || generator.hasTwoHops();
+        batchedReads = batchedReads || generator.hasBatchedReads();
+      }
+      generator.setOpMix(props);
+    }
+
+    if ((nodeOps || pageLoads) && nodeStore == null) {
+      throw new IllegalArgumentException("nodeStore not provided but non-zero " +
                                          "probability of node operation");
+    }
+
+    String opStreamDir = props.getProperty(Config.REQUEST_OP_STREAM_DIR);
+    if (opStreamDir != null && opStreamDir.trim().length() > 0) {
+      File streamFile = OpStreamWriter.streamFile(opStreamDir.trim(),
+                                                  requesterID);
+      try {
+        opStream = new OpStreamReader(streamFile, requesterID);
+      } catch (IOException e) {
+        throw new LinkBenchConfigError("Could not open op stream " +
+                                       streamFile + ": " + e.getMessage());
+      }
+      logger.debug("Requester #" + requesterID + " reading operations from "
+                   + streamFile);
+    }
+
+    String journalDir = props.getProperty(Config.REQUEST_JOURNAL_DIR);
+    if (journalDir != null && journalDir.trim().length() > 0) {
+      File journalFile = OpJournalWriter.journalFile(journalDir.trim(),
+                                                     requesterID);
+      try {
+        journal = new OpJournalWriter(journalFile, requesterID);
+      } catch (IOException e) {
+        throw new LinkBenchConfigError("Could not open op journal " +
+                                       journalFile + ": " + e.getMessage());
+      }
+    }
+
+    displayOps = new ArrayList<LinkBenchOp>(Arrays.asList(
+        LinkBenchOp.MULTIGET_LINK, LinkBenchOp.GET_LINKS_LIST,
+        LinkBenchOp.COUNT_LINK,
+        LinkBenchOp.UPDATE_LINK, LinkBenchOp.ADD_LINK,
+        LinkBenchOp.RANGE_SIZE, LinkBenchOp.ADD_NODE,
+        LinkBenchOp.UPDATE_NODE, LinkBenchOp.DELETE_NODE,
+        LinkBenchOp.GET_NODE));
+    if (inverseTypes != null) {
+      displayOps.addAll(Arrays.asList(LinkBenchOp.ADD_LINK_INVERSE,
+          LinkBenchOp.UPDATE_LINK_INVERSE, LinkBenchOp.DELETE_LINK_INVERSE));
+    }
+    if (pageLoads) {
+      displayOps.addAll(Arrays.asList(LinkBenchOp.PAGE_LOAD,
+          LinkBenchOp.PAGE_LOAD_GET_NODE, LinkBenchOp.PAGE_LOAD_GET_LINKS_LIST,
+          LinkBenchOp.PAGE_LOAD_MULTIGET_LINK));
+    }
+    if (twoHops) {
+      displayOps.addAll(Arrays.asList(LinkBenchOp.GET_2HOP,
+          LinkBenchOp.GET_2HOP_FANOUT, LinkBenchOp.GET_2HOP_ROWS));
+    }
+    if (batchedReads) {
+      displayOps.addAll(Arrays.asList(LinkBenchOp.MULTIGET_NODE,
+          LinkBenchOp.MULTICOUNT_LINK, LinkBenchOp.MULTIGET_LINKS_LIST));
+    }
+
+    boolean parallelTwoHops = twoHops &&
+                              TwoHopTraversal.needsAsyncStore(props);
+    if (pipelineDepth > 1 || pageLoads || parallelTwoHops) {
+      // Page loads and parallel two hop traversals issue their operations
+      // in parallel
+      String reason = pipelineDepth > 1 ?
+          Config.REQUEST_PIPELINE_DEPTH + " > 1" :
+          pageLoads ? Config.PR_PAGE_LOAD + " > 0" :
+          Config.GET2HOP_PARALLELISM + " > 1";
+      if (!(linkStore instanceof AsyncLinkStore)) {
+        throw new LinkBenchConfigError(reason +
+            " requires an AsyncLinkStore, but got " +
+            linkStore.getClass().getName());
+      }
+      asyncLinkStore = (AsyncLinkStore) linkStore;
+      if (nodeStore != null) {
+        if (!(nodeStore instanceof AsyncNodeStore)) {
+          throw new LinkBenchConfigError(reason +
+              " requires an AsyncNodeStore, but got " +
+              nodeStore.getClass().getName());
+        }
+        asyncNodeStore = (AsyncNodeStore) nodeStore;
+      }
+    }
+    if (pipelineDepth > 1) {
+      // At most pipelineDepth requests can be completed at once
+      completedRequests = new ArrayBlockingQueue<PendingRequest>(
+                                                          pipelineDepth);
+      if (reuseBuffers) {
+        freeRequests = new ArrayDeque<PendingRequest>(pipelineDepth);
       }
-      initNodeDataGeneration(props);
-      initNodeRequestDistributions(props);
     }
 
     displayFreq_ms = ConfigUtil.getLong(props, Config.DISPLAY_FREQ, 60L) * 1000;
     progressFreq_ms = ConfigUtil.getLong(props, Config.PROGRESS_FREQ, 6L) * 1000;
     int maxsamples = ConfigUtil.getInt(props, Config.MAX_STAT_SAMPLES);
     stats = new SampledStats(requesterID, maxsamples, csvStreamOut);
-
-    listTailHistoryLimit = 2048; // Hardcoded limit for now
-    listTailHistory = new ArrayList<Link>(listTailHistoryLimit);
-    listTailHistoryIndex = new HashMap<HistoryKey, Integer>();
-    p_historical_getlinklist = ConfigUtil.getDouble(props,
-                        Config.PR_GETLINKLIST_HISTORY, 0.0) / 100;
-
-    lastNodeId = startid1;
   }
 
-  private void initRequestProbabilities(Properties props) {
-    pc_addlink = ConfigUtil.getDouble(props, Config.PR_ADD_LINK);
-    pc_deletelink = pc_addlink + ConfigUtil.getDouble(props, Config.PR_DELETE_LINK);
-    pc_updatelink = pc_deletelink + ConfigUtil.getDouble(props, Config.PR_UPDATE_LINK);
-    pc_countlink = pc_updatelink + ConfigUtil.getDouble(props, Config.PR_COUNT_LINKS);
-    pc_getlink = pc_countlink + ConfigUtil.getDouble(props, Config.PR_GET_LINK);
-    pc_getlinklist = pc_getlink + ConfigUtil.getDouble(props, Config.PR_GET_LINK_LIST);
+  /**
+   * Measure memory allocated by each request after warmup, and record it
+   * in the provided stats
+   */
+  public void setAllocationStats(AllocationStats allocationStats) {
+    this.allocationStats = allocationStats;
+  }
 
-    pc_addnode = pc_getlinklist + ConfigUtil.getDouble(props, Config.PR_ADD_NODE, 0.0);
-    pc_updatenode = pc_addnode + ConfigUtil.getDouble(props, Config.PR_UPDATE_NODE, 0.0);
-    pc_deletenode = pc_updatenode + ConfigUtil.getDouble(props, Config.PR_DELETE_NODE, 0.0);
-    pc_getnode = pc_deletenode + ConfigUtil.getDouble(props, Config.PR_GET_NODE, 0.0);
+  /**
+   * Measure time spent generating, issuing and recording each request,
+   * and CPU time used, after warmup, and record it in the provided stats
+   */
+  public void setOverheadStats(OverheadStats overheadStats) {
+    this.overheadStats = overheadStats;
+  }
 
-    if (Math.abs(pc_getnode - 100.0) > 1e-5) {//compare real numbers
-      throw new LinkBenchConfigError("Percentages of request types do not " +
-                  "add to 100, only " + pc_getnode + "!");
-    }
+  /**
+   * Record latency after warmup in histograms per time interval, and
+   * write them to the provided log
+   */
+  public void setHistogramLog(HistogramLogWriter histogramLog) {
+    this.histogramRecorder = histogramLog == null ? null :
+                             histogramLog.newRecorder();
   }
 
-  private void initLinkRequestDistributions(Properties props, int requesterID,
-      int nrequesters) {
-    writeDist = AccessDistributions.loadAccessDistribution(props,
-            startid1, maxid1, DistributionType.LINK_WRITES);
-    readDist = AccessDistributions.loadAccessDistribution(props,
-        startid1, maxid1, DistributionType.LINK_READS);
+  /**
+   * Write streaming stats through output instead of csvStreamOut
+   */
+  public void setStatsOutput(StatsOutput output) {
+    stats.setStatsOutput(output);
+  }
 
-    // Load uncorrelated distributions for blending if needed
-    writeDistUncorr = null;
-    if (props.containsKey(Config.WRITE_UNCORR_BLEND)) {
-      // Ratio of queries to use uncorrelated.  Convert from percentage
-      writeDistUncorrBlend = ConfigUtil.getDouble(props,
-                Config.WRITE_UNCORR_BLEND) / 100.0;
-      if (writeDistUncorrBlend > 0.0) {
-        writeDistUncorr = AccessDistributions.loadAccessDistribution(props,
-            startid1, maxid1, DistributionType.LINK_WRITES_UNCORR);
-      }
-    }
+  /**
+   * Report statistics for each interval across all requesters with the
+   * provided aggregator, as well as for this requester
+   */
+  public void setIntervalAggregator(IntervalAggregator aggregator) {
+    stats.setIntervalRecorder(aggregator == null ? null :
+                              aggregator.newRecorder());
+  }
 
-    readDistUncorr = null;
-    if (props.containsKey(Config.READ_UNCORR_BLEND)) {
-      // Ratio of queries to use uncorrelated.  Convert from percentage
-      readDistUncorrBlend = ConfigUtil.getDouble(props,
-                Config.READ_UNCORR_BLEND) / 100.0;
-      if (readDistUncorrBlend > 0.0) {
-        readDistUncorr = AccessDistributions.loadAccessDistribution(props,
-            startid1, maxid1, DistributionType.LINK_READS_UNCORR);
-      }
-    }
+  /**
+   * Record latency for each phase of the workload script, in addition to
+   * the overall latency
+   * @param phaseLatencyStats one per phase
+   */
+  public void setPhaseLatencyStats(LatencyStats phaseLatencyStats[]) {
+    this.phaseLatencyStats = phaseLatencyStats;
+  }
 
-    id2chooser = new ID2Chooser(props, startid1, maxid1,
-                                nrequesters, requesterID);
+  /**
+   * Share rate limits with other requesters.  Should be the limits from
+   * RequestRateLimits.fromConfig with the same configuration and one share.
+   */
+  public void setRateLimits(RequestRateLimits rateLimits) {
+    this.rateLimits = rateLimits;
+  }
 
-    // Distribution of #id2s per multiget
-    String multigetDistClass = props.getProperty(Config.LINK_MULTIGET_DIST);
-    if (multigetDistClass != null && multigetDistClass.trim().length() != 0) {
-      int multigetMin = ConfigUtil.getInt(props, Config.LINK_MULTIGET_DIST_MIN);
-      int multigetMax = ConfigUtil.getInt(props, Config.LINK_MULTIGET_DIST_MAX);
-      try {
-        multigetDist = ClassLoadUtil.newInstance(multigetDistClass,
-                                            ProbabilityDistribution.class);
-        multigetDist.init(multigetMin, multigetMax, props,
-                                             Config.LINK_MULTIGET_DIST_PREFIX);
-      } catch (ClassNotFoundException e) {
-        logger.error(e);
-        throw new LinkBenchConfigError("Class" + multigetDistClass +
-            " could not be loaded as ProbabilityDistribution");
-      }
-    } else {
-      multigetDist = null;
-    }
+  /**
+   * Apply settings changed at runtime through control before each request
+   */
+  public void setControl(LinkBenchControl control) {
+    this.control = control;
   }
 
-  private void initLinkDataGeneration(Properties props) {
-    try {
-      double medLinkDataSize = ConfigUtil.getDouble(props,
-                                            Config.LINK_DATASIZE);
-      linkDataSize = new LogNormalDistribution();
-      linkDataSize.init(0, LinkStore.MAX_LINK_DATA, medLinkDataSize,
-                           Config.LINK_DATASIZE_SIGMA);
-      linkAddDataGen = ClassLoadUtil.newInstance(
-          ConfigUtil.getPropertyRequired(props, Config.LINK_ADD_DATAGEN),
-          DataGenerator.class);
-      linkAddDataGen.init(props, Config.LINK_ADD_DATAGEN_PREFIX);
-
-      linkUpDataGen = ClassLoadUtil.newInstance(
-          ConfigUtil.getPropertyRequired(props, Config.LINK_UP_DATAGEN),
-          DataGenerator.class);
-      linkUpDataGen.init(props, Config.LINK_UP_DATAGEN_PREFIX);
-    } catch (ClassNotFoundException ex) {
-      logger.error(ex);
-      throw new LinkBenchConfigError("Error loading data generator class: "
-            + ex.getMessage());
-    }
+  /**
+   * Share history cache with other requesters
+   */
+  public void setHistoryCache(LinkHistoryCache history) {
+    this.listTailHistory = history;
   }
 
-  private void initNodeRequestDistributions(Properties props) {
-    try {
-      nodeReadDist  = AccessDistributions.loadAccessDistribution(props,
-        startid1, maxid1, DistributionType.NODE_READS);
-    } catch (LinkBenchConfigError e) {
-      // Not defined
-      logger.info("Node access distribution not configured: " +
-          e.getMessage());
-      throw new LinkBenchConfigError("Node read distribution not " +
-            "configured but node read operations have non-zero probability");
-    }
+  public long getRequestsDone() {
+    return requestsDone;
+  }
 
-    try {
-      nodeUpdateDist  = AccessDistributions.loadAccessDistribution(props,
-        startid1, maxid1, DistributionType.NODE_UPDATES);
-    } catch (LinkBenchConfigError e) {
-      // Not defined
-      logger.info("Node access distribution not configured: " +
-              e.getMessage());
-      throw new LinkBenchConfigError("Node write distribution not " +
-            "configured but node write operations have non-zero probability");
-    }
+  public long getErrors() {
+    return errors;
+  }
 
-    try {
-      nodeDeleteDist = AccessDistributions.loadAccessDistribution(props,
-        startid1, maxid1, DistributionType.NODE_DELETES);
-    } catch (LinkBenchConfigError e) {
-      // Not defined
-      logger.info("Node delete distribution not configured: " +
-              e.getMessage());
-      throw new LinkBenchConfigError("Node delete distribution not " +
-            "configured but node write operations have non-zero probability");
-    }
+  /**
+   * Safe to call from other threads while the requester runs.
+   * @return operations of type measured since warmup
+   */
+  public long getOpCount(LinkBenchOp type) {
+    return stats.getCount(type);
   }
 
-  private void initNodeDataGeneration(Properties props) {
-    try {
-      double medNodeDataSize = ConfigUtil.getDouble(props,
-                                              Config.NODE_DATASIZE);
-      nodeDataSize = new LogNormalDistribution();
-      nodeDataSize.init(0, NodeStore.MAX_NODE_DATA, medNodeDataSize,
-                        Config.NODE_DATASIZE_SIGMA);
-
-      String dataGenClass = ConfigUtil.getPropertyRequired(props,
-                                         Config.NODE_ADD_DATAGEN);
-      nodeAddDataGen = ClassLoadUtil.newInstance(dataGenClass,
-                                                 DataGenerator.class);
-      nodeAddDataGen.init(props, Config.NODE_ADD_DATAGEN_PREFIX);
-
-      dataGenClass = ConfigUtil.getPropertyRequired(props,
-                        Config.NODE_UP_DATAGEN);
-      nodeUpDataGen = ClassLoadUtil.newInstance(dataGenClass,
-                                                 DataGenerator.class);
-      nodeUpDataGen.init(props, Config.NODE_UP_DATAGEN_PREFIX);
-    } catch (ClassNotFoundException ex) {
-      logger.error(ex);
-      throw new LinkBenchConfigError("Error loading data generator class: "
-            + ex.getMessage());
-    }
+  /**
+   * Safe to call from other threads while the requester runs.
+   * @return failed operations of type measured since warmup
+   */
+  public long getOpErrors(LinkBenchOp type) {
+    return stats.getErrors(type);
   }
 
-  public long getRequestsDone() {
-    return requestsDone;
+  /**
+   * Approximate, for monitoring from other threads
+   * @return requests currently issued to the store by this requester
+   */
+  public int getRequestsInFlight() {
+    return requestsInFlight;
   }
 
   public boolean didAbort() {
     return aborted;
   }
 
-  // gets id1 for the request based on desired distribution
-  private long chooseRequestID(DistributionType type, long previousId1) {
-    AccessDistribution dist;
-    switch (type) {
-    case LINK_READS:
-      // Blend between distributions if needed
-      if (readDistUncorr == null || rng.nextDouble() >= readDistUncorrBlend) {
-        dist = readDist;
-      } else {
-        dist = readDistUncorr;
-      }
-      break;
-    case LINK_WRITES:
-      // Blend between distributions if needed
-      if (writeDistUncorr == null || rng.nextDouble() >= writeDistUncorrBlend) {
-        dist = writeDist;
-      } else {
-        dist = writeDistUncorr;
-      }
-      break;
-    case LINK_WRITES_UNCORR:
-      dist = writeDistUncorr;
-      break;
-    case NODE_READS:
-      dist = nodeReadDist;
-      break;
-    case NODE_UPDATES:
-      dist = nodeUpdateDist;
-      break;
-    case NODE_DELETES:
-      dist = nodeDeleteDist;
-      break;
-    default:
-      throw new RuntimeException("Unknown value for type: " + type);
-    }
-    long newid1 = dist.nextID(rng, previousId1);
-    // Distribution responsible for generating number in range
-    assert((newid1 >= startid1) && (newid1 < maxid1));
-    if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
-      logger.trace("id1 generated = " + newid1 +
-         " for access distribution: " + dist.getClass().getName() + ": " +
-         dist.toString());
+  /**
+   * Get the next operation to execute, either from the generator or
+   * from the compiled op stream
+   */
+  private void nextOp(RequestOp op) throws IOException {
+    if (opStream != null) {
+      opStream.next(op);
+    } else {
+      generator.nextOp(rng, op);
     }
+  }
 
-    if (dist.getShuffler() != null) {
-      // Shuffle to go from position in space ranked from most to least accessed,
-      // to the real id space
-      newid1 = startid1 + dist.getShuffler().permute(newid1 - startid1);
+  /**
+   * Wait until the rate ceiling for the operation type, if any, allows it
+   * to be issued.  Time spent waiting is not counted as latency.
+   * @param intendedStart_ns time the request was scheduled to start
+   * @return time the request was allowed to start
+   */
+  private long throttleOp(LinkBenchOp type, long intendedStart_ns) {
+    if (rateLimits == null) {
+      return intendedStart_ns;
     }
-    return newid1;
+    long now = System.nanoTime();
+    long allowed_ns = rateLimits.nextOpTime(type, rng, now);
+    Timer.waitUntil(allowed_ns);
+    // Count time held back as waiting rather than generating the request
+    stepThrottle_ns = Math.max(0, allowed_ns - now);
+    return Math.max(intendedStart_ns, allowed_ns);
   }
 
   /**
-   * Randomly choose a single request and execute it, updating statistics
+   * Choose a single request and execute it, updating statistics
    * @param recordStats If true, record latency and other stats.
+   * @param intendedStart_ns in open loop mode, the time the request was
+   *          scheduled to start: latency is recorded relative to this
    * @return true if successful, false on error
    */
-  private boolean oneRequest(boolean recordStats) {
-
-    double r = rng.nextDouble() * 100.0;
+  private boolean oneRequest(boolean recordStats, long intendedStart_ns) {
 
     long starttime = 0;
     long endtime = 0;
+    long result = 0; // Result value for journal
 
     LinkBenchOp type = LinkBenchOp.UNKNOWN; // initialize to invalid value
-    Link link = new Link();
     try {
+      nextOp(op);
+      type = op.type;
+      intendedStart_ns = throttleOp(type, intendedStart_ns);
 
-      if (r <= pc_addlink) {
-        // generate add request
-        type = LinkBenchOp.ADD_LINK;
-        link.id1 = chooseRequestID(DistributionType.LINK_WRITES, link.id1);
-        link.link_type = id2chooser.chooseRandomLinkType(rng);
-        link.id2 = id2chooser.chooseForOp(rng, link.id1, link.link_type,
-                                                ID2Chooser.P_ADD_EXIST);
-        link.visibility = LinkStore.VISIBILITY_DEFAULT;
-        link.version = 0;
-        link.time = System.currentTimeMillis();
-        link.data = linkAddDataGen.fill(rng,
-                                      new byte[(int)linkDataSize.choose(rng)]);
+      switch (type) {
+      case ADD_LINK: {
+        Link link = generator.createLink(op);
 
         starttime = System.nanoTime();
-        // no inverses for now
-        boolean alreadyExists = linkStore.addLink(dbid, link, true);
+        boolean alreadyExists = linkStore.addLink(dbid, link, noinverse);
         boolean added = !alreadyExists;
         endtime = System.nanoTime();
+        result = alreadyExists ? 1 : 0;
         if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
           logger.trace("addLink id1=" + link.id1 + " link_type="
                     + link.link_type + " id2=" + link.id2 + " added=" + added);
         }
-      } else if (r <= pc_deletelink) {
-        type = LinkBenchOp.DELETE_LINK;
-        long id1 = chooseRequestID(DistributionType.LINK_WRITES, link.id1);
-        long link_type = id2chooser.chooseRandomLinkType(rng);
-        long id2 = id2chooser.chooseForOp(rng, id1, link_type,
-                                          ID2Chooser.P_DELETE_EXIST);
+        break;
+      }
+      case DELETE_LINK: {
         starttime = System.nanoTime();
-        linkStore.deleteLink(dbid, id1, link_type, id2, true, // no inverse
-            false);
+        boolean deleted = linkStore.deleteLink(dbid, op.id1, op.link_type,
+            op.id2, noinverse, false);
         endtime = System.nanoTime();
+        result = deleted ? 1 : 0;
         if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
-          logger.trace("deleteLink id1=" + id1 + " link_type=" + link_type
-                     + " id2=" + id2);
+          logger.trace("deleteLink id1=" + op.id1 + " link_type=" + op.link_type
+                     + " id2=" + op.id2);
         }
-      } else if (r <= pc_updatelink) {
-        type = LinkBenchOp.UPDATE_LINK;
-        link.id1 = chooseRequestID(DistributionType.LINK_WRITES, link.id1);
-        link.link_type = id2chooser.chooseRandomLinkType(rng);
-        // Update one of the existing links
-        link.id2 = id2chooser.chooseForOp(rng, link.id1, link.link_type,
-                                              ID2Chooser.P_UPDATE_EXIST);
-        link.visibility = LinkStore.VISIBILITY_DEFAULT;
-        link.version = 0;
-        link.time = System.currentTimeMillis();
-        link.data = linkUpDataGen.fill(rng,
-                            new byte[(int)linkDataSize.choose(rng)]);
+        break;
+      }
+      case UPDATE_LINK: {
+        Link link = generator.createLink(op);
 
         starttime = System.nanoTime();
-        // no inverses for now
-        boolean found1 = linkStore.addLink(dbid, link, true);
+        boolean found1 = linkStore.addLink(dbid, link, noinverse);
         boolean found = found1;
         endtime = System.nanoTime();
+        result = found ? 1 : 0;
         if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
           logger.trace("updateLink id1=" + link.id1 + " link_type="
                 + link.link_type + " id2=" + link.id2 + " found=" + found);
         }
-      } else if (r <= pc_countlink) {
-
-        type = LinkBenchOp.COUNT_LINK;
-
-        long id1 = chooseRequestID(DistributionType.LINK_READS, link.id1);
-        long link_type = id2chooser.chooseRandomLinkType(rng);
+        break;
+      }
+      case COUNT_LINK: {
         starttime = System.nanoTime();
-        long count = linkStore.countLinks(dbid, id1, link_type);
+        long count = linkStore.countLinks(dbid, op.id1, op.link_type);
         endtime = System.nanoTime();
+        result = count;
         if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
-          logger.trace("countLink id1=" + id1 + " link_type=" + link_type
+          logger.trace("countLink id1=" + op.id1 + " link_type=" + op.link_type
                      + " count=" + count);
         }
-      } else if (r <= pc_getlink) {
-
-        type = LinkBenchOp.MULTIGET_LINK;
-
-        long id1 = chooseRequestID(DistributionType.LINK_READS, link.id1);
-        long link_type = id2chooser.chooseRandomLinkType(rng);
-        int nid2s = 1;
-        if (multigetDist != null) {
-          nid2s = (int)multigetDist.choose(rng);
-        }
-        long id2s[] = id2chooser.chooseMultipleForOp(rng, id1, link_type, nid2s,
-                                                 ID2Chooser.P_GET_EXIST);
-
+        break;
+      }
+      case MULTIGET_LINK: {
+        int nid2s = op.id2s.length;
         starttime = System.nanoTime();
-        int found = getLink(id1, link_type, id2s);
+        int found = getLink(op.id1, op.link_type, op.id2s);
         assert(found >= 0 && found <= nid2s);
         endtime = System.nanoTime();
+        result = found;
 
         if (found > 0) {
           numfound += found;
         } else {
           numnotfound += nid2s - found;
         }
-
-      } else if (r <= pc_getlinklist) {
-
-        type = LinkBenchOp.GET_LINKS_LIST;
+        break;
+      }
+      case GET_LINKS_LIST: {
         Link links[];
 
-        if (rng.nextDouble() < p_historical_getlinklist &&
-                    !this.listTailHistory.isEmpty()) {
-          links = getLinkListTail();
+        Link prevLast = op.history ?
+                  listTailHistory.choose(op.historyChoice) : null;
+        if (prevLast != null) {
+          setHistoryQuery(op, prevLast);
+          starttime = System.nanoTime();
+          links = getLinkListTail(prevLast);
+          endtime = System.nanoTime();
         } else {
-          long id1 = chooseRequestID(DistributionType.LINK_READS, link.id1);
-          long link_type = id2chooser.chooseRandomLinkType(rng);
+          op.history = false;
           starttime = System.nanoTime();
-          links = getLinkList(id1, link_type);
+          links = getLinkList(op.id1, op.link_type);
           endtime = System.nanoTime();
         }
 
         int count = ((links == null) ? 0 : links.length);
+        result = count;
         if (recordStats) {
           stats.addStats(LinkBenchOp.RANGE_SIZE, count, false);
         }
-      } else if (r <= pc_addnode) {
-        type = LinkBenchOp.ADD_NODE;
-        Node newNode = createAddNode();
+        break;
+      }
+      case ADD_NODE: {
+        Node newNode = generator.createNode(op);
         starttime = System.nanoTime();
-        lastNodeId = nodeStore.addNode(dbid, newNode);
+        long newId = nodeStore.addNode(dbid, newNode);
         endtime = System.nanoTime();
+        result = newId;
+        generator.setLastNodeId(newId);
         if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
           logger.trace("addNode " + newNode);
         }
-      } else if (r <= pc_updatenode) {
-        type = LinkBenchOp.UPDATE_NODE;
-        // Choose an id that has previously been created (but might have
-        // been since deleted
-        long upId = chooseRequestID(DistributionType.NODE_UPDATES,
-                                     lastNodeId);
+        break;
+      }
+      case UPDATE_NODE: {
         // Generate new data randomly
-        Node newNode = createUpdateNode(upId);
+        Node newNode = generator.createNode(op);
 
         starttime = System.nanoTime();
         boolean changed = nodeStore.updateNode(dbid, newNode);
         endtime = System.nanoTime();
-        lastNodeId = upId;
+        result = changed ? 1 : 0;
         if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
           logger.trace("updateNode " + newNode + " changed=" + changed);
         }
-      } else if (r <= pc_deletenode) {
-        type = LinkBenchOp.DELETE_NODE;
-        long idToDelete = chooseRequestID(DistributionType.NODE_DELETES,
-                                          lastNodeId);
+        break;
+      }
+      case DELETE_NODE: {
         starttime = System.nanoTime();
         boolean deleted = nodeStore.deleteNode(dbid, LinkStore.DEFAULT_NODE_TYPE,
-                                                     idToDelete);
+                                                     op.id1);
         endtime = System.nanoTime();
-        lastNodeId = idToDelete;
+        result = deleted ? 1 : 0;
         if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
-          logger.trace("deleteNode " + idToDelete + " deleted=" + deleted);
+          logger.trace("deleteNode " + op.id1 + " deleted=" + deleted);
         }
-      } else if (r <= pc_getnode) {
-        type = LinkBenchOp.GET_NODE;
+        break;
+      }
+      case GET_NODE: {
         starttime = System.nanoTime();
-        long idToFetch = chooseRequestID(DistributionType.NODE_READS,
-                                         lastNodeId);
-        Node fetched = nodeStore.getNode(dbid, LinkStore.DEFAULT_NODE_TYPE, idToFetch);
+        Node fetched = nodeStore.getNode(dbid, LinkStore.DEFAULT_NODE_TYPE, op.id1);
         endtime = System.nanoTime();
-        lastNodeId = idToFetch;
+        result = fetched == null ? 0 : 1;
         if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
           if (fetched == null) {
-            logger.trace("getNode " + idToFetch + " not found");
+            logger.trace("getNode " + op.id1 + " not found");
           } else {
             logger.trace("getNode " + fetched);
           }
         }
-      } else {
+        break;
+      }
+      case PAGE_LOAD: {
+        if (pageLoad == null) {
+          pageLoad = new PageLoad(asyncLinkStore, asyncNodeStore, props);
+        }
+        starttime = System.nanoTime();
+        result = pageLoad.run(op.id1, op.link_type);
+        endtime = System.nanoTime();
+        if (recordStats) {
+          recordPageLoadOps(pageLoad);
+        }
+        if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
+          logger.trace("pageLoad id1=" + op.id1 + " link_type=" +
+                       op.link_type + " links=" + result);
+        }
+        break;
+      }
+      case GET_2HOP: {
+        if (twoHop == null) {
+          twoHop = new TwoHopTraversal(asyncLinkStore, props);
+        }
+        starttime = System.nanoTime();
+        result = twoHop.execute(linkStore, op.id1, op.link_type, op.fanout);
+        endtime = System.nanoTime();
+        if (recordStats) {
+          recordTwoHopSizes(twoHop);
+        }
+        if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
+          logger.trace("get2hop id1=" + op.id1 + " link_type=" +
+                       op.link_type + " fanout=" + twoHop.getFanout() +
+                       " rows=" + result);
+        }
+        break;
+      }
+      case MULTIGET_NODE: {
+        starttime = System.nanoTime();
+        Node nodes[] = nodeStore.multigetNodes(dbid,
+                              LinkStore.DEFAULT_NODE_TYPE, op.ids);
+        endtime = System.nanoTime();
+        result = OpJournalWriter.resultValue(nodes);
+        if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
+          logger.trace("multigetNode ids=" + Arrays.toString(op.ids) +
+                       " found=" + result);
+        }
+        break;
+      }
+      case MULTICOUNT_LINK: {
+        starttime = System.nanoTime();
+        long counts[] = linkStore.multiCountLinks(dbid, op.ids, op.linkTypes);
+        endtime = System.nanoTime();
+        result = OpJournalWriter.resultValue(counts);
+        if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
+          logger.trace("multiCountLink id1s=" + Arrays.toString(op.ids) +
+                       " link_types=" + Arrays.toString(op.linkTypes) +
+                       " counts=" + Arrays.toString(counts));
+        }
+        break;
+      }
+      case MULTIGET_LINKS_LIST: {
+        starttime = System.nanoTime();
+        Link lists[][] = linkStore.multigetLinkLists(dbid, op.ids,
+                                                     op.link_type);
+        endtime = System.nanoTime();
+        result = OpJournalWriter.resultValue(lists);
+        if (recordStats) {
+          recordRangeSizes(lists);
+        }
+        if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
+          logger.trace("multigetLinkList id1s=" + Arrays.toString(op.ids) +
+                       " link_type=" + op.link_type + " links=" + result);
+        }
+        break;
+      }
+      default:
         logger.error("No-op in requester: last probability < 1.0");
         return false;
       }
 
 
-      // convert to microseconds
-      long timetaken = (endtime - starttime)/1000;
-
+      stepStoreStart_ns = starttime;
+      stepStore_ns = endtime - starttime;
       if (recordStats) {
-        // record statistics
-        stats.addStats(type, timetaken, false);
-        latencyStats.recordLatency(requesterID, type, timetaken);
+        recordLatency(statsType(type, op.link_type), starttime, endtime,
+                      intendedStart_ns);
+      }
+      if (journal != null) {
+        journalOp(op, intendedStart_ns, starttime, endtime, result, false);
       }
 
       return true;
     } catch (Throwable e){//Catch exception if any
 
       long endtime2 = System.nanoTime();
+      if (starttime != 0) {
+        stepStoreStart_ns = starttime;
+        stepStore_ns = endtime2 - starttime;
+      }
+      if (journal != null && type != LinkBenchOp.UNKNOWN) {
+        journalOp(op, intendedStart_ns, starttime != 0 ? starttime : endtime2,
+                  endtime2, 0, true);
+      }
 
-      long timetaken2 = (endtime2 - starttime)/1000;
+      long timetaken2 = (endtime2 -
+              (openLoop ? intendedStart_ns : starttime))/1000;
 
       logger.error(type.displayName() + " error " +
                          e.getMessage(), e);
       if (recordStats) {
-        stats.addStats(type, timetaken2, true);
+        stats.addStats(statsType(type, op.link_type), timetaken2, true);
       }
       linkStore.clearErrors(requesterID);
       return false;
@@ -680,31 +833,536 @@ public class LinkBenchRequest implements Runnable {
   }
 
   /**
-   * Create a new node for adding to database
-   * @return
+   * A request issued through the asynchronous store interface.  The store
+   * callback records the outcome and hands the request back to the
+   * requester thread, which does all further processing.
    */
-  private Node createAddNode() {
-    byte data[] = nodeAddDataGen.fill(rng, new byte[(int)nodeDataSize.choose(rng)]);
-    return new Node(-1, LinkStore.DEFAULT_NODE_TYPE, 1,
-                    (int)(System.currentTimeMillis()/1000), data);
+  private class PendingRequest implements StoreCallback<Object> {
+    /** The operation, kept until request is processed */
+    final RequestOp op = new RequestOp();
+    boolean recordStats;
+    long intendedStart_ns;
+    long starttime;
+    long endtime;
+    Object result;
+    Throwable error;
+
+    /** history cache entry for historical range queries */
+    Link prevLast;
+
+    /** Kept for reuse by later page loads */
+    PageLoad pageLoad;
+
+    /** Kept for reuse by later two hop traversals */
+    TwoHopTraversal twoHop;
+
+    PendingRequest(boolean recordStats, long intendedStart_ns) {
+      op.reuseBuffers = reuseBuffers;
+      reset(recordStats, intendedStart_ns);
+    }
+
+    /**
+     * Clear state so that this can be used for another request
+     */
+    void reset(boolean recordStats, long intendedStart_ns) {
+      this.recordStats = recordStats;
+      this.intendedStart_ns = intendedStart_ns;
+      this.starttime = 0;
+      this.endtime = 0;
+      this.result = null;
+      this.error = null;
+      this.prevLast = null;
+    }
+
+    @Override
+    public void completed(Object result) {
+      this.endtime = System.nanoTime();
+      this.result = result;
+      completedRequests.add(this);
+    }
+
+    @Override
+    public void failed(Throwable error) {
+      this.endtime = System.nanoTime();
+      this.error = error;
+      completedRequests.add(this);
+    }
   }
 
   /**
-   * Create new node for updating in database
+   * Choose a single request and issue it asynchronously, then
+   * process completed requests until fewer than pipelineDepth are in flight.
+   * @param recordStats If true, record latency and other stats.
+   * @param intendedStart_ns in open loop mode, the time the request was
+   *          scheduled to start: latency is recorded relative to this
+   * @return number of completed requests that failed
+   */
+  private int pipelinedRequest(boolean recordStats, long intendedStart_ns) {
+    LinkBenchOp type = LinkBenchOp.UNKNOWN;
+    PendingRequest req;
+    if (freeRequests != null && !freeRequests.isEmpty()) {
+      req = freeRequests.poll();
+      req.reset(recordStats, intendedStart_ns);
+    } else {
+      req = new PendingRequest(recordStats, intendedStart_ns);
+    }
+    RequestOp op = req.op;
+    int failures = 0;
+    try {
+      nextOp(op);
+      type = op.type;
+      stepOpType = type;
+      intendedStart_ns = throttleOp(type, intendedStart_ns);
+      req.intendedStart_ns = intendedStart_ns;
+      switch (type) {
+      case ADD_LINK:
+      case UPDATE_LINK: {
+        Link link = generator.createLink(op);
+        req.starttime = System.nanoTime();
+        asyncLinkStore.addLinkAsync(dbid, link, noinverse, req);
+        break;
+      }
+      case DELETE_LINK:
+        req.starttime = System.nanoTime();
+        asyncLinkStore.deleteLinkAsync(dbid, op.id1, op.link_type, op.id2,
+                                       noinverse, false, req);
+        break;
+      case COUNT_LINK:
+        req.starttime = System.nanoTime();
+        asyncLinkStore.countLinksAsync(dbid, op.id1, op.link_type, req);
+        break;
+      case MULTIGET_LINK:
+        req.starttime = System.nanoTime();
+        asyncLinkStore.multigetLinksAsync(dbid, op.id1, op.link_type, op.id2s,
+                                          req);
+        break;
+      case GET_LINKS_LIST:
+        Link prevLast = op.history ?
+                  listTailHistory.choose(op.historyChoice) : null;
+        if (prevLast != null) {
+          setHistoryQuery(op, prevLast);
+          req.prevLast = prevLast;
+          req.starttime = System.nanoTime();
+          // Get links past the oldest last retrieved
+          asyncLinkStore.getLinkListAsync(dbid, prevLast.id1,
+              prevLast.link_type, 0, prevLast.time, 1,
+              linkStore.getRangeLimit(), req);
+        } else {
+          op.history = false;
+          req.starttime = System.nanoTime();
+          asyncLinkStore.getLinkListAsync(dbid, op.id1, op.link_type, req);
+        }
+        break;
+      case ADD_NODE:
+      case UPDATE_NODE: {
+        Node newNode = generator.createNode(op);
+        req.starttime = System.nanoTime();
+        if (type == LinkBenchOp.ADD_NODE) {
+          asyncNodeStore.addNodeAsync(dbid, newNode, req);
+        } else {
+          asyncNodeStore.updateNodeAsync(dbid, newNode, req);
+        }
+        break;
+      }
+      case DELETE_NODE:
+        req.starttime = System.nanoTime();
+        asyncNodeStore.deleteNodeAsync(dbid, LinkStore.DEFAULT_NODE_TYPE,
+                                       op.id1, req);
+        break;
+      case GET_NODE:
+        req.starttime = System.nanoTime();
+        asyncNodeStore.getNodeAsync(dbid, LinkStore.DEFAULT_NODE_TYPE,
+                                    op.id1, req);
+        break;
+      case PAGE_LOAD:
+        if (req.pageLoad == null) {
+          req.pageLoad = new PageLoad(asyncLinkStore, asyncNodeStore, props);
+        }
+        req.starttime = System.nanoTime();
+        req.pageLoad.start(op.id1, op.link_type, req);
+        break;
+      case GET_2HOP:
+        if (req.twoHop == null) {
+          req.twoHop = new TwoHopTraversal(asyncLinkStore, props);
+        }
+        req.starttime = System.nanoTime();
+        req.twoHop.start(op.id1, op.link_type, op.fanout, req);
+        break;
+      case MULTIGET_NODE:
+        req.starttime = System.nanoTime();
+        asyncNodeStore.multigetNodesAsync(dbid, LinkStore.DEFAULT_NODE_TYPE,
+                                          op.ids, req);
+        break;
+      case MULTICOUNT_LINK:
+        req.starttime = System.nanoTime();
+        asyncLinkStore.multiCountLinksAsync(dbid, op.ids, op.linkTypes, req);
+        break;
+      case MULTIGET_LINKS_LIST:
+        req.starttime = System.nanoTime();
+        asyncLinkStore.multigetLinkListsAsync(dbid, op.ids, op.link_type, req);
+        break;
+      default:
+        logger.error("No-op in requester: last probability < 1.0");
+        return 1;
+      }
+      requestsInFlight++;
+      if (overheadStats != null) {
+        stepStoreStart_ns = req.starttime;
+        stepStore_ns += System.nanoTime() - req.starttime;
+      }
+    } catch (Throwable e) {
+      // Failed to issue request
+      logger.error(type.displayName() + " error " + e.getMessage(), e);
+      long now = System.nanoTime();
+      long starttime = req.starttime != 0 ? req.starttime : now;
+      if (recordStats) {
+        stats.addStats(statsType(type, op.link_type), (now - starttime) / 1000,
+                       true);
+      }
+      if (journal != null && type != LinkBenchOp.UNKNOWN) {
+        journalOp(op, intendedStart_ns, starttime, now, 0, true);
+      }
+      failures++;
+    }
+
+    // Wait until there is room for another request
+    while (requestsInFlight >= pipelineDepth) {
+      if (!completeRequest()) {
+        failures++;
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * Wait for the next asynchronous request to complete and process it
+   * @return true if request was successful
    */
-  private Node createUpdateNode(long id) {
-    byte data[] = nodeUpDataGen.fill(rng, new byte[(int)nodeDataSize.choose(rng)]);
-    return new Node(id, LinkStore.DEFAULT_NODE_TYPE, 2,
-                    (int)(System.currentTimeMillis()/1000), data);
+  private boolean completeRequest() {
+    PendingRequest req;
+    try {
+      long waitStart_ns = overheadStats != null ? System.nanoTime() : 0;
+      req = completedRequests.take();
+      if (overheadStats != null) {
+        // Waiting for the store to complete requests
+        stepStore_ns += System.nanoTime() - waitStart_ns;
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while waiting for request", e);
+    }
+    requestsInFlight--;
+
+    LinkBenchOp type = req.op.type;
+    if (journal != null) {
+      journalOp(req.op, req.intendedStart_ns, req.starttime, req.endtime,
+                OpJournalWriter.resultValue(req.result), req.error != null);
+    }
+    if (req.error != null) {
+      logger.error(type.displayName() + " error " +
+                         req.error.getMessage(), req.error);
+      if (req.recordStats) {
+        long timetaken = (req.endtime -
+                (openLoop ? req.intendedStart_ns : req.starttime))/1000;
+        stats.addStats(statsType(type, req.op.link_type), timetaken, true);
+      }
+      releaseRequest(req);
+      return false;
+    }
+
+    switch (type) {
+    case MULTIGET_LINK:
+      Link found[] = (Link[]) req.result;
+      int nfound = found == null ? 0 : found.length;
+      if (nfound > 0) {
+        numfound += nfound;
+      } else {
+        numnotfound += req.op.id2s.length - nfound;
+      }
+      break;
+    case GET_LINKS_LIST:
+      Link links[] = (Link[]) req.result;
+      if (req.prevLast != null) {
+        processLinkListTail(req.prevLast, links);
+      } else {
+        processLinkList(req.op.id1, req.op.link_type, links);
+      }
+      if (req.recordStats) {
+        int count = ((links == null) ? 0 : links.length);
+        stats.addStats(LinkBenchOp.RANGE_SIZE, count, false);
+      }
+      break;
+    case ADD_NODE:
+      generator.setLastNodeId((Long) req.result);
+      break;
+    case PAGE_LOAD:
+      if (req.recordStats) {
+        recordPageLoadOps(req.pageLoad);
+      }
+      break;
+    case GET_2HOP:
+      if (req.recordStats) {
+        recordTwoHopSizes(req.twoHop);
+      }
+      break;
+    case MULTIGET_LINKS_LIST:
+      if (req.recordStats) {
+        recordRangeSizes((Link[][]) req.result);
+      }
+      break;
+    default:
+      break;
+    }
+
+    if (req.recordStats) {
+      recordLatency(statsType(type, req.op.link_type), req.starttime,
+                    req.endtime, req.intendedStart_ns);
+    }
+    releaseRequest(req);
+    return true;
   }
 
+  /**
+   * Record latency of each operation that made up a page load, under the
+   * page load type for the operation
+   */
+  private void recordPageLoadOps(PageLoad load) {
+    for (int i = 0; i < load.getSubOpCount(); i++) {
+      LinkBenchOp subType = load.getSubOpType(i);
+      if (subType != null) {
+        long start = load.getSubOpStartTime(i);
+        recordLatency(pageLoadStatsType(subType), start,
+                      load.getSubOpEndTime(i), start);
+      }
+    }
+  }
+
+  /**
+   * @return the type to record statistics for an operation in a page load
+   *    under, so that they are not counted as standalone operations
+   */
+  private static LinkBenchOp pageLoadStatsType(LinkBenchOp type) {
+    switch (type) {
+    case GET_NODE:
+      return LinkBenchOp.PAGE_LOAD_GET_NODE;
+    case GET_LINKS_LIST:
+      return LinkBenchOp.PAGE_LOAD_GET_LINKS_LIST;
+    case MULTIGET_LINK:
+      return LinkBenchOp.PAGE_LOAD_MULTIGET_LINK;
+    default:
+      throw new IllegalArgumentException("Unexpected page load op " + type);
+    }
+  }
+
+  /**
+   * Record the size of each link list returned by a batched read
+   */
+  private void recordRangeSizes(Link lists[][]) {
+    for (Link links[]: lists) {
+      stats.addStats(LinkBenchOp.RANGE_SIZE,
+                     links == null ? 0 : links.length, false);
+    }
+  }
+
+  /**
+   * Record how many links a two hop traversal followed and how many rows
+   * it read in total
+   */
+  private void recordTwoHopSizes(TwoHopTraversal traversal) {
+    stats.addStats(LinkBenchOp.GET_2HOP_FANOUT, traversal.getFanout(), false);
+    stats.addStats(LinkBenchOp.GET_2HOP_ROWS, traversal.getRowsTouched(),
+                   false);
+  }
+
+  /**
+   * @return the most store operations a single request with this
+   *    configuration can have in flight at once
+   */
+  public static int getOpConcurrency(Properties props) {
+    int concurrency = 1;
+    if (PageLoad.isEnabled(props)) {
+      concurrency = Math.max(concurrency, PageLoad.getMaxConcurrency(props));
+    }
+    if (TwoHopTraversal.isEnabled(props)) {
+      concurrency = Math.max(concurrency,
+                             TwoHopTraversal.getMaxConcurrency(props));
+    }
+    return concurrency;
+  }
+
+  /**
+   * Keep a processed request for reuse, if reusing buffers.  The store
+   * has completed the request, so no longer refers to its buffers.
+   */
+  private void releaseRequest(PendingRequest req) {
+    if (freeRequests != null) {
+      freeRequests.add(req);
+    }
+  }
+
+  /**
+   * Wait for all in flight requests to complete
+   * @return number of requests that failed
+   */
+  private int completeAllRequests() {
+    int failures = 0;
+    while (requestsInFlight > 0) {
+      if (!completeRequest()) {
+        failures++;
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * Record the historical range query that will be done for op, so that
+   * the journal has the query as executed
+   */
+  private static void setHistoryQuery(RequestOp op, Link prevLast) {
+    op.id1 = prevLast.id1;
+    op.link_type = prevLast.link_type;
+    op.historyTime = prevLast.time;
+  }
+
+  /**
+   * Append operation to journal.  If the journal cannot be written, the
+   * requester stops, since the journal would be incomplete
+   */
+  private void journalOp(RequestOp op, long intendedStart_ns, long starttime,
+                         long endtime, long result, boolean error) {
+    try {
+      journal.record(op, intendedStart_ns, starttime, endtime, result, error);
+    } catch (IOException e) {
+      logger.error("Requester #" + requesterID + " aborting: error writing " +
+                   "op journal", e);
+      aborted = true;
+      finished = true;
+    }
+  }
+
+  /**
+   * @return the type to record statistics for a request under: link
+   *    writes that also write an inverse link are recorded separately, so
+   *    that their extra cost is visible
+   */
+  private LinkBenchOp statsType(LinkBenchOp type, long link_type) {
+    if (inverseTypes == null || !inverseTypes.hasInverse(link_type)) {
+      return type;
+    }
+    switch (type) {
+    case ADD_LINK:
+      return LinkBenchOp.ADD_LINK_INVERSE;
+    case DELETE_LINK:
+      return LinkBenchOp.DELETE_LINK_INVERSE;
+    case UPDATE_LINK:
+      return LinkBenchOp.UPDATE_LINK_INVERSE;
+    default:
+      return type;
+    }
+  }
+
+  /**
+   * Record statistics for a successful request
+   */
+  private void recordLatency(LinkBenchOp type, long starttime, long endtime,
+                             long intendedStart_ns) {
+    // convert to microseconds
+    long timetaken = (endtime - starttime)/1000;
+
+    if (openLoop) {
+      // Response time includes any delay behind the schedule
+      long responsetime = (endtime - intendedStart_ns)/1000;
+      stats.addStats(type, responsetime, false);
+      latencyStats.recordLatency(requesterID, type, responsetime);
+      if (serviceLatencyStats != null) {
+        serviceLatencyStats.recordLatency(requesterID, type, timetaken);
+      }
+      recordPhaseLatency(type, responsetime);
+      recordIntervalLatency(type, responsetime, endtime);
+    } else {
+      stats.addStats(type, timetaken, false);
+      latencyStats.recordLatency(requesterID, type, timetaken);
+      recordPhaseLatency(type, timetaken);
+      recordIntervalLatency(type, timetaken, endtime);
+    }
+  }
+
+  /**
+   * Record latency in histogram for the interval the request ended in
+   */
+  private void recordIntervalLatency(LinkBenchOp type, long microtimetaken,
+                                     long endtime) {
+    if (histogramRecorder != null) {
+      histogramRecorder.record(type, microtimetaken, endtime);
+    }
+  }
+
+  private void recordPhaseLatency(LinkBenchOp type, long microtimetaken) {
+    if (phaseLatencyStats != null && phasesStarted) {
+      phaseLatencyStats[phaseIndex].recordLatency(requesterID, type,
+                                                  microtimetaken);
+    }
+  }
+
+  // State of request loop, kept in fields so that requests can be issued
+  // one step at a time
+  private long warmupStartTime;
+  private boolean warmupDone;
+  private long benchmarkStartTime;
+  private long endTime;
+  private long lastUpdate;
+  private long curTime;
+  private long warmupRequests;
+  private long requestsSinceLastUpdate;
+  private long lastStatDisplay_ms;
+  private long reqTime_ns;
+  private double requestrate_ns;
+  /** Set when requester stops early due to errors or time limit */
+  private boolean finished = false;
+  // Progress through workload script, which starts after warmup
+  private boolean phasesStarted = false;
+  private int phaseIndex;
+  private long phaseStart_ns;
+  private long phaseEnd_ns;
+
+  /** How often a paused requester checks whether to resume */
+  private static final long PAUSE_POLL_NS = 100 * 1000L * 1000L;
+
+  // Runtime control, if any, and the settings last applied from it
+  private LinkBenchControl control = null;
+  private LinkBenchControl.Settings controlSettings =
+                                    LinkBenchControl.Settings.INITIAL;
+  private boolean paused = false;
+  private long pauseStart_ns;
+  /** Set when the next step was scheduled only to check for resuming */
+  private boolean pausedStep = false;
+  private boolean snapshotRequested = false;
+
   @Override
   public void run() {
+    startSteps();
+    while (hasNextStep()) {
+      long scheduledTime_ns = nextStepTime();
+      if (!Timer.waitUntil(scheduledTime_ns)) {
+        logger.warn("Requester thread #" + requesterID
+                    + " interrupted, stopping");
+        break;
+      }
+      step(scheduledTime_ns);
+    }
+    finishSteps();
+  }
+
+  @Override
+  public void startSteps() {
     logger.info("Requester thread #" + requesterID + " started: will do "
         + numRequests + " ops after " + warmupTime + " second warmup");
     logger.debug("Requester thread #" + requesterID + " first random number "
                   + rng.nextLong());
 
+    if (listTailHistory == null) {
+      listTailHistory = LinkHistoryCache.fromConfig(props, 1);
+    }
+
     try {
       this.linkStore.initialize(props, Phase.REQUEST, requesterID);
       if (this.nodeStore != null && this.nodeStore != this.linkStore) {
@@ -715,17 +1373,16 @@ public class LinkBenchRequest implements Runnable {
       throw new RuntimeException(e);
     }
 
-    long warmupStartTime = System.currentTimeMillis();
-    boolean warmupDone = warmupTime <= 0;
-    long benchmarkStartTime;
+    warmupStartTime = System.currentTimeMillis();
+    warmupDone = warmupTime <= 0;
     if (!warmupDone) {
       benchmarkStartTime = warmupStartTime + warmupTime * 1000;
     } else {
       benchmarkStartTime = warmupStartTime;
     }
-    long endTime = benchmarkStartTime + maxTime * 1000;
-    long lastUpdate = warmupStartTime;
-    long curTime = warmupStartTime;
+    endTime = benchmarkStartTime + maxTime * 1000;
+    lastUpdate = warmupStartTime;
+    curTime = warmupStartTime;
 
     long i;
 
@@ -757,86 +1414,338 @@ public class LinkBenchRequest implements Runnable {
                          e.getMessage(), e);
         aborted = true;
       }
-      closeStores();
+      finished = true;
       return;
     }
 
-    long warmupRequests = 0;
-    long requestsSinceLastUpdate = 0;
-    long lastStatDisplay_ms = curTime;
-    long reqTime_ns = System.nanoTime();
-    double requestrate_ns = ((double)requestrate)/1e9;
-    while (requestsDone < numRequests) {
-      if (requestrate > 0) {
-        reqTime_ns = Timer.waitExpInterval(rng, reqTime_ns, requestrate_ns);
-      }
-      boolean success = oneRequest(warmupDone);
-      if (!success) {
-        errors++;
-        if (maxFailedRequests >= 0 && errors > maxFailedRequests) {
-          logger.error(String.format("Requester #%d aborting: %d failed requests" +
-              " (out of %d total) ", requesterID, errors, requestsDone));
-          aborted = true;
-          break;
-        }
+    warmupRequests = 0;
+    requestsSinceLastUpdate = 0;
+    lastStatDisplay_ms = curTime;
+    reqTime_ns = System.nanoTime();
+    requestrate_ns = ((double)requestrate)/1e9;
+    if (phases != null && warmupDone) {
+      startPhases();
+    }
+  }
+
+  /**
+   * Start the first phase of the workload script
+   */
+  private void startPhases() {
+    phasesStarted = true;
+    phaseIndex = 0;
+    phaseStart_ns = System.nanoTime();
+    reqTime_ns = phaseStart_ns;
+    beginPhase();
+  }
+
+  /**
+   * Switch to settings of phase phaseIndex, starting at phaseStart_ns
+   */
+  private void beginPhase() {
+    WorkloadPhase phase = phases.get(phaseIndex);
+    phaseEnd_ns = phaseStart_ns + phase.getDuration_ns();
+    generator.setOpMix(phaseProps[phaseIndex]);
+    logger.info(String.format("Requester #%d starting phase %d/%d: %s",
+        requesterID, phaseIndex + 1, phases.size(), phase));
+  }
+
+  /**
+   * Choose time of next step according to the arrival rate of the current
+   * phase, moving on to later phases as their start time is reached
+   */
+  private long nextPhaseStepTime() {
+    long now = System.nanoTime();
+    WorkloadPhase phase = phases.get(phaseIndex);
+    // Throttled phases follow their schedule even if behind it
+    while ((phase.isThrottled() ? reqTime_ns : now) >= phaseEnd_ns) {
+      if (phaseIndex + 1 >= phases.size()) {
+        logger.info(String.format("Requester #%d: all %d workload phases " +
+            "done, shutting down.", requesterID, phases.size()));
+        finished = true;
+        return now;
       }
+      phaseIndex++;
+      phaseStart_ns = phaseEnd_ns;
+      beginPhase();
+      phase = phases.get(phaseIndex);
+    }
 
-      curTime = System.currentTimeMillis();
+    if (phase.isThrottled()) {
+      double rate_ns = phase.rateAt(reqTime_ns - phaseStart_ns) / 1e9;
+      reqTime_ns = Timer.nextExpInterval(rng, reqTime_ns, rate_ns);
+    } else {
+      reqTime_ns = now;
+    }
+    return reqTime_ns;
+  }
 
-      // Track requests done
-      if (warmupDone) {
-        requestsDone++;
-        requestsSinceLastUpdate++;
-        if (requestsSinceLastUpdate >= RequestProgress.THREAD_REPORT_INTERVAL) {
-          progressTracker.update(requestsSinceLastUpdate);
-          requestsSinceLastUpdate = 0;
-        }
-      } else {
-        warmupRequests++;
+  @Override
+  public boolean hasNextStep() {
+    return !finished && requestsDone < numRequests &&
+           (opStream == null || opStream.hasNext());
+  }
+
+  @Override
+  public long nextStepTime() {
+    if (control != null) {
+      LinkBenchControl.Settings settings = control.getSettings();
+      if (settings != controlSettings) {
+        applyControl(settings);
+      }
+      if (paused) {
+        pausedStep = true;
+        return System.nanoTime() + PAUSE_POLL_NS;
       }
+    }
+    if (phasesStarted) {
+      return nextPhaseStepTime();
+    } else if (rateLimits != null && rateLimits.hasGlobalLimit()) {
+      // Slots not taken by this requester are free for the others, so in
+      // open loop mode, lag shows up as latency of whichever takes them
+      reqTime_ns = rateLimits.nextRequestTime(rng, System.nanoTime(),
+                                              openLoop);
+      return reqTime_ns;
+    } else if (openLoop || requestrate > 0) {
+      // Follow the schedule regardless of how far behind we are.  In open
+      // loop mode this means that a stall in the store shows up as latency
+      // for queued requests
+      reqTime_ns = Timer.nextExpInterval(rng, reqTime_ns, requestrate_ns);
+      return reqTime_ns;
+    } else {
+      return System.nanoTime();
+    }
+  }
 
-      // Per-thread periodic progress updates
-      if (curTime > lastUpdate + progressFreq_ms) {
-        if (warmupDone) {
-          logger.info(String.format("Requester #%d %d/%d requests done",
-              requesterID, requestsDone, numRequests));
-          lastUpdate = curTime;
-        } else {
-          logger.info(String.format("Requester #%d warming up.  " +
-              " %d warmup requests done. %d/%d seconds of warmup done",
-              requesterID, warmupRequests, (curTime - warmupStartTime) / 1000,
-              warmupTime));
-          lastUpdate = curTime;
-        }
+  /**
+   * Apply settings that were changed through runtime control since the
+   * last ones applied
+   */
+  private void applyControl(LinkBenchControl.Settings settings) {
+    long rate = settings.getRequestRate();
+    if (rate >= 0 && rate != requestrate) {
+      if (requestrate <= 0) {
+        // Start schedule from now rather than when the last one ended
+        reqTime_ns = System.nanoTime();
       }
+      requestrate = rate;
+      requestrate_ns = ((double)requestrate)/1e9;
+      logger.debug("Requester #" + requesterID + " request rate changed to "
+                   + requestrate);
+    }
+    if (settings.getOpMix() != null &&
+        settings.getOpMix() != controlSettings.getOpMix()) {
+      generator.setOpMix(settings.getOpMix());
+      logger.debug("Requester #" + requesterID + " operation mix changed");
+    }
+    boolean pause = settings.isPaused(requesterID);
+    if (pause && !paused) {
+      pauseStart_ns = System.nanoTime();
+      logger.info("Requester #" + requesterID + " paused");
+    } else if (!pause && paused) {
+      long now = System.nanoTime();
+      // Carry on with schedule and workload script as if the pause hadn't
+      // happened, rather than catching up on requests missed
+      long pause_ns = now - pauseStart_ns;
+      phaseStart_ns += pause_ns;
+      phaseEnd_ns += pause_ns;
+      reqTime_ns = Math.max(reqTime_ns, now);
+      logger.info("Requester #" + requesterID + " resumed after " +
+                  (pause_ns / 1000000) + "ms");
+    }
+    paused = pause;
+    if (settings.getSnapshotGeneration() !=
+        controlSettings.getSnapshotGeneration()) {
+      snapshotRequested = true;
+    }
+    controlSettings = settings;
+  }
 
-      // Per-thread periodic stat dumps after warmup done
-      if (warmupDone && (lastStatDisplay_ms + displayFreq_ms) <= curTime) {
-        displayStats(lastStatDisplay_ms, curTime);
-        stats.resetSamples();
-        lastStatDisplay_ms = curTime;
+  /**
+   * Step while paused: finish requests in flight, so that the store is
+   * left idle, and keep track of time limit and requested stats
+   */
+  private void pausedStep() {
+    if (pipelineDepth > 1) {
+      errors += completeAllRequests();
+    }
+    // Time paused isn't overhead
+    lastStepEnd_ns = 0;
+    curTime = System.currentTimeMillis();
+    checkStatsDisplay();
+    checkTimeLimit();
+  }
+
+  @Override
+  public void step(long scheduledTime_ns) {
+    if (finished) {
+      // Workload script ended when choosing time of this step
+      return;
+    }
+    if (pausedStep) {
+      pausedStep = false;
+      pausedStep();
+      return;
+    }
+    if (openLoop) {
+      maxScheduleLag_ns = Math.max(maxScheduleLag_ns,
+                                   System.nanoTime() - scheduledTime_ns);
+    }
+    boolean measureAlloc = allocationStats != null && warmupDone;
+    long startAlloc = measureAlloc ? allocationStats.threadAllocatedBytes() : 0;
+    boolean measureOverhead = overheadStats != null && warmupDone;
+    long stepStart_ns = 0, startCpu_ns = 0, startOverheadAlloc = 0;
+    if (measureOverhead) {
+      stepStart_ns = System.nanoTime();
+      startCpu_ns = overheadStats.threadCpuTime();
+      startOverheadAlloc = overheadStats.threadAllocatedBytes();
+      stepStoreStart_ns = 0;
+      stepStore_ns = 0;
+      stepThrottle_ns = 0;
+    }
+    int failures;
+    if (pipelineDepth > 1) {
+      failures = pipelinedRequest(warmupDone, scheduledTime_ns);
+    } else {
+      requestsInFlight = 1;
+      failures = oneRequest(warmupDone, scheduledTime_ns) ? 0 : 1;
+      requestsInFlight = 0;
+      stepOpType = op.type;
+    }
+    if (measureAlloc) {
+      // In pipelined mode, also includes processing of completed requests
+      allocationStats.recordAllocation(requesterID, stepOpType, startAlloc);
+    }
+    if (failures > 0) {
+      errors += failures;
+      if (maxFailedRequests >= 0 && errors > maxFailedRequests) {
+        logger.error(String.format("Requester #%d aborting: %d failed requests" +
+            " (out of %d total) ", requesterID, errors, requestsDone));
+        aborted = true;
+        finished = true;
+        return;
       }
+    }
 
-      // Check if warmup completed
-      if (!warmupDone && curTime >= benchmarkStartTime) {
-        warmupDone = true;
-        lastUpdate = curTime;
-        lastStatDisplay_ms = curTime;
+    curTime = System.currentTimeMillis();
+
+    // Track requests done
+    if (warmupDone) {
+      requestsDone++;
+      requestsSinceLastUpdate++;
+      if (requestsSinceLastUpdate >= RequestProgress.THREAD_REPORT_INTERVAL) {
+        progressTracker.update(requestsSinceLastUpdate);
         requestsSinceLastUpdate = 0;
-        logger.info(String.format("Requester #%d warmup finished " +
-            " after %d warmup requests.  0/%d requests done",
-            requesterID, warmupRequests, numRequests));
+      }
+    } else {
+      warmupRequests++;
+    }
+
+    // Per-thread periodic progress updates
+    if (curTime > lastUpdate + progressFreq_ms) {
+      if (warmupDone) {
+        logger.info(String.format("Requester #%d %d/%d requests done",
+            requesterID, requestsDone, numRequests));
+        lastUpdate = curTime;
+      } else {
+        logger.info(String.format("Requester #%d warming up.  " +
+            " %d warmup requests done. %d/%d seconds of warmup done",
+            requesterID, warmupRequests, (curTime - warmupStartTime) / 1000,
+            warmupTime));
         lastUpdate = curTime;
       }
+    }
 
-      // Enforce time limit
-      if (curTime > endTime) {
-        logger.info(String.format("Requester #%d: time limit of %ds elapsed" +
-              ", shutting down.", requesterID, maxTime));
-        break;
+    checkStatsDisplay();
+
+    // Check if warmup completed
+    if (!warmupDone && curTime >= benchmarkStartTime) {
+      warmupDone = true;
+      lastUpdate = curTime;
+      lastStatDisplay_ms = curTime;
+      requestsSinceLastUpdate = 0;
+      logger.info(String.format("Requester #%d warmup finished " +
+          " after %d warmup requests.  0/%d requests done",
+          requesterID, warmupRequests, numRequests));
+      lastUpdate = curTime;
+      if (phases != null) {
+        startPhases();
       }
     }
 
+    checkTimeLimit();
+
+    if (measureOverhead) {
+      recordOverhead(stepStart_ns, startCpu_ns, startOverheadAlloc);
+    } else if (overheadStats != null) {
+      lastStepEnd_ns = System.nanoTime();
+    }
+  }
+
+  /**
+   * Per-thread periodic stat dumps after warmup done, or when requested
+   * through runtime control
+   */
+  private void checkStatsDisplay() {
+    if (warmupDone && (snapshotRequested ||
+                       (lastStatDisplay_ms + displayFreq_ms) <= curTime)) {
+      displayStats(lastStatDisplay_ms, curTime);
+      stats.resetSamples();
+      lastStatDisplay_ms = curTime;
+    }
+    snapshotRequested = false;
+  }
+
+  /**
+   * Enforce time limit
+   */
+  private void checkTimeLimit() {
+    if (curTime > endTime) {
+      logger.info(String.format("Requester #%d: time limit of %ds elapsed" +
+            ", shutting down.", requesterID, maxTime));
+      finished = true;
+    }
+  }
+
+  /**
+   * Split time taken by the last step into generating the request, store
+   * calls and recording the outcome, and record it along with the time
+   * since the previous step
+   */
+  private void recordOverhead(long stepStart_ns, long startCpu_ns,
+                              long startAlloc) {
+    long now = System.nanoTime();
+    long gen_ns = stepStoreStart_ns != 0 ?
+                  stepStoreStart_ns - stepStart_ns - stepThrottle_ns : 0;
+    long record_ns = now - stepStart_ns - stepThrottle_ns - gen_ns -
+                     stepStore_ns;
+    long wait_ns = stepThrottle_ns +
+                   (lastStepEnd_ns != 0 ? stepStart_ns - lastStepEnd_ns : 0);
+    overheadStats.recordRequest(requesterID, stepOpType, gen_ns,
+        stepStore_ns, record_ns, wait_ns, startCpu_ns, startAlloc);
+    lastStepEnd_ns = now;
+  }
+
+  @Override
+  public void finishSteps() {
+    if (singleAssoc) {
+      closeStores();
+      return;
+    }
+
+    if (pipelineDepth > 1) {
+      errors += completeAllRequests();
+    }
+    if (histogramRecorder != null) {
+      histogramRecorder.flush();
+    }
+    stats.flushIntervalRecorder();
+
+    if (opStream != null && !finished && requestsDone < numRequests) {
+      logger.warn("Requester #" + requesterID + " reached end of op stream" +
+                  " after " + requestsDone + "/" + numRequests + " requests");
+    }
+
     // Do final update of statistics
     progressTracker.update(requestsSinceLastUpdate);
     displayStats(lastStatDisplay_ms, System.currentTimeMillis());
@@ -849,7 +1758,9 @@ public class LinkBenchRequest implements Runnable {
                        " found = " + numfound +
                        " not found = " + numnotfound +
                        " history queries = " + numHistoryQueries + "/" +
-                                   stats.getCount(LinkBenchOp.GET_LINKS_LIST));
+                                   stats.getCount(LinkBenchOp.GET_LINKS_LIST) +
+                       (openLoop ? " max schedule lag = " +
+                                   (maxScheduleLag_ns / 1000000) + "ms" : ""));
     closeStores();
   }
 
@@ -861,17 +1772,26 @@ public class LinkBenchRequest implements Runnable {
     if (nodeStore != null && nodeStore != linkStore) {
       nodeStore.close();
     }
+    if (opStream != null) {
+      try {
+        opStream.close();
+      } catch (IOException e) {
+        logger.warn("Error closing op stream", e);
+      }
+    }
+    if (journal != null) {
+      try {
+        journal.close();
+        logger.debug("Requester #" + requesterID + " journaled " +
+                     journal.getRecordsWritten() + " operations");
+      } catch (IOException e) {
+        logger.error("Error closing op journal", e);
+      }
+    }
   }
 
   private void displayStats(long lastStatDisplay_ms, long now_ms) {
-    stats.displayStats(lastStatDisplay_ms, now_ms,
-        Arrays.asList(
-        LinkBenchOp.MULTIGET_LINK, LinkBenchOp.GET_LINKS_LIST,
-        LinkBenchOp.COUNT_LINK,
-        LinkBenchOp.UPDATE_LINK, LinkBenchOp.ADD_LINK,
-        LinkBenchOp.RANGE_SIZE, LinkBenchOp.ADD_NODE,
-        LinkBenchOp.UPDATE_NODE, LinkBenchOp.DELETE_NODE,
-        LinkBenchOp.GET_NODE));
+    stats.displayStats(lastStatDisplay_ms, now_ms, displayOps);
   }
 
   int getLink(long id1, long link_type, long id2s[]) throws Exception {
@@ -881,6 +1801,15 @@ public class LinkBenchRequest implements Runnable {
 
   Link[] getLinkList(long id1, long link_type) throws Exception {
     Link links[] = linkStore.getLinkList(dbid, id1, link_type);
+    processLinkList(id1, link_type, links);
+    return links;
+  }
+
+  /**
+   * Handle the result of a range query: if there may be more history,
+   * remember the last link so that it can be queried later
+   */
+  private void processLinkList(long id1, long link_type, Link links[]) {
     if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
        logger.trace("getLinkList(id1=" + id1 + ", link_type="  + link_type
                      + ") => count=" + (links == null ? 0 : links.length));
@@ -893,21 +1822,24 @@ public class LinkBenchRequest implements Runnable {
                       link_type + " older than " + lastLink.time);
       }
 
-      addTailCacheEntry(lastLink);
+      listTailHistory.add(lastLink, rng);
     }
-    return links;
   }
 
-  Link[] getLinkListTail() throws Exception {
-    assert(!listTailHistoryIndex.isEmpty());
-    assert(!listTailHistory.isEmpty());
-    int choice = rng.nextInt(listTailHistory.size());
-    Link prevLast = listTailHistory.get(choice);
-
+  Link[] getLinkListTail(Link prevLast) throws Exception {
     // Get links past the oldest last retrieved
     Link links[] = linkStore.getLinkList(dbid, prevLast.id1,
         prevLast.link_type, 0, prevLast.time, 1, linkStore.getRangeLimit());
+    processLinkListTail(prevLast, links);
+    return links;
+  }
 
+  /**
+   * Handle result of a historical range query, updating the history cache
+   * @param prevLast the cache entry that was queried
+   * @param links the result of the query
+   */
+  private void processLinkListTail(Link prevLast, Link links[]) {
     if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
       logger.trace("getLinkListTail(id1=" + prevLast.id1 + ", link_type="
                 + prevLast.link_type + ", max_time=" + prevLast.time
@@ -926,63 +1858,12 @@ public class LinkBenchRequest implements Runnable {
         logger.trace("might be yet more history for (" + last.id1 +"," +
                       last.link_type + " older than " + last.time);
       }
-      // Update in place
-      listTailHistory.set(choice, last.clone());
+      listTailHistory.advance(prevLast, last, rng);
     } else {
       // No more history after this, remove from cache
-      removeTailCacheEntry(choice, null);
+      listTailHistory.remove(prevLast);
     }
     numHistoryQueries++;
-    return links;
-  }
-
-  /**
-   * Add a new link to the history cache, unless already present
-   * @param lastLink the last (i.e. lowest timestamp) link retrieved
-   */
-  private void addTailCacheEntry(Link lastLink) {
-    HistoryKey key = new HistoryKey(lastLink);
-    if (listTailHistoryIndex.containsKey(key)) {
-      // Already present
-      return;
-    }
-
-    if (listTailHistory.size() < listTailHistoryLimit) {
-      listTailHistory.add(lastLink.clone());
-      listTailHistoryIndex.put(key, listTailHistory.size() - 1);
-    } else {
-      // Need to evict entry
-      int choice = rng.nextInt(listTailHistory.size());
-      removeTailCacheEntry(choice, lastLink.clone());
-    }
-  }
-
-  /**
-   * Remove or replace entry in listTailHistory and update index
-   * @param pos index of entry in listTailHistory
-   * @param repl replace with this if not null
-   */
-  private void removeTailCacheEntry(int pos, Link repl) {
-    Link entry = listTailHistory.get(pos);
-    if (pos == listTailHistory.size() - 1) {
-      // removing from last position, don't need to fill gap
-      listTailHistoryIndex.remove(new HistoryKey(entry));
-      int lastIx = listTailHistory.size() - 1;
-      if (repl == null) {
-        listTailHistory.remove(lastIx);
-      } else {
-        listTailHistory.set(lastIx, repl);
-        listTailHistoryIndex.put(new HistoryKey(repl), lastIx);
-      }
-    } else {
-      if (repl == null) {
-        // Replace with last entry in cache to fill gap
-        repl = listTailHistory.get(listTailHistory.size() - 1);
-        listTailHistory.remove(listTailHistory.size() - 1);
-      }
-      listTailHistory.set(pos, repl);
-      listTailHistoryIndex.put(new HistoryKey(repl), pos);
-    }
   }
 
   public static class RequestProgress {
@@ -1018,6 +1899,18 @@ public class LinkBenchRequest implements Runnable {
       return benchmarkStartTime;
     }
 
+    public long getTotalRequests() {
+      return totalRequests;
+    }
+
+    /**
+     * @return requests done so far, as last registered by requester
+     *    threads
+     */
+    public long getRequestsDone() {
+      return requestsDone.get();
+    }
+
     public void update(long requestIncr) {
       long curr = requestsDone.addAndGet(requestIncr);
       long prev = curr - requestIncr;
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of the last link retrieved from link lists that had more links than
+ * the range limit, so that requesters can later page further back through
+ * the list's history, like a "load more" request.
+ *
+ * One cache is shared by all requesters, so that history queries can follow
+ * up on lists read by any requester.  It is a fixed size table keyed by
+ * (id1, link_type): each key maps to a small bucket of slots, and when a
+ * bucket is full, a random entry from it is evicted.  Entries are never
+ * modified once added, so reads need no locking, and updates are made with
+ * compare-and-set on a slot.
+ *
+ * The table is mostly sparse, since only lists longer than the range limit
+ * are added, so a compact index of occupied slots is kept for choosing
+ * entries uniformly in constant time.  The index is updated under a lock
+ * only when a slot becomes occupied or empty, and is read without locking.
+ */
+public class LinkHistoryCache {
+  /** Default limit on number of entries per requester */
+  public static final int DEFAULT_LIMIT = 2048;
+
+  /** Slots per bucket: candidates sampled for eviction */
+  static final int BUCKET_SIZE = 4;
+
+  /** Attempts to choose an entry that is not being removed */
+  private static final int CHOOSE_ATTEMPTS = 8;
+
+  private final AtomicReferenceArray<Link> slots;
+  private final int nbuckets;
+
+  /** Occupied slot numbers, in the first size positions */
+  private final AtomicIntegerArray occupied;
+  /** Position of each slot in occupied, or -1.  Guarded by this. */
+  private final int positions[];
+  private volatile int size = 0;
+
+  /**
+   * @param limit maximum entries, rounded up to a multiple of BUCKET_SIZE
+   */
+  public LinkHistoryCache(int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("History limit must be > 0: " +
+                                         limit);
+    }
+    nbuckets = (limit + BUCKET_SIZE - 1) / BUCKET_SIZE;
+    slots = new AtomicReferenceArray<Link>(nbuckets * BUCKET_SIZE);
+    occupied = new AtomicIntegerArray(slots.length());
+    positions = new int[slots.length()];
+    Arrays.fill(positions, -1);
+  }
+
+  /**
+   * @param nrequesters number of requesters sharing the cache: the limit
+   *    is per requester, so that each has as much history as if it kept
+   *    its own
+   */
+  public static LinkHistoryCache fromConfig(Properties props,
+                                            int nrequesters) {
+    int limit = ConfigUtil.getInt(props, Config.GETLINKLIST_HISTORY_LIMIT,
+                                  DEFAULT_LIMIT);
+    if (limit <= 0) {
+      throw new LinkBenchConfigError(Config.GETLINKLIST_HISTORY_LIMIT +
+                                     " must be > 0");
+    }
+    long total = (long) limit * Math.max(1, nrequesters);
+    return new LinkHistoryCache((int) Math.min(total,
+                                  Integer.MAX_VALUE - BUCKET_SIZE));
+  }
+
+  public int capacity() {
+    return slots.length();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Choose an entry to query.  Distinct choices tend to give different
+   * entries, and all entries are equally likely for random choices.
+   * @param choice non-negative random number used to pick entry
+   * @return an entry, or null if the cache is empty.  The entry must not
+   *    be modified.
+   */
+  public Link choose(int choice) {
+    long h = choice;
+    for (int i = 0; i < CHOOSE_ATTEMPTS; i++) {
+      int n = size;
+      if (n == 0) {
+        return null;
+      }
+      h = mix(h + i);
+      Link entry = slots.get(occupied.get((int)((h >>> 1) % n)));
+      if (entry != null) {
+        return entry;
+      }
+      // Removed concurrently: choose again
+    }
+    return null;
+  }
+
+  /**
+   * Add the last link retrieved from a list, unless the list already has
+   * an entry
+   * @param last the last (i.e. lowest timestamp) link retrieved.  A copy
+   *    is kept.
+   * @param rng used to choose an entry to evict if the bucket is full
+   */
+  public void add(Link last, Random rng) {
+    int base = bucket(last.id1, last.link_type);
+    Link copy = null;
+    while (true) {
+      int free = -1;
+      for (int i = base; i < base + BUCKET_SIZE; i++) {
+        Link entry = slots.get(i);
+        if (entry == null) {
+          if (free < 0) {
+            free = i;
+          }
+        } else if (sameList(entry, last)) {
+          // Already present
+          return;
+        }
+      }
+      if (copy == null) {
+        copy = last.clone();
+      }
+      if (free >= 0) {
+        if (slots.compareAndSet(free, null, copy)) {
+          reindex(free);
+          removeDuplicates(base, copy);
+          return;
+        }
+      } else {
+        int victim = base + rng.nextInt(BUCKET_SIZE);
+        Link entry = slots.get(victim);
+        if (entry != null && slots.compareAndSet(victim, entry, copy)) {
+          removeDuplicates(base, copy);
+          return;
+        }
+      }
+      // Lost race with another requester: look again
+    }
+  }
+
+  /**
+   * Another requester may have added the same list to a different slot of
+   * the bucket at the same time.  Keep only the entry in the lowest slot.
+   * Every adder checks after inserting, and at least one of two racing
+   * adders sees the other's entry, so duplicates do not survive.
+   */
+  private void removeDuplicates(int base, Link added) {
+    boolean found = false;
+    for (int i = base; i < base + BUCKET_SIZE; i++) {
+      Link entry = slots.get(i);
+      if (entry == null || !sameList(entry, added)) {
+        continue;
+      }
+      if (!found) {
+        found = true;
+      } else if (slots.compareAndSet(i, entry, null)) {
+        reindex(i);
+      }
+    }
+  }
+
+  /**
+   * Replace an entry after a history query found more links
+   * @param prev entry returned by choose that was queried
+   * @param last the last link retrieved by the query.  A copy is kept.
+   */
+  public void advance(Link prev, Link last, Random rng) {
+    int base = bucket(prev.id1, prev.link_type);
+    for (int i = base; i < base + BUCKET_SIZE; i++) {
+      if (slots.get(i) == prev &&
+          slots.compareAndSet(i, prev, last.clone())) {
+        return;
+      }
+    }
+    // Evicted or advanced by another requester in the meantime
+    add(last, rng);
+  }
+
+  /**
+   * Remove an entry after a history query reached the end of the list.
+   * Does nothing if the entry was already replaced.
+   * @param prev entry returned by choose that was queried
+   */
+  public void remove(Link prev) {
+    int base = bucket(prev.id1, prev.link_type);
+    for (int i = base; i < base + BUCKET_SIZE; i++) {
+      if (slots.get(i) == prev && slots.compareAndSet(i, prev, null)) {
+        reindex(i);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Bring the index up to date after a slot became occupied or empty.
+   * The slot may have changed again since, so the index follows its
+   * current state, and is correct once the last change is reindexed.
+   */
+  private synchronized void reindex(int slot) {
+    boolean full = slots.get(slot) != null;
+    int pos = positions[slot];
+    if (full && pos < 0) {
+      occupied.set(size, slot);
+      positions[slot] = size;
+      size++;
+    } else if (!full && pos >= 0) {
+      // Move last occupied slot into the gap
+      int lastSlot = occupied.get(size - 1);
+      occupied.set(pos, lastSlot);
+      positions[lastSlot] = pos;
+      positions[slot] = -1;
+      size--;
+    }
+  }
+
+  private static boolean sameList(Link a, Link b) {
+    return a.id1 == b.id1 && a.link_type == b.link_type;
+  }
+
+  /**
+   * @return first slot of bucket for list
+   */
+  private int bucket(long id1, long link_type) {
+    long h = mix(id1 * 31 + link_type);
+    return (int)((h >>> 1) % nbuckets) * BUCKET_SIZE;
+  }
+
+  /**
+   * Finalizer from 64 bit MurmurHash3, to spread nearby keys across table
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
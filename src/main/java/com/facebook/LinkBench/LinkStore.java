@@ -38,6 +38,13 @@ public abstract class LinkStore {
   /** Controls the current setting for range limit */
   protected int rangeLimit;
 
+  /**
+   * Inverse link types: links written with noinverse == false also have
+   * their inverse written, if they have an inverse type.  Null if inverses
+   * are not configured.  Set by initInverseTypes.
+   */
+  protected InverseLinkTypes inverseTypes = null;
+
   /** The default constructor */
   public LinkStore() {
     this.rangeLimit = DEFAULT_LIMIT;
@@ -51,6 +58,23 @@ public abstract class LinkStore {
     this.rangeLimit = rangeLimit;
   }
 
+  /**
+   * Load inverse link types from configuration, for stores that support
+   * writing inverse links.  Called from initialize.
+   */
+  protected void initInverseTypes(Properties p) {
+    inverseTypes = InverseLinkTypes.fromConfig(p);
+  }
+
+  /**
+   * @return true if a write of a link of this type should also write the
+   *    inverse link
+   */
+  protected boolean writeInverse(long link_type, boolean noinverse) {
+    return !noinverse && inverseTypes != null &&
+           inverseTypes.hasInverse(link_type);
+  }
+
   /** initialize the store object */
   public abstract void initialize(Properties p,
       Phase currentPhase, int threadId) throws IOException, Exception;
@@ -66,9 +90,16 @@ public abstract class LinkStore {
 
   /**
    * Add provided link to the store.  If already exists, update with new data
+   *
+   * The caller may reuse the link object and its data array for another
+   * operation once this returns, so the store must copy anything it needs
+   * to keep.  The same applies to updateLink and to the id2s array passed
+   * to multigetLinks.  Objects returned by the store belong to the caller.
    * @param dbid
    * @param a
-   * @param noinverse
+   * @param noinverse if false, and the link type has an inverse type in
+   *          inverse_link_types, also add the inverse link in the same
+   *          transaction
    * @return true if new link added, false if updated. Implementation is
    *              optional, for informational purposes only.
    * @throws Exception
@@ -81,7 +112,9 @@ public abstract class LinkStore {
    * @param id1
    * @param link_type
    * @param id2
-   * @param noinverse
+   * @param noinverse if false, and the link type has an inverse type in
+   *          inverse_link_types, also delete the inverse link in the same
+   *          transaction
    * @param expunge if true, delete permanently.  If false, hide instead
    * @return true if row existed. Implementation is optional, for informational
    *         purposes only.
@@ -94,7 +127,9 @@ public abstract class LinkStore {
    * Update a link in the database, or add if not found
    * @param dbid
    * @param a
-   * @param noinverse
+   * @param noinverse if false, and the link type has an inverse type in
+   *          inverse_link_types, also update the inverse link in the same
+   *          transaction
    * @return true if link found, false if new link created.  Implementation is
    *      optional, for informational purposes only.
    * @throws Exception
@@ -170,6 +205,40 @@ public abstract class LinkStore {
   // count the #links
   public abstract long countLinks(String dbid, long id1, long link_type) throws Exception;
 
+  /**
+   * Count links for a batch of (id1, link_type) pairs.  Stores that can do
+   * this in a single round trip should override this generic
+   * implementation.
+   * @param id1s
+   * @param link_types same length as id1s
+   * @return count for each pair, in the same order
+   */
+  public long[] multiCountLinks(String dbid, long id1s[], long link_types[])
+      throws Exception {
+    long counts[] = new long[id1s.length];
+    for (int i = 0; i < id1s.length; i++) {
+      counts[i] = countLinks(dbid, id1s[i], link_types[i]);
+    }
+    return counts;
+  }
+
+  /**
+   * Get link lists of a single link type for a batch of id1s, as
+   * getLinkList(dbid, id1, link_type) would for each.  Stores that can do
+   * this in a single round trip should override this generic
+   * implementation.
+   * @return link list for each id1, in the same order.  Entries are null
+   *     if no matching links
+   */
+  public Link[][] multigetLinkLists(String dbid, long id1s[], long link_type)
+      throws Exception {
+    Link lists[][] = new Link[id1s.length][];
+    for (int i = 0; i < id1s.length; i++) {
+      lists[i] = getLinkList(dbid, id1s[i], link_type);
+    }
+    return lists;
+  }
+
   /**
    * @return 0 if it doesn't support addBulkLinks and recalculateCounts methods
    *         If it does support them, return the maximum number of links that
@@ -24,8 +24,10 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
@@ -127,6 +129,7 @@ public class LinkStoreMysql extends GraphStore {
     }
 
     linktable = ConfigUtil.getPropertyRequired(props, Config.LINK_TABLE);
+    initInverseTypes(props);
   }
 
   // connects to test database
@@ -306,6 +309,32 @@ public class LinkStoreMysql extends GraphStore {
 
   private boolean addLinkImpl(String dbid, Link l, boolean noinverse)
       throws Exception {
+    // The inverse link is written in the same transaction
+    boolean inverse = writeInverse(l.link_type, noinverse);
+    boolean row_found = addLinkNoCommit(dbid, l, !inverse);
+    Link inv = null;
+    if (inverse) {
+      inv = inverseTypes.inverseOf(l);
+      addLinkNoCommit(dbid, inv, true);
+    }
+
+    if (INTERNAL_TESTING) {
+      testCount(stmt_ro, dbid, linktable, counttable, l.id1, l.link_type);
+      if (inv != null) {
+        testCount(stmt_ro, dbid, linktable, counttable, inv.id1,
+                  inv.link_type);
+      }
+    }
+    return row_found;
+  }
+
+  /**
+   * Internal method: add or update a link and its count
+   * @param commit if true, commit the transaction with the last statement
+   * @return true if the link already existed
+   */
+  private boolean addLinkNoCommit(String dbid, Link l, boolean commit)
+      throws Exception {
 
      if (Level.DEBUG.isGreaterOrEqual(debuglevel)) {
       logger.debug("addLink " + l.id1 +
@@ -391,7 +420,7 @@ public class LinkStoreMysql extends GraphStore {
 
       // This is the last statement of transaction - append commit to avoid
       // extra round trip
-      if (!update_data) {
+      if (commit && !update_data) {
         updatecount += " commit;";
       }
       stmt_rw.executeUpdate(updatecount);
@@ -406,17 +435,16 @@ public class LinkStoreMysql extends GraphStore {
                   ", version = " + l.version +
                   " WHERE id1 = " + l.id1 +
                   " AND id2 = " + l.id2 +
-                  " AND link_type = " + l.link_type + "; commit;";
+                  " AND link_type = " + l.link_type + ";";
+      if (commit) {
+        updatedata += " commit;";
+      }
       if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
         logger.trace(updatedata);
       }
 
       stmt_rw.executeUpdate(updatedata);
     }
-
-    if (INTERNAL_TESTING) {
-      testCount(stmt_ro, dbid, linktable, counttable, l.id1, l.link_type);
-    }
     return row_found;
   }
 
@@ -479,6 +507,34 @@ public class LinkStoreMysql extends GraphStore {
 
   private boolean deleteLinkImpl(String dbid, long id1, long link_type, long id2,
       boolean noinverse, boolean expunge) throws Exception {
+    // The inverse link is deleted in the same transaction
+    boolean found = deleteLinkNoCommit(dbid, id1, link_type, id2, expunge);
+    boolean inverse = writeInverse(link_type, noinverse);
+    if (inverse) {
+      deleteLinkNoCommit(dbid, id2, inverseTypes.getInverse(link_type), id1,
+                         expunge);
+    }
+
+    conn_rw.commit();
+
+    if (INTERNAL_TESTING) {
+      testCount(stmt_ro, dbid, linktable, counttable, id1, link_type);
+      if (inverse) {
+        testCount(stmt_ro, dbid, linktable, counttable, id2,
+                  inverseTypes.getInverse(link_type));
+      }
+    }
+
+    return found;
+  }
+
+  /**
+   * Internal method: hide or delete a link and update its count, without
+   * committing
+   * @return true if the link existed
+   */
+  private boolean deleteLinkNoCommit(String dbid, long id1, long link_type,
+      long id2, boolean expunge) throws Exception {
     if (Level.DEBUG.isGreaterOrEqual(debuglevel)) {
       logger.debug("deleteLink " + id1 +
                          "." + id2 +
@@ -576,13 +632,6 @@ public class LinkStoreMysql extends GraphStore {
 
       stmt_rw.executeUpdate(update);
     }
-
-    conn_rw.commit();
-
-    if (INTERNAL_TESTING) {
-      testCount(stmt_ro, dbid, linktable, counttable, id1, link_type);
-    }
-
     return found;
   }
 
@@ -806,6 +855,138 @@ public class LinkStoreMysql extends GraphStore {
     return count;
   }
 
+  @Override
+  public long[] multiCountLinks(String dbid, long[] id1s, long[] link_types)
+      throws Exception {
+    while (true) {
+      try {
+        return multiCountLinksImpl(dbid, id1s, link_types);
+      } catch (SQLException ex) {
+        if (!processSQLException(ex, "multiCountLinks")) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  private long[] multiCountLinksImpl(String dbid, long[] id1s,
+      long[] link_types) throws Exception {
+    long counts[] = new long[id1s.length];
+    if (id1s.length == 0) {
+      return counts;
+    }
+    StringBuilder querySB = new StringBuilder();
+    querySB.append(" select id, link_type, count from " + dbid + "." +
+                   counttable + " where (id, link_type) in (");
+    for (int i = 0; i < id1s.length; i++) {
+      if (i > 0) {
+        querySB.append(",");
+      }
+      querySB.append("(" + id1s[i] + "," + link_types[i] + ")");
+    }
+    querySB.append(");");
+    String query = querySB.toString();
+
+    if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
+      logger.trace("Query is " + query);
+    }
+
+    // Positions in the batch of each id1: pairs may be repeated, and an
+    // id1 may appear with several link types
+    HashMap<Long, ArrayList<Integer>> positions =
+                              new HashMap<Long, ArrayList<Integer>>();
+    for (int i = 0; i < id1s.length; i++) {
+      ArrayList<Integer> idPositions = positions.get(id1s[i]);
+      if (idPositions == null) {
+        idPositions = new ArrayList<Integer>(1);
+        positions.put(id1s[i], idPositions);
+      }
+      idPositions.add(i);
+    }
+
+    ResultSet rs = stmt_ro.executeQuery(query);
+    while (rs.next()) {
+      long id = rs.getLong(1);
+      long link_type = rs.getLong(2);
+      long count = rs.getLong(3);
+      ArrayList<Integer> idPositions = positions.get(id);
+      if (idPositions == null) {
+        continue;
+      }
+      for (int i: idPositions) {
+        if (link_types[i] == link_type) {
+          counts[i] = count;
+        }
+      }
+    }
+    rs.close();
+    return counts;
+  }
+
+  @Override
+  public Link[][] multigetLinkLists(String dbid, long[] id1s, long link_type)
+      throws Exception {
+    while (true) {
+      try {
+        return multigetLinkListsImpl(dbid, id1s, link_type);
+      } catch (SQLException ex) {
+        if (!processSQLException(ex, "multigetLinkLists")) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  private Link[][] multigetLinkListsImpl(String dbid, long[] id1s,
+      long link_type) throws Exception {
+    Link results[][] = new Link[id1s.length][];
+    if (id1s.length == 0) {
+      return results;
+    }
+    // One subquery per distinct id1, so that the range limit applies to
+    // each link list separately
+    HashMap<Long, ArrayList<Link>> lists = new HashMap<Long, ArrayList<Link>>();
+    StringBuilder querySB = new StringBuilder();
+    for (long id1: id1s) {
+      if (lists.containsKey(id1)) {
+        continue;
+      }
+      lists.put(id1, new ArrayList<Link>());
+      if (querySB.length() > 0) {
+        querySB.append(" union all ");
+      }
+      querySB.append("(select id1, id2, link_type," +
+                     " visibility, data, time," +
+                     " version from " + dbid + "." + linktable +
+                     " FORCE INDEX(`id1_type`) " +
+                     " where id1 = " + id1 + " and link_type = " + link_type +
+                     " and visibility = " + LinkStore.VISIBILITY_DEFAULT +
+                     " order by time desc " +
+                     " limit " + rangeLimit + ")");
+    }
+    querySB.append(" order by time desc;");
+    String query = querySB.toString();
+
+    if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
+      logger.trace("Query is " + query);
+    }
+
+    ResultSet rs = stmt_ro.executeQuery(query);
+    while (rs.next()) {
+      Link l = createLinkFromRow(rs);
+      lists.get(l.id1).add(l);
+    }
+    rs.close();
+
+    for (int i = 0; i < id1s.length; i++) {
+      ArrayList<Link> list = lists.get(id1s[i]);
+      if (!list.isEmpty()) {
+        results[i] = list.toArray(new Link[list.size()]);
+      }
+    }
+    return results;
+  }
+
   @Override
   public int bulkLoadBatchSize() {
     return bulkInsertSize;
@@ -1010,6 +1191,54 @@ public class LinkStoreMysql extends GraphStore {
     return null;
   }
 
+  @Override
+  public Node[] multigetNodes(String dbid, int type, long[] ids)
+      throws Exception {
+    while (true) {
+      try {
+        return multigetNodesImpl(dbid, type, ids);
+      } catch (SQLException ex) {
+        if (!processSQLException(ex, "multigetNodes")) {
+          throw ex;
+        }
+      }
+    }
+  }
+
+  private Node[] multigetNodesImpl(String dbid, int type, long[] ids)
+      throws Exception {
+    checkNodeTableConfigured();
+    Node nodes[] = new Node[ids.length];
+    if (ids.length == 0) {
+      return nodes;
+    }
+    StringBuilder sql = new StringBuilder();
+    sql.append("SELECT id, type, version, time, data " +
+               "FROM `" + dbid + "`.`" + nodetable + "` " +
+               "WHERE id IN (");
+    for (int i = 0; i < ids.length; i++) {
+      if (i > 0) {
+        sql.append(",");
+      }
+      sql.append(ids[i]);
+    }
+    sql.append(");");
+    ResultSet rs = stmt_ro.executeQuery(sql.toString());
+    HashMap<Long, Node> found = new HashMap<Long, Node>();
+    while (rs.next()) {
+      Node res = new Node(rs.getLong(1), rs.getInt(2),
+           rs.getLong(3), rs.getInt(4), rs.getBytes(5));
+      if (res.type == type) {
+        found.put(res.id, res);
+      }
+    }
+    rs.close();
+    for (int i = 0; i < ids.length; i++) {
+      nodes[i] = found.get(ids[i]);
+    }
+    return nodes;
+  }
+
   @Override
   public boolean updateNode(String dbid, Node node) throws Exception {
     while (true) {
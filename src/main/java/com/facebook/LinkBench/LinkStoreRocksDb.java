@@ -19,6 +19,7 @@ import com.facebook.rocks.swift.*;
 import com.facebook.swift.service.ThriftClientManager;
 import com.facebook.nifty.client.FramedClientConnector;
 import com.google.common.net.HostAndPort;
+import com.google.common.primitives.Longs;
 import org.apache.thrift.transport.TTransportException;
 
 import java.io.IOException;
@@ -34,7 +35,6 @@ import java.sql.Statement;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
@@ -138,6 +138,7 @@ public class LinkStoreRocksDb extends GraphStore {
     writeOptions.setDisableWAL(
       ConfigUtil.getBool(p, CONFIG_WRITE_DISABLE_WAL, false));
     debuglevel = ConfigUtil.getDebugLevel(p);
+    initInverseTypes(p);
   }
 
   public LinkStoreRocksDb() {
@@ -181,15 +182,23 @@ public class LinkStoreRocksDb extends GraphStore {
                          "." + l.id2 +
                          "." + l.link_type);
     }
+    long result = putAssoc(dbid, l);
+    if (writeInverse(l.link_type, noinverse)) {
+      // The service has no batch across assocs, so the inverse is written
+      // straight after
+      putAssoc(dbid, inverseTypes.inverseOf(l));
+    }
+    return result == 1;
+  }
+
+  private long putAssoc(String dbid, Link l) throws Exception {
     AssocVisibility av = AssocVisibility.values()[l.visibility];
     String s = "wormhole...";
     dbid += "assocs";
-    long result = getRocksClient().TaoAssocPut(
+    return getRocksClient().TaoAssocPut(
         dbid.getBytes(), l.link_type, l.id1, l.id2, l.time,
         av, true, Long.valueOf(l.version), l.data, s.getBytes(),
         writeOptions);
-
-    return result == 1;
   }
 
   /**
@@ -231,13 +240,21 @@ public class LinkStoreRocksDb extends GraphStore {
                          "." + id2 +
                          "." + link_type);
     }
+    long result = deleteAssoc(dbid, id1, link_type, id2);
+    if (writeInverse(link_type, noinverse)) {
+      deleteAssoc(dbid, id2, inverseTypes.getInverse(link_type), id1);
+    }
+    return result == 1;
+  }
+
+  private long deleteAssoc(String dbid, long id1, long link_type, long id2)
+      throws Exception {
     String s = "wormhole...";
     dbid += "assocs";
-    long result = getRocksClient().TaoAssocDelete(
+    return getRocksClient().TaoAssocDelete(
       dbid.getBytes() , link_type, id1, id2,
       -1 /*version ignored*/, AssocVisibility.HARD_DELETE, true,
       s.getBytes(), writeOptions);
-    return result == 1;
   }
 
   @Override
@@ -284,10 +301,9 @@ public class LinkStoreRocksDb extends GraphStore {
 
   private Link[] multigetLinksImpl(String dbid, long id1, long link_type,
     long[] id2s) throws Exception {
-    List<Long> l = new ArrayList<Long>();
-    for (int i = 0; i < id2s.length; i++) {
-      l.add(new Long(id2s[i]));
-    }
+    // The client API takes boxed ids: pass a view of the array rather than
+    // copying into a new list.  Ids are boxed only as the client reads them
+    List<Long> l = Longs.asList(id2s);
     dbid += "assocs";
     List<TaoAssocGetEntry> tr = getRocksClient().TaoAssocGetID2s(
         dbid.getBytes(),
@@ -295,7 +311,7 @@ public class LinkStoreRocksDb extends GraphStore {
     Link results[] = new Link[tr.size()];
     int i = 0;
     for (TaoAssocGetEntry tar : tr) {
-      results[i] = new Link(id1, link_type, tar.getId2(),
+      results[i++] = new Link(id1, link_type, tar.getId2(),
           LinkStore.VISIBILITY_DEFAULT, tar.getData(),
           (int)(tar.getVersion()), tar.getTime());
     }
@@ -199,6 +199,7 @@ public class MemoryLinkStore extends GraphStore {
   @Override
   public void initialize(Properties p, Phase currentPhase, int threadId)
       throws IOException, Exception {
+    initInverseTypes(p);
   }
 
   @Override
@@ -212,45 +213,69 @@ public class MemoryLinkStore extends GraphStore {
   @Override
   public boolean addLink(String dbid, Link a, boolean noinverse) throws Exception {
     synchronized (linkdbs) {
-      SortedSet<Link> links = findLinkByKey(dbid, a.id1, a.link_type, true);
-
-      boolean exists = false;
-      // Check for duplicates
-      Iterator<Link> it = links.iterator();
-      while (it.hasNext()) {
-        Link existing = it.next();
-        if (existing.id2 == a.id2) {
-          it.remove();
-          exists = true;
-        }
+      boolean added = addLinkLocked(dbid, a);
+      if (writeInverse(a.link_type, noinverse)) {
+        addLinkLocked(dbid, inverseTypes.inverseOf(a));
       }
-      // Clone argument before inserting
-      links.add(a.clone());
+      return added;
+    }
+  }
 
-      /*System.err.println(String.format("added link (%d, %d, %d), %d in list",
-                a.id1, a.link_type, a.id2, links.size()));*/
-      return !exists;
+  /**
+   * Add or replace link.  Caller must hold lock on linkdbs
+   */
+  private boolean addLinkLocked(String dbid, Link a) {
+    SortedSet<Link> links = findLinkByKey(dbid, a.id1, a.link_type, true);
+
+    boolean exists = false;
+    // Check for duplicates
+    Iterator<Link> it = links.iterator();
+    while (it.hasNext()) {
+      Link existing = it.next();
+      if (existing.id2 == a.id2) {
+        it.remove();
+        exists = true;
+      }
     }
+    // Clone argument before inserting
+    links.add(a.clone());
+
+    /*System.err.println(String.format("added link (%d, %d, %d), %d in list",
+              a.id1, a.link_type, a.id2, links.size()));*/
+    return !exists;
   }
 
   @Override
   public boolean deleteLink(String dbid, long id1, long link_type, long id2,
       boolean noinverse, boolean expunge) throws Exception {
     synchronized (linkdbs) {
-      //NOTE: does not reclaim space from unused structures
-      SortedSet<Link> linkSet = findLinkByKey(dbid, id1, link_type, false);
-      if (linkSet != null) {
-        Iterator<Link> it = linkSet.iterator();
-        while (it.hasNext()) {
-          Link l = it.next();
-          if (l.id2 == id2) {
-            if (!expunge) {
-              l.visibility = VISIBILITY_HIDDEN;
-            } else {
-              it.remove();
-            }
-            return true; // found it!
+      boolean found = deleteLinkLocked(dbid, id1, link_type, id2, expunge);
+      if (writeInverse(link_type, noinverse)) {
+        deleteLinkLocked(dbid, id2, inverseTypes.getInverse(link_type), id1,
+                         expunge);
+      }
+      return found;
+    }
+  }
+
+  /**
+   * Hide or remove link.  Caller must hold lock on linkdbs
+   */
+  private boolean deleteLinkLocked(String dbid, long id1, long link_type,
+      long id2, boolean expunge) {
+    //NOTE: does not reclaim space from unused structures
+    SortedSet<Link> linkSet = findLinkByKey(dbid, id1, link_type, false);
+    if (linkSet != null) {
+      Iterator<Link> it = linkSet.iterator();
+      while (it.hasNext()) {
+        Link l = it.next();
+        if (l.id2 == id2) {
+          if (!expunge) {
+            l.visibility = VISIBILITY_HIDDEN;
+          } else {
+            it.remove();
           }
+          return true; // found it!
         }
       }
     }
@@ -269,6 +294,10 @@ public class MemoryLinkStore extends GraphStore {
           if (l.id2 == a.id2) {
             it.remove();
             linkSet.add(a.clone());
+            if (writeInverse(a.link_type, noinverse)) {
+              // Inverse may be missing if graph was loaded without inverses
+              addLinkLocked(dbid, inverseTypes.inverseOf(a));
+            }
             return true;
           }
         }
@@ -378,6 +407,26 @@ public class MemoryLinkStore extends GraphStore {
     }
   }
 
+  /**
+   * Read all counts under a single acquisition of the lock, so that they
+   * are consistent with each other
+   */
+  @Override
+  public long[] multiCountLinks(String dbid, long[] id1s, long[] link_types)
+      throws Exception {
+    synchronized(linkdbs) {
+      return super.multiCountLinks(dbid, id1s, link_types);
+    }
+  }
+
+  @Override
+  public Link[][] multigetLinkLists(String dbid, long[] id1s, long link_type)
+      throws Exception {
+    synchronized(linkdbs) {
+      return super.multigetLinkLists(dbid, id1s, link_type);
+    }
+  }
+
   /**
    * Should be called with lock on nodedbs held
    * @param dbid
@@ -442,6 +491,14 @@ public class MemoryLinkStore extends GraphStore {
     }
   }
 
+  @Override
+  public Node[] multigetNodes(String dbid, int type, long[] ids)
+      throws Exception {
+    synchronized(nodedbs) {
+      return super.multigetNodes(dbid, type, ids);
+    }
+  }
+
   @Override
   public boolean updateNode(String dbid, Node node) throws Exception {
     synchronized(nodedbs) {
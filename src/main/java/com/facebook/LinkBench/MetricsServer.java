@@ -0,0 +1,363 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.LinkBenchLoad.LoadProgress;
+import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.stats.IntervalAggregator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves live benchmark metrics over HTTP at /metrics, in the Prometheus
+ * text exposition format, so that a run can be watched and scraped while
+ * it is in progress.
+ *
+ * Metrics are only computed when scraped, from counters that the worker
+ * threads already maintain and that can be read from another thread
+ * without locking: per-requester operation and error counts, progress
+ * trackers and the latest interval reported by the IntervalAggregator.
+ * Latency quantiles are therefore only available when global_displayfreq
+ * is enabled, and cover the last complete interval.
+ */
+public class MetricsServer {
+  public static final String PATH = "/metrics";
+  public static final String CONTENT_TYPE =
+                              "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final HttpServer server;
+
+  /* Sources of metrics, replaced by the driver as the benchmark moves
+   * through its phases */
+  private volatile List<LinkBenchRequest> requesters =
+                              Collections.<LinkBenchRequest>emptyList();
+  private volatile RequestProgress requestProgress = null;
+  private volatile LoadProgress loadProgress = null;
+  private volatile IntervalAggregator intervalAggregator = null;
+
+  /**
+   * Bind to port on all interfaces.
+   * @param port port to listen on, or 0 for any free port
+   */
+  public MetricsServer(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    // Single thread is plenty for scrapes, and keeps it off the
+    // benchmark's threads
+    server.setExecutor(Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "MetricsServer");
+          t.setDaemon(true);
+          return t;
+        }
+      }));
+  }
+
+  /**
+   * @return server listening on configured port, or null if disabled
+   */
+  public static MetricsServer create(Properties props) {
+    int port = ConfigUtil.getInt(props, Config.METRICS_PORT, 0);
+    if (port == 0) {
+      return null;
+    }
+    if (port < 0 || port > 65535) {
+      throw new LinkBenchConfigError("Invalid " + Config.METRICS_PORT +
+                                     ": " + port);
+    }
+    try {
+      return new MetricsServer(port);
+    } catch (IOException e) {
+      throw new LinkBenchConfigError("Could not listen on " +
+          Config.METRICS_PORT + " " + port + ": " + e.getMessage());
+    }
+  }
+
+  public void start() {
+    server.start();
+    logger.info("Serving metrics at http://localhost:" + getPort() + PATH);
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  /** @return port actually listened on */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public void setRequesters(List<LinkBenchRequest> requesters) {
+    this.requesters = requesters == null ?
+        Collections.<LinkBenchRequest>emptyList() : requesters;
+  }
+
+  public void setRequestProgress(RequestProgress requestProgress) {
+    this.requestProgress = requestProgress;
+  }
+
+  public void setLoadProgress(LoadProgress loadProgress) {
+    this.loadProgress = loadProgress;
+  }
+
+  public void setIntervalAggregator(IntervalAggregator intervalAggregator) {
+    this.intervalAggregator = intervalAggregator;
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      byte body[] = render().getBytes(UTF8);
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+    } catch (RuntimeException e) {
+      logger.error("Error serving metrics", e);
+      exchange.sendResponseHeaders(500, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return current metrics in Prometheus text format
+   */
+  public String render() {
+    StringBuilder sb = new StringBuilder();
+    renderRequests(sb);
+    renderIntervals(sb);
+    renderProgress(sb);
+    renderJvm(sb);
+    return sb.toString();
+  }
+
+  private void renderRequests(StringBuilder sb) {
+    List<LinkBenchRequest> reqs = requesters;
+    LinkBenchOp types[] = LinkBenchOp.values();
+    long ops[] = new long[types.length];
+    long errors[] = new long[types.length];
+    long inFlight = 0;
+    for (LinkBenchRequest r: reqs) {
+      for (LinkBenchOp type: types) {
+        ops[type.ordinal()] += r.getOpCount(type);
+        errors[type.ordinal()] += r.getOpErrors(type);
+      }
+      inFlight += r.getRequestsInFlight();
+    }
+
+    header(sb, "linkbench_ops_total", "counter",
+           "Operations completed by requesters since warmup");
+    for (LinkBenchOp type: types) {
+      if (type.isOperation() && ops[type.ordinal()] > 0) {
+        sample(sb, "linkbench_ops_total", ops[type.ordinal()],
+               "op", type.name());
+      }
+    }
+    header(sb, "linkbench_errors_total", "counter",
+           "Failed operations by requesters since warmup");
+    for (LinkBenchOp type: types) {
+      if (type.isOperation() && ops[type.ordinal()] > 0) {
+        sample(sb, "linkbench_errors_total", errors[type.ordinal()],
+               "op", type.name());
+      }
+    }
+    header(sb, "linkbench_requests_in_flight", "gauge",
+           "Requests issued to the store and not yet completed");
+    sample(sb, "linkbench_requests_in_flight", inFlight);
+  }
+
+  private void renderIntervals(StringBuilder sb) {
+    IntervalAggregator agg = intervalAggregator;
+    IntervalAggregator.Snapshot snap = agg == null ? null : agg.getLatest();
+    if (snap == null) {
+      return;
+    }
+    double percentiles[] = IntervalAggregator.getPercentiles();
+    header(sb, "linkbench_interval_ops_per_second", "gauge",
+           "Throughput over all requesters in the last complete interval");
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      if (type.isOperation() && snap.getOps(type) > 0) {
+        sample(sb, "linkbench_interval_ops_per_second",
+               snap.getOpsPerSec(type), "op", type.name());
+      }
+    }
+    header(sb, "linkbench_interval_errors", "gauge",
+           "Failed operations in the last complete interval");
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      if (type.isOperation() && snap.getOps(type) > 0) {
+        sample(sb, "linkbench_interval_errors", snap.getErrors(type),
+               "op", type.name());
+      }
+    }
+    header(sb, "linkbench_interval_latency_seconds", "gauge",
+           "Latency quantiles over all requesters in the last complete " +
+           "interval");
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      long values[] = snap.getPercentileValues(type);
+      if (!type.isOperation() || values == null) {
+        continue;
+      }
+      for (int p = 0; p < percentiles.length; p++) {
+        sample(sb, "linkbench_interval_latency_seconds", values[p] / 1e6,
+               "op", type.name(),
+               "quantile", Double.toString(percentiles[p] / 100));
+      }
+      sample(sb, "linkbench_interval_latency_seconds",
+             snap.getMax(type) / 1e6, "op", type.name(), "quantile", "1.0");
+    }
+  }
+
+  private void renderProgress(StringBuilder sb) {
+    RequestProgress req = requestProgress;
+    if (req != null) {
+      header(sb, "linkbench_requests_done", "gauge",
+             "Requests registered as done by requester threads");
+      sample(sb, "linkbench_requests_done", req.getRequestsDone());
+      header(sb, "linkbench_requests_target", "gauge",
+             "Requests to be done in the request phase");
+      sample(sb, "linkbench_requests_target", req.getTotalRequests());
+    }
+    LoadProgress load = loadProgress;
+    if (load != null) {
+      header(sb, "linkbench_load_id1s_loaded", "gauge",
+             "Source ids whose links have been loaded");
+      sample(sb, "linkbench_load_id1s_loaded", load.getId1sLoaded());
+      header(sb, "linkbench_load_id1s_target", "gauge",
+             "Source ids to be loaded");
+      sample(sb, "linkbench_load_id1s_target", load.getId1sTotal());
+      header(sb, "linkbench_load_links_loaded", "gauge",
+             "Links loaded");
+      sample(sb, "linkbench_load_links_loaded", load.getLinksLoaded());
+    }
+  }
+
+  private void renderJvm(StringBuilder sb) {
+    List<GarbageCollectorMXBean> gcs =
+                          ManagementFactory.getGarbageCollectorMXBeans();
+    header(sb, "jvm_gc_collections_total", "counter",
+           "Garbage collections by collector");
+    for (GarbageCollectorMXBean gc: gcs) {
+      if (gc.getCollectionCount() >= 0) {
+        sample(sb, "jvm_gc_collections_total", gc.getCollectionCount(),
+               "gc", gc.getName());
+      }
+    }
+    header(sb, "jvm_gc_collection_seconds_total", "counter",
+           "Time spent in garbage collection by collector");
+    for (GarbageCollectorMXBean gc: gcs) {
+      if (gc.getCollectionTime() >= 0) {
+        sample(sb, "jvm_gc_collection_seconds_total",
+               gc.getCollectionTime() / 1000.0, "gc", gc.getName());
+      }
+    }
+    MemoryUsage heap =
+              ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    header(sb, "jvm_memory_heap_used_bytes", "gauge", "Heap memory used");
+    sample(sb, "jvm_memory_heap_used_bytes", heap.getUsed());
+    header(sb, "jvm_memory_heap_max_bytes", "gauge",
+           "Maximum heap memory, -1 if undefined");
+    sample(sb, "jvm_memory_heap_max_bytes", heap.getMax());
+    header(sb, "jvm_threads_live", "gauge", "Live threads");
+    sample(sb, "jvm_threads_live",
+           ManagementFactory.getThreadMXBean().getThreadCount());
+  }
+
+  private static void header(StringBuilder sb, String name, String type,
+                             String help) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(StringBuilder sb, String name, long value,
+                             String... labels) {
+    labels(sb.append(name), labels).append(' ').append(value).append('\n');
+  }
+
+  private static void sample(StringBuilder sb, String name, double value,
+                             String... labels) {
+    labels(sb.append(name), labels).append(' ').append(value).append('\n');
+  }
+
+  /**
+   * @param labels alternating label names and values
+   */
+  private static StringBuilder labels(StringBuilder sb, String... labels) {
+    if (labels.length == 0) {
+      return sb;
+    }
+    sb.append('{');
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(labels[i]).append("=\"");
+      escape(sb, labels[i + 1]);
+      sb.append('"');
+    }
+    return sb.append('}');
+  }
+
+  static void escape(StringBuilder sb, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      default:
+        sb.append(c);
+      }
+    }
+  }
+}
@@ -48,7 +48,8 @@ public class Node {
   }
 
   public Node clone() {
-    return new Node(id, type, version, time, data);
+    return new Node(id, type, version, time,
+                    data == null ? null : data.clone());
   }
   @Override
   public boolean equals(Object other) {
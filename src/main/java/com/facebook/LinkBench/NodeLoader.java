@@ -28,7 +28,9 @@ import com.facebook.LinkBench.distributions.LogNormalDistribution;
 import com.facebook.LinkBench.generators.DataGenerator;
 import com.facebook.LinkBench.stats.LatencyStats;
 import com.facebook.LinkBench.stats.SampledStats;
+import com.facebook.LinkBench.stats.StatsOutput;
 import com.facebook.LinkBench.util.ClassLoadUtil;
+import com.facebook.LinkBench.util.SplitMixRandom;
 
 /**
  * Load class for generating node data
@@ -42,7 +44,9 @@ public class NodeLoader implements Runnable {
   private final Properties props;
   private final Logger logger;
   private final NodeStore nodeStore;
-  private final Random rng;
+  /** Base seed for node data, reseeded for each node id */
+  private final long seed;
+  private final SplitMixRandom rng = new SplitMixRandom();
   private final String dbid;
 
   // Data generation settings
@@ -77,7 +81,7 @@ public class NodeLoader implements Runnable {
     this.props = props;
     this.logger = logger;
     this.nodeStore = nodeStore;
-    this.rng = rng;
+    this.seed = rng.nextLong();
     this.latencyStats = latencyStats;
     this.loaderId = loaderId;
 
@@ -106,6 +110,13 @@ public class NodeLoader implements Runnable {
     this.stats = new SampledStats(loaderId, maxsamples, csvStreamOut);
   }
 
+  /**
+   * Write streaming stats through output instead of csvStreamOut
+   */
+  public void setStatsOutput(StatsOutput output) {
+    stats.setStatsOutput(output);
+  }
+
   @Override
   public void run() {
     logger.info("Starting loader thread  #" + loaderId + " loading nodes");
@@ -136,6 +147,7 @@ public class NodeLoader implements Runnable {
     startTime_ms = System.currentTimeMillis();
     lastDisplayTime_ms = startTime_ms;
     for (long id = startId; id < maxId; id++) {
+      rng.reseed(seed, id);
       genNode(rng, id, nodeLoadBuffer, bulkLoadBatchSize);
 
       long now = System.currentTimeMillis();
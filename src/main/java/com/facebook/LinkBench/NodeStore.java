@@ -48,6 +48,10 @@ public interface NodeStore {
    * node IDs are allocated in sequence, i.e. startID, startID + 1, ...
    * Add node should return the next ID in the sequence.
    *
+   * The caller may reuse the node object and its data array for another
+   * operation once this returns, so the store must copy anything it needs
+   * to keep.  The same applies to updateNode.
+   *
    * @param dbid the db shard to put that object in
    * @param node a node with all data aside from id filled in.  The id
    *    field is *not* updated to the new value by this function
@@ -81,6 +85,16 @@ public interface NodeStore {
    */
   public Node getNode(String dbid, int type, long id) throws Exception;
 
+  /**
+   * Get a batch of nodes of the specified type
+   * @param dbid the db shard the ids are mapped to
+   * @param type the type of the objects
+   * @param ids the ids of the objects
+   * @return nodes in the same order as ids, with null for each id not found
+   */
+  public Node[] multigetNodes(String dbid, int type, long ids[])
+      throws Exception;
+
   /**
    * Update all parameters of the node specified.
    * @param dbid
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads back a journal written by OpJournalWriter.  The file is
+ * memory-mapped.  After each call to next, the timing and outcome of the
+ * operation read are available through the getters.
+ */
+public class OpJournalReader implements Closeable {
+  private final RecordFileReader in;
+  private final int requesterID;
+  private final long startTime_ms;
+
+  private long intendedStart_ns;
+  private long starttime_ns;
+  private long endtime_ns;
+  private long result;
+  private boolean error;
+
+  public OpJournalReader(File path) throws IOException {
+    in = new RecordFileReader(path, RecordFileReader.MAP_WINDOW);
+    ByteBuffer buf = in.buffer(OpJournalWriter.HEADER_BYTES);
+    if (buf.remaining() < OpJournalWriter.HEADER_BYTES ||
+        buf.getInt() != OpJournalWriter.MAGIC) {
+      close();
+      throw new IOException(path + " is not an op journal file");
+    }
+    int version = buf.getInt();
+    if (version != OpJournalWriter.VERSION) {
+      close();
+      throw new IOException("Unsupported op journal version " + version +
+                            " in " + path);
+    }
+    requesterID = buf.getInt();
+    startTime_ms = buf.getLong();
+  }
+
+  /**
+   * @return id of requester that wrote the journal
+   */
+  public int getRequesterID() {
+    return requesterID;
+  }
+
+  /**
+   * @return wall clock time journal was started
+   */
+  public long getStartTime_ms() {
+    return startTime_ms;
+  }
+
+  /**
+   * @return true if there are more records to read
+   */
+  public boolean hasNext() {
+    return in.hasRemaining();
+  }
+
+  /**
+   * Read the next record
+   * @param op filled in with the operation
+   */
+  public void next(RequestOp op) throws IOException {
+    ByteBuffer buf = in.buffer(OpJournalWriter.MAX_RECORD_BYTES);
+    op.decode(buf);
+    intendedStart_ns = buf.getLong();
+    starttime_ns = buf.getLong();
+    endtime_ns = buf.getLong();
+    result = buf.getLong();
+    error = buf.get() != 0;
+  }
+
+  /** @return intended start of last operation, in ns since journal start */
+  public long getIntendedStart_ns() {
+    return intendedStart_ns;
+  }
+
+  /** @return actual start of last operation, in ns since journal start */
+  public long getStartTime_ns() {
+    return starttime_ns;
+  }
+
+  /** @return end of last operation, in ns since journal start */
+  public long getEndTime_ns() {
+    return endtime_ns;
+  }
+
+  /** @return result value of last operation */
+  public long getResult() {
+    return result;
+  }
+
+  /** @return true if last operation failed */
+  public boolean isError() {
+    return error;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.stats.LatencyStats;
+
+/**
+ * Re-issues the operations recorded in an op journal against a store.
+ *
+ * Operations can be replayed with the original timing, with the timing
+ * scaled by a speedup factor, or as fast as possible.  The latency of each
+ * operation is recorded, and results are compared with the journal so
+ * that differences in behaviour between stores can be detected.
+ */
+public class OpJournalReplayer implements Runnable {
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final LinkStore linkStore;
+  private final NodeStore nodeStore;
+  private final Properties props;
+  private final File file;
+  private final LatencyStats latencyStats;
+  private final int replayerID;
+  private final String dbid;
+
+  /** Speedup relative to original timing: <= 0 for as fast as possible */
+  private final double speed;
+
+  /** Used to regenerate payloads */
+  private final RequestGenerator generator;
+
+  /** Passed to link writes: false if inverse links are written */
+  private final boolean noinverse;
+
+  /**
+   * Created up front if page loads are configured, otherwise when the
+   * first page load is replayed
+   */
+  private PageLoad pageLoad = null;
+
+  /** Created when first two hop traversal is replayed */
+  private TwoHopTraversal twoHop = null;
+
+  private long opsDone = 0;
+  private long errors = 0;
+  private long mismatches = 0;
+
+  /** Maximum lag behind the replay schedule seen */
+  private long maxScheduleLag_ns = 0;
+
+  /**
+   * @param replayerID used for stats and store initialization, must be less
+   *                   than the number of replayers latencyStats was created for
+   */
+  public OpJournalReplayer(LinkStore linkStore, NodeStore nodeStore,
+      Properties props, File file, LatencyStats latencyStats,
+      int replayerID, int nreplayers, double speed) {
+    this.linkStore = linkStore;
+    this.nodeStore = nodeStore;
+    this.props = props;
+    this.file = file;
+    this.latencyStats = latencyStats;
+    this.replayerID = replayerID;
+    this.speed = speed;
+    this.dbid = ConfigUtil.getPropertyRequired(props, Config.DBID);
+    this.generator = new RequestGenerator(props, replayerID, nreplayers);
+    this.noinverse = !ConfigUtil.getBool(props,
+                                   Config.REQUEST_WRITE_INVERSES, false);
+    if (PageLoad.isEnabled(props)) {
+      // Journal may contain page loads: check stores before replaying
+      pageLoad = createPageLoad();
+    }
+  }
+
+  public long getOpsDone() {
+    return opsDone;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  /**
+   * @return number of successful operations with a different result to
+   *    the journal, not including node ids returned by ADD_NODE
+   */
+  public long getMismatches() {
+    return mismatches;
+  }
+
+  @Override
+  public void run() {
+    try {
+      linkStore.initialize(props, Phase.REQUEST, replayerID);
+      if (nodeStore != null && nodeStore != linkStore) {
+        nodeStore.initialize(props, Phase.REQUEST, replayerID);
+      }
+    } catch (Exception e) {
+      logger.error("Error while initializing store", e);
+      throw new RuntimeException(e);
+    }
+
+    try {
+      replay();
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading op journal " + file, e);
+    } finally {
+      linkStore.close();
+      if (nodeStore != null && nodeStore != linkStore) {
+        nodeStore.close();
+      }
+    }
+
+    logger.info("Replayer #" + replayerID + " replayed " + opsDone +
+        " operations from " + file + ": errors = " + errors +
+        " result mismatches = " + mismatches +
+        (speed > 0 ? " max schedule lag = " +
+                     (maxScheduleLag_ns / 1000000) + "ms" : ""));
+  }
+
+  private void replay() throws IOException {
+    OpJournalReader reader = new OpJournalReader(file);
+    try {
+      RequestOp op = new RequestOp();
+      long replayStart_ns = System.nanoTime();
+      long firstIntended_ns = 0;
+      while (reader.hasNext()) {
+        reader.next(op);
+        if (speed > 0) {
+          if (opsDone == 0) {
+            firstIntended_ns = reader.getIntendedStart_ns();
+          }
+          long scheduled_ns = replayStart_ns + (long)
+                ((reader.getIntendedStart_ns() - firstIntended_ns) / speed);
+          if (!Timer.waitUntil(scheduled_ns)) {
+            logger.warn("Replay interrupted after " + opsDone + " ops");
+            break;
+          }
+          maxScheduleLag_ns = Math.max(maxScheduleLag_ns,
+                                       System.nanoTime() - scheduled_ns);
+        }
+
+        long starttime = System.nanoTime();
+        try {
+          long result = execute(op);
+          long endtime = System.nanoTime();
+          latencyStats.recordLatency(replayerID, op.type,
+                                     (endtime - starttime) / 1000);
+          if (!reader.isError() && op.type != LinkBenchOp.ADD_NODE &&
+              result != reader.getResult()) {
+            mismatches++;
+          }
+        } catch (LinkBenchConfigError e) {
+          // Would fail the same way for every op of this type
+          throw e;
+        } catch (Throwable e) {
+          logger.error(op.type.displayName() + " error " + e.getMessage(), e);
+          errors++;
+          linkStore.clearErrors(replayerID);
+        }
+        opsDone++;
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private PageLoad createPageLoad() {
+    if (!(linkStore instanceof AsyncLinkStore &&
+          nodeStore instanceof AsyncNodeStore)) {
+      throw new LinkBenchConfigError("Replaying page loads requires " +
+          "asynchronous stores: set " + Config.PR_PAGE_LOAD + " > 0");
+    }
+    return new PageLoad((AsyncLinkStore) linkStore,
+                        (AsyncNodeStore) nodeStore, props);
+  }
+
+  /**
+   * Execute a single operation
+   * @return the result value, as defined by OpJournalWriter.resultValue
+   */
+  private long execute(RequestOp op) throws Exception {
+    switch (op.type) {
+    case ADD_LINK:
+    case UPDATE_LINK:
+      return linkStore.addLink(dbid, generator.createLink(op),
+                               noinverse) ? 1 : 0;
+    case DELETE_LINK:
+      return linkStore.deleteLink(dbid, op.id1, op.link_type, op.id2,
+                                  noinverse, false) ? 1 : 0;
+    case COUNT_LINK:
+      return linkStore.countLinks(dbid, op.id1, op.link_type);
+    case MULTIGET_LINK:
+      return OpJournalWriter.resultValue(
+          linkStore.multigetLinks(dbid, op.id1, op.link_type, op.id2s));
+    case GET_LINKS_LIST:
+      if (op.history) {
+        return OpJournalWriter.resultValue(
+            linkStore.getLinkList(dbid, op.id1, op.link_type, 0,
+                op.historyTime, 1, linkStore.getRangeLimit()));
+      } else {
+        return OpJournalWriter.resultValue(
+            linkStore.getLinkList(dbid, op.id1, op.link_type));
+      }
+    case ADD_NODE:
+      return nodeStore.addNode(dbid, generator.createNode(op));
+    case UPDATE_NODE:
+      return nodeStore.updateNode(dbid, generator.createNode(op)) ? 1 : 0;
+    case DELETE_NODE:
+      return nodeStore.deleteNode(dbid, LinkStore.DEFAULT_NODE_TYPE,
+                                  op.id1) ? 1 : 0;
+    case GET_NODE:
+      return nodeStore.getNode(dbid, LinkStore.DEFAULT_NODE_TYPE,
+                               op.id1) == null ? 0 : 1;
+    case PAGE_LOAD:
+      if (pageLoad == null) {
+        pageLoad = createPageLoad();
+      }
+      return pageLoad.run(op.id1, op.link_type);
+    case GET_2HOP:
+      if (twoHop == null) {
+        // Second hop is done serially unless stores are asynchronous
+        twoHop = new TwoHopTraversal(linkStore instanceof AsyncLinkStore ?
+                                     (AsyncLinkStore) linkStore : null, props);
+      }
+      return twoHop.execute(linkStore, op.id1, op.link_type, op.fanout);
+    case MULTIGET_NODE:
+      return OpJournalWriter.resultValue(nodeStore.multigetNodes(dbid,
+                                     LinkStore.DEFAULT_NODE_TYPE, op.ids));
+    case MULTICOUNT_LINK:
+      return OpJournalWriter.resultValue(
+          linkStore.multiCountLinks(dbid, op.ids, op.linkTypes));
+    case MULTIGET_LINKS_LIST:
+      return OpJournalWriter.resultValue(
+          linkStore.multigetLinkLists(dbid, op.ids, op.link_type));
+    default:
+      throw new IllegalArgumentException("Cannot replay operation " + op.type);
+    }
+  }
+}
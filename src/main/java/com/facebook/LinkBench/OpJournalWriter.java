@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Append-only binary journal of the operations issued by a requester,
+ * with their timing and outcome.  Journals can be re-issued against a
+ * store with OpJournalReplayer.
+ *
+ * A journal is written by a single requester thread, so records are encoded
+ * into a private buffer with no locking and written out sequentially.
+ *
+ * The file starts with a header of magic number, format version, requester
+ * id and wall clock start time in milliseconds.  Each record is the
+ * operation, encoded with RequestOp.encode, followed by the intended start
+ * time, actual start time and end time of the operation in nanoseconds
+ * since the journal was opened, a result value and an error flag.
+ *
+ * The operation is recorded as it was executed, so historical range queries
+ * have the id1, link_type and time bound of the history cache entry used.
+ */
+public class OpJournalWriter implements Closeable {
+  public static final int MAGIC = 0x4C424A4E; // "LBJN"
+  public static final int VERSION = 1;
+
+  static final int HEADER_BYTES = 20;
+  static final int MAX_RECORD_BYTES = RequestOp.MAX_ENCODED_BYTES + 33;
+
+  private final RecordFileWriter out;
+
+  /** Times are recorded relative to this */
+  private final long baseTime_ns;
+
+  private long recordsWritten = 0;
+
+  public OpJournalWriter(File file, int requesterID) throws IOException {
+    out = new RecordFileWriter(file, MAX_RECORD_BYTES);
+    baseTime_ns = System.nanoTime();
+    ByteBuffer buf = out.buffer(HEADER_BYTES);
+    buf.putInt(MAGIC);
+    buf.putInt(VERSION);
+    buf.putInt(requesterID);
+    buf.putLong(System.currentTimeMillis());
+  }
+
+  /**
+   * @return the file that holds the journal for a requester
+   */
+  public static File journalFile(String dir, int requesterID) {
+    return new File(dir, "requester_" + requesterID + ".journal");
+  }
+
+  /**
+   * Append a record for an operation
+   * @param op the operation as executed
+   * @param intendedStart_ns time operation was scheduled to start,
+   *        from System.nanoTime()
+   * @param starttime_ns time operation was started
+   * @param endtime_ns time operation completed or failed
+   * @param result result value of operation, as defined by resultValue
+   * @param error true if operation failed
+   */
+  public void record(RequestOp op, long intendedStart_ns, long starttime_ns,
+                     long endtime_ns, long result, boolean error)
+                     throws IOException {
+    ByteBuffer buf = out.buffer(MAX_RECORD_BYTES);
+    op.encode(buf);
+    buf.putLong(intendedStart_ns - baseTime_ns);
+    buf.putLong(starttime_ns - baseTime_ns);
+    buf.putLong(endtime_ns - baseTime_ns);
+    buf.putLong(result);
+    buf.put((byte)(error ? 1 : 0));
+    recordsWritten++;
+  }
+
+  public long getRecordsWritten() {
+    return recordsWritten;
+  }
+
+  /**
+   * Convert the result of a store operation to the value recorded in the
+   * journal: the number of links returned for link reads, the count for
+   * COUNT_LINK, the new id for ADD_NODE, 1 or 0 for operations that return
+   * a boolean and 1 or 0 for whether a node was found.  Batched reads
+   * record the total over the batch: nodes found, sum of counts or
+   * links returned.
+   */
+  public static long resultValue(Object result) {
+    if (result == null) {
+      return 0;
+    } else if (result instanceof Link[]) {
+      return ((Link[]) result).length;
+    } else if (result instanceof Long) {
+      return (Long) result;
+    } else if (result instanceof Boolean) {
+      return ((Boolean) result) ? 1 : 0;
+    } else if (result instanceof Node[]) {
+      long found = 0;
+      for (Node node: (Node[]) result) {
+        if (node != null) {
+          found++;
+        }
+      }
+      return found;
+    } else if (result instanceof long[]) {
+      long total = 0;
+      for (long count: (long[]) result) {
+        total += count;
+      }
+      return total;
+    } else if (result instanceof Link[][]) {
+      long total = 0;
+      for (Link links[]: (Link[][]) result) {
+        total += links == null ? 0 : links.length;
+      }
+      return total;
+    } else {
+      // Found a node
+      return 1;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Generates the request operations for one requester ahead of time and
+ * writes them to an op stream file, so that the request phase does not
+ * need to spend time choosing ids and sizes between requests.
+ */
+public class OpStreamCompiler implements Runnable {
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final RequestGenerator generator;
+  private final Random rng;
+  private final File file;
+  private final int requesterID;
+  private final long numOps;
+
+  public OpStreamCompiler(Properties props, File file, long numOps,
+                          Random rng, int requesterID, int nrequesters) {
+    this.generator = new RequestGenerator(props, requesterID, nrequesters);
+    this.file = file;
+    this.numOps = numOps;
+    this.rng = rng;
+    this.requesterID = requesterID;
+  }
+
+  @Override
+  public void run() {
+    RequestOp op = new RequestOp();
+    try {
+      OpStreamWriter writer = new OpStreamWriter(file, requesterID);
+      try {
+        for (long i = 0; i < numOps; i++) {
+          generator.nextOp(rng, op);
+          if (op.type == LinkBenchOp.UNKNOWN) {
+            throw new LinkBenchConfigError("No-op in requester: last " +
+                                           "probability < 1.0");
+          }
+          writer.write(op);
+        }
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing op stream " + file, e);
+    }
+    logger.info("Requester #" + requesterID + ": compiled " + numOps +
+                " operations to " + file);
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads back a stream of request operations written by OpStreamWriter.
+ * The file is memory-mapped, so reading an operation is cheap.
+ */
+public class OpStreamReader implements Closeable {
+  private final RecordFileReader in;
+
+  public OpStreamReader(File path, int requesterID) throws IOException {
+    this(path, requesterID, RecordFileReader.MAP_WINDOW);
+  }
+
+  OpStreamReader(File path, int requesterID, long mapWindow)
+                                                throws IOException {
+    in = new RecordFileReader(path, mapWindow);
+    ByteBuffer buf = in.buffer(OpStreamWriter.HEADER_BYTES);
+    if (buf.remaining() < OpStreamWriter.HEADER_BYTES ||
+        buf.getInt() != OpStreamWriter.MAGIC) {
+      close();
+      throw new IOException(path + " is not an op stream file");
+    }
+    int version = buf.getInt();
+    if (version != OpStreamWriter.VERSION) {
+      close();
+      throw new IOException("Unsupported op stream version " + version +
+                            " in " + path);
+    }
+    int fileRequesterID = buf.getInt();
+    if (fileRequesterID != requesterID) {
+      close();
+      throw new IOException("Op stream " + path + " was compiled for " +
+          "requester " + fileRequesterID + ", not " + requesterID);
+    }
+  }
+
+  /**
+   * @return true if there are more operations to read
+   */
+  public boolean hasNext() {
+    return in.hasRemaining();
+  }
+
+  /**
+   * Read the next operation
+   * @param op filled in with the operation
+   */
+  public void next(RequestOp op) throws IOException {
+    op.decode(in.buffer(RequestOp.MAX_ENCODED_BYTES));
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a compiled stream of request operations to a file, to be read
+ * back with OpStreamReader.
+ *
+ * The file starts with a header of magic number, format version and
+ * requester id.  This is followed by the operations, each encoded with
+ * RequestOp.encode.
+ */
+public class OpStreamWriter implements Closeable {
+  public static final int MAGIC = 0x4C424F50; // "LBOP"
+  public static final int VERSION = 2;
+
+  static final int HEADER_BYTES = 12;
+
+  private final RecordFileWriter out;
+  private long opsWritten = 0;
+
+  public OpStreamWriter(File file, int requesterID) throws IOException {
+    out = new RecordFileWriter(file, RequestOp.MAX_ENCODED_BYTES);
+    ByteBuffer buf = out.buffer(HEADER_BYTES);
+    buf.putInt(MAGIC);
+    buf.putInt(VERSION);
+    buf.putInt(requesterID);
+  }
+
+  /**
+   * @return the file that holds the op stream for a requester
+   */
+  public static File streamFile(String dir, int requesterID) {
+    return new File(dir, "requester_" + requesterID + ".ops");
+  }
+
+  public void write(RequestOp op) throws IOException {
+    op.encode(out.buffer(RequestOp.MAX_ENCODED_BYTES));
+    opsWritten++;
+  }
+
+  public long getOpsWritten() {
+    return opsWritten;
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
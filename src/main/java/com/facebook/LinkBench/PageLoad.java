@@ -0,0 +1,346 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A composite request modelled on loading a web page, which issues a
+ * burst of related graph operations, running independent operations in
+ * parallel:
+ * <pre>
+ *   getNode(id1)
+ *   getLinkList(id1, link_type) --+-- multigetLinks(id1, link_type, id2s)
+ *                                 +-- getNode(id2) for each of id2s
+ * </pre>
+ * The getNode and getLinkList for the page are issued together.  Once the
+ * link list arrives, the most recent links on it are fetched again with a
+ * multiget, and the nodes they point to are fetched, all in parallel.  The
+ * page load completes when the slowest branch completes, which is the
+ * latency that an end user would see.
+ *
+ * Operations are issued through the asynchronous store interfaces, so the
+ * stores need to support as many operations in flight as
+ * getMaxConcurrency() for each page load in flight.  A PageLoad object can
+ * be reused for another page load once the previous one has completed.
+ * Timings of each sub-operation are kept so that the caller can record
+ * their latency once the page load completes.
+ */
+public class PageLoad {
+  // Position of each sub-operation in the arrays of timings
+  private static final int PAGE_NODE = 0;
+  private static final int LINK_LIST = 1;
+  private static final int MULTIGET = 2;
+  private static final int FIRST_FANOUT = 3;
+
+  private final AsyncLinkStore linkStore;
+  private final AsyncNodeStore nodeStore;
+  private final String dbid;
+
+  /** Max number of links from list to fetch again with multiget */
+  private final int multigetLimit;
+
+  /** Max number of nodes linked to from page to fetch */
+  private final int nodeFanout;
+
+  private final SubOp subOps[];
+
+  /** Reusable id2 arrays for multiget, indexed by length */
+  private final long multigetIds[][];
+
+  /** Ids of nodes to fetch */
+  private final long fanoutIds[];
+
+  /** Used to wait for page loads run with run() */
+  private final BlockingCallback<Long> waiter =
+                                            new BlockingCallback<Long>();
+
+  private long id1;
+  private long link_type;
+  private StoreCallback<? super Long> callback;
+  private int linkCount;
+
+  /** Sub-operations issued, excluding any not issued due to an error */
+  private volatile int subOpCount;
+
+  /** Sub-operations in flight, plus one while more may be issued */
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  /** First error from a sub-operation, or null */
+  private volatile Throwable error;
+
+  private long starttime;
+  private long endtime;
+
+  public PageLoad(AsyncLinkStore linkStore, AsyncNodeStore nodeStore,
+                  String dbid, int multigetLimit, int nodeFanout) {
+    if (multigetLimit < 0 || multigetLimit > RequestOp.MAX_MULTIGET_IDS) {
+      throw new IllegalArgumentException("Bad multiget limit " +
+                                         multigetLimit);
+    }
+    if (nodeFanout < 0) {
+      throw new IllegalArgumentException("Bad node fanout " + nodeFanout);
+    }
+    this.linkStore = linkStore;
+    this.nodeStore = nodeStore;
+    this.dbid = dbid;
+    this.multigetLimit = multigetLimit;
+    this.nodeFanout = nodeFanout;
+    this.subOps = new SubOp[FIRST_FANOUT + nodeFanout];
+    for (int i = 0; i < subOps.length; i++) {
+      subOps[i] = new SubOp();
+    }
+    this.multigetIds = new long[multigetLimit + 1][];
+    this.fanoutIds = new long[nodeFanout];
+  }
+
+  public PageLoad(AsyncLinkStore linkStore, AsyncNodeStore nodeStore,
+                  Properties props) {
+    this(linkStore, nodeStore, ConfigUtil.getPropertyRequired(props,
+                                                              Config.DBID),
+         getMultigetLimit(props), getNodeFanout(props));
+  }
+
+  static int getMultigetLimit(Properties props) {
+    int limit = ConfigUtil.getInt(props, Config.PAGELOAD_MULTIGET_IDS, 10);
+    if (limit < 0 || limit > RequestOp.MAX_MULTIGET_IDS) {
+      throw new LinkBenchConfigError(Config.PAGELOAD_MULTIGET_IDS +
+          " must be between 0 and " + RequestOp.MAX_MULTIGET_IDS);
+    }
+    return limit;
+  }
+
+  static int getNodeFanout(Properties props) {
+    int fanout = ConfigUtil.getInt(props, Config.PAGELOAD_NODE_FANOUT, 5);
+    if (fanout < 0) {
+      throw new LinkBenchConfigError(Config.PAGELOAD_NODE_FANOUT +
+                                     " must be >= 0");
+    }
+    return fanout;
+  }
+
+  /**
+   * @return true if page loads are part of the request workload, in the
+   *    main configuration or in any phase of the workload script
+   */
+  public static boolean isEnabled(Properties props) {
+    return WorkloadPhase.mixIncludes(props, Config.PR_PAGE_LOAD);
+  }
+
+  /**
+   * @return the most operations a single page load with this configuration
+   *    can have in flight at once
+   */
+  public static int getMaxConcurrency(Properties props) {
+    // The page's node may still be in flight during the second stage
+    int secondStage = 1 + (getMultigetLimit(props) > 0 ? 1 : 0) +
+                      getNodeFanout(props);
+    return Math.max(2, secondStage);
+  }
+
+  /**
+   * Start a page load.  The callback is called, from any thread, with the
+   * number of links on the page's link list once all sub-operations have
+   * completed, or with the first error if any failed.
+   */
+  public void start(long id1, long link_type,
+                    StoreCallback<? super Long> callback) {
+    this.id1 = id1;
+    this.link_type = link_type;
+    this.callback = callback;
+    this.linkCount = 0;
+    this.error = null;
+    this.endtime = 0;
+    this.subOpCount = FIRST_FANOUT - 1;
+    // Hold a reference until both first stage operations are issued
+    outstanding.set(1 + 2);
+    starttime = System.nanoTime();
+
+    SubOp pageNode = subOps[PAGE_NODE];
+    pageNode.start(LinkBenchOp.GET_NODE);
+    try {
+      nodeStore.getNodeAsync(dbid, LinkStore.DEFAULT_NODE_TYPE, id1,
+                             pageNode);
+    } catch (Throwable e) {
+      pageNode.failed(e);
+    }
+    SubOp linkList = subOps[LINK_LIST];
+    linkList.start(LinkBenchOp.GET_LINKS_LIST);
+    try {
+      linkStore.getLinkListAsync(dbid, id1, link_type, linkList);
+    } catch (Throwable e) {
+      linkList.failed(e);
+    }
+    release();
+  }
+
+  /**
+   * Run a page load and wait for it to complete
+   * @return number of links on the page's link list
+   * @throws Exception the first error from a sub-operation
+   */
+  public long run(long id1, long link_type) throws Exception {
+    waiter.reset();
+    start(id1, link_type, waiter);
+    return waiter.await();
+  }
+
+  /**
+   * Issue the second stage once the link list has arrived.  Called from
+   * the link list callback, before it releases its reference.
+   */
+  private void linksFetched(Link links[]) {
+    linkCount = links == null ? 0 : links.length;
+    // Links are most recent first
+    int nmultiget = Math.min(multigetLimit, linkCount);
+    long id2s[] = null;
+    if (nmultiget > 0) {
+      id2s = multigetIds[nmultiget];
+      if (id2s == null) {
+        id2s = new long[nmultiget];
+        multigetIds[nmultiget] = id2s;
+      }
+      for (int i = 0; i < nmultiget; i++) {
+        id2s[i] = links[i].id2;
+      }
+    }
+    int nfanout = Math.min(nodeFanout, linkCount);
+    for (int i = 0; i < nfanout; i++) {
+      fanoutIds[i] = links[i].id2;
+    }
+
+    subOpCount = FIRST_FANOUT + nfanout;
+    outstanding.addAndGet((nmultiget > 0 ? 1 : 0) + nfanout);
+    if (nmultiget > 0) {
+      SubOp multiget = subOps[MULTIGET];
+      multiget.start(LinkBenchOp.MULTIGET_LINK);
+      try {
+        linkStore.multigetLinksAsync(dbid, id1, link_type, id2s, multiget);
+      } catch (Throwable e) {
+        multiget.failed(e);
+      }
+    } else {
+      subOps[MULTIGET].type = null;
+    }
+
+    for (int i = 0; i < nfanout; i++) {
+      SubOp getNode = subOps[FIRST_FANOUT + i];
+      getNode.start(LinkBenchOp.GET_NODE);
+      try {
+        nodeStore.getNodeAsync(dbid, LinkStore.DEFAULT_NODE_TYPE,
+                               fanoutIds[i], getNode);
+      } catch (Throwable e) {
+        getNode.failed(e);
+      }
+    }
+  }
+
+  /**
+   * Release a reference, completing the page load if it was the last
+   */
+  private void release() {
+    if (outstanding.decrementAndGet() == 0) {
+      endtime = System.nanoTime();
+      Throwable e = error;
+      if (e != null) {
+        callback.failed(e);
+      } else {
+        callback.completed((long)linkCount);
+      }
+    }
+  }
+
+  /** @return time page load started, from System.nanoTime() */
+  public long getStartTime() {
+    return starttime;
+  }
+
+  /** @return time the last sub-operation completed */
+  public long getEndTime() {
+    return endtime;
+  }
+
+  /**
+   * @return number of sub-operations of the last page load, including any
+   *    that were skipped (see getSubOpType())
+   */
+  public int getSubOpCount() {
+    return subOpCount;
+  }
+
+  /**
+   * @return type of a sub-operation of the last page load, or null if it
+   *    was not issued or it failed
+   */
+  public LinkBenchOp getSubOpType(int i) {
+    SubOp subOp = subOps[i];
+    return subOp.failed ? null : subOp.type;
+  }
+
+  public long getSubOpStartTime(int i) {
+    return subOps[i].starttime;
+  }
+
+  public long getSubOpEndTime(int i) {
+    return subOps[i].endtime;
+  }
+
+  /**
+   * Callback for one sub-operation, which also records its timing
+   */
+  private class SubOp implements StoreCallback<Object> {
+    LinkBenchOp type;
+    long starttime;
+    long endtime;
+    boolean failed;
+
+    void start(LinkBenchOp type) {
+      this.type = type;
+      this.failed = false;
+      this.endtime = 0;
+      this.starttime = System.nanoTime();
+    }
+
+    @Override
+    public void completed(Object result) {
+      endtime = System.nanoTime();
+      if (this == subOps[LINK_LIST]) {
+        try {
+          linksFetched((Link[]) result);
+        } catch (Throwable e) {
+          // Stop page load: remaining operations are not issued
+          setError(e);
+        }
+      }
+      release();
+    }
+
+    @Override
+    public void failed(Throwable e) {
+      endtime = System.nanoTime();
+      failed = true;
+      setError(e);
+      release();
+    }
+  }
+
+  private synchronized void setError(Throwable e) {
+    if (error == null) {
+      error = e;
+    }
+  }
+}
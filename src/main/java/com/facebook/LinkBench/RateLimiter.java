@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter that can be shared by any number of threads.
+ *
+ * Instead of a count of tokens, the limiter keeps the time at which the
+ * next request may be issued, which is advanced by one interval for each
+ * request.  Each caller claims its own slot in the schedule with a single
+ * compare-and-set, and then waits until that time without holding any
+ * lock, so a caller that is slow to return does not hold up the others.
+ *
+ * The bucket capacity is given by the burst size: after an idle period, up
+ * to that many requests may be issued back to back.  Alternatively, the
+ * limiter can follow its schedule strictly, so that slots missed while all
+ * callers were busy are issued later as fast as possible, as required for
+ * open loop measurement.
+ */
+public class RateLimiter {
+  /** Marks that no slot has yet been handed out */
+  private static final long UNSTARTED = Long.MIN_VALUE;
+
+  private final double rate;
+
+  /** Mean interval between requests */
+  private final double interval_ns;
+
+  /** How far behind the current time the schedule may fall */
+  private final long burst_ns;
+
+  /** If true, intervals are exponentially distributed */
+  private final boolean poisson;
+
+  /** Time at which the next request may be issued */
+  private final AtomicLong nextSlot_ns = new AtomicLong(UNSTARTED);
+
+  /**
+   * @param rate requests per second, must be > 0
+   * @param burst number of requests that may be issued together after an
+   *      idle period, must be >= 1
+   * @param poisson if true, intervals between requests are exponentially
+   *      distributed with the given mean rate, otherwise they are fixed
+   */
+  public RateLimiter(double rate, double burst, boolean poisson) {
+    if (rate <= 0) {
+      throw new IllegalArgumentException("Rate must be > 0: " + rate);
+    }
+    if (burst < 1) {
+      throw new IllegalArgumentException("Burst must be >= 1: " + burst);
+    }
+    this.rate = rate;
+    this.interval_ns = 1e9 / rate;
+    this.burst_ns = (long)((burst - 1) * interval_ns);
+    this.poisson = poisson;
+  }
+
+  public double getRate() {
+    return rate;
+  }
+
+  /**
+   * Claim the next slot in the schedule.  Does not wait.
+   * @param rng used to choose the interval if poisson
+   * @param now_ns current time (units same as System.nanoTime())
+   * @param followSchedule if true, slots are issued in order however far
+   *      behind the current time the schedule is.  Otherwise the schedule
+   *      skips ahead, allowing only a burst of requests to catch up
+   * @return time at which the caller may issue its request
+   */
+  public long nextSlot(Random rng, long now_ns, boolean followSchedule) {
+    long interval = poisson ?
+        Math.round(-1 * Math.log(rng.nextDouble()) * interval_ns) :
+        Math.round(interval_ns);
+    while (true) {
+      long next = nextSlot_ns.get();
+      long slot;
+      if (next == UNSTARTED) {
+        slot = now_ns;
+      } else if (followSchedule) {
+        slot = next;
+      } else {
+        slot = Math.max(next, now_ns - burst_ns);
+      }
+      if (nextSlot_ns.compareAndSet(next, slot + interval)) {
+        return slot;
+      }
+    }
+  }
+}
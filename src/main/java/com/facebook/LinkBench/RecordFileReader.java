@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads binary records from a memory-mapped file, so reading a record
+ * does not need a system call or a copy.  Large files are mapped a
+ * window at a time.
+ */
+class RecordFileReader implements Closeable {
+  /** Size of region of file mapped at a time */
+  static final long MAP_WINDOW = 1L << 30;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long fileSize;
+  private final long mapWindow;
+
+  /** Offset in file of start of current mapping */
+  private long mapStart;
+  private MappedByteBuffer buf;
+
+  RecordFileReader(File path, long mapWindow) throws IOException {
+    this.mapWindow = mapWindow;
+    file = new RandomAccessFile(path, "r");
+    channel = file.getChannel();
+    fileSize = channel.size();
+    mapStart = 0;
+    buf = channel.map(MapMode.READ_ONLY, 0, Math.min(fileSize, mapWindow));
+  }
+
+  /**
+   * @return true if there is more data to read
+   */
+  boolean hasRemaining() {
+    return mapStart + buf.position() < fileSize;
+  }
+
+  /**
+   * Get the buffer to decode the next record from, moving the mapped
+   * window forward if the record might extend past the end of it
+   * @param maxRecordBytes upper bound on size of the next record
+   */
+  ByteBuffer buffer(int maxRecordBytes) throws IOException {
+    assert(mapWindow >= maxRecordBytes);
+    long mapEnd = mapStart + buf.limit();
+    if (buf.remaining() < maxRecordBytes && mapEnd < fileSize) {
+      mapStart += buf.position();
+      buf = channel.map(MapMode.READ_ONLY, mapStart,
+                        Math.min(fileSize - mapStart, mapWindow));
+    }
+    return buf;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    file.close();
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends binary records to a file through a private buffer.  Meant to be
+ * used by a single thread: records are encoded directly into the buffer
+ * with no locking, and the buffer is written out sequentially when full.
+ */
+class RecordFileWriter implements Closeable {
+  private static final int BUFFER_SIZE = 1 << 18;
+
+  private final FileOutputStream out;
+  private final FileChannel channel;
+  private final ByteBuffer buf;
+
+  RecordFileWriter(File file, int maxRecordBytes) throws IOException {
+    out = new FileOutputStream(file);
+    channel = out.getChannel();
+    buf = ByteBuffer.allocate(Math.max(BUFFER_SIZE, 2 * maxRecordBytes));
+  }
+
+  /**
+   * Get the buffer to encode the next record into, writing out
+   * buffered data if needed to make room
+   * @param maxRecordBytes upper bound on size of the next record
+   */
+  ByteBuffer buffer(int maxRecordBytes) throws IOException {
+    if (buf.remaining() < maxRecordBytes) {
+      flush();
+    }
+    return buf;
+  }
+
+  private void flush() throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    buf.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.RealDistribution.DistributionType;
+import com.facebook.LinkBench.distributions.AccessDistributions;
+import com.facebook.LinkBench.distributions.AccessDistributions.AccessDistribution;
+import com.facebook.LinkBench.distributions.ID2Chooser;
+import com.facebook.LinkBench.distributions.LogNormalDistribution;
+import com.facebook.LinkBench.distributions.ProbabilityDistribution;
+import com.facebook.LinkBench.generators.DataGenerator;
+import com.facebook.LinkBench.util.ClassLoadUtil;
+import com.facebook.LinkBench.util.SplitMixRandom;
+
+/**
+ * Generates the operations of the request workload for a single requester,
+ * according to the configured operation mix and access distributions.
+ *
+ * Choosing an operation does not depend on the results of earlier
+ * operations, so the sequence of operations can either be generated as the
+ * benchmark runs, or generated ahead of time into an op stream.
+ */
+public class RequestGenerator {
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final Level debuglevel;
+  private final long startid1;
+  private final long maxid1;
+
+  // Control data generation settings
+  private LogNormalDistribution linkDataSize;
+  private DataGenerator linkAddDataGen;
+  private DataGenerator linkUpDataGen;
+  private LogNormalDistribution nodeDataSize;
+  private DataGenerator nodeAddDataGen;
+  private DataGenerator nodeUpDataGen;
+
+  /** Used to regenerate data payload from seed */
+  private final Random dataRng = new SplitMixRandom();
+
+  // cummulative percentages
+  double pc_addlink;
+  double pc_deletelink;
+  double pc_updatelink;
+  double pc_countlink;
+  double pc_getlink;
+  double pc_getlinklist;
+  double pc_addnode;
+  double pc_deletenode;
+  double pc_updatenode;
+  double pc_getnode;
+  double pc_pageload;
+  double pc_get2hop;
+  double pc_multigetnode;
+  double pc_multicountlink;
+  double pc_multigetlinklist;
+
+  // Chance of doing historical range query
+  double p_historical_getlinklist;
+
+  // Probability distribution for ids in multiget
+  ProbabilityDistribution multigetDist;
+
+  // Distribution of #id2s followed in two hop traversal, or null for fixed
+  ProbabilityDistribution twoHopFanoutDist;
+  int twoHopFanout;
+
+  // Number of ids in each batched read
+  int readBatchSize;
+
+  // Access distributions
+  private AccessDistribution writeDist; // link writes
+  private AccessDistribution writeDistUncorr; // to blend with link writes
+  private double writeDistUncorrBlend; // Percentage to used writeDist2 for
+  private AccessDistribution readDist; // link reads
+  private AccessDistribution readDistUncorr; // to blend with link reads
+  private double readDistUncorrBlend; // Percentage to used readDist2 for
+  private AccessDistribution nodeReadDist; // node reads
+  private AccessDistribution nodeUpdateDist; // node writes
+  private AccessDistribution nodeDeleteDist; // node deletes
+
+  private ID2Chooser id2chooser;
+
+  // Last node id accessed
+  private long lastNodeId;
+
+  /** Whether node data generation and distributions have been set up */
+  private boolean nodeOpsInitialized = false;
+
+  public RequestGenerator(Properties props, int requesterID, int nrequesters) {
+    debuglevel = ConfigUtil.getDebugLevel(props);
+    maxid1 = ConfigUtil.getLong(props, Config.MAX_ID);
+    startid1 = ConfigUtil.getLong(props, Config.MIN_ID);
+
+    // math functions may cause problems for id1 < 1
+    if (startid1 <= 0) {
+      throw new LinkBenchConfigError("startid1 must be >= 1");
+    }
+    if (maxid1 <= startid1) {
+      throw new LinkBenchConfigError("maxid1 must be > startid1");
+    }
+
+    initRequestProbabilities(props);
+    initLinkDataGeneration(props);
+    initLinkRequestDistributions(props, requesterID, nrequesters);
+    initNodeOps(props);
+
+    p_historical_getlinklist = ConfigUtil.getDouble(props,
+                        Config.PR_GETLINKLIST_HISTORY, 0.0) / 100;
+
+    lastNodeId = startid1;
+  }
+
+  /**
+   * Change the operation mix, e.g. for a new phase of a phased workload.
+   * Access distributions and data generation are unchanged.
+   * @param props configuration with the operation mix percentages
+   */
+  public void setOpMix(Properties props) {
+    initRequestProbabilities(props);
+    initNodeOps(props);
+  }
+
+  /**
+   * Load stuff for node workload if needed
+   */
+  private void initNodeOps(Properties props) {
+    if (hasNodeOps() && !nodeOpsInitialized) {
+      initNodeDataGeneration(props);
+      initNodeRequestDistributions(props);
+      nodeOpsInitialized = true;
+    }
+  }
+
+  /**
+   * @return true if the workload has a non-zero probability of node operations
+   */
+  public boolean hasNodeOps() {
+    return pc_getnode > pc_getlinklist ||
+           pc_multigetnode > pc_get2hop;
+  }
+
+  /**
+   * @return true if the workload has a non-zero probability of page loads
+   */
+  public boolean hasPageLoads() {
+    return pc_pageload > pc_getnode;
+  }
+
+  /**
+   * @return true if the workload has a non-zero probability of two hop
+   *    traversals
+   */
+  public boolean hasTwoHops() {
+    return pc_get2hop > pc_pageload;
+  }
+
+  /**
+   * @return true if the workload has a non-zero probability of batched reads
+   */
+  public boolean hasBatchedReads() {
+    return pc_multigetlinklist > pc_get2hop;
+  }
+
+  private void initRequestProbabilities(Properties props) {
+    pc_addlink = ConfigUtil.getDouble(props, Config.PR_ADD_LINK);
+    pc_deletelink = pc_addlink + ConfigUtil.getDouble(props, Config.PR_DELETE_LINK);
+    pc_updatelink = pc_deletelink + ConfigUtil.getDouble(props, Config.PR_UPDATE_LINK);
+    pc_countlink = pc_updatelink + ConfigUtil.getDouble(props, Config.PR_COUNT_LINKS);
+    pc_getlink = pc_countlink + ConfigUtil.getDouble(props, Config.PR_GET_LINK);
+    pc_getlinklist = pc_getlink + ConfigUtil.getDouble(props, Config.PR_GET_LINK_LIST);
+
+    pc_addnode = pc_getlinklist + ConfigUtil.getDouble(props, Config.PR_ADD_NODE, 0.0);
+    pc_updatenode = pc_addnode + ConfigUtil.getDouble(props, Config.PR_UPDATE_NODE, 0.0);
+    pc_deletenode = pc_updatenode + ConfigUtil.getDouble(props, Config.PR_DELETE_NODE, 0.0);
+    pc_getnode = pc_deletenode + ConfigUtil.getDouble(props, Config.PR_GET_NODE, 0.0);
+    pc_pageload = pc_getnode + ConfigUtil.getDouble(props, Config.PR_PAGE_LOAD, 0.0);
+    pc_get2hop = pc_pageload + ConfigUtil.getDouble(props, Config.PR_GET_2HOP, 0.0);
+    pc_multigetnode = pc_get2hop + ConfigUtil.getDouble(props, Config.PR_MULTIGET_NODE, 0.0);
+    pc_multicountlink = pc_multigetnode + ConfigUtil.getDouble(props, Config.PR_MULTICOUNT_LINK, 0.0);
+    pc_multigetlinklist = pc_multicountlink + ConfigUtil.getDouble(props, Config.PR_MULTIGET_LINK_LIST, 0.0);
+
+    if (Math.abs(pc_multigetlinklist - 100.0) > 1e-5) {//compare real numbers
+      throw new LinkBenchConfigError("Percentages of request types do not " +
+                  "add to 100, only " + pc_multigetlinklist + "!");
+    }
+
+    readBatchSize = ConfigUtil.getInt(props, Config.READ_BATCH_SIZE, 10);
+    if (readBatchSize < 1 || readBatchSize > RequestOp.MAX_BATCH_IDS) {
+      throw new LinkBenchConfigError(Config.READ_BATCH_SIZE +
+          " must be between 1 and " + RequestOp.MAX_BATCH_IDS);
+    }
+  }
+
+  private void initLinkRequestDistributions(Properties props, int requesterID,
+      int nrequesters) {
+    writeDist = AccessDistributions.loadAccessDistribution(props,
+            startid1, maxid1, DistributionType.LINK_WRITES);
+    readDist = AccessDistributions.loadAccessDistribution(props,
+        startid1, maxid1, DistributionType.LINK_READS);
+
+    // Load uncorrelated distributions for blending if needed
+    writeDistUncorr = null;
+    if (props.containsKey(Config.WRITE_UNCORR_BLEND)) {
+      // Ratio of queries to use uncorrelated.  Convert from percentage
+      writeDistUncorrBlend = ConfigUtil.getDouble(props,
+                Config.WRITE_UNCORR_BLEND) / 100.0;
+      if (writeDistUncorrBlend > 0.0) {
+        writeDistUncorr = AccessDistributions.loadAccessDistribution(props,
+            startid1, maxid1, DistributionType.LINK_WRITES_UNCORR);
+      }
+    }
+
+    readDistUncorr = null;
+    if (props.containsKey(Config.READ_UNCORR_BLEND)) {
+      // Ratio of queries to use uncorrelated.  Convert from percentage
+      readDistUncorrBlend = ConfigUtil.getDouble(props,
+                Config.READ_UNCORR_BLEND) / 100.0;
+      if (readDistUncorrBlend > 0.0) {
+        readDistUncorr = AccessDistributions.loadAccessDistribution(props,
+            startid1, maxid1, DistributionType.LINK_READS_UNCORR);
+      }
+    }
+
+    id2chooser = new ID2Chooser(props, startid1, maxid1,
+                                nrequesters, requesterID);
+
+    // Distribution of #id2s per multiget
+    String multigetDistClass = props.getProperty(Config.LINK_MULTIGET_DIST);
+    if (multigetDistClass != null && multigetDistClass.trim().length() != 0) {
+      int multigetMin = ConfigUtil.getInt(props, Config.LINK_MULTIGET_DIST_MIN);
+      int multigetMax = ConfigUtil.getInt(props, Config.LINK_MULTIGET_DIST_MAX);
+      try {
+        multigetDist = ClassLoadUtil.newInstance(multigetDistClass,
+                                            ProbabilityDistribution.class);
+        multigetDist.init(multigetMin, multigetMax, props,
+                                             Config.LINK_MULTIGET_DIST_PREFIX);
+      } catch (ClassNotFoundException e) {
+        logger.error(e);
+        throw new LinkBenchConfigError("Class" + multigetDistClass +
+            " could not be loaded as ProbabilityDistribution");
+      }
+    } else {
+      multigetDist = null;
+    }
+
+    // Distribution of #id2s followed in two hop traversal
+    twoHopFanout = ConfigUtil.getInt(props, Config.GET2HOP_FANOUT, 10);
+    if (twoHopFanout < 0) {
+      throw new LinkBenchConfigError(Config.GET2HOP_FANOUT + " must be >= 0");
+    }
+    String fanoutDistClass = props.getProperty(Config.GET2HOP_FANOUT_DIST);
+    if (fanoutDistClass != null && fanoutDistClass.trim().length() != 0) {
+      int fanoutMin = ConfigUtil.getInt(props, Config.GET2HOP_FANOUT_DIST_MIN);
+      int fanoutMax = ConfigUtil.getInt(props, Config.GET2HOP_FANOUT_DIST_MAX);
+      try {
+        twoHopFanoutDist = ClassLoadUtil.newInstance(fanoutDistClass,
+                                            ProbabilityDistribution.class);
+        twoHopFanoutDist.init(fanoutMin, fanoutMax, props,
+                                        Config.GET2HOP_FANOUT_DIST_PREFIX);
+      } catch (ClassNotFoundException e) {
+        logger.error(e);
+        throw new LinkBenchConfigError("Class" + fanoutDistClass +
+            " could not be loaded as ProbabilityDistribution");
+      }
+    } else {
+      twoHopFanoutDist = null;
+    }
+  }
+
+  private void initLinkDataGeneration(Properties props) {
+    try {
+      double medLinkDataSize = ConfigUtil.getDouble(props,
+                                            Config.LINK_DATASIZE);
+      linkDataSize = new LogNormalDistribution();
+      linkDataSize.init(0, LinkStore.MAX_LINK_DATA, medLinkDataSize,
+                           Config.LINK_DATASIZE_SIGMA);
+      linkAddDataGen = ClassLoadUtil.newInstance(
+          ConfigUtil.getPropertyRequired(props, Config.LINK_ADD_DATAGEN),
+          DataGenerator.class);
+      linkAddDataGen.init(props, Config.LINK_ADD_DATAGEN_PREFIX);
+
+      linkUpDataGen = ClassLoadUtil.newInstance(
+          ConfigUtil.getPropertyRequired(props, Config.LINK_UP_DATAGEN),
+          DataGenerator.class);
+      linkUpDataGen.init(props, Config.LINK_UP_DATAGEN_PREFIX);
+    } catch (ClassNotFoundException ex) {
+      logger.error(ex);
+      throw new LinkBenchConfigError("Error loading data generator class: "
+            + ex.getMessage());
+    }
+  }
+
+  private void initNodeRequestDistributions(Properties props) {
+    try {
+      nodeReadDist  = AccessDistributions.loadAccessDistribution(props,
+        startid1, maxid1, DistributionType.NODE_READS);
+    } catch (LinkBenchConfigError e) {
+      // Not defined
+      logger.info("Node access distribution not configured: " +
+          e.getMessage());
+      throw new LinkBenchConfigError("Node read distribution not " +
+            "configured but node read operations have non-zero probability");
+    }
+
+    try {
+      nodeUpdateDist  = AccessDistributions.loadAccessDistribution(props,
+        startid1, maxid1, DistributionType.NODE_UPDATES);
+    } catch (LinkBenchConfigError e) {
+      // Not defined
+      logger.info("Node access distribution not configured: " +
+              e.getMessage());
+      throw new LinkBenchConfigError("Node write distribution not " +
+            "configured but node write operations have non-zero probability");
+    }
+
+    try {
+      nodeDeleteDist = AccessDistributions.loadAccessDistribution(props,
+        startid1, maxid1, DistributionType.NODE_DELETES);
+    } catch (LinkBenchConfigError e) {
+      // Not defined
+      logger.info("Node delete distribution not configured: " +
+              e.getMessage());
+      throw new LinkBenchConfigError("Node delete distribution not " +
+            "configured but node write operations have non-zero probability");
+    }
+  }
+
+  private void initNodeDataGeneration(Properties props) {
+    try {
+      double medNodeDataSize = ConfigUtil.getDouble(props,
+                                              Config.NODE_DATASIZE);
+      nodeDataSize = new LogNormalDistribution();
+      nodeDataSize.init(0, NodeStore.MAX_NODE_DATA, medNodeDataSize,
+                        Config.NODE_DATASIZE_SIGMA);
+
+      String dataGenClass = ConfigUtil.getPropertyRequired(props,
+                                         Config.NODE_ADD_DATAGEN);
+      nodeAddDataGen = ClassLoadUtil.newInstance(dataGenClass,
+                                                 DataGenerator.class);
+      nodeAddDataGen.init(props, Config.NODE_ADD_DATAGEN_PREFIX);
+
+      dataGenClass = ConfigUtil.getPropertyRequired(props,
+                        Config.NODE_UP_DATAGEN);
+      nodeUpDataGen = ClassLoadUtil.newInstance(dataGenClass,
+                                                 DataGenerator.class);
+      nodeUpDataGen.init(props, Config.NODE_UP_DATAGEN_PREFIX);
+    } catch (ClassNotFoundException ex) {
+      logger.error(ex);
+      throw new LinkBenchConfigError("Error loading data generator class: "
+            + ex.getMessage());
+    }
+  }
+
+  /**
+   * Tell the generator the id of a newly added node, so that later node
+   * operations can be based on it
+   */
+  public void setLastNodeId(long lastNodeId) {
+    this.lastNodeId = lastNodeId;
+  }
+
+  // gets id1 for the request based on desired distribution
+  private long chooseRequestID(Random rng, DistributionType type,
+                               long previousId1) {
+    AccessDistribution dist;
+    switch (type) {
+    case LINK_READS:
+      // Blend between distributions if needed
+      if (readDistUncorr == null || rng.nextDouble() >= readDistUncorrBlend) {
+        dist = readDist;
+      } else {
+        dist = readDistUncorr;
+      }
+      break;
+    case LINK_WRITES:
+      // Blend between distributions if needed
+      if (writeDistUncorr == null || rng.nextDouble() >= writeDistUncorrBlend) {
+        dist = writeDist;
+      } else {
+        dist = writeDistUncorr;
+      }
+      break;
+    case LINK_WRITES_UNCORR:
+      dist = writeDistUncorr;
+      break;
+    case NODE_READS:
+      dist = nodeReadDist;
+      break;
+    case NODE_UPDATES:
+      dist = nodeUpdateDist;
+      break;
+    case NODE_DELETES:
+      dist = nodeDeleteDist;
+      break;
+    default:
+      throw new RuntimeException("Unknown value for type: " + type);
+    }
+    long newid1 = dist.nextID(rng, previousId1);
+    // Distribution responsible for generating number in range
+    assert((newid1 >= startid1) && (newid1 < maxid1));
+    if (Level.TRACE.isGreaterOrEqual(debuglevel)) {
+      logger.trace("id1 generated = " + newid1 +
+         " for access distribution: " + dist.getClass().getName() + ": " +
+         dist.toString());
+    }
+
+    if (dist.getShuffler() != null) {
+      // Shuffle to go from position in space ranked from most to least accessed,
+      // to the real id space
+      newid1 = startid1 + dist.getShuffler().permute(newid1 - startid1);
+    }
+    return newid1;
+  }
+
+  /**
+   * Randomly choose the next operation
+   * @param rng random number generator to draw from
+   * @param op filled in with the chosen operation.  If the op mix does not
+   *      cover all cases, type is set to UNKNOWN
+   */
+  public void nextOp(Random rng, RequestOp op) {
+    double r = rng.nextDouble() * 100.0;
+
+    if (r <= pc_addlink) {
+      op.type = LinkBenchOp.ADD_LINK;
+      op.id1 = chooseRequestID(rng, DistributionType.LINK_WRITES, 0);
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+      op.id2 = id2chooser.chooseForOp(rng, op.id1, op.link_type,
+                                      ID2Chooser.P_ADD_EXIST);
+      chooseLinkData(rng, op);
+    } else if (r <= pc_deletelink) {
+      op.type = LinkBenchOp.DELETE_LINK;
+      op.id1 = chooseRequestID(rng, DistributionType.LINK_WRITES, 0);
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+      op.id2 = id2chooser.chooseForOp(rng, op.id1, op.link_type,
+                                      ID2Chooser.P_DELETE_EXIST);
+    } else if (r <= pc_updatelink) {
+      op.type = LinkBenchOp.UPDATE_LINK;
+      op.id1 = chooseRequestID(rng, DistributionType.LINK_WRITES, 0);
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+      // Update one of the existing links
+      op.id2 = id2chooser.chooseForOp(rng, op.id1, op.link_type,
+                                      ID2Chooser.P_UPDATE_EXIST);
+      chooseLinkData(rng, op);
+    } else if (r <= pc_countlink) {
+      op.type = LinkBenchOp.COUNT_LINK;
+      op.id1 = chooseRequestID(rng, DistributionType.LINK_READS, 0);
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+    } else if (r <= pc_getlink) {
+      op.type = LinkBenchOp.MULTIGET_LINK;
+      op.id1 = chooseRequestID(rng, DistributionType.LINK_READS, 0);
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+      int nid2s = 1;
+      if (multigetDist != null) {
+        nid2s = (int)multigetDist.choose(rng);
+      }
+      op.id2s = op.id2Array(nid2s);
+      id2chooser.chooseMultipleForOp(rng, op.id1, op.link_type, op.id2s,
+                                     ID2Chooser.P_GET_EXIST);
+    } else if (r <= pc_getlinklist) {
+      op.type = LinkBenchOp.GET_LINKS_LIST;
+      // Whether a historical query can be done depends on the state of the
+      // requester's history cache, so always choose a fallback id1
+      op.history = rng.nextDouble() < p_historical_getlinklist;
+      op.historyChoice = op.history ? rng.nextInt(Integer.MAX_VALUE) : 0;
+      op.id1 = chooseRequestID(rng, DistributionType.LINK_READS, 0);
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+    } else if (r <= pc_addnode) {
+      op.type = LinkBenchOp.ADD_NODE;
+      chooseNodeData(rng, op);
+    } else if (r <= pc_updatenode) {
+      op.type = LinkBenchOp.UPDATE_NODE;
+      // Choose an id that has previously been created (but might have
+      // been since deleted
+      op.id1 = chooseRequestID(rng, DistributionType.NODE_UPDATES,
+                               lastNodeId);
+      chooseNodeData(rng, op);
+      lastNodeId = op.id1;
+    } else if (r <= pc_deletenode) {
+      op.type = LinkBenchOp.DELETE_NODE;
+      op.id1 = chooseRequestID(rng, DistributionType.NODE_DELETES,
+                               lastNodeId);
+      lastNodeId = op.id1;
+    } else if (r <= pc_getnode) {
+      op.type = LinkBenchOp.GET_NODE;
+      op.id1 = chooseRequestID(rng, DistributionType.NODE_READS,
+                               lastNodeId);
+      lastNodeId = op.id1;
+    } else if (r <= pc_pageload) {
+      op.type = LinkBenchOp.PAGE_LOAD;
+      // Page is the owner of a link list
+      op.id1 = chooseRequestID(rng, DistributionType.LINK_READS, 0);
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+    } else if (r <= pc_get2hop) {
+      op.type = LinkBenchOp.GET_2HOP;
+      op.id1 = chooseRequestID(rng, DistributionType.LINK_READS, 0);
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+      op.fanout = twoHopFanout;
+      if (twoHopFanoutDist != null) {
+        op.fanout = (int)twoHopFanoutDist.choose(rng);
+      }
+    } else if (r <= pc_multigetnode) {
+      op.type = LinkBenchOp.MULTIGET_NODE;
+      op.ids = op.idArray(readBatchSize);
+      for (int i = 0; i < op.ids.length; i++) {
+        op.ids[i] = chooseRequestID(rng, DistributionType.NODE_READS,
+                                    lastNodeId);
+        lastNodeId = op.ids[i];
+      }
+    } else if (r <= pc_multicountlink) {
+      op.type = LinkBenchOp.MULTICOUNT_LINK;
+      op.ids = op.idArray(readBatchSize);
+      op.linkTypes = op.typeArray(readBatchSize);
+      for (int i = 0; i < op.ids.length; i++) {
+        op.ids[i] = chooseRequestID(rng, DistributionType.LINK_READS, 0);
+        op.linkTypes[i] = id2chooser.chooseRandomLinkType(rng);
+      }
+    } else if (r <= pc_multigetlinklist) {
+      op.type = LinkBenchOp.MULTIGET_LINKS_LIST;
+      op.link_type = id2chooser.chooseRandomLinkType(rng);
+      op.ids = op.idArray(readBatchSize);
+      for (int i = 0; i < op.ids.length; i++) {
+        op.ids[i] = chooseRequestID(rng, DistributionType.LINK_READS, 0);
+      }
+    } else {
+      op.type = LinkBenchOp.UNKNOWN;
+    }
+  }
+
+  private void chooseLinkData(Random rng, RequestOp op) {
+    op.dataSize = (int)linkDataSize.choose(rng);
+    op.dataSeed = rng.nextLong();
+  }
+
+  private void chooseNodeData(Random rng, RequestOp op) {
+    op.dataSize = (int)nodeDataSize.choose(rng);
+    op.dataSeed = rng.nextLong();
+  }
+
+  /**
+   * Create a link to add or update in the database.  If op.reuseBuffers
+   * is set, the link and its data are reused by later operations.
+   */
+  public Link createLink(RequestOp op) {
+    Link link = op.linkObject();
+    link.id1 = op.id1;
+    link.link_type = op.link_type;
+    link.id2 = op.id2;
+    link.visibility = LinkStore.VISIBILITY_DEFAULT;
+    link.version = 0;
+    link.time = System.currentTimeMillis();
+    link.data = linkData(op);
+    return link;
+  }
+
+  /**
+   * Create a new node for adding to database, or a new version of an
+   * existing node for updating.  If op.reuseBuffers is set, the node and
+   * its data are reused by later operations.
+   */
+  public Node createNode(RequestOp op) {
+    Node node = op.nodeObject();
+    if (op.type == LinkBenchOp.ADD_NODE) {
+      node.id = -1;
+      node.version = 1;
+    } else {
+      node.id = op.id1;
+      node.version = 2;
+    }
+    node.type = LinkStore.DEFAULT_NODE_TYPE;
+    node.time = (int)(System.currentTimeMillis()/1000);
+    node.data = nodeData(op);
+    return node;
+  }
+
+  /**
+   * Generate the data payload for a link add or update operation
+   */
+  public byte[] linkData(RequestOp op) {
+    DataGenerator gen = op.type == LinkBenchOp.ADD_LINK ?
+                                  linkAddDataGen : linkUpDataGen;
+    dataRng.setSeed(op.dataSeed);
+    return gen.fill(dataRng, op.dataArray(op.dataSize));
+  }
+
+  /**
+   * Generate the data payload for a node add or update operation
+   */
+  public byte[] nodeData(RequestOp op) {
+    DataGenerator gen = op.type == LinkBenchOp.ADD_NODE ?
+                                  nodeAddDataGen : nodeUpDataGen;
+    dataRng.setSeed(op.dataSeed);
+    return gen.fill(dataRng, op.dataArray(op.dataSize));
+  }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A single operation in the request workload, as chosen by the
+ * RequestGenerator or read back from a compiled op stream.
+ *
+ * Only the fields relevant to the operation type are meaningful.  Payload
+ * data is not stored directly: instead the size and a seed for the data
+ * generator are kept, so that the payload can be regenerated identically.
+ *
+ * If reuseBuffers is set, the id2 arrays, payload buffers and Link/Node
+ * objects used to execute the operation are owned by this object and are
+ * reused for later operations, so that the request loop does not allocate.
+ * Stores must not hold onto them after the operation completes: see the
+ * notes on LinkStore and NodeStore.
+ */
+public class RequestOp {
+  /** Limit on id2s in multiget, so that operations have bounded size */
+  public static final int MAX_MULTIGET_IDS = 4096;
+
+  /** Limit on ids in batched reads */
+  public static final int MAX_BATCH_IDS = 1024;
+
+  /** Upper bound on encoded size of a single operation */
+  public static final int MAX_ENCODED_BYTES = 64 + 8 * MAX_MULTIGET_IDS;
+
+  /**
+   * Largest payload for which buffers are kept for reuse.  A buffer is kept
+   * for each distinct size, so this bounds memory held per operation.
+   * Larger payloads are rare and are allocated each time.
+   */
+  public static final int MAX_POOLED_DATA = 1024;
+
+  private static final LinkBenchOp OPS[] = LinkBenchOp.values();
+
+  public LinkBenchOp type = LinkBenchOp.UNKNOWN;
+
+  public long id1;
+  public long link_type;
+
+  /** id2 for single link operations */
+  public long id2;
+
+  /** id2s for multiget operations */
+  public long id2s[];
+
+  /**
+   * For batched reads: node ids for MULTIGET_NODE, otherwise id1s.
+   * MULTIGET_LINKS_LIST uses link_type for all id1s
+   */
+  public long ids[];
+
+  /** For MULTICOUNT_LINK: link type to count for each of ids */
+  public long linkTypes[];
+
+  /** For GET_2HOP: max number of links from id1 to follow */
+  public int fanout;
+
+  /** Size of data payload for add and update operations */
+  public int dataSize;
+
+  /** Seed used to generate data payload */
+  public long dataSeed;
+
+  /**
+   * For GET_LINKS_LIST: if true, do a historical range query on an entry from
+   * the requester's history cache, provided it is not empty
+   */
+  public boolean history;
+
+  /** For historical range queries: which entry of history cache to use */
+  public int historyChoice;
+
+  /**
+   * For historical range queries that have been executed: the upper bound
+   * on link time that was used
+   */
+  public long historyTime;
+
+  /**
+   * If true, arrays and objects returned by id2Array, dataArray, linkObject
+   * and nodeObject are reused by later operations
+   */
+  public boolean reuseBuffers = false;
+
+  /** Reusable id2 arrays, indexed by length */
+  private long id2Buffers[][];
+
+  /** Reusable arrays for batched reads, indexed by length */
+  private long idBuffers[][];
+  private long typeBuffers[][];
+
+  /** Reusable payload buffers, indexed by size */
+  private byte dataBuffers[][];
+
+  private Link link;
+  private Node node;
+
+  /**
+   * @return an array of length n to hold id2s for this operation
+   */
+  public long[] id2Array(int n) {
+    if (!reuseBuffers || n > MAX_MULTIGET_IDS) {
+      return new long[n];
+    }
+    if (id2Buffers == null) {
+      id2Buffers = new long[MAX_MULTIGET_IDS + 1][];
+    }
+    return pooledArray(id2Buffers, n);
+  }
+
+  /**
+   * @return an array of length n to hold ids for a batched read
+   */
+  public long[] idArray(int n) {
+    if (!reuseBuffers || n > MAX_BATCH_IDS) {
+      return new long[n];
+    }
+    if (idBuffers == null) {
+      idBuffers = new long[MAX_BATCH_IDS + 1][];
+    }
+    return pooledArray(idBuffers, n);
+  }
+
+  /**
+   * @return an array of length n to hold link types for a batched count
+   */
+  public long[] typeArray(int n) {
+    if (!reuseBuffers || n > MAX_BATCH_IDS) {
+      return new long[n];
+    }
+    if (typeBuffers == null) {
+      typeBuffers = new long[MAX_BATCH_IDS + 1][];
+    }
+    return pooledArray(typeBuffers, n);
+  }
+
+  private static long[] pooledArray(long pool[][], int n) {
+    long arr[] = pool[n];
+    if (arr == null) {
+      arr = new long[n];
+      pool[n] = arr;
+    }
+    return arr;
+  }
+
+  /**
+   * @return a buffer of exactly size bytes for payload data
+   */
+  public byte[] dataArray(int size) {
+    if (!reuseBuffers || size > MAX_POOLED_DATA) {
+      return new byte[size];
+    }
+    if (dataBuffers == null) {
+      dataBuffers = new byte[MAX_POOLED_DATA + 1][];
+    }
+    byte arr[] = dataBuffers[size];
+    if (arr == null) {
+      arr = new byte[size];
+      dataBuffers[size] = arr;
+    }
+    return arr;
+  }
+
+  /**
+   * @return a link object to be filled in for an add or update
+   */
+  public Link linkObject() {
+    if (!reuseBuffers) {
+      return new Link();
+    }
+    if (link == null) {
+      link = new Link();
+    }
+    return link;
+  }
+
+  /**
+   * @return a node object to be filled in for an add or update
+   */
+  public Node nodeObject() {
+    if (!reuseBuffers) {
+      return new Node(0, 0, 0, 0, null);
+    }
+    if (node == null) {
+      node = new Node(0, 0, 0, 0, null);
+    }
+    return node;
+  }
+
+  @Override
+  public String toString() {
+    return "RequestOp(" + type + ": id1=" + id1 + " link_type=" + link_type +
+           " id2=" + id2 + " id2s=" + Arrays.toString(id2s) +
+           " dataSize=" + dataSize + " dataSeed=" + dataSeed +
+           " history=" + history + " historyChoice=" + historyChoice +
+           " historyTime=" + historyTime + " fanout=" + fanout +
+           " ids=" + Arrays.toString(ids) +
+           " linkTypes=" + Arrays.toString(linkTypes) + ")";
+  }
+
+  /**
+   * Append binary encoding of operation to buffer: a byte for the type,
+   * followed by only the fields used by that type.
+   * @param buf must have at least MAX_ENCODED_BYTES remaining
+   */
+  public void encode(ByteBuffer buf) {
+    buf.put((byte)type.ordinal());
+    switch (type) {
+    case ADD_LINK:
+    case UPDATE_LINK:
+      buf.putLong(id1);
+      buf.putLong(link_type);
+      buf.putLong(id2);
+      buf.putInt(dataSize);
+      buf.putLong(dataSeed);
+      break;
+    case DELETE_LINK:
+      buf.putLong(id1);
+      buf.putLong(link_type);
+      buf.putLong(id2);
+      break;
+    case COUNT_LINK:
+    case PAGE_LOAD:
+      buf.putLong(id1);
+      buf.putLong(link_type);
+      break;
+    case GET_2HOP:
+      buf.putLong(id1);
+      buf.putLong(link_type);
+      buf.putInt(fanout);
+      break;
+    case MULTIGET_NODE:
+      checkBatchSize();
+      buf.putInt(ids.length);
+      for (long id: ids) {
+        buf.putLong(id);
+      }
+      break;
+    case MULTICOUNT_LINK:
+      checkBatchSize();
+      buf.putInt(ids.length);
+      for (int i = 0; i < ids.length; i++) {
+        buf.putLong(ids[i]);
+        buf.putLong(linkTypes[i]);
+      }
+      break;
+    case MULTIGET_LINKS_LIST:
+      checkBatchSize();
+      buf.putLong(link_type);
+      buf.putInt(ids.length);
+      for (long id: ids) {
+        buf.putLong(id);
+      }
+      break;
+    case MULTIGET_LINK:
+      if (id2s.length > MAX_MULTIGET_IDS) {
+        throw new IllegalArgumentException("Multiget of " + id2s.length +
+            " ids exceeds limit of " + MAX_MULTIGET_IDS);
+      }
+      buf.putLong(id1);
+      buf.putLong(link_type);
+      buf.putInt(id2s.length);
+      for (long id: id2s) {
+        buf.putLong(id);
+      }
+      break;
+    case GET_LINKS_LIST:
+      buf.putLong(id1);
+      buf.putLong(link_type);
+      buf.put((byte)(history ? 1 : 0));
+      if (history) {
+        buf.putInt(historyChoice);
+        buf.putLong(historyTime);
+      }
+      break;
+    case ADD_NODE:
+      buf.putInt(dataSize);
+      buf.putLong(dataSeed);
+      break;
+    case UPDATE_NODE:
+      buf.putLong(id1);
+      buf.putInt(dataSize);
+      buf.putLong(dataSeed);
+      break;
+    case DELETE_NODE:
+    case GET_NODE:
+      buf.putLong(id1);
+      break;
+    default:
+      throw new IllegalArgumentException("Cannot encode operation of type " +
+                                         type);
+    }
+  }
+
+  private void checkBatchSize() {
+    if (ids.length > MAX_BATCH_IDS) {
+      throw new IllegalArgumentException("Batch of " + ids.length +
+          " ids exceeds limit of " + MAX_BATCH_IDS);
+    }
+  }
+
+  private static int decodeBatchSize(ByteBuffer buf) throws IOException {
+    int n = buf.getInt();
+    if (n < 0 || n > MAX_BATCH_IDS) {
+      throw new IOException("Corrupt operation: batch of " + n);
+    }
+    return n;
+  }
+
+  /**
+   * Decode operation written by encode, overwriting fields of this object
+   * @throws IOException if the encoded data is invalid
+   */
+  public void decode(ByteBuffer buf) throws IOException {
+    int typeCode = buf.get();
+    if (typeCode < 0 || typeCode >= OPS.length) {
+      throw new IOException("Corrupt operation: bad op type " + typeCode);
+    }
+    type = OPS[typeCode];
+    switch (type) {
+    case ADD_LINK:
+    case UPDATE_LINK:
+      id1 = buf.getLong();
+      link_type = buf.getLong();
+      id2 = buf.getLong();
+      dataSize = buf.getInt();
+      dataSeed = buf.getLong();
+      break;
+    case DELETE_LINK:
+      id1 = buf.getLong();
+      link_type = buf.getLong();
+      id2 = buf.getLong();
+      break;
+    case COUNT_LINK:
+    case PAGE_LOAD:
+      id1 = buf.getLong();
+      link_type = buf.getLong();
+      break;
+    case GET_2HOP:
+      id1 = buf.getLong();
+      link_type = buf.getLong();
+      fanout = buf.getInt();
+      if (fanout < 0) {
+        throw new IOException("Corrupt operation: 2 hop fanout " + fanout);
+      }
+      break;
+    case MULTIGET_NODE: {
+      ids = idArray(decodeBatchSize(buf));
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = buf.getLong();
+      }
+      break;
+    }
+    case MULTICOUNT_LINK: {
+      int n = decodeBatchSize(buf);
+      ids = idArray(n);
+      linkTypes = typeArray(n);
+      for (int i = 0; i < n; i++) {
+        ids[i] = buf.getLong();
+        linkTypes[i] = buf.getLong();
+      }
+      break;
+    }
+    case MULTIGET_LINKS_LIST: {
+      link_type = buf.getLong();
+      ids = idArray(decodeBatchSize(buf));
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = buf.getLong();
+      }
+      break;
+    }
+    case MULTIGET_LINK:
+      id1 = buf.getLong();
+      link_type = buf.getLong();
+      int nid2s = buf.getInt();
+      if (nid2s < 0 || nid2s > MAX_MULTIGET_IDS) {
+        throw new IOException("Corrupt operation: multiget of " + nid2s);
+      }
+      id2s = id2Array(nid2s);
+      for (int i = 0; i < nid2s; i++) {
+        id2s[i] = buf.getLong();
+      }
+      break;
+    case GET_LINKS_LIST:
+      id1 = buf.getLong();
+      link_type = buf.getLong();
+      history = buf.get() != 0;
+      if (history) {
+        historyChoice = buf.getInt();
+        historyTime = buf.getLong();
+      }
+      break;
+    case ADD_NODE:
+      dataSize = buf.getInt();
+      dataSeed = buf.getLong();
+      break;
+    case UPDATE_NODE:
+      id1 = buf.getLong();
+      dataSize = buf.getInt();
+      dataSeed = buf.getLong();
+      break;
+    case DELETE_NODE:
+    case GET_NODE:
+      id1 = buf.getLong();
+      break;
+    default:
+      throw new IOException("Corrupt operation: unexpected op type " + type);
+    }
+  }
+}
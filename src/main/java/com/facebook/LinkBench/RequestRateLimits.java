@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Rate limits on requests shared by all requesters: an aggregate rate
+ * across all requesters, and ceilings on the rate of individual operation
+ * types.
+ *
+ * With requestrate, each requester throttles itself independently, so that
+ * when one requester is blocked on a slow request, the aggregate rate drops.
+ * With the aggregate rate, requesters draw from a shared schedule, so other
+ * requesters take up the slack.
+ */
+public class RequestRateLimits {
+  /** Limit on total rate, or null if none */
+  private final RateLimiter globalLimit;
+
+  /** Ceilings indexed by operation type ordinal, null if none */
+  private final RateLimiter opLimits[];
+
+  private RequestRateLimits(RateLimiter globalLimit, RateLimiter opLimits[]) {
+    this.globalLimit = globalLimit;
+    this.opLimits = opLimits;
+  }
+
+  /**
+   * Create rate limits from configuration
+   * @param shares the configured rates are divided evenly between this
+   *      many independent sets of limits
+   * @return null if no limits are configured
+   */
+  public static RequestRateLimits fromConfig(Properties props, int shares) {
+    double burst = ConfigUtil.getDouble(props, Config.REQUEST_RATE_BURST, 1.0);
+    if (burst < 1) {
+      throw new LinkBenchConfigError(Config.REQUEST_RATE_BURST +
+                                     " must be >= 1");
+    }
+    boolean limited = false;
+    RateLimiter globalLimit = null;
+    double globalRate = ConfigUtil.getDouble(props, Config.REQUEST_GLOBAL_RATE,
+                                             0.0);
+    if (globalRate > 0) {
+      // Exponentially distributed intervals, as with requestrate
+      globalLimit = new RateLimiter(globalRate / shares, burst, true);
+      limited = true;
+    }
+
+    LinkBenchOp ops[] = LinkBenchOp.values();
+    RateLimiter opLimits[] = new RateLimiter[ops.length];
+    for (LinkBenchOp op: ops) {
+      String key = opLimitKey(op);
+      if (props.containsKey(key)) {
+        double opRate = ConfigUtil.getDouble(props, key);
+        if (opRate <= 0) {
+          throw new LinkBenchConfigError(key + " must be > 0");
+        }
+        opLimits[op.ordinal()] = new RateLimiter(opRate / shares, burst,
+                                                 false);
+        limited = true;
+      }
+    }
+    return limited ? new RequestRateLimits(globalLimit, opLimits) : null;
+  }
+
+  /**
+   * @return configuration key for rate ceiling of operation type
+   */
+  public static String opLimitKey(LinkBenchOp op) {
+    return Config.REQUEST_OP_RATE_LIMIT_PREFIX + op.name().toLowerCase();
+  }
+
+  /**
+   * @return true if there is a limit on aggregate rate
+   */
+  public boolean hasGlobalLimit() {
+    return globalLimit != null;
+  }
+
+  /**
+   * Claim the next slot for a request under the aggregate rate
+   * @param openLoop if true, follow the schedule however far behind it is
+   * @return time to issue the request
+   */
+  public long nextRequestTime(Random rng, long now_ns, boolean openLoop) {
+    return globalLimit.nextSlot(rng, now_ns, openLoop);
+  }
+
+  /**
+   * Claim the next slot for an operation of the given type under its rate
+   * ceiling.  Unlike the aggregate rate, ceilings do not catch up with
+   * missed slots.
+   * @return time to issue the request, or now_ns if there is no ceiling
+   */
+  public long nextOpTime(LinkBenchOp type, Random rng, long now_ns) {
+    RateLimiter limit = opLimits[type.ordinal()];
+    if (limit == null) {
+      return now_ns;
+    }
+    return limit.nextSlot(rng, now_ns, false);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    if (globalLimit != null) {
+      sb.append(String.format("%.1f requests/s", globalLimit.getRate()));
+    }
+    for (LinkBenchOp op: LinkBenchOp.values()) {
+      RateLimiter limit = opLimits[op.ordinal()];
+      if (limit != null) {
+        if (sb.length() > 0) {
+          sb.append(", ");
+        }
+        sb.append(String.format("%s <= %.1f/s", op.displayName(),
+                                limit.getRate()));
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+/**
+ * A long-running task that can be broken into a sequence of steps, each
+ * with a scheduled start time.  This allows many tasks to share a small
+ * pool of threads (see TaskPool), rather than each task occupying a thread
+ * while it waits for the next step.
+ *
+ * Running the task with run() should be equivalent to:
+ * <pre>
+ *   startSteps();
+ *   while (hasNextStep()) {
+ *     long t = nextStepTime();
+ *     Timer.waitUntil(t);
+ *     step(t);
+ *   }
+ *   finishSteps();
+ * </pre>
+ * The methods of a task are never called concurrently, but successive calls
+ * may be made from different threads.
+ */
+public interface SteppedTask extends Runnable {
+
+  /** Prepare task before first step */
+  public void startSteps();
+
+  /** @return true if there are more steps to run */
+  public boolean hasNextStep();
+
+  /**
+   * Called exactly once before each step
+   * @return time at which next step should start, in same units as
+   *         System.nanoTime()
+   */
+  public long nextStepTime();
+
+  /**
+   * Run a step
+   * @param scheduledTime_ns the value returned by nextStepTime()
+   */
+  public void step(long scheduledTime_ns);
+
+  /** Clean up task after last step */
+  public void finishSteps();
+}
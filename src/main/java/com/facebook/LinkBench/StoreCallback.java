@@ -0,0 +1,29 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+/**
+ * Callback for completion of an asynchronous store operation.  Callbacks
+ * may be invoked from any thread, so should do minimal work and hand off
+ * results to the thread that issued the operation.
+ */
+public interface StoreCallback<T> {
+  /** Called with result of operation if it completed successfully */
+  public void completed(T result);
+
+  /** Called with the exception thrown if the operation failed */
+  public void failed(Throwable error);
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Run a set of tasks on a bounded pool of threads.
+ *
+ * SteppedTasks are run one step at a time: between steps the task is
+ * not bound to a thread, so many more tasks than threads can be active at
+ * once.  Other Runnables occupy a thread until they complete, so at most
+ * nthreads of them run at a time.
+ *
+ * The pool tracks two kinds of lateness for each step.  Dispatch lag is
+ * the delay between a step becoming runnable (its scheduled time, or when
+ * it was submitted if it was already overdue) and a pool thread starting
+ * it: if this grows, the pool itself is a bottleneck.  Schedule lag is how
+ * far behind its own schedule a task already was when it submitted the
+ * step, which reflects a backlog in the task rather than in the pool.
+ */
+public class TaskPool {
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  /** Execution modes for benchmark tasks */
+  public static enum ExecMode {
+    /** One thread per task */
+    THREAD,
+    /** Shared pool of threads */
+    POOL
+  }
+
+  private final int nthreads;
+
+  private final AtomicLong steps = new AtomicLong();
+  private final LagStats dispatchLag = new LagStats();
+  private final LagStats scheduleLag = new LagStats();
+
+  public TaskPool(int nthreads) {
+    if (nthreads < 1) {
+      throw new IllegalArgumentException("Need at least one thread");
+    }
+    this.nthreads = nthreads;
+  }
+
+  /**
+   * Run all tasks and block until they are completed.
+   * @return the elapsed time in milliseconds
+   */
+  public long runAll(List<? extends Runnable> tasks)
+      throws InterruptedException {
+    final AtomicInteger threadNum = new AtomicInteger();
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+      nthreads, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r);
+          t.setName("linkbench-pool-" + threadNum.getAndIncrement());
+          return t;
+        }
+      });
+    CountDownLatch doneSignal = new CountDownLatch(tasks.size());
+
+    long startTime = System.currentTimeMillis();
+    for (Runnable task: tasks) {
+      if (task instanceof SteppedTask) {
+        executor.execute(new StepRunner((SteppedTask) task, executor,
+                                        doneSignal));
+      } else {
+        executor.execute(new TaskRunner(task, doneSignal));
+      }
+    }
+    doneSignal.await(); // wait for all tasks to finish
+    long endTime = System.currentTimeMillis();
+    executor.shutdown();
+    return endTime - startTime;
+  }
+
+  /** @return number of steps run */
+  public long getSteps() {
+    return steps.get();
+  }
+
+  /** @return mean delay in dispatching runnable steps, in nanoseconds */
+  public double getMeanDispatchLag_ns() {
+    return dispatchLag.mean(steps.get());
+  }
+
+  /** @return maximum delay in dispatching a runnable step, in nanoseconds */
+  public long getMaxDispatchLag_ns() {
+    return dispatchLag.max.get();
+  }
+
+  /**
+   * @return mean time steps were already overdue when submitted,
+   *         in nanoseconds
+   */
+  public double getMeanScheduleLag_ns() {
+    return scheduleLag.mean(steps.get());
+  }
+
+  /**
+   * @return maximum time a step was already overdue when submitted,
+   *         in nanoseconds
+   */
+  public long getMaxScheduleLag_ns() {
+    return scheduleLag.max.get();
+  }
+
+  /**
+   * Log scheduling overhead statistics
+   */
+  public void displayStats() {
+    logger.info(String.format("Task pool with %d threads ran %d steps." +
+        " Dispatch lag per step: mean = %.3fms max = %.3fms." +
+        " Schedule lag per step: mean = %.3fms max = %.3fms",
+        nthreads, getSteps(),
+        getMeanDispatchLag_ns() / 1e6, getMaxDispatchLag_ns() / 1e6,
+        getMeanScheduleLag_ns() / 1e6, getMaxScheduleLag_ns() / 1e6));
+  }
+
+  private void recordLag(long dispatchLag_ns, long scheduleLag_ns) {
+    steps.incrementAndGet();
+    dispatchLag.add(dispatchLag_ns);
+    scheduleLag.add(scheduleLag_ns);
+  }
+
+  /** Running total and maximum of a lag measurement */
+  private static class LagStats {
+    final AtomicLong total = new AtomicLong();
+    final AtomicLong max = new AtomicLong();
+
+    void add(long lag_ns) {
+      total.addAndGet(lag_ns);
+      long m = max.get();
+      while (lag_ns > m && !max.compareAndSet(m, lag_ns)) {
+        m = max.get();
+      }
+    }
+
+    double mean(long n) {
+      return n == 0 ? 0.0 : total.get() / (double) n;
+    }
+  }
+
+  /**
+   * If an uncaught exception occurs, bail out of the benchmark
+   * immediately, since any results of the benchmark will no longer be
+   * valid anyway
+   */
+  private static void fail(Throwable e) {
+    Logger threadLog = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+    threadLog.error("Unrecoverable exception in worker thread:", e);
+    Runtime.getRuntime().halt(1);
+  }
+
+  private static class TaskRunner implements Runnable {
+    private final Runnable task;
+    private final CountDownLatch doneSignal;
+
+    TaskRunner(Runnable task, CountDownLatch doneSignal) {
+      this.task = task;
+      this.doneSignal = doneSignal;
+    }
+
+    @Override
+    public void run() {
+      try {
+        task.run();
+      } catch (Throwable e) {
+        fail(e);
+      }
+      doneSignal.countDown();
+    }
+  }
+
+  /**
+   * Runs one step of a task, then reschedules itself for the next step
+   */
+  private class StepRunner implements Runnable {
+    private final SteppedTask task;
+    private final ScheduledThreadPoolExecutor executor;
+    private final CountDownLatch doneSignal;
+    private boolean started = false;
+    private long scheduledTime_ns;
+    /** Time at which the step became runnable */
+    private long readyTime_ns;
+
+    StepRunner(SteppedTask task, ScheduledThreadPoolExecutor executor,
+               CountDownLatch doneSignal) {
+      this.task = task;
+      this.executor = executor;
+      this.doneSignal = doneSignal;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (!started) {
+          task.startSteps();
+          started = true;
+        } else {
+          recordLag(System.nanoTime() - readyTime_ns,
+                    readyTime_ns - scheduledTime_ns);
+          task.step(scheduledTime_ns);
+        }
+
+        if (task.hasNextStep()) {
+          scheduledTime_ns = task.nextStepTime();
+          long now = System.nanoTime();
+          long delay_ns = scheduledTime_ns - now;
+          if (delay_ns > 0) {
+            readyTime_ns = scheduledTime_ns;
+            executor.schedule(this, delay_ns, TimeUnit.NANOSECONDS);
+          } else {
+            // Already overdue: runnable as soon as it is submitted
+            readyTime_ns = now;
+            executor.execute(this);
+          }
+          return;
+        }
+        task.finishSteps();
+      } catch (Throwable e) {
+        fail(e);
+      }
+      doneSignal.countDown();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+/**
+ * Search for the highest request rate that meets a service level objective.
+ *
+ * The lowest rate is tried first: if it fails there is nothing to search
+ * for.  The highest rate is tried next, and if that fails, the search
+ * bisects the range between the highest rate known to pass and the lowest
+ * rate known to fail, until they are within the requested precision.
+ * Midpoints are geometric, since the range may cover orders of magnitude.
+ *
+ * Rates are integer requests per second, the same units as requestrate.
+ */
+public class ThroughputSearch {
+  private final long minRate;
+  private final long maxRate;
+  private final double precision;
+  private final int maxSteps;
+
+  /** Highest rate known to meet the objective, or -1 if none */
+  private long passRate = -1;
+  /** Lowest rate known to fail the objective, or -1 if none */
+  private long failRate = -1;
+
+  private int steps = 0;
+
+  /**
+   * @param minRate lowest rate to try, must be > 0
+   * @param maxRate highest rate to try, must be >= minRate
+   * @param precision stop when the lowest failing rate is within this
+   *      fraction of the highest passing rate
+   * @param maxSteps stop after this many steps regardless
+   */
+  public ThroughputSearch(long minRate, long maxRate, double precision,
+                          int maxSteps) {
+    if (minRate <= 0 || maxRate < minRate) {
+      throw new IllegalArgumentException("Bad search range [" + minRate +
+                                         ", " + maxRate + "]");
+    }
+    this.minRate = minRate;
+    this.maxRate = maxRate;
+    this.precision = precision;
+    this.maxSteps = maxSteps;
+  }
+
+  /**
+   * @return true if another rate should be tried
+   */
+  public boolean hasNextStep() {
+    if (steps >= maxSteps) {
+      return false;
+    }
+    if (steps == 0) {
+      return true;
+    }
+    if (passRate < 0 || passRate == maxRate) {
+      // Minimum rate failed, or maximum rate passed
+      return false;
+    }
+    if (failRate < 0) {
+      return true; // Try maximum rate
+    }
+    return failRate - passRate > Math.max(1, (long)(passRate * precision));
+  }
+
+  /**
+   * @return the next rate to try
+   */
+  public long nextRate() {
+    if (steps == 0) {
+      return minRate;
+    } else if (failRate < 0) {
+      return maxRate;
+    } else {
+      long mid = Math.round(Math.sqrt((double)passRate * failRate));
+      // Make sure progress is made despite rounding
+      return Math.max(passRate + 1, Math.min(failRate - 1, mid));
+    }
+  }
+
+  /**
+   * Record the outcome of trying a rate returned by nextRate()
+   * @param met true if the objective was met at that rate
+   */
+  public void record(long rate, boolean met) {
+    steps++;
+    if (met) {
+      passRate = Math.max(passRate, rate);
+    } else if (failRate < 0 || rate < failRate) {
+      failRate = rate;
+    }
+  }
+
+  /**
+   * @return highest rate found to meet the objective, or -1 if none did
+   */
+  public long getBestRate() {
+    return passRate;
+  }
+
+  public int getSteps() {
+    return steps;
+  }
+}
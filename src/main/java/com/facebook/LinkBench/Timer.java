@@ -16,9 +16,31 @@
 package com.facebook.LinkBench;
 
 import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
 
 public class Timer {
 
+  /**
+   * Once the remaining wait drops below this threshold we stop parking the
+   * thread and spin instead, since parkNanos() can overshoot by tens of
+   * microseconds
+   */
+  static final long SPIN_THRESHOLD_NS = 100 * 1000;
+
+  /**
+   * Compute the time of the next event after the last event, with the
+   * interval determined by the exponential distribution.  Does not wait.
+   * @param rng random number generator to use
+   * @param lasteventTime_ns last event time (units same as System.nanoTime())
+   * @param arrivalRate_ns arrival rate: events per nanosecond
+   * @return time of the next event
+   */
+  public static long nextExpInterval(Random rng,
+                long lasteventTime_ns, double arrivalRate_ns) {
+    return lasteventTime_ns +
+        Math.round(-1 * Math.log(rng.nextDouble()) / arrivalRate_ns);
+  }
+
   /**
    * Wait an amount of time since the last event determined by the
    * exponential distribution
@@ -29,26 +51,36 @@ public class Timer {
    */
   public static long waitExpInterval(Random rng,
                 long lasteventTime_ns, double arrivalRate_ns) {
-    long nextTime_ns = lasteventTime_ns +
-        Math.round(-1 * Math.log(rng.nextDouble()) / arrivalRate_ns);
+    long nextTime_ns = nextExpInterval(rng, lasteventTime_ns, arrivalRate_ns);
     Timer.waitUntil(nextTime_ns);
     return nextTime_ns;
   }
 
   /**
-   * Wait until System.nanoTime() is > the argument
+   * Wait until System.nanoTime() is >= the argument.  Parks the thread
+   * for most of the interval, then spins for the last
+   * SPIN_THRESHOLD_NS so that short waits at high request rates are accurate.
+   * Returns early if the thread is interrupted, leaving the interrupt
+   * status set.
    * @param time_ns
+   * @return true if the time was reached, false if interrupted
    */
-  public static void waitUntil(long time_ns) {
+  public static boolean waitUntil(long time_ns) {
     long now = System.nanoTime();
     while (now < time_ns) {
+      if (Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
       long wait = time_ns - now;
-      try {
-        Thread.sleep(wait / 1000000, (int)(wait % 1000));
-      } catch (InterruptedException ie) {
-        // Restart loop
+      if (wait > SPIN_THRESHOLD_NS) {
+        // Returns early if spuriously woken: just restart loop
+        LockSupport.parkNanos(wait - SPIN_THRESHOLD_NS);
+      } else {
+        Thread.yield();
       }
       now = System.nanoTime();
     }
+    return true;
   }
 }
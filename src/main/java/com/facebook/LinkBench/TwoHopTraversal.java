@@ -0,0 +1,294 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A two hop traversal of the graph, as for friend of friend queries: the
+ * link list of id1 is fetched, then for the first K links on the list,
+ * the link list or link count of the same type is fetched for the id2 of
+ * the link.  A single traversal can read far more rows than any single
+ * operation.
+ *
+ * The second hop can be done one query at a time with a blocking store
+ * (runSerial), or through the asynchronous store interface with up to a
+ * configured number of queries in flight (start or run).  The number of
+ * id2s traversed and the total number of rows read are kept for reporting.
+ * A TwoHopTraversal object can be reused for another traversal once the
+ * previous one has completed.
+ */
+public class TwoHopTraversal {
+  private final AsyncLinkStore asyncStore;
+  private final String dbid;
+
+  /** If true, count links at second hop instead of fetching them */
+  private final boolean countOnly;
+
+  /** Max number of second hop queries in flight at once */
+  private final int parallelism;
+
+  private final FirstHop firstHop = new FirstHop();
+  private final SecondHop secondHop = new SecondHop();
+  private final BlockingCallback<Long> waiter =
+                                            new BlockingCallback<Long>();
+
+  private long link_type;
+  private StoreCallback<? super Long> callback;
+
+  /** id2s to visit on the second hop */
+  private long id2s[] = new long[16];
+  private int fanout;
+
+  /** Next second hop query to issue */
+  private final AtomicInteger nextQuery = new AtomicInteger();
+  /** Second hop queries completed */
+  private final AtomicInteger queriesDone = new AtomicInteger();
+  private final AtomicLong rows = new AtomicLong();
+  private volatile Throwable error;
+
+  /**
+   * @param asyncStore store to use for start() and run().  May be null
+   *    if only runSerial() will be used
+   */
+  public TwoHopTraversal(AsyncLinkStore asyncStore, String dbid,
+                         boolean countOnly, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Bad parallelism " + parallelism);
+    }
+    this.asyncStore = asyncStore;
+    this.dbid = dbid;
+    this.countOnly = countOnly;
+    this.parallelism = parallelism;
+  }
+
+  public TwoHopTraversal(AsyncLinkStore asyncStore, Properties props) {
+    this(asyncStore, ConfigUtil.getPropertyRequired(props, Config.DBID),
+         ConfigUtil.getBool(props, Config.GET2HOP_COUNT, false),
+         getParallelism(props));
+  }
+
+  static int getParallelism(Properties props) {
+    int parallelism = ConfigUtil.getInt(props, Config.GET2HOP_PARALLELISM, 1);
+    if (parallelism < 1) {
+      throw new LinkBenchConfigError(Config.GET2HOP_PARALLELISM +
+                                     " must be >= 1");
+    }
+    return parallelism;
+  }
+
+  /**
+   * @return true if two hop traversals are part of the request workload
+   */
+  public static boolean isEnabled(Properties props) {
+    return WorkloadPhase.mixIncludes(props, Config.PR_GET_2HOP);
+  }
+
+  /**
+   * @return true if traversals with this configuration need the
+   *    asynchronous store interface even if requests are not pipelined
+   */
+  public static boolean needsAsyncStore(Properties props) {
+    return getParallelism(props) > 1;
+  }
+
+  /**
+   * @return the most operations a single traversal with this configuration
+   *    can have in flight at once
+   */
+  public static int getMaxConcurrency(Properties props) {
+    return getParallelism(props);
+  }
+
+  /** @return number of id2s visited on second hop by last traversal */
+  public int getFanout() {
+    return fanout;
+  }
+
+  /**
+   * @return number of rows read by the last traversal: links fetched, or
+   *     one per count at the second hop
+   */
+  public long getRowsTouched() {
+    return rows.get();
+  }
+
+  /**
+   * Run a traversal, with queries at the second hop in parallel if
+   * configured and an asynchronous store was provided, and wait for it
+   * @param store blocking store to use if not running in parallel
+   * @return number of rows read
+   */
+  public long execute(LinkStore store, long id1, long link_type,
+                      int maxFanout) throws Exception {
+    if (asyncStore != null && parallelism > 1) {
+      return run(id1, link_type, maxFanout);
+    } else {
+      return runSerial(store, id1, link_type, maxFanout);
+    }
+  }
+
+  /**
+   * Run a traversal, doing one query at a time, waiting for each
+   * @param maxFanout number of links from first hop to follow
+   * @return number of rows read
+   */
+  public long runSerial(LinkStore store, long id1, long link_type,
+                        int maxFanout) throws Exception {
+    Link links[] = store.getLinkList(dbid, id1, link_type);
+    long nrows = links == null ? 0 : links.length;
+    fanout = Math.min(maxFanout, (int)nrows);
+    for (int i = 0; i < fanout; i++) {
+      if (countOnly) {
+        store.countLinks(dbid, links[i].id2, link_type);
+        nrows++;
+      } else {
+        Link hop[] = store.getLinkList(dbid, links[i].id2, link_type);
+        nrows += hop == null ? 0 : hop.length;
+      }
+    }
+    rows.set(nrows);
+    return nrows;
+  }
+
+  /**
+   * Start a traversal through the asynchronous store.  The callback is
+   * called, from any thread, with the number of rows read once all queries
+   * have completed, or with the first error if any failed.
+   * @param maxFanout number of links from first hop to follow
+   */
+  public void start(long id1, long link_type, int maxFanout,
+                    StoreCallback<? super Long> callback) {
+    this.link_type = link_type;
+    this.callback = callback;
+    this.fanout = maxFanout;
+    this.error = null;
+    rows.set(0);
+    try {
+      asyncStore.getLinkListAsync(dbid, id1, link_type, firstHop);
+    } catch (Throwable e) {
+      callback.failed(e);
+    }
+  }
+
+  /**
+   * Run a traversal through the asynchronous store and wait for it
+   * @return number of rows read
+   * @throws Exception the first error from a query
+   */
+  public long run(long id1, long link_type, int maxFanout) throws Exception {
+    waiter.reset();
+    start(id1, link_type, maxFanout, waiter);
+    return waiter.await();
+  }
+
+  private void finish() {
+    Throwable e = error;
+    if (e != null) {
+      callback.failed(e);
+    } else {
+      callback.completed(rows.get());
+    }
+  }
+
+  /**
+   * Issue second hop query i
+   */
+  private void issue(int i) {
+    try {
+      if (countOnly) {
+        asyncStore.countLinksAsync(dbid, id2s[i], link_type, secondHop);
+      } else {
+        asyncStore.getLinkListAsync(dbid, id2s[i], link_type, secondHop);
+      }
+    } catch (Throwable e) {
+      secondHop.failed(e);
+    }
+  }
+
+  private synchronized void setError(Throwable e) {
+    if (error == null) {
+      error = e;
+    }
+  }
+
+  private class FirstHop implements StoreCallback<Link[]> {
+    @Override
+    public void completed(Link[] links) {
+      int nlinks = links == null ? 0 : links.length;
+      rows.addAndGet(nlinks);
+      fanout = Math.min(fanout, nlinks);
+      if (id2s.length < fanout) {
+        id2s = new long[fanout];
+      }
+      for (int i = 0; i < fanout; i++) {
+        id2s[i] = links[i].id2;
+      }
+      if (fanout == 0) {
+        finish();
+        return;
+      }
+      int initial = Math.min(parallelism, fanout);
+      queriesDone.set(0);
+      nextQuery.set(initial);
+      for (int i = 0; i < initial; i++) {
+        issue(i);
+      }
+    }
+
+    @Override
+    public void failed(Throwable e) {
+      fanout = 0;
+      setError(e);
+      finish();
+    }
+  }
+
+  /**
+   * Callback shared by all second hop queries.  Each completion issues the
+   * next query, so that the number in flight stays at the parallelism.
+   */
+  private class SecondHop implements StoreCallback<Object> {
+    @Override
+    public void completed(Object result) {
+      if (countOnly) {
+        rows.incrementAndGet();
+      } else {
+        Link links[] = (Link[]) result;
+        rows.addAndGet(links == null ? 0 : links.length);
+      }
+      next();
+    }
+
+    @Override
+    public void failed(Throwable e) {
+      setError(e);
+      next();
+    }
+
+    private void next() {
+      int i = nextQuery.getAndIncrement();
+      if (i < fanout) {
+        issue(i);
+      }
+      if (queriesDone.incrementAndGet() == fanout) {
+        finish();
+      }
+    }
+  }
+}
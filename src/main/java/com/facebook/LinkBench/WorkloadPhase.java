@@ -0,0 +1,324 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * One phase of a phased request workload.  A workload script chains phases
+ * together, each with its own duration, arrival rate and operation mix,
+ * so that the behaviour of the database can be observed across changes in
+ * load.
+ *
+ * The script is a properties file, given by the workload_script config
+ * key, that lists the phases in order and then configures each phase with
+ * keys prefixed by phase.&lt;name&gt;.  For example:
+ * <pre>
+ * phases = rampup,steady,burst
+ * phase.rampup.duration = 60
+ * phase.rampup.rate_shape = ramp
+ * phase.rampup.rate = 100
+ * phase.rampup.rate_end = 1000
+ * phase.steady.duration = 300
+ * phase.steady.rate = 1000
+ * phase.burst.duration = 30
+ * phase.burst.rate = 2000
+ * phase.burst.addlink = 60
+ * phase.burst.getlinklist = 40
+ * </pre>
+ * Rates are requests per second per requester, like requestrate.  If a
+ * phase sets any of the operation mix percentages, operations it does not
+ * mention have probability zero in that phase.  Otherwise the phase uses the
+ * mix from the main configuration.
+ */
+public class WorkloadPhase {
+  public static final String PHASES = "phases";
+  public static final String PHASE_PREFIX = "phase.";
+  public static final String DURATION = "duration";
+  public static final String RATE = "rate";
+  public static final String RATE_END = "rate_end";
+  public static final String RATE_SHAPE = "rate_shape";
+  public static final String SINE_AMPLITUDE = "sine_amplitude";
+  public static final String SINE_PERIOD = "sine_period";
+
+  /** Operation mix keys that can be set per phase */
+  public static final String MIX_KEYS[] = {
+    Config.PR_ADD_LINK, Config.PR_DELETE_LINK, Config.PR_UPDATE_LINK,
+    Config.PR_COUNT_LINKS, Config.PR_GET_LINK, Config.PR_GET_LINK_LIST,
+    Config.PR_ADD_NODE, Config.PR_UPDATE_NODE, Config.PR_DELETE_NODE,
+    Config.PR_GET_NODE, Config.PR_PAGE_LOAD, Config.PR_GET_2HOP,
+    Config.PR_MULTIGET_NODE, Config.PR_MULTICOUNT_LINK,
+    Config.PR_MULTIGET_LINK_LIST };
+
+  /**
+   * Rates below this, which shaped phases may pass through, are rounded up
+   * so that the gap between requests stays bounded
+   */
+  public static final double MIN_SHAPED_RATE = 1.0;
+
+  public static enum RateShape {
+    /** Fixed rate.  A rate <= 0 means unthrottled */
+    CONSTANT,
+    /** Rate changes linearly from rate to rate_end over the phase */
+    RAMP,
+    /**
+     * Rate follows a sine wave around rate, with peak deviation
+     * sine_amplitude * rate, repeating every sine_period seconds
+     */
+    SINE
+  }
+
+  private final String name;
+  private final long duration_s;
+  private final RateShape shape;
+  private final double rate;
+  private final double rateEnd;
+  private final double sineAmplitude;
+  private final double sinePeriod_s;
+
+  /** Operation mix for phase, or null to use main configuration */
+  private final Properties mix;
+
+  public WorkloadPhase(String name, long duration_s, RateShape shape,
+      double rate, double rateEnd, double sineAmplitude, double sinePeriod_s,
+      Properties mix) {
+    this.name = name;
+    this.duration_s = duration_s;
+    this.shape = shape;
+    this.rate = rate;
+    this.rateEnd = rateEnd;
+    this.sineAmplitude = sineAmplitude;
+    this.sinePeriod_s = sinePeriod_s;
+    this.mix = mix;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getDuration_s() {
+    return duration_s;
+  }
+
+  public long getDuration_ns() {
+    return duration_s * 1000L * 1000L * 1000L;
+  }
+
+  /**
+   * @return true if requests should be throttled during this phase
+   */
+  public boolean isThrottled() {
+    return shape != RateShape.CONSTANT || rate > 0;
+  }
+
+  /**
+   * @param elapsed_ns time since start of phase
+   * @return request rate in requests per second at that point of the phase
+   */
+  public double rateAt(long elapsed_ns) {
+    double elapsed_s = Math.min(elapsed_ns / 1e9, duration_s);
+    switch (shape) {
+    case CONSTANT:
+      return rate;
+    case RAMP:
+      return Math.max(MIN_SHAPED_RATE,
+                      rate + (rateEnd - rate) * (elapsed_s / duration_s));
+    case SINE:
+      return Math.max(MIN_SHAPED_RATE, rate * (1 + sineAmplitude *
+                      Math.sin(2 * Math.PI * elapsed_s / sinePeriod_s)));
+    default:
+      throw new IllegalStateException("Unknown rate shape " + shape);
+    }
+  }
+
+  /**
+   * @param base main configuration
+   * @return configuration with the operation mix for this phase
+   */
+  public Properties applyMix(Properties base) {
+    Properties props = new Properties();
+    props.putAll(base);
+    if (mix != null) {
+      props.putAll(mix);
+    }
+    return props;
+  }
+
+  @Override
+  public String toString() {
+    return "WorkloadPhase(" + name + ": duration=" + duration_s + "s shape=" +
+           shape + " rate=" + rate + (shape == RateShape.RAMP ?
+           " rate_end=" + rateEnd : "") + (shape == RateShape.SINE ?
+           " amplitude=" + sineAmplitude + " period=" + sinePeriod_s + "s" :
+           "") + " mix=" + (mix == null ? "default" : mix) + ")";
+  }
+
+  /**
+   * @param key operation mix key, e.g. Config.PR_PAGE_LOAD
+   * @return true if the operation has a non-zero percentage in the main
+   *    configuration or in any phase of the workload script
+   */
+  public static boolean mixIncludes(Properties props, String key) {
+    if (ConfigUtil.getDouble(props, key, 0.0) > 0) {
+      return true;
+    }
+    List<WorkloadPhase> phases = loadScript(props);
+    if (phases != null) {
+      for (WorkloadPhase phase: phases) {
+        if (ConfigUtil.getDouble(phase.applyMix(props), key, 0.0) > 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Load the phases from the workload script given in the configuration
+   * @return the phases in order, or null if no script was configured
+   */
+  public static List<WorkloadPhase> loadScript(Properties props) {
+    String filename = props.getProperty(Config.WORKLOAD_SCRIPT);
+    if (filename == null || filename.trim().length() == 0) {
+      return null;
+    }
+    filename = filename.trim();
+
+    // If relative path, should be relative to linkbench home directory
+    if (!new File(filename).isAbsolute()) {
+      String linkBenchHome = ConfigUtil.findLinkBenchHome();
+      if (linkBenchHome == null) {
+        throw new LinkBenchConfigError("Config property "
+            + Config.WORKLOAD_SCRIPT
+            + " was specified using a relative path, but linkbench home"
+            + " directory was not specified through environment var "
+            + ConfigUtil.linkbenchHomeEnvVar);
+      }
+      filename = linkBenchHome + File.separator + filename;
+    }
+
+    Properties script = new Properties();
+    try {
+      InputStream in = new FileInputStream(filename);
+      try {
+        script.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new LinkBenchConfigError("Could not read workload script " +
+                                     filename + ": " + e.getMessage());
+    }
+    return parseScript(script);
+  }
+
+  /**
+   * Parse the phases from the contents of a workload script
+   */
+  public static List<WorkloadPhase> parseScript(Properties script) {
+    String phaseList = ConfigUtil.getPropertyRequired(script, PHASES);
+    List<WorkloadPhase> phases = new ArrayList<WorkloadPhase>();
+    for (String name: phaseList.split(",")) {
+      name = name.trim();
+      if (name.length() > 0) {
+        phases.add(parsePhase(script, name));
+      }
+    }
+    if (phases.isEmpty()) {
+      throw new LinkBenchConfigError("Workload script has no phases");
+    }
+    return phases;
+  }
+
+  private static WorkloadPhase parsePhase(Properties script, String name) {
+    String prefix = PHASE_PREFIX + name + ".";
+    long duration = ConfigUtil.getLong(script, prefix + DURATION);
+    if (duration <= 0) {
+      throw new LinkBenchConfigError(prefix + DURATION + " must be > 0");
+    }
+
+    RateShape shape;
+    String shapeName = script.getProperty(prefix + RATE_SHAPE, "constant");
+    try {
+      shape = RateShape.valueOf(shapeName.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new LinkBenchConfigError("Unknown rate shape for phase " + name +
+                                     ": " + shapeName);
+    }
+
+    double rate = ConfigUtil.getDouble(script, prefix + RATE, 0.0);
+    double rateEnd = 0.0;
+    double amplitude = 0.0;
+    double period = 0.0;
+    switch (shape) {
+    case RAMP:
+      rateEnd = ConfigUtil.getDouble(script, prefix + RATE_END);
+      if (rate < 0 || rateEnd < 0) {
+        throw new LinkBenchConfigError("Ramp rates for phase " + name +
+                                       " must be >= 0");
+      }
+      break;
+    case SINE:
+      amplitude = ConfigUtil.getDouble(script, prefix + SINE_AMPLITUDE);
+      period = ConfigUtil.getDouble(script, prefix + SINE_PERIOD);
+      if (rate <= 0) {
+        throw new LinkBenchConfigError(prefix + RATE + " must be > 0");
+      }
+      if (amplitude < 0 || amplitude > 1) {
+        throw new LinkBenchConfigError(prefix + SINE_AMPLITUDE +
+                                       " must be between 0 and 1");
+      }
+      if (period <= 0) {
+        throw new LinkBenchConfigError(prefix + SINE_PERIOD + " must be > 0");
+      }
+      break;
+    default:
+      break;
+    }
+
+    // Operation mix: if any set, others default to zero
+    Properties mix = null;
+    for (String key: MIX_KEYS) {
+      if (script.containsKey(prefix + key)) {
+        mix = new Properties();
+        break;
+      }
+    }
+    if (mix != null) {
+      double total = 0.0;
+      for (String key: MIX_KEYS) {
+        double p = ConfigUtil.getDouble(script, prefix + key, 0.0);
+        if (p < 0) {
+          throw new LinkBenchConfigError(prefix + key + " must be >= 0");
+        }
+        total += p;
+        mix.setProperty(key, Double.toString(p));
+      }
+      if (Math.abs(total - 100.0) > 1e-5) {
+        throw new LinkBenchConfigError("Percentages of request types for " +
+            "phase " + name + " do not add to 100, only " + total + "!");
+      }
+    }
+    return new WorkloadPhase(name, duration, shape, rate, rateEnd, amplitude,
+                             period, mix);
+  }
+}
@@ -122,6 +122,17 @@ public class ID2Chooser {
   public long[] chooseMultipleForOp(Random rng, long id1, long linkType,
       int nid2s, double pExisting) {
     long id2s[] = new long[nid2s];
+    chooseMultipleForOp(rng, id1, linkType, id2s, pExisting);
+    return id2s;
+  }
+
+  /**
+   * Choose id2s for a multiget, filling in the provided array
+   * @param id2s array to fill, of length equal to the number of ids wanted
+   */
+  public void chooseMultipleForOp(Random rng, long id1, long linkType,
+      long id2s[], double pExisting) {
+    int nid2s = id2s.length;
     long nlinks = calcLinkCount(id1, linkType);
     long range = calcID2Range(pExisting, nlinks);
     if (range <= nid2s && randomid2max == 0) {
@@ -145,8 +156,6 @@ public class ID2Chooser {
         id2s[i] = id2;
       }
     }
-
-    return id2s;
   }
 
   /**
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.DecimalFormat;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.ConfigUtil;
+import com.facebook.LinkBench.LinkBenchOp;
+import com.facebook.LinkBench.LinkStore;
+
+/**
+ * Tracks heap memory allocated by each thread per operation, to check how
+ * much garbage the request loop generates.  Allocation is measured with the
+ * per-thread allocation counters of the HotSpot ThreadMXBean, so includes
+ * everything allocated while executing the operation, both by the driver
+ * and by the store client.
+ *
+ * Each thread records into its own slot, so recording needs no locking.
+ */
+public class AllocationStats {
+
+  private final com.sun.management.ThreadMXBean threadBean;
+
+  /** Bytes allocated by a call to threadAllocatedBytes itself */
+  private final long overhead;
+
+  /** Bytes allocated by thread and op type */
+  private final long bytes[][];
+
+  /** Operations recorded by thread and op type */
+  private final long counts[][];
+
+  public AllocationStats(int maxThreads) {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Thread allocation counters" +
+                                              " not supported by this JVM");
+    }
+    threadBean = (com.sun.management.ThreadMXBean)
+                                    ManagementFactory.getThreadMXBean();
+    bytes = new long[maxThreads][LinkStore.MAX_OPTYPES];
+    counts = new long[maxThreads][LinkStore.MAX_OPTYPES];
+
+    // Calibrate so that cost of measurement is not attributed to operations
+    long minOverhead = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      long start = threadAllocatedBytes();
+      minOverhead = Math.min(minOverhead, threadAllocatedBytes() - start);
+    }
+    overhead = minOverhead;
+  }
+
+  /**
+   * @return true if the JVM can measure allocation per thread
+   */
+  public static boolean isSupported() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return false;
+    }
+    com.sun.management.ThreadMXBean sunBean =
+                                  (com.sun.management.ThreadMXBean) bean;
+    if (!sunBean.isThreadAllocatedMemorySupported()) {
+      return false;
+    }
+    if (!sunBean.isThreadAllocatedMemoryEnabled()) {
+      sunBean.setThreadAllocatedMemoryEnabled(true);
+    }
+    return true;
+  }
+
+  /**
+   * @return total bytes allocated so far by the calling thread
+   */
+  public long threadAllocatedBytes() {
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Record memory allocated by an operation
+   * @param startBytes value of threadAllocatedBytes() before the operation
+   */
+  public void recordAllocation(int threadid, LinkBenchOp type,
+                               long startBytes) {
+    long allocated = threadAllocatedBytes() - startBytes - overhead;
+    bytes[threadid][type.ordinal()] += Math.max(0, allocated);
+    counts[threadid][type.ordinal()]++;
+  }
+
+  public long getCount(LinkBenchOp type) {
+    long total = 0;
+    for (long threadCounts[]: counts) {
+      total += threadCounts[type.ordinal()];
+    }
+    return total;
+  }
+
+  public long getBytes(LinkBenchOp type) {
+    long total = 0;
+    for (long threadBytes[]: bytes) {
+      total += threadBytes[type.ordinal()];
+    }
+    return total;
+  }
+
+  /**
+   * @return mean bytes allocated per operation of the type
+   */
+  public double getBytesPerOp(LinkBenchOp type) {
+    long count = getCount(type);
+    return count == 0 ? 0.0 : getBytes(type) / (double) count;
+  }
+
+  /**
+   * Print out bytes allocated per operation for each type
+   */
+  public void displayAllocationStats() {
+    Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+    DecimalFormat df = new DecimalFormat("#.#");
+    long totalCount = 0;
+    long totalBytes = 0;
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      long count = getCount(type);
+      if (count == 0) {
+        continue;
+      }
+      totalCount += count;
+      totalBytes += getBytes(type);
+      logger.info(type.displayName() + " count = " + count +
+                  " allocated = " + df.format(getBytesPerOp(type)) +
+                  " bytes/op");
+    }
+    if (totalCount > 0) {
+      logger.info("ALL count = " + totalCount + " allocated = " +
+                  df.format(totalBytes / (double) totalCount) + " bytes/op");
+    }
+  }
+}
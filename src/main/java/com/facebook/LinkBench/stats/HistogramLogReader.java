@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read a log of interval histograms written by HistogramLogWriter.
+ * Operation types are identified by name, so logs can be read by a
+ * different version of LinkBench.  A log that was cut short, e.g. because
+ * the benchmark is still running, is read up to the last complete
+ * interval.
+ */
+public class HistogramLogReader implements Closeable {
+
+  /** Histograms for one interval */
+  public static class Interval {
+    /** Wall clock start time of interval in milliseconds */
+    public final long start_ms;
+    /** Histograms by operation type name */
+    public final Map<String, LogLinearHistogram> histograms;
+
+    public Interval(long start_ms, Map<String, LogLinearHistogram> histograms) {
+      this.start_ms = start_ms;
+      this.histograms = histograms;
+    }
+  }
+
+  private final DataInputStream in;
+  private final long startTime_ms;
+  private final long interval_ms;
+  private final int precisionDigits;
+  private final String opNames[];
+  private boolean done = false;
+
+  public HistogramLogReader(File file) throws IOException {
+    this(new FileInputStream(file));
+  }
+
+  public HistogramLogReader(InputStream is) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(
+                                 new GZIPInputStream(is)));
+    int magic = in.readInt();
+    if (magic != HistogramLogWriter.MAGIC) {
+      throw new IOException("Not a histogram log: bad magic number " +
+                            Integer.toHexString(magic));
+    }
+    int version = in.readInt();
+    if (version != HistogramLogWriter.VERSION) {
+      throw new IOException("Unsupported histogram log version " + version);
+    }
+    startTime_ms = in.readLong();
+    interval_ms = in.readLong();
+    precisionDigits = in.readInt();
+    int nOps = in.readInt();
+    if (nOps < 0) {
+      throw new IOException("Invalid number of operation types " + nOps);
+    }
+    opNames = new String[nOps];
+    for (int i = 0; i < nOps; i++) {
+      opNames[i] = in.readUTF();
+    }
+  }
+
+  /** @return wall clock time log was started, in milliseconds */
+  public long getStartTime_ms() {
+    return startTime_ms;
+  }
+
+  public long getInterval_ms() {
+    return interval_ms;
+  }
+
+  public int getPrecisionDigits() {
+    return precisionDigits;
+  }
+
+  /**
+   * @return the next interval record, or null at end of log
+   */
+  public Interval next() throws IOException {
+    if (done) {
+      return null;
+    }
+    try {
+      byte tag = in.readByte();
+      if (tag == HistogramLogWriter.TAG_END) {
+        done = true;
+        return null;
+      } else if (tag != HistogramLogWriter.TAG_INTERVAL) {
+        throw new IOException("Invalid record tag " + tag +
+                              " in histogram log");
+      }
+      long offset_ms = in.readLong();
+      int nOps = in.readInt();
+      Map<String, LogLinearHistogram> histograms =
+                              new LinkedHashMap<String, LogLinearHistogram>();
+      for (int i = 0; i < nOps; i++) {
+        int op = in.readInt();
+        if (op < 0 || op >= opNames.length) {
+          throw new IOException("Invalid operation type " + op +
+                                " in histogram log");
+        }
+        histograms.put(opNames[op], LogLinearHistogram.read(in));
+      }
+      return new Interval(startTime_ms + offset_ms, histograms);
+    } catch (EOFException e) {
+      // Log was not closed: ignore incomplete record at end
+      done = true;
+      return null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
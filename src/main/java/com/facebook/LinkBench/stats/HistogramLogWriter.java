@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.ConfigUtil;
+import com.facebook.LinkBench.LinkBenchOp;
+import com.facebook.LinkBench.LinkStore;
+
+/**
+ * Log of latency histograms per fixed time interval, merged across all
+ * requesters, so that latency can be analyzed over time after the run,
+ * e.g. to line up latency spikes with events on the server.  Read with
+ * HistogramLogReader.
+ *
+ * Each requester records into histograms of its own through a Recorder,
+ * without locking, and the histograms are merged and written on a
+ * background thread as described in IntervalCollector.  Histograms that
+ * arrive after their interval was written are written as another record
+ * for the same interval, and readers add them together.
+ *
+ * The log is gzip compressed and flushed after each interval is written,
+ * so it can be read while the benchmark is running.  start() must be
+ * called to write intervals while running, otherwise they are all
+ * written by close().  It starts with a
+ * header of magic number, format version, wall clock start time and
+ * interval length in milliseconds, histogram precision and the names of
+ * operation types, so that it can be read without reference to the
+ * version of LinkBench that wrote it.  Each interval record is a record
+ * tag, the interval start as milliseconds after the log start, the number
+ * of operation types, then the index of each operation type name followed
+ * by its histogram, written by LogLinearHistogram.writeTo.  The log ends
+ * with an end tag.
+ */
+public class HistogramLogWriter
+                extends IntervalCollector<LogLinearHistogram[]>
+                implements Closeable {
+  public static final int MAGIC = 0x4C42484C; // "LBHL"
+  public static final int VERSION = 1;
+
+  static final byte TAG_INTERVAL = 1;
+  static final byte TAG_END = 0;
+
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  /** Only written to by background thread until closed */
+  private final DataOutputStream out;
+
+  private final long interval_ms;
+  private final int precisionDigits;
+
+  private volatile long intervalsWritten = 0;
+  /** Set if writing failed, after which nothing more is written */
+  private IOException error = null;
+  private boolean closed = false;
+
+  public HistogramLogWriter(File file, long interval_ms, int precisionDigits)
+                            throws IOException {
+    this(new FileOutputStream(file), interval_ms, precisionDigits);
+  }
+
+  public HistogramLogWriter(OutputStream os, long interval_ms,
+                            int precisionDigits) throws IOException {
+    super(interval_ms, "HistogramLogWriter");
+    this.interval_ms = interval_ms;
+    this.precisionDigits = precisionDigits;
+    // Sync flush so that complete intervals can be read from a partial log
+    out = new DataOutputStream(new BufferedOutputStream(
+                                   new GZIPOutputStream(os, true)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(System.currentTimeMillis());
+    out.writeLong(interval_ms);
+    out.writeInt(precisionDigits);
+    LinkBenchOp ops[] = LinkBenchOp.values();
+    out.writeInt(ops.length);
+    for (LinkBenchOp op: ops) {
+      out.writeUTF(op.name());
+    }
+    out.flush();
+  }
+
+  public int getPrecisionDigits() {
+    return precisionDigits;
+  }
+
+  /**
+   * @return new recorder, to be used by a single requester
+   */
+  public Recorder newRecorder() {
+    return new Recorder();
+  }
+
+  @Override
+  protected LogLinearHistogram[] newBuffer() {
+    return new LogLinearHistogram[LinkStore.MAX_OPTYPES];
+  }
+
+  @Override
+  protected void merge(LogLinearHistogram into[], LogLinearHistogram from[]) {
+    for (int i = 0; i < from.length; i++) {
+      if (from[i] != null && from[i].getTotalCount() > 0) {
+        if (into[i] == null) {
+          into[i] = new LogLinearHistogram(precisionDigits);
+        }
+        into[i].add(from[i]);
+      }
+    }
+  }
+
+  @Override
+  protected void reset(LogLinearHistogram hists[]) {
+    for (LogLinearHistogram hist: hists) {
+      if (hist != null) {
+        hist.reset();
+      }
+    }
+  }
+
+  @Override
+  protected void report(long interval, LogLinearHistogram hists[]) {
+    if (error != null) {
+      return;
+    }
+    try {
+      if (writeInterval(interval, hists)) {
+        out.flush();
+      }
+    } catch (IOException e) {
+      // Latency is still recorded in the other statistics
+      logger.error("Stopped writing histogram log after error", e);
+      error = e;
+    }
+  }
+
+  /**
+   * @return true if a record was written
+   */
+  private boolean writeInterval(long interval, LogLinearHistogram hists[])
+                                throws IOException {
+    int nOps = 0;
+    for (LogLinearHistogram hist: hists) {
+      if (hist != null && hist.getTotalCount() > 0) {
+        nOps++;
+      }
+    }
+    if (nOps == 0) {
+      return false;
+    }
+    out.writeByte(TAG_INTERVAL);
+    out.writeLong(interval * interval_ms);
+    out.writeInt(nOps);
+    for (int i = 0; i < hists.length; i++) {
+      if (hists[i] != null && hists[i].getTotalCount() > 0) {
+        out.writeInt(i);
+        hists[i].writeTo(out);
+      }
+    }
+    intervalsWritten++;
+    return true;
+  }
+
+  /**
+   * @return number of interval records written so far
+   */
+  public long getIntervalsWritten() {
+    return intervalsWritten;
+  }
+
+  /**
+   * Stop background thread, write out all remaining intervals and close
+   * the log.  Recorders should have been flushed first.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      stop();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted closing histogram log");
+    }
+    if (error == null) {
+      out.writeByte(TAG_END);
+    }
+    out.close();
+  }
+
+  /**
+   * Records latency histograms for a single requester, without locking
+   */
+  public class Recorder {
+    private final Source source = newSource();
+
+    private Recorder() {
+    }
+
+    /**
+     * @param time_ns time from System.nanoTime() that the request ended
+     */
+    public void record(LinkBenchOp type, long value, long time_ns) {
+      LogLinearHistogram hists[] = source.begin(time_ns);
+      try {
+        LogLinearHistogram hist = hists[type.ordinal()];
+        if (hist == null) {
+          hist = new LogLinearHistogram(precisionDigits);
+          hists[type.ordinal()] = hist;
+        }
+        hist.record(value);
+      } finally {
+        source.end();
+      }
+    }
+
+    /**
+     * Hand over histograms for current interval to the log
+     */
+    public void flush() {
+      source.flush();
+    }
+  }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.ConfigUtil;
+import com.facebook.LinkBench.LinkBenchOp;
+import com.facebook.LinkBench.LinkStore;
+
+/**
+ * Aggregates statistics over fixed time intervals across all requester
+ * threads, and reports one line per operation type for each interval, with
+ * throughput, errors and percentiles over all threads.
+ *
+ * Each thread records into its own Recorder without locking, and the
+ * buffers are merged and reported as described in IntervalCollector.
+ * Buffers that arrive after their interval was reported are reported as
+ * another line for the same interval.
+ */
+public class IntervalAggregator
+                extends IntervalCollector<IntervalAggregator.IntervalData> {
+
+  /** Percentiles reported, as in SampledStats with p99.9 */
+  private static final double PERCENTILES[] = {25, 50, 75, 90, 95, 99, 99.9};
+
+  /**
+   * @return copy of percentiles reported for each interval
+   */
+  public static double[] getPercentiles() {
+    return PERCENTILES.clone();
+  }
+
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final long interval_ms;
+  private final int maxBuckets;
+
+  /** Stream to write csv output to ( null if no csv output ) */
+  private final PrintStream csvOutput;
+
+  /** If not null, csv output is written through here instead */
+  private StatsOutput.Channel outputChannel = null;
+
+  /** Wall clock time that intervals are measured from */
+  private final long startTime_ms;
+
+  /** Totals since start by op type */
+  private final long totalOps[] = new long[LinkStore.MAX_OPTYPES];
+  private final long totalErrors[] = new long[LinkStore.MAX_OPTYPES];
+
+  /** Most recently reported interval, for readers on other threads */
+  private volatile Snapshot latest = null;
+
+  /**
+   * @param maxBuckets max buckets in each quantile sketch
+   * @param csvOutput also write reports here in the same format as
+   *    SampledStats, with threadID "all", if not null
+   */
+  public IntervalAggregator(long interval_ms, int maxBuckets,
+                            PrintStream csvOutput) {
+    super(interval_ms, "IntervalAggregator");
+    this.interval_ms = interval_ms;
+    this.maxBuckets = maxBuckets;
+    this.csvOutput = csvOutput;
+    this.startTime_ms = System.currentTimeMillis();
+  }
+
+  /**
+   * Write csv output through a channel of output, instead of the stream
+   * given to the constructor.  Must be called before start().
+   */
+  public void setStatsOutput(StatsOutput output) {
+    this.outputChannel = output == null ? null : output.newChannel();
+  }
+
+  /**
+   * @return new recorder, to be used by a single thread
+   */
+  public Recorder newRecorder() {
+    return new Recorder();
+  }
+
+  /**
+   * @return statistics for the most recently reported interval, or null
+   *    if none reported yet.  Safe to call from any thread.
+   */
+  public Snapshot getLatest() {
+    return latest;
+  }
+
+  @Override
+  protected IntervalData newBuffer() {
+    return new IntervalData(maxBuckets);
+  }
+
+  @Override
+  protected void merge(IntervalData into, IntervalData from) {
+    into.add(from);
+  }
+
+  @Override
+  protected void reset(IntervalData data) {
+    data.reset();
+  }
+
+  @Override
+  protected void report(long interval, IntervalData data) {
+    long intervalStart_ms = startTime_ms + interval * interval_ms;
+    long intervalEnd_ms = intervalStart_ms + interval_ms;
+    String time = new SimpleDateFormat("HH:mm:ss").format(
+                                        new Date(intervalStart_ms));
+    DecimalFormat df = new DecimalFormat("#.##");
+    Snapshot snapshot = new Snapshot(interval, intervalStart_ms,
+                                     interval_ms);
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      int i = type.ordinal();
+      long ops = data.ops[i];
+      if (ops == 0) {
+        continue;
+      }
+      totalOps[i] += ops;
+      totalErrors[i] += data.errors[i];
+      QuantileSketch sketch = data.sketches[i];
+      long values[] = new long[PERCENTILES.length];
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        values[p] = sketch.getValueAtPercentile(PERCENTILES[p]);
+      }
+      snapshot.ops[i] = ops;
+      snapshot.errors[i] = data.errors[i];
+      snapshot.percentileValues[i] = values;
+      snapshot.max[i] = sketch.getMax();
+
+      StringBuilder sb = new StringBuilder();
+      sb.append("Interval ").append(time).append(" all threads ")
+        .append(type.displayName())
+        .append(" totalOps = ").append(totalOps[i])
+        .append(" totalErrors = ").append(totalErrors[i])
+        .append(" ops = ").append(ops)
+        .append(" ops/sec = ").append(df.format(ops * 1000.0 / interval_ms))
+        .append(" errors = ").append(data.errors[i])
+        .append(" (").append(df.format(100.0 * data.errors[i] / ops))
+        .append("%)")
+        .append(" mean = ").append(df.format(sketch.getMean()))
+        .append(" min = ").append(sketch.getMin());
+      for (int p = 0; p < PERCENTILES.length; p++) {
+        sb.append(" ").append(df.format(PERCENTILES[p])).append("% = ")
+          .append(values[p]);
+      }
+      sb.append(" max = ").append(sketch.getMax());
+      logger.info(sb.toString());
+
+      if (outputChannel != null) {
+        outputChannel.write(StatsOutput.ALL_THREADS, intervalEnd_ms / 1000,
+            type, totalOps[i], totalErrors[i], ops, interval_ms, ops,
+            sketch.getMean(), new long[] {sketch.getMin(), values[0],
+            values[1], values[2], values[3], values[4], values[5],
+            sketch.getMax()});
+      } else if (csvOutput != null) {
+        // Same columns as SampledStats, without p99.9
+        csvOutput.println("all," + intervalEnd_ms / 1000 + "," +
+            type.name() + "," + totalOps[i] + "," + totalErrors[i] + "," +
+            ops + "," + interval_ms + "," + ops + "," + sketch.getMean() +
+            "," + sketch.getMin() + "," + values[0] + "," + values[1] +
+            "," + values[2] + "," + values[3] + "," + values[4] + "," +
+            values[5] + "," + sketch.getMax());
+      }
+    }
+    // Late buffers for an earlier interval don't replace a later one
+    Snapshot prev = latest;
+    if (prev == null || prev.interval <= interval) {
+      latest = snapshot;
+    }
+  }
+
+  /**
+   * Immutable statistics for one reported interval.  Values for op types
+   * with no operations in the interval are zero, with null percentiles.
+   */
+  public static class Snapshot {
+    private final long interval;
+    private final long start_ms;
+    private final long interval_ms;
+    private final long ops[] = new long[LinkStore.MAX_OPTYPES];
+    private final long errors[] = new long[LinkStore.MAX_OPTYPES];
+    private final long percentileValues[][] =
+                                    new long[LinkStore.MAX_OPTYPES][];
+    private final long max[] = new long[LinkStore.MAX_OPTYPES];
+
+    private Snapshot(long interval, long start_ms, long interval_ms) {
+      this.interval = interval;
+      this.start_ms = start_ms;
+      this.interval_ms = interval_ms;
+    }
+
+    /** @return wall clock start time of interval */
+    public long getStartTime_ms() {
+      return start_ms;
+    }
+
+    public long getInterval_ms() {
+      return interval_ms;
+    }
+
+    public long getOps(LinkBenchOp type) {
+      return ops[type.ordinal()];
+    }
+
+    public long getErrors(LinkBenchOp type) {
+      return errors[type.ordinal()];
+    }
+
+    public double getOpsPerSec(LinkBenchOp type) {
+      return ops[type.ordinal()] * 1000.0 / interval_ms;
+    }
+
+    /**
+     * @return value at each of getPercentiles() in microseconds,
+     *    or null if no operations of this type
+     */
+    public long[] getPercentileValues(LinkBenchOp type) {
+      long values[] = percentileValues[type.ordinal()];
+      return values == null ? null : values.clone();
+    }
+
+    public long getMax(LinkBenchOp type) {
+      return max[type.ordinal()];
+    }
+  }
+
+  /**
+   * Statistics for one interval
+   */
+  static class IntervalData {
+    final int maxBuckets;
+    final long ops[] = new long[LinkStore.MAX_OPTYPES];
+    final long errors[] = new long[LinkStore.MAX_OPTYPES];
+    /** Created on first use */
+    final QuantileSketch sketches[] = new QuantileSketch[LinkStore.MAX_OPTYPES];
+
+    IntervalData(int maxBuckets) {
+      this.maxBuckets = maxBuckets;
+    }
+
+    void record(LinkBenchOp type, long value, boolean error) {
+      int i = type.ordinal();
+      ops[i]++;
+      if (error) {
+        errors[i]++;
+      }
+      sketch(i).record(value);
+    }
+
+    private QuantileSketch sketch(int i) {
+      if (sketches[i] == null) {
+        sketches[i] = new QuantileSketch(maxBuckets);
+      }
+      return sketches[i];
+    }
+
+    void add(IntervalData other) {
+      for (int i = 0; i < ops.length; i++) {
+        if (other.ops[i] > 0) {
+          ops[i] += other.ops[i];
+          errors[i] += other.errors[i];
+          sketch(i).add(other.sketches[i]);
+        }
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < ops.length; i++) {
+        if (ops[i] > 0) {
+          ops[i] = 0;
+          errors[i] = 0;
+          sketches[i].reset();
+        }
+      }
+    }
+  }
+
+  /**
+   * Records statistics for a single thread, without locking
+   */
+  public class Recorder {
+    private final Source source = newSource();
+
+    private Recorder() {
+    }
+
+    public void record(LinkBenchOp type, long value, boolean error) {
+      IntervalData data = source.begin(System.nanoTime());
+      try {
+        data.record(type, value, error);
+      } finally {
+        source.end();
+      }
+    }
+
+    /**
+     * Hand over statistics for current interval to aggregator
+     */
+    public void flush() {
+      source.flush();
+    }
+  }
+}
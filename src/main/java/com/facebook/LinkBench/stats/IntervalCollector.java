@@ -0,0 +1,300 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects data recorded by many threads over fixed time intervals, merges
+ * it on a background thread and reports it once per interval.
+ *
+ * Each thread records through its own Source into a buffer for the current
+ * interval, without locking.  When the thread records a value in a later
+ * interval, it hands the buffer over on a lock-free queue and carries on
+ * with a buffer recycled by the collector, so threads never wait for the
+ * collector.  The background thread takes over buffers for intervals that
+ * have ended from threads that have not recorded since, e.g. because they
+ * are idle, throttled or paused, so that no thread holds back its data.
+ * Each interval is reported once it has been over for a full interval.
+ * Buffers that arrive after their interval was reported, e.g. from a
+ * thread that was blocked, are reported again for the same interval.
+ *
+ * @param <T> type of buffer that data is recorded into
+ */
+public abstract class IntervalCollector<T> {
+
+  private final long interval_ms;
+  private final long interval_ns;
+  private final String threadName;
+
+  /** Intervals are measured from this time */
+  private final long start_ns;
+
+  /** Sources of all recording threads */
+  private final List<Source> sources = new CopyOnWriteArrayList<Source>();
+
+  /** Buffers handed over by sources */
+  private final Queue<Slot> completed = new ConcurrentLinkedQueue<Slot>();
+
+  /** Merged data by interval, not yet reported */
+  private final TreeMap<Long, T> pending = new TreeMap<Long, T>();
+
+  /** Merged buffers recycled after reporting */
+  private final ArrayDeque<T> spare = new ArrayDeque<T>();
+
+  private volatile boolean stopping = false;
+  private Thread thread = null;
+
+  /**
+   * @param threadName name of background thread
+   */
+  protected IntervalCollector(long interval_ms, String threadName) {
+    if (interval_ms <= 0) {
+      throw new IllegalArgumentException("Invalid interval: " + interval_ms);
+    }
+    this.interval_ms = interval_ms;
+    this.interval_ns = interval_ms * 1000000L;
+    this.threadName = threadName;
+    this.start_ns = System.nanoTime();
+  }
+
+  /**
+   * @return new empty buffer
+   */
+  protected abstract T newBuffer();
+
+  /**
+   * Add all data recorded in from to into
+   */
+  protected abstract void merge(T into, T from);
+
+  /**
+   * Remove all data from buffer, so it can be reused
+   */
+  protected abstract void reset(T buffer);
+
+  /**
+   * Report data merged from all threads for an interval.  Called on the
+   * background thread, or by the thread calling stop().
+   * @param interval interval number from intervalOf
+   */
+  protected abstract void report(long interval, T merged);
+
+  public long getInterval_ms() {
+    return interval_ms;
+  }
+
+  /**
+   * @return time that intervals are measured from, from System.nanoTime()
+   */
+  public long getStart_ns() {
+    return start_ns;
+  }
+
+  /**
+   * @param time_ns time from System.nanoTime()
+   * @return number of interval that time falls in
+   */
+  public long intervalOf(long time_ns) {
+    return Math.max(0, (time_ns - start_ns) / interval_ns);
+  }
+
+  /**
+   * @return new source, to be used by a single thread
+   */
+  protected Source newSource() {
+    Source source = new Source();
+    sources.add(source);
+    return source;
+  }
+
+  /**
+   * Start background thread that reports intervals
+   */
+  public void start() {
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!stopping) {
+          try {
+            Thread.sleep(Math.max(1, interval_ms / 4));
+          } catch (InterruptedException e) {
+            // Check if stopping
+          }
+          long current = intervalOf(System.nanoTime());
+          collect(current);
+          // Report intervals that ended at least one interval ago
+          reportPending(current - 1);
+        }
+      }
+    }, threadName);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop background thread and report all remaining intervals, including
+   * data in the current buffers of all sources
+   */
+  public void stop() throws InterruptedException {
+    stopping = true;
+    if (thread != null) {
+      thread.interrupt();
+      thread.join();
+      thread = null;
+    }
+    collect(Long.MAX_VALUE);
+    reportPending(Long.MAX_VALUE);
+  }
+
+  /**
+   * Take over current buffers for intervals before limit from sources,
+   * then merge all buffers handed over and recycle them
+   */
+  void collect(long limit) {
+    for (Source source: sources) {
+      takeOver(source, limit);
+    }
+    Slot slot;
+    while ((slot = completed.poll()) != null) {
+      T merged = pending.get(slot.interval);
+      if (merged == null) {
+        merged = spare.isEmpty() ? newBuffer() : spare.pop();
+        pending.put(slot.interval, merged);
+      }
+      merge(merged, slot.data);
+      reset(slot.data);
+      slot.owner.free.offer(slot);
+    }
+  }
+
+  private void takeOver(Source source, long limit) {
+    Slot slot = source.current.get();
+    if (slot == null || slot.interval >= limit ||
+        !source.current.compareAndSet(slot, null)) {
+      return;
+    }
+    // The owner may have read the buffer just before we took it, so wait
+    // for any value it is recording to be finished
+    long seq = source.sequence.get();
+    if ((seq & 1) != 0) {
+      while (source.sequence.get() == seq) {
+        Thread.yield();
+      }
+    }
+    completed.offer(slot);
+  }
+
+  /**
+   * Report all pending intervals numbered before limit
+   */
+  void reportPending(long limit) {
+    Iterator<Map.Entry<Long, T>> it = pending.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Long, T> e = it.next();
+      if (e.getKey() >= limit) {
+        break;
+      }
+      report(e.getKey(), e.getValue());
+      reset(e.getValue());
+      spare.push(e.getValue());
+      it.remove();
+    }
+  }
+
+  /**
+   * Buffer for one interval, owned by a source until handed over
+   */
+  private final class Slot {
+    final Source owner;
+    final T data;
+    long interval;
+
+    Slot(Source owner) {
+      this.owner = owner;
+      this.data = newBuffer();
+    }
+  }
+
+  /**
+   * Buffers of a single recording thread.  Each value is recorded between
+   * begin() and end(), which don't block.
+   */
+  protected final class Source {
+    /** Buffers recycled by collector */
+    private final Queue<Slot> free = new ConcurrentLinkedQueue<Slot>();
+    /** Buffer for latest interval, null once handed over */
+    private final AtomicReference<Slot> current = new AtomicReference<Slot>();
+    /** Incremented by begin() and end(), so odd while recording */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private Source() {
+    }
+
+    /**
+     * Start recording a value.  Values for an interval before that of the
+     * current buffer, e.g. from requests that completed out of order, are
+     * recorded in the current buffer.
+     * @param time_ns time from System.nanoTime() that value belongs to
+     * @return buffer to record value in, until end() is called
+     */
+    public T begin(long time_ns) {
+      // Volatile write before reading current, so that either the
+      // collector sees we are recording, or we see it took the buffer
+      sequence.set(sequence.get() + 1);
+      long interval = intervalOf(time_ns);
+      Slot slot = current.get();
+      if (slot == null || interval > slot.interval) {
+        if (slot != null && current.compareAndSet(slot, null)) {
+          completed.offer(slot);
+        }
+        slot = free.poll();
+        if (slot == null) {
+          slot = new Slot(this);
+        }
+        slot.interval = interval;
+        current.lazySet(slot);
+      }
+      return slot.data;
+    }
+
+    /**
+     * Finish recording value into buffer returned by begin()
+     */
+    public void end() {
+      sequence.lazySet(sequence.get() + 1);
+    }
+
+    /**
+     * Hand over current buffer to collector
+     */
+    public void flush() {
+      Slot slot = current.get();
+      if (slot != null && current.compareAndSet(slot, null)) {
+        completed.offer(slot);
+      }
+    }
+  }
+}
@@ -15,27 +15,46 @@
  */
 package com.facebook.LinkBench.stats;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
+import java.util.Properties;
 
 import org.apache.log4j.Logger;
 
+import com.facebook.LinkBench.Config;
 import com.facebook.LinkBench.ConfigUtil;
+import com.facebook.LinkBench.LinkBenchConfigError;
 import com.facebook.LinkBench.LinkBenchOp;
 import com.facebook.LinkBench.LinkStore;
 
 
 /**
  * Class used to track and compute latency statistics, particularly
- * percentiles. Times are divided into buckets, with counts maintained
- * per bucket.  The division into buckets is based on typical latencies
- * for database operations: most are in the range of 0.1ms to 100ms.
- * we have 0.1ms-granularity buckets up to 1ms, then 1ms-granularity from
- * 1-100ms, then 100ms-granularity, and then 1s-granularity.
+ * percentiles.  Latencies are counted in high dynamic range log-linear
+ * histograms (see LogLinearHistogram) with a configurable number of
+ * significant digits, so that percentiles from the median out to p99.99
+ * and the maximum are reported to within that precision, from
+ * microseconds up to hours.
+ *
+ * Each thread records into its own histograms, so recording needs no
+ * locking.  Histograms are combined across threads when statistics are
+ * reported, and across processes with writeTo and merge.
  */
 public class LatencyStats {
 
-  public static int MAX_MILLIS = 100;
+  /**
+   * Default number of significant digits of latency histograms: latencies
+   * up to about 2ms are counted to the microsecond, and a 50ms tail to
+   * within about 0.1%
+   */
+  public static final int DEFAULT_PRECISION_DIGITS = 3;
+
+  /** Percentiles reported in log and CSV output */
+  private static final double REPORT_PERCENTILES[] =
+                              {25, 50, 75, 95, 99, 99.9, 99.99};
 
   /**
    * Keep track of running mean per thread and op type
@@ -48,85 +67,79 @@ public class LatencyStats {
   // Displayed along with stats
   private int maxThreads;
 
-  public LatencyStats(int maxThreads) {
-    this.maxThreads = maxThreads;
-    means = new RunningMean[maxThreads][LinkStore.MAX_OPTYPES];
-    bucketCounts = new long[maxThreads][LinkStore.MAX_OPTYPES][NUM_BUCKETS];
-    maxLatency = new long[maxThreads][LinkStore.MAX_OPTYPES];
-  }
-
+  /** Thread id recorded in the first slot */
+  private final int firstThread;
 
-  private static final int SUB_MS_BUCKETS = 10; // Sub-ms granularity
-  private static final int MS_BUCKETS = 99; // ms-granularity buckets
-  private static final int HUNDREDMS_BUCKETS = 9; // 100ms-granularity buckets
-  private static final int SEC_BUCKETS = 9; // 1s-granularity buckets
-  public static final int NUM_BUCKETS = SUB_MS_BUCKETS + MS_BUCKETS +
-          HUNDREDMS_BUCKETS + SEC_BUCKETS + 1;
+  /** Significant digits of histograms */
+  private final int precisionDigits;
 
-  /** Counts of operations falling into each bucket */
-  private final long bucketCounts[][][];
+  /** Histograms by thread and type, created on first use */
+  private final LogLinearHistogram histograms[][];
 
   /** Counts of samples per type */
   private long sampleCounts[];
 
-  /** Cumulative bucket counts keyed by type, bucket# (calculated at end) */
-  private long bucketCountsCumulative[][];
-
-  /** Maximum latency by thread and type */
-  private long maxLatency[][];
-
-  public static int latencyToBucket(long microTime) {
-    long ms = 1000;
-    long msTime = microTime / ms; // Floored
-    if (msTime == 0) {
-      // Bucket per 0.1 ms
-      return (int) (microTime / 100);
-    } else if (msTime < 100) {
-      // msBucket = 0 means 1-2 ms
-      int msBucket = (int) msTime - 1;
-      // Bucket per ms
-      return SUB_MS_BUCKETS + msBucket;
-    } else if (msTime < 1000){
-      int hundredMSBucket = (int) ( msTime / 100 ) - 1;
-      return SUB_MS_BUCKETS + MS_BUCKETS + hundredMSBucket;
-    } else if (msTime < 10000) {
-      int secBucket = (int) (msTime / 1000) - 1;
-      return SUB_MS_BUCKETS + MS_BUCKETS + HUNDREDMS_BUCKETS + secBucket;
-    } else {
-      return NUM_BUCKETS - 1;
+  /** Histograms combined across threads keyed by type (calculated at end) */
+  private LogLinearHistogram totalHistograms[];
+
+  public LatencyStats(int maxThreads) {
+    this(maxThreads, 0);
+  }
+
+  /**
+   * Track latency for threads numbered firstThread, ...,
+   * firstThread + maxThreads - 1
+   */
+  public LatencyStats(int maxThreads, int firstThread) {
+    this(maxThreads, firstThread, DEFAULT_PRECISION_DIGITS);
+  }
+
+  /**
+   * @param precisionDigits significant decimal digits of latency percentiles
+   */
+  public LatencyStats(int maxThreads, int firstThread, int precisionDigits) {
+    if (precisionDigits < LogLinearHistogram.MIN_DIGITS ||
+        precisionDigits > LogLinearHistogram.MAX_DIGITS) {
+      throw new IllegalArgumentException("Invalid latency precision: " +
+                                         precisionDigits);
     }
+    this.maxThreads = maxThreads;
+    this.firstThread = firstThread;
+    this.precisionDigits = precisionDigits;
+    means = new RunningMean[maxThreads][LinkStore.MAX_OPTYPES];
+    histograms = new LogLinearHistogram[maxThreads][LinkStore.MAX_OPTYPES];
   }
 
   /**
-   *
-   * @param bucket
-   * @return inclusive min and exclusive max time in microsecs for bucket
+   * Create latency stats with precision from configuration
    */
-  public static long[] bucketBound(int bucket) {
-    int ms = 1000;
-    long s = ms * 1000;
-    long res[] = new long[2];
-    if (bucket < SUB_MS_BUCKETS) {
-      res[0] = bucket * 100;
-      res[1] = (bucket+1) * 100;
-    } else if (bucket < SUB_MS_BUCKETS + MS_BUCKETS) {
-      res[0] = (bucket - SUB_MS_BUCKETS + 1) * ms;
-      res[1] = (bucket - SUB_MS_BUCKETS + 2) * ms;
-    } else if (bucket < SUB_MS_BUCKETS + MS_BUCKETS + HUNDREDMS_BUCKETS) {
-      int hundredMS = bucket - SUB_MS_BUCKETS - MS_BUCKETS + 1;
-      res[0] = hundredMS * 100 * ms;
-      res[1] = (hundredMS + 1) * 100 * ms;
-    } else if (bucket < SUB_MS_BUCKETS + MS_BUCKETS + HUNDREDMS_BUCKETS + SEC_BUCKETS) {
-      int secBucket = bucket - SUB_MS_BUCKETS - MS_BUCKETS - SEC_BUCKETS + 1;
-      res[0] = secBucket * s;
-      res[1] = (secBucket + 1) * s;
-    } else {
-      res[0] = (SEC_BUCKETS + 1)* s;
-      res[1] = 100 * s;
+  public static LatencyStats create(Properties props, int maxThreads) {
+    return create(props, maxThreads, 0);
+  }
+
+  public static LatencyStats create(Properties props, int maxThreads,
+                                    int firstThread) {
+    return new LatencyStats(maxThreads, firstThread, getPrecision(props));
+  }
+
+  /**
+   * @return significant digits of latency histograms from configuration
+   */
+  public static int getPrecision(Properties props) {
+    int digits = ConfigUtil.getInt(props, Config.LATENCY_PRECISION,
+                                   DEFAULT_PRECISION_DIGITS);
+    if (digits < LogLinearHistogram.MIN_DIGITS ||
+        digits > LogLinearHistogram.MAX_DIGITS) {
+      throw new LinkBenchConfigError(Config.LATENCY_PRECISION +
+          " must be between " + LogLinearHistogram.MIN_DIGITS + " and " +
+          LogLinearHistogram.MAX_DIGITS + ": " + digits);
     }
-    return res;
+    return digits;
   }
 
+  public int getPrecisionDigits() {
+    return precisionDigits;
+  }
 
   /**
    * Used by the linkbench driver to record latency of each
@@ -134,9 +147,13 @@ public class LatencyStats {
    */
   public void recordLatency(int threadid, LinkBenchOp type,
         long microtimetaken) {
-    long opBuckets[] = bucketCounts[threadid][type.ordinal()];
-    int bucket = latencyToBucket(microtimetaken);
-    opBuckets[bucket]++;
+    threadid -= firstThread;
+    LogLinearHistogram hist = histograms[threadid][type.ordinal()];
+    if (hist == null) {
+      hist = new LogLinearHistogram(precisionDigits);
+      histograms[threadid][type.ordinal()] = hist;
+    }
+    hist.record(microtimetaken);
 
     double time_ms = microtimetaken / 1000.0;
     if (means[threadid][type.ordinal()] == null) {
@@ -144,9 +161,68 @@ public class LatencyStats {
     } else {
       means[threadid][type.ordinal()].addSample(time_ms);
     }
+  }
 
-    if (maxLatency[threadid][type.ordinal()] < microtimetaken) {
-      maxLatency[threadid][type.ordinal()] = microtimetaken;
+  /**
+   * Write the combined statistics for all threads, so that they can be
+   * merged into another instance, e.g. in another process
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    calcMeans();
+    calcTotalHistograms();
+    int nTypes = 0;
+    for (int type = 0; type < LinkStore.MAX_OPTYPES; type++) {
+      if (sampleCounts[type] > 0) {
+        nTypes++;
+      }
+    }
+    out.writeInt(precisionDigits);
+    out.writeInt(nTypes);
+    for (int type = 0; type < LinkStore.MAX_OPTYPES; type++) {
+      if (sampleCounts[type] == 0) {
+        continue;
+      }
+      out.writeInt(type);
+      out.writeLong(sampleCounts[type]);
+      out.writeDouble(finalMeans[type]);
+      totalHistograms[type].writeTo(out);
+    }
+  }
+
+  /**
+   * Add statistics written by writeTo to those for a thread
+   */
+  public void merge(int threadid, DataInput in) throws IOException {
+    threadid -= firstThread;
+    int digits = in.readInt();
+    if (digits != precisionDigits) {
+      throw new IOException("Expected latency histograms with " +
+          precisionDigits + " digits precision but got " + digits);
+    }
+    int nTypes = in.readInt();
+    for (int i = 0; i < nTypes; i++) {
+      int type = in.readInt();
+      if (type < 0 || type >= LinkStore.MAX_OPTYPES) {
+        throw new IOException("Invalid operation type " + type);
+      }
+      long count = in.readLong();
+      double mean = in.readDouble();
+      LogLinearHistogram hist = LogLinearHistogram.read(in);
+      if (hist.getDigits() != precisionDigits) {
+        throw new IOException("Histogram precision " + hist.getDigits() +
+                              " does not match " + precisionDigits);
+      }
+      if (histograms[threadid][type] == null) {
+        histograms[threadid][type] = hist;
+      } else {
+        histograms[threadid][type].add(hist);
+      }
+
+      if (means[threadid][type] == null) {
+        means[threadid][type] = new RunningMean(count, mean);
+      } else {
+        means[threadid][type].addSamples(count, mean);
+      }
     }
   }
 
@@ -155,47 +231,88 @@ public class LatencyStats {
    */
   public void displayLatencyStats() {
     calcMeans();
-    calcCumulativeBuckets();
+    calcTotalHistograms();
 
     Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+    // Format to microsecond precision
+    DecimalFormat df = new DecimalFormat("#.###");
     // print percentiles
     for (LinkBenchOp type: LinkBenchOp.values()) {
       if (sampleCounts[type.ordinal()] == 0) { // no samples of this type
         continue;
       }
 
-      DecimalFormat df = new DecimalFormat("#.###"); // Format to max 3 decimal place
-      logger.info(type.displayName() +
-                     " count = " + sampleCounts[type.ordinal()] + " " +
-                     " p25 = " + percentileString(type, 25)  + "ms " +
-                     " p50 = " + percentileString(type, 50)  + "ms " +
-                     " p75 = " + percentileString(type, 75)  + "ms " +
-                     " p95 = " + percentileString(type, 95)  + "ms " +
-                     " p99 = " + percentileString(type, 99)  + "ms " +
-                     " max = " + df.format(getMax(type)) + "ms " +
-                     " mean = " + df.format(getMean(type))+ "ms");
+      StringBuilder sb = new StringBuilder();
+      sb.append(type.displayName()).append(" count = ")
+        .append(sampleCounts[type.ordinal()]).append(" ");
+      for (double percentile: REPORT_PERCENTILES) {
+        sb.append(" ").append(percentileName(percentile)).append(" = ")
+          .append(df.format(getPercentile(type, percentile) / 1000.0))
+          .append("ms ");
+      }
+      sb.append(" max = ").append(df.format(getMax(type))).append("ms ");
+      sb.append(" mean = ").append(df.format(getMean(type))).append("ms");
+      logger.info(sb.toString());
     }
   }
 
+  /**
+   * Should only be called once all latencies have been recorded
+   * @return number of latencies recorded for type
+   */
+  public long getCount(LinkBenchOp type) {
+    calcMeans();
+    return sampleCounts[type.ordinal()];
+  }
+
+  /**
+   * Latency at a percentile, to within the histogram precision.  Should
+   * only be called once all latencies have been recorded.
+   * @return latency in microseconds, or -1 if no latencies were recorded
+   *         for type
+   */
+  public long getPercentileValue(LinkBenchOp type, double percentile) {
+    calcMeans();
+    calcTotalHistograms();
+    if (sampleCounts[type.ordinal()] == 0) {
+      return -1;
+    }
+    return getPercentile(type, percentile);
+  }
+
+  /**
+   * Upper bound on a latency percentile, taken from the histogram bucket
+   * that contains it.  Should only be called once all latencies have been
+   * recorded.
+   * @return exclusive upper bound in microseconds, or -1 if no latencies
+   *         were recorded for type
+   */
+  public long getPercentileBound(LinkBenchOp type, double percentile) {
+    long value = getPercentileValue(type, percentile);
+    return value < 0 ? -1 : value + 1;
+  }
+
   public void printCSVStats(PrintStream out, boolean header) {
     printCSVStats(out, header, LinkBenchOp.values());
   }
 
   public void printCSVStats(PrintStream out, boolean header, LinkBenchOp... ops) {
-    int percentiles[] = new int[] {25, 50, 75, 95, 99};
+    calcMeans();
+    calcTotalHistograms();
 
     // Write out the header
     if (header) {
       out.print("op,count");
-      for (int percentile: percentiles) {
-        out.print(String.format(",p%d_low,p%d_high", percentile, percentile));
+      for (double percentile: REPORT_PERCENTILES) {
+        out.print(",");
+        out.print(percentileName(percentile));
       }
       out.print(",max,mean");
       out.println();
     }
 
-    // Print in milliseconds down to 10us granularity
-    DecimalFormat df = new DecimalFormat("#.##");
+    // Print in milliseconds down to 1us granularity
+    DecimalFormat df = new DecimalFormat("#.###");
 
     for (LinkBenchOp op: ops) {
       long samples = sampleCounts[op.ordinal()];
@@ -206,12 +323,9 @@ public class LatencyStats {
       out.print(",");
       out.print(samples);
 
-      for (int percentile: percentiles) {
-        long bounds[] = getBucketBounds(op, percentile);
-        out.print(",");
-        out.print(df.format(bounds[0] / 1000.0));
+      for (double percentile: REPORT_PERCENTILES) {
         out.print(",");
-        out.print(df.format(bounds[1] / 1000.0));
+        out.print(df.format(getPercentile(op, percentile) / 1000.0));
       }
 
       out.print(",");
@@ -249,56 +363,33 @@ public class LatencyStats {
 
   }
 
-  private void calcCumulativeBuckets() {
-    // Calculate the cumulative operation counts by bucket for each type
-    bucketCountsCumulative = new long[LinkStore.MAX_OPTYPES][NUM_BUCKETS];
+  private void calcTotalHistograms() {
+    // Combine the histograms from all threads for each type
+    totalHistograms = new LogLinearHistogram[LinkStore.MAX_OPTYPES];
 
     for (int type = 0; type < LinkStore.MAX_OPTYPES; type++) {
-      long count = 0;
-      for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
-        for (int thread = 0; thread < maxThreads; thread++) {
-          count += bucketCounts[thread][type][bucket];
+      LogLinearHistogram total = new LogLinearHistogram(precisionDigits);
+      for (int thread = 0; thread < maxThreads; thread++) {
+        if (histograms[thread][type] != null) {
+          total.add(histograms[thread][type]);
         }
-        bucketCountsCumulative[type][bucket] = count;
-      }
-    }
-  }
-
-  private long[] getBucketBounds(LinkBenchOp type, long percentile) {
-    long n = sampleCounts[type.ordinal()];
-    // neededRank is the rank of the sample at the desired percentile
-    long neededRank = (long) ((percentile / 100.0) * n);
-
-    int bucketNum = -1;
-    for (int i = 0; i < NUM_BUCKETS; i++) {
-      long rank = bucketCountsCumulative[type.ordinal()][i];
-      if (neededRank <= rank) {
-        // We have found the right bucket
-        bucketNum = i;
-        break;
       }
+      totalHistograms[type] = total;
     }
-    assert(bucketNum >= 0); // Should definitely be found;
-
-
-    return bucketBound(bucketNum);
   }
 
-
   /**
-   *
-   * @return A human-readable string for the bucket bounds
+   * @return latency at percentile in microseconds
    */
-  private String percentileString(LinkBenchOp type, long percentile) {
-    return boundsToString(getBucketBounds(type, percentile));
+  private long getPercentile(LinkBenchOp type, double percentile) {
+    return totalHistograms[type.ordinal()].getValueAtPercentile(percentile);
   }
 
-  static String boundsToString(long[] bucketBounds) {
-    double minMs = bucketBounds[0] / 1000.0;
-    double maxMs = bucketBounds[1] / 1000.0;
-
-    DecimalFormat df = new DecimalFormat("#.##"); // Format to max 1 decimal place
-    return "["+ df.format(minMs) + "," + df.format(maxMs) + "]";
+  /**
+   * @return name of percentile, e.g. p99 or p99.9
+   */
+  public static String percentileName(double percentile) {
+    return "p" + new DecimalFormat("#.####").format(percentile);
   }
 
   private double getMean(LinkBenchOp type) {
@@ -306,10 +397,6 @@ public class LatencyStats {
   }
 
   private double getMax(LinkBenchOp type) {
-    long max_us = 0;
-    for (int thread = 0; thread < maxThreads; thread++) {
-      max_us = Math.max(max_us, maxLatency[thread][type.ordinal()]);
-    }
-    return max_us / 1000.0;
+    return totalHistograms[type.ordinal()].getMaxValue() / 1000.0;
   }
 }
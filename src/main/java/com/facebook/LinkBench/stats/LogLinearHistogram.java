@@ -0,0 +1,281 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * High dynamic range histogram of non-negative values, e.g. latencies in
+ * microseconds, in the style of HdrHistogram.  Values are counted in
+ * log-linear buckets: values below the sub-bucket count are counted
+ * exactly, and above that each power of two range is divided into
+ * equal-width sub-buckets, so that the value reported for any percentile
+ * is within the requested number of significant decimal digits of the
+ * true value.
+ *
+ * The bucket array grows as larger values are recorded, so memory is
+ * only used for the range of values seen.
+ *
+ * Not synchronized: each recording thread should own its histograms, so
+ * that recording needs no locks.  Histograms with the same precision can
+ * be combined with add(), including ones sent from another process with
+ * writeTo() and read().
+ */
+public class LogLinearHistogram {
+  public static final int MIN_DIGITS = 1;
+  public static final int MAX_DIGITS = 5;
+
+  private final int digits;
+
+  /** log2 of number of sub-buckets in each power of two range */
+  private final int subBucketBits;
+  /** Values below this are counted exactly */
+  private final int subBucketCount;
+  /** Number of sub-buckets added for each further power of two */
+  private final int subBucketHalfCount;
+  private final int subBucketHalfBits;
+
+  private long counts[];
+  private long totalCount = 0;
+  private long minValue = Long.MAX_VALUE;
+  private long maxValue = 0;
+
+  /**
+   * @param digits number of significant decimal digits to preserve
+   */
+  public LogLinearHistogram(int digits) {
+    if (digits < MIN_DIGITS || digits > MAX_DIGITS) {
+      throw new IllegalArgumentException("Histogram precision must be " +
+          "between " + MIN_DIGITS + " and " + MAX_DIGITS + " digits: " +
+          digits);
+    }
+    this.digits = digits;
+    // Need at least 10^digits sub-buckets per power of two above the
+    // exactly counted range
+    long resolution = 1;
+    for (int i = 0; i < digits; i++) {
+      resolution *= 10;
+    }
+    int halfBits = 0;
+    while ((1L << halfBits) < resolution) {
+      halfBits++;
+    }
+    subBucketHalfBits = halfBits;
+    subBucketBits = halfBits + 1;
+    subBucketHalfCount = 1 << halfBits;
+    subBucketCount = 1 << subBucketBits;
+    counts = new long[subBucketCount];
+  }
+
+  public int getDigits() {
+    return digits;
+  }
+
+  /**
+   * Index of bucket that value is counted in
+   */
+  public int bucketIndex(long value) {
+    if (value < subBucketCount) {
+      return (int) value;
+    }
+    int highBit = 63 - Long.numberOfLeadingZeros(value);
+    // Shift so that highest bit lands in top half of sub-buckets
+    int shift = highBit - subBucketBits + 1;
+    return (shift << subBucketHalfBits) + (int) (value >>> shift);
+  }
+
+  /**
+   * @return smallest value counted in bucket
+   */
+  public long lowestEquivalentValue(int index) {
+    if (index < subBucketCount) {
+      return index;
+    }
+    int shift = ((index - subBucketCount) >>> subBucketHalfBits) + 1;
+    return ((long) (index - (shift << subBucketHalfBits))) << shift;
+  }
+
+  /**
+   * @return largest value counted in bucket
+   */
+  public long highestEquivalentValue(int index) {
+    if (index < subBucketCount) {
+      return index;
+    }
+    int shift = ((index - subBucketCount) >>> subBucketHalfBits) + 1;
+    return lowestEquivalentValue(index) + (1L << shift) - 1;
+  }
+
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    int index = bucketIndex(value);
+    ensureCapacity(index + 1);
+    counts[index]++;
+    totalCount++;
+    if (value < minValue) {
+      minValue = value;
+    }
+    if (value > maxValue) {
+      maxValue = value;
+    }
+  }
+
+  private void ensureCapacity(int buckets) {
+    if (buckets > counts.length) {
+      // Grow a power of two range at a time
+      int newLength = counts.length;
+      while (newLength < buckets) {
+        newLength += subBucketHalfCount;
+      }
+      counts = Arrays.copyOf(counts, newLength);
+    }
+  }
+
+  /**
+   * Add all values recorded in other to this histogram
+   */
+  public void add(LogLinearHistogram other) {
+    if (other.digits != digits) {
+      throw new IllegalArgumentException("Cannot add histogram with " +
+          other.digits + " digits precision to one with " + digits);
+    }
+    if (other.totalCount == 0) {
+      return;
+    }
+    ensureCapacity(other.counts.length);
+    for (int i = 0; i < other.counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    minValue = Math.min(minValue, other.minValue);
+    maxValue = Math.max(maxValue, other.maxValue);
+  }
+
+  /**
+   * Remove all values, keeping buckets allocated for reuse
+   */
+  public void reset() {
+    if (totalCount > 0) {
+      Arrays.fill(counts, 0);
+      totalCount = 0;
+      minValue = Long.MAX_VALUE;
+      maxValue = 0;
+    }
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  /** @return largest value recorded, or 0 if empty */
+  public long getMaxValue() {
+    return maxValue;
+  }
+
+  /** @return smallest value recorded, or 0 if empty */
+  public long getMinValue() {
+    return totalCount == 0 ? 0 : minValue;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return value that percentile of recorded values are less than or
+   *    equal to, to within the histogram precision, or 0 if empty
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    // Allow for floating point error, e.g. 99.9% of 1000
+    long rank = (long) Math.ceil(percentile / 100.0 * totalCount - 1e-9);
+    rank = Math.max(1, Math.min(totalCount, rank));
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+      if (cumulative >= rank) {
+        return Math.min(highestEquivalentValue(i), maxValue);
+      }
+    }
+    return maxValue;
+  }
+
+  /**
+   * Write histogram in compact form, as pairs of bucket index and count
+   * for non-empty buckets
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(digits);
+    out.writeLong(totalCount);
+    out.writeLong(getMinValue());
+    out.writeLong(maxValue);
+    int nonEmpty = 0;
+    for (long count: counts) {
+      if (count != 0) {
+        nonEmpty++;
+      }
+    }
+    out.writeInt(nonEmpty);
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] != 0) {
+        out.writeInt(i);
+        out.writeLong(counts[i]);
+      }
+    }
+  }
+
+  /**
+   * Read histogram written by writeTo
+   */
+  public static LogLinearHistogram read(DataInput in) throws IOException {
+    int digits = in.readInt();
+    if (digits < MIN_DIGITS || digits > MAX_DIGITS) {
+      throw new IOException("Invalid histogram precision " + digits);
+    }
+    LogLinearHistogram h = new LogLinearHistogram(digits);
+    long total = in.readLong();
+    long min = in.readLong();
+    long max = in.readLong();
+    int nonEmpty = in.readInt();
+    int maxIndex = h.bucketIndex(Long.MAX_VALUE);
+    long sum = 0;
+    for (int i = 0; i < nonEmpty; i++) {
+      int index = in.readInt();
+      long count = in.readLong();
+      if (index < 0 || index > maxIndex || count < 0) {
+        throw new IOException("Invalid histogram bucket " + index +
+                              " with count " + count);
+      }
+      h.ensureCapacity(index + 1);
+      h.counts[index] += count;
+      sum += count;
+    }
+    if (sum != total) {
+      throw new IOException("Histogram bucket counts add up to " + sum +
+                            " but total was " + total);
+    }
+    h.totalCount = total;
+    if (total > 0) {
+      h.minValue = min;
+      h.maxValue = max;
+    }
+    return h;
+  }
+}
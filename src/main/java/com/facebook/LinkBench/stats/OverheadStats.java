@@ -0,0 +1,200 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.DecimalFormat;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.ConfigUtil;
+import com.facebook.LinkBench.LinkBenchOp;
+import com.facebook.LinkBench.LinkStore;
+
+/**
+ * Accounts for where requester threads spend their time, to check that the
+ * driver is not the bottleneck.  The elapsed time of each request is split
+ * into:
+ * <ul>
+ * <li>generation: choosing the operation, ids and data before the store
+ *     call</li>
+ * <li>store: inside the store call, including the store client</li>
+ * <li>recording: recording stats and journal entries and other driver
+ *     bookkeeping after the store call</li>
+ * <li>wait: idle between requests, e.g. waiting for the next scheduled
+ *     request time</li>
+ * </ul>
+ * Thread CPU time and, where the JVM supports it, bytes allocated are also
+ * measured with the ThreadMXBean.  CPU time includes the store client, so
+ * CPU per operation close to the busy time per operation means that the
+ * client machine is doing much of the work.
+ *
+ * Each thread records into its own slot, so recording needs no locking.
+ */
+public class OverheadStats {
+
+  private static final int GEN = 0;
+  private static final int STORE = 1;
+  private static final int RECORD = 2;
+  private static final int WAIT = 3;
+  private static final int CPU = 4;
+  private static final int ALLOC = 5;
+  private static final int COUNT = 6;
+  private static final int NUM_FIELDS = 7;
+
+  private final ThreadMXBean threadBean;
+  private final boolean cpuSupported;
+
+  /** Null if allocation can't be measured */
+  private final com.sun.management.ThreadMXBean allocBean;
+
+  /** Totals by thread, op type and field */
+  private final long totals[][][];
+
+  public OverheadStats(int maxThreads) {
+    threadBean = ManagementFactory.getThreadMXBean();
+    boolean cpu = threadBean.isCurrentThreadCpuTimeSupported();
+    if (cpu && !threadBean.isThreadCpuTimeEnabled()) {
+      threadBean.setThreadCpuTimeEnabled(true);
+    }
+    cpuSupported = cpu;
+    allocBean = AllocationStats.isSupported() ?
+        (com.sun.management.ThreadMXBean) threadBean : null;
+    totals = new long[maxThreads][LinkStore.MAX_OPTYPES][NUM_FIELDS];
+  }
+
+  /**
+   * @return CPU time used so far by calling thread in ns, or 0 if not
+   *    supported
+   */
+  public long threadCpuTime() {
+    return cpuSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+  }
+
+  /**
+   * @return bytes allocated so far by calling thread, or 0 if not supported
+   */
+  public long threadAllocatedBytes() {
+    return allocBean == null ? 0 :
+        allocBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Record time spent on a request.  All times are in nanoseconds.
+   * @param gen_ns time spent before the store call
+   * @param store_ns time spent in the store call
+   * @param record_ns time spent after the store call
+   * @param wait_ns time idle since previous request
+   * @param startCpu_ns value of threadCpuTime() at start of request
+   * @param startAlloc value of threadAllocatedBytes() at start of request
+   */
+  public void recordRequest(int threadid, LinkBenchOp type, long gen_ns,
+        long store_ns, long record_ns, long wait_ns, long startCpu_ns,
+        long startAlloc) {
+    long opTotals[] = totals[threadid][type.ordinal()];
+    opTotals[GEN] += Math.max(0, gen_ns);
+    opTotals[STORE] += Math.max(0, store_ns);
+    opTotals[RECORD] += Math.max(0, record_ns);
+    opTotals[WAIT] += Math.max(0, wait_ns);
+    opTotals[CPU] += Math.max(0, threadCpuTime() - startCpu_ns);
+    opTotals[ALLOC] += Math.max(0, threadAllocatedBytes() - startAlloc);
+    opTotals[COUNT]++;
+  }
+
+  private long total(LinkBenchOp type, int field) {
+    long total = 0;
+    for (long threadTotals[][]: totals) {
+      total += threadTotals[type.ordinal()][field];
+    }
+    return total;
+  }
+
+  public long getCount(LinkBenchOp type) {
+    return total(type, COUNT);
+  }
+
+  /**
+   * @return percentage of busy time (excluding waits) spent in the driver
+   *    rather than in store calls
+   */
+  public double getOverheadPercent(LinkBenchOp type) {
+    return overheadPercent(total(type, GEN), total(type, STORE),
+                           total(type, RECORD));
+  }
+
+  /**
+   * @return mean thread CPU time per operation in microseconds
+   */
+  public double getCpuPerOp_us(LinkBenchOp type) {
+    long count = getCount(type);
+    return count == 0 ? 0.0 : total(type, CPU) / (count * 1000.0);
+  }
+
+  private static double overheadPercent(long gen, long store, long record) {
+    long busy = gen + store + record;
+    return busy == 0 ? 0.0 : 100.0 * (gen + record) / busy;
+  }
+
+  /**
+   * Print out time breakdown per operation for each type
+   */
+  public void displayOverheadStats() {
+    Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+    long all[] = new long[NUM_FIELDS];
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      long count = getCount(type);
+      if (count == 0) {
+        continue;
+      }
+      long opTotals[] = new long[NUM_FIELDS];
+      for (int field = 0; field < NUM_FIELDS; field++) {
+        opTotals[field] = total(type, field);
+        all[field] += opTotals[field];
+      }
+      logger.info(formatTotals(type.displayName(), opTotals));
+    }
+    if (all[COUNT] > 0) {
+      logger.info(formatTotals("ALL", all));
+    }
+  }
+
+  private String formatTotals(String name, long opTotals[]) {
+    DecimalFormat df = new DecimalFormat("#.#");
+    double count = opTotals[COUNT];
+    StringBuilder sb = new StringBuilder();
+    sb.append(name).append(" count = ").append(opTotals[COUNT]);
+    sb.append(" driver overhead = ").append(df.format(overheadPercent(
+        opTotals[GEN], opTotals[STORE], opTotals[RECORD]))).append('%');
+    sb.append(" generate = ").append(df.format(opTotals[GEN] / count / 1000))
+      .append("us/op");
+    sb.append(" store = ").append(df.format(opTotals[STORE] / count / 1000))
+      .append("us/op");
+    sb.append(" record = ").append(df.format(opTotals[RECORD] / count / 1000))
+      .append("us/op");
+    sb.append(" wait = ").append(df.format(opTotals[WAIT] / count / 1000))
+      .append("us/op");
+    if (cpuSupported) {
+      sb.append(" client cpu = ").append(df.format(opTotals[CPU] / count /
+                                                   1000)).append("us/op");
+    }
+    if (allocBean != null) {
+      sb.append(" allocated = ").append(df.format(opTotals[ALLOC] / count))
+        .append(" bytes/op");
+    }
+    return sb.toString();
+  }
+}
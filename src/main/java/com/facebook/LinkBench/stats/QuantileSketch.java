@@ -0,0 +1,277 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile sketch of non-negative values with a relative error
+ * guarantee, after DDSketch (Masson, Rim and Lee, "DDSketch: A Fast and
+ * Fully-Mergeable Quantile Sketch with Relative-Error Guarantees", VLDB
+ * 2019).  Values are counted in buckets whose bounds grow geometrically by
+ * gamma = (1 + a) / (1 - a), so any quantile is estimated to within
+ * relative error a of a value at that rank.
+ *
+ * Memory is bounded by maxBuckets: if values span more buckets than that,
+ * the lowest buckets are collapsed together, so that only the accuracy of
+ * the lowest quantiles suffers.  Sketches with the same accuracy can be
+ * merged with add(), e.g. to combine the sketches of several threads.
+ *
+ * Not synchronized: each thread should record into its own sketches.
+ */
+public class QuantileSketch {
+  public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+  /** Initial number of buckets allocated */
+  private static final int INITIAL_BUCKETS = 64;
+
+  private final double relativeAccuracy;
+  private final double gamma;
+  private final double logGamma;
+  private final int maxBuckets;
+
+  /** Counts for buckets offset, offset + 1, ... */
+  private long counts[] = null;
+  private int offset;
+  /** Range of buckets that may be non-empty, empty if minIndex > maxIndex */
+  private int minIndex = Integer.MAX_VALUE;
+  private int maxIndex = Integer.MIN_VALUE;
+
+  /** Count of values <= 0 */
+  private long zeroCount = 0;
+  private long count = 0;
+  private double sum = 0.0;
+  private long min = Long.MAX_VALUE;
+  private long max = Long.MIN_VALUE;
+
+  public QuantileSketch(int maxBuckets) {
+    this(DEFAULT_RELATIVE_ACCURACY, maxBuckets);
+  }
+
+  public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+    if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+      throw new IllegalArgumentException("Relative accuracy must be " +
+          "between 0 and 1: " + relativeAccuracy);
+    }
+    if (maxBuckets < 1) {
+      throw new IllegalArgumentException("Need at least one bucket: " +
+                                         maxBuckets);
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    this.logGamma = Math.log(gamma);
+    this.maxBuckets = maxBuckets;
+  }
+
+  public double getRelativeAccuracy() {
+    return relativeAccuracy;
+  }
+
+  /**
+   * @return index of bucket (gamma^(i-1), gamma^i] that value falls in
+   */
+  private int bucketIndex(long value) {
+    return (int) Math.ceil(Math.log(value) / logGamma);
+  }
+
+  /**
+   * @return value within relative accuracy of all values in bucket
+   */
+  private double bucketValue(int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  public void record(long value) {
+    if (value <= 0) {
+      zeroCount++;
+    } else {
+      addToBucket(bucketIndex(value), 1);
+    }
+    count++;
+    sum += value;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  private void addToBucket(int index, long n) {
+    if (minIndex > maxIndex) {
+      if (counts == null) {
+        counts = new long[Math.min(INITIAL_BUCKETS, maxBuckets)];
+      }
+      // Leave room on both sides of first bucket
+      offset = index - counts.length / 2;
+      minIndex = index;
+      maxIndex = index;
+    } else if (index > maxIndex) {
+      int newMin = Math.max(minIndex, index - maxBuckets + 1);
+      if (newMin > maxIndex) {
+        // All existing buckets collapse into the lowest one of new range
+        long collapsed = 0;
+        for (int i = minIndex; i <= maxIndex; i++) {
+          collapsed += counts[i - offset];
+          counts[i - offset] = 0;
+        }
+        offset = newMin;
+        minIndex = newMin;
+        maxIndex = newMin;
+        counts[0] = collapsed;
+      } else {
+        collapseBelow(newMin);
+      }
+      ensureRange(newMin, index);
+      maxIndex = index;
+    } else if (index < minIndex) {
+      // Values below the range are counted in the lowest bucket
+      index = Math.max(index, maxIndex - maxBuckets + 1);
+      ensureRange(index, maxIndex);
+      minIndex = index;
+    }
+    counts[index - offset] += n;
+  }
+
+  /**
+   * Merge buckets below newMin into bucket newMin
+   */
+  private void collapseBelow(int newMin) {
+    if (newMin <= minIndex) {
+      return;
+    }
+    long collapsed = 0;
+    for (int i = minIndex; i < newMin; i++) {
+      collapsed += counts[i - offset];
+      counts[i - offset] = 0;
+    }
+    counts[newMin - offset] += collapsed;
+    minIndex = newMin;
+  }
+
+  /**
+   * Make sure that counts array covers buckets newMin to newMax, which
+   * include the current range of buckets
+   */
+  private void ensureRange(int newMin, int newMax) {
+    if (newMin >= offset && newMax < offset + counts.length) {
+      return;
+    }
+    int needed = newMax - newMin + 1;
+    int newLength = Math.max(needed,
+                         Math.min(maxBuckets, 2 * counts.length));
+    int newOffset;
+    if (newMax >= offset + counts.length) {
+      // Growing upwards
+      newOffset = newMin;
+    } else {
+      newOffset = newMax - newLength + 1;
+    }
+    long newCounts[] = new long[newLength];
+    System.arraycopy(counts, minIndex - offset, newCounts,
+                     minIndex - newOffset, maxIndex - minIndex + 1);
+    counts = newCounts;
+    offset = newOffset;
+  }
+
+  /**
+   * Add all values recorded in other to this sketch
+   */
+  public void add(QuantileSketch other) {
+    if (other.relativeAccuracy != relativeAccuracy) {
+      throw new IllegalArgumentException("Cannot add sketch with relative " +
+          "accuracy " + other.relativeAccuracy + " to one with " +
+          relativeAccuracy);
+    }
+    if (other.count == 0) {
+      return;
+    }
+    for (int i = other.minIndex; i <= other.maxIndex; i++) {
+      long n = other.counts[i - other.offset];
+      if (n != 0) {
+        addToBucket(i, n);
+      }
+    }
+    zeroCount += other.zeroCount;
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Remove all values, keeping memory allocated for reuse
+   */
+  public void reset() {
+    if (minIndex <= maxIndex) {
+      Arrays.fill(counts, minIndex - offset, maxIndex - offset + 1, 0);
+    }
+    minIndex = Integer.MAX_VALUE;
+    maxIndex = Integer.MIN_VALUE;
+    zeroCount = 0;
+    count = 0;
+    sum = 0.0;
+    min = Long.MAX_VALUE;
+    max = Long.MIN_VALUE;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /** @return mean of values recorded, or 0 if empty */
+  public double getMean() {
+    return count == 0 ? 0.0 : sum / count;
+  }
+
+  /** @return smallest value recorded, or 0 if empty */
+  public long getMin() {
+    return count == 0 ? 0 : min;
+  }
+
+  /** @return largest value recorded, or 0 if empty */
+  public long getMax() {
+    return count == 0 ? 0 : max;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return estimate of value at percentile, or 0 if empty
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    // Allow for floating point error, e.g. 99.9% of 1000
+    long rank = (long) Math.ceil(percentile / 100.0 * count - 1e-9);
+    rank = Math.max(1, Math.min(count, rank));
+    if (rank == count) {
+      return max;
+    }
+    long cumulative = zeroCount;
+    if (cumulative >= rank) {
+      return getMin();
+    }
+    for (int i = minIndex; i <= maxIndex; i++) {
+      cumulative += counts[i - offset];
+      if (cumulative >= rank) {
+        long value = Math.round(bucketValue(i));
+        return Math.max(min, Math.min(max, value));
+      }
+    }
+    return max;
+  }
+}
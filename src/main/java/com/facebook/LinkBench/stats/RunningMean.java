@@ -38,11 +38,25 @@ public class RunningMean {
     this.running = 0.0;
   }
 
+  /** initialize with n samples having given mean */
+  public RunningMean(long n, double mean) {
+    super();
+    this.v1 = mean;
+    this.n = n;
+    this.running = 0.0;
+  }
+
   public void addSample(double vi) {
     n++;
     running += (vi - v1);
   }
 
+  /** add n samples having given mean */
+  public void addSamples(long n, double mean) {
+    this.n += n;
+    running += n * (mean - v1);
+  }
+
   public double mean() {
     return v1 + running / n;
   }
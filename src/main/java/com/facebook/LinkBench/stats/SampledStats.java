@@ -20,7 +20,7 @@ import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.log4j.Logger;
 
@@ -30,38 +30,31 @@ import com.facebook.LinkBench.LinkStore;
 
 
 /**
- * This class is used to keep track of statistics.  It collects a sample of the
- * total data (controlled by maxsamples) and can then compute statistics based
- * on that sample.
- *
- * The overall idea is to compute reasonably accurate statistics using bounded
- * space.
+ * This class is used to keep track of statistics.  Latencies over each
+ * interval are summarized in a streaming quantile sketch per operation type
+ * (see QuantileSketch), which uses bounded space (controlled by maxsamples,
+ * the maximum number of buckets per sketch) and estimates percentiles to
+ * within 1% relative error, however many operations there were.
  *
  * Currently the class is used to print out stats at given intervals, with the
- * sample taken over a given time interval and printed at the end of the interval.
+ * sketch covering a given time interval and printed at the end of the
+ * interval.  Printing the stats takes time proportional to the sketch size,
+ * not the number of operations, and sketches can be merged across threads.
  */
 public class SampledStats {
 
-  // Actual number of operations per type that caller did
-  private long numops[];
+  // Actual number of operations per type that caller did.  Only written by
+  // the owning thread, with lazySet, so other threads can read it cheaply
+  private final AtomicLongArray numops;
 
-  // Max samples per type
+  // Max buckets per sketch
   private int maxsamples;
 
-  // samples for various optypes
-  private long[][] samples;
-
-  /** Number of operations that the sample is drawn from */
-  private int opsSinceReset[];
-
-  // minimums encounetered per operation type
-  private long minimums[];
-
-  // maximums encountered per operation type
-  private long maximums[];
+  /** Sketches of latency since last reset by op type, created on first use */
+  private QuantileSketch sketches[];
 
-  // #errors encountered per type
-  private long errors[];
+  // #errors encountered per type, written like numops
+  private final AtomicLongArray errors;
 
   // Displayed along with stats
   private int threadID;
@@ -71,120 +64,135 @@ public class SampledStats {
   /** Stream to write csv output to ( null if no csv output ) */
   private final PrintStream csvOutput;
 
-  /** Random number generator used to decide which to include in sample */
-  private Random rng;
+  /** If not null, csv output is written through here instead */
+  private StatsOutput.Channel outputChannel = null;
+
+  /** If not null, also record stats for all threads here */
+  private IntervalAggregator.Recorder intervalRecorder = null;
 
   public SampledStats(int input_threadID,
                         int input_maxsamples, PrintStream csvOutput) {
     threadID = input_threadID;
     maxsamples = input_maxsamples;
     this.csvOutput = csvOutput;
-    samples = new long[LinkStore.MAX_OPTYPES][maxsamples];
-    opsSinceReset = new int[LinkStore.MAX_OPTYPES];
-    minimums = new long[LinkStore.MAX_OPTYPES];
-    maximums = new long[LinkStore.MAX_OPTYPES];
-    numops = new long[LinkStore.MAX_OPTYPES];
-    errors = new long[LinkStore.MAX_OPTYPES];
-
-    rng = new Random();
-
-    csvOutput = null;
+    sketches = new QuantileSketch[LinkStore.MAX_OPTYPES];
+    numops = new AtomicLongArray(LinkStore.MAX_OPTYPES);
+    errors = new AtomicLongArray(LinkStore.MAX_OPTYPES);
   }
 
   public void addStats(LinkBenchOp type, long timetaken, boolean error) {
 
+    int i = type.ordinal();
     if (error) {
-      errors[type.ordinal()]++;
+      errors.lazySet(i, errors.get(i) + 1);
     }
 
-    if ((minimums[type.ordinal()] == 0) || (minimums[type.ordinal()] > timetaken)) {
-      minimums[type.ordinal()] = timetaken;
+    numops.lazySet(i, numops.get(i) + 1);
+    QuantileSketch sketch = sketches[type.ordinal()];
+    if (sketch == null) {
+      sketch = new QuantileSketch(maxsamples);
+      sketches[type.ordinal()] = sketch;
     }
-
-    if (timetaken > maximums[type.ordinal()]) {
-      maximums[type.ordinal()] = timetaken;
+    sketch.record(timetaken);
+    if (intervalRecorder != null) {
+      intervalRecorder.record(type, timetaken, error);
     }
+  }
 
-    numops[type.ordinal()]++;
-    int opIndex = opsSinceReset[type.ordinal()];
-    opsSinceReset[type.ordinal()]++;
-
-    if (opIndex < maxsamples) {
-      samples[type.ordinal()][opIndex] = timetaken;
-    } else {
-      // Replacing with the probability guarantees that each measurement
-      // has an equal probability of being included in the sample
-      double pReplace = ((double)maxsamples) / opIndex;
-      if (rng.nextDouble() < pReplace) {
-        // Select sample to replace randomly
-        samples[type.ordinal()][rng.nextInt(maxsamples)] = timetaken;
-      }
+  /**
+   * Write csv output through a channel of output, instead of the stream
+   * given to the constructor.  Must be called by the thread that displays
+   * stats, or before it starts.
+   */
+  public void setStatsOutput(StatsOutput output) {
+    this.outputChannel = output == null ? null : output.newChannel();
+  }
+
+  /**
+   * Also record all stats with recorder, to be aggregated across threads
+   */
+  public void setIntervalRecorder(IntervalAggregator.Recorder recorder) {
+    this.intervalRecorder = recorder;
+  }
+
+  /**
+   * Hand over stats for current interval to the interval recorder, if any
+   */
+  public void flushIntervalRecorder() {
+    if (intervalRecorder != null) {
+      intervalRecorder.flush();
     }
   }
 
 
   public void resetSamples() {
-    for (LinkBenchOp type: LinkBenchOp.values()) {
-      opsSinceReset[type.ordinal()] = 0;
+    for (QuantileSketch sketch: sketches) {
+      if (sketch != null) {
+        sketch.reset();
+      }
     }
   }
 
   /**
-   *  display stats for samples from start (inclusive) to end (exclusive)
+   * @return sketch of latencies since last reset for type, or null if
+   *    none were ever recorded.  Can be merged into a sketch for all
+   *    threads with QuantileSketch.add
+   */
+  public QuantileSketch getSketch(LinkBenchOp type) {
+    return sketches[type.ordinal()];
+  }
+
+  /**
+   *  display stats for operations since the last reset
    * @param type
-   * @param start
-   * @param end
    * @param startTime_ms
    * @param nowTime_ms
    */
-  private void displayStats(LinkBenchOp type, int start, int end,
+  private void displayStats(LinkBenchOp type,
         long sampleStartTime_ms, long nowTime_ms) {
-    int elems = end - start;
+    QuantileSketch sketch = sketches[type.ordinal()];
+    long elems = sketch == null ? 0 : sketch.getCount();
     long timestamp = nowTime_ms / 1000;
     long sampleDuration = nowTime_ms - sampleStartTime_ms;
 
     if (elems <= 0) {
         logger.info("ThreadID = " + threadID +
                          " " + type.displayName() +
-                         " totalops = " + numops[type.ordinal()] +
-                         " totalErrors = " + errors[type.ordinal()] +
-                         " ops = " + opsSinceReset[type.ordinal()] +
+                         " totalops = " + numops.get(type.ordinal()) +
+                         " totalErrors = " + errors.get(type.ordinal()) +
+                         " ops = " + elems +
                          " sampleDuration = " + sampleDuration + "ms" +
                          " samples = " + elems);
-        if (csvOutput != null) {
+        if (outputChannel != null) {
+          outputChannel.write(threadID, timestamp, type,
+              numops.get(type.ordinal()), errors.get(type.ordinal()), 0,
+              sampleDuration, 0, 0, null);
+        } else if (csvOutput != null) {
           csvOutput.println(threadID + "," + timestamp + "," + type.name() +
-            "," + numops[type.ordinal()] + "," + errors[type.ordinal()] +
+            "," + numops.get(type.ordinal()) + "," + errors.get(type.ordinal()) +
             "," + 0 + "," + sampleDuration +
             ",0,,,,,,,,,");
         }
         return;
     }
 
-    // sort  from start (inclusive) to end (exclusive)
-    Arrays.sort(samples[type.ordinal()], start, end);
-
-    RunningMean meanCalc = new RunningMean(samples[type.ordinal()][0]);
-    for (int i = start + 1; i < end; i++) {
-      meanCalc.addSample(samples[type.ordinal()][i]);
-    }
-
-    long min = samples[type.ordinal()][start];
-    long p25 = samples[type.ordinal()][start + elems/4];
-    long p50 = samples[type.ordinal()][start + elems/2];
-    long p75 = samples[type.ordinal()][end - 1 - elems/4];
-    long p90 = samples[type.ordinal()][end - 1 - elems/10];
-    long p95 = samples[type.ordinal()][end - 1 - elems/20];
-    long p99 = samples[type.ordinal()][end - 1 - elems/100];
-    long max = samples[type.ordinal()][end - 1];
-    double mean = meanCalc.mean();
+    long min = sketch.getMin();
+    long p25 = sketch.getValueAtPercentile(25);
+    long p50 = sketch.getValueAtPercentile(50);
+    long p75 = sketch.getValueAtPercentile(75);
+    long p90 = sketch.getValueAtPercentile(90);
+    long p95 = sketch.getValueAtPercentile(95);
+    long p99 = sketch.getValueAtPercentile(99);
+    long max = sketch.getMax();
+    double mean = sketch.getMean();
 
 
     DecimalFormat df = new DecimalFormat("#.##");
     logger.info("ThreadID = " + threadID +
                      " " + type.displayName() +
-                     " totalOps = " + numops[type.ordinal()] +
-                     " totalErrors = " + errors[type.ordinal()] +
-                     " ops = " + opsSinceReset[type.ordinal()] +
+                     " totalOps = " + numops.get(type.ordinal()) +
+                     " totalErrors = " + errors.get(type.ordinal()) +
+                     " ops = " + elems +
                      " sampleDuration = " + sampleDuration + "ms" +
                      " samples = " + elems +
                      " mean = " + df.format(mean) +
@@ -196,10 +204,15 @@ public class SampledStats {
                      " 95% = " + p95 +
                      " 99% = " + p99 +
                      " max = " + max);
-    if (csvOutput != null) {
+    if (outputChannel != null) {
+      outputChannel.write(threadID, timestamp, type,
+          numops.get(type.ordinal()), errors.get(type.ordinal()), elems,
+          sampleDuration, elems, mean,
+          new long[] {min, p25, p50, p75, p90, p95, p99, max});
+    } else if (csvOutput != null) {
       csvOutput.println(threadID + "," + timestamp + "," + type.name() +
-        "," + numops[type.ordinal()] + "," + errors[type.ordinal()] +
-        "," + opsSinceReset[type.ordinal()] + "," + sampleDuration +
+        "," + numops.get(type.ordinal()) + "," + errors.get(type.ordinal()) +
+        "," + elems + "," + sampleDuration +
         "," + elems + "," + mean + "," + min + "," + p25 + "," + p50 +
         "," + p75 + "," + p90 + "," + p95 + "," + p99 + "," + max);
     }
@@ -223,8 +236,7 @@ public class SampledStats {
   public void displayStats(long sampleStartTime_ms, long nowTime_ms,
                            Collection<LinkBenchOp> ops) {
     for (LinkBenchOp op: ops) {
-      displayStats(op, 0, Math.min(maxsamples, opsSinceReset[op.ordinal()]),
-                                   sampleStartTime_ms, nowTime_ms);
+      displayStats(op, sampleStartTime_ms, nowTime_ms);
     }
   }
 
@@ -232,7 +244,14 @@ public class SampledStats {
    * @return total operation count so far for type
    */
   public long getCount(LinkBenchOp type) {
-    return this.numops[type.ordinal()];
+    return this.numops.get(type.ordinal());
+  }
+
+  /**
+   * @return total error count so far for type
+   */
+  public long getErrors(LinkBenchOp type) {
+    return this.errors.get(type.ordinal());
   }
 
 }
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.facebook.LinkBench.Config;
+import com.facebook.LinkBench.ConfigUtil;
+import com.facebook.LinkBench.LinkBenchConfigError;
+import com.facebook.LinkBench.LinkBenchOp;
+
+/**
+ * Writes the streaming statistics of all threads, i.e. the -csvstream
+ * output, from a single background thread, so that threads displaying
+ * their statistics never contend for the output stream or format output
+ * themselves.
+ *
+ * Each thread writes rows of numbers into its own Channel, a ring buffer
+ * with a single producer and a single consumer, so writing takes no locks.
+ * The background thread drains the channels every DRAIN_INTERVAL_MS and
+ * writes the rows.  If a channel is full, its thread waits for the
+ * background thread to make room, rather than losing rows.
+ *
+ * Rows are written either as CSV, with the columns given by
+ * SampledStats.writeCSVHeader, or in a compact binary format that
+ * StatsOutputReader reads.  The binary format starts with a header of
+ * magic number, format version, and the names of operation types, so
+ * that it can be read without reference to the version of LinkBench that
+ * wrote it.  Rows follow in blocks: the number of rows, then each column
+ * for all rows of the block in turn, with each value written as the
+ * difference from the value in the previous row of the block, zigzag and
+ * variable length encoded.  Values that repeat or change slowly, like
+ * thread ids, timestamps and totals, take a byte or two.  The output ends
+ * with a block of zero rows.
+ */
+public class StatsOutput implements Closeable {
+  public static enum Format {
+    CSV,
+    BINARY
+  }
+
+  public static final int MAGIC = 0x4C425354; // "LBST"
+  public static final int VERSION = 1;
+
+  /* Columns of a row */
+  static final int COL_THREAD = 0;
+  static final int COL_TIMESTAMP = 1;
+  static final int COL_OP = 2;
+  static final int COL_TOTAL_OPS = 3;
+  static final int COL_TOTAL_ERRORS = 4;
+  static final int COL_OPS = 5;
+  static final int COL_SAMPLE_DURATION = 6;
+  /** Number of samples that the mean and percentiles are over */
+  static final int COL_SAMPLE_OPS = 7;
+  /** Mean, as raw long bits of the double */
+  static final int COL_MEAN = 8;
+  /** Min, p25, p50, p75, p90, p95, p99, max */
+  static final int COL_PERCENTILES = 9;
+  public static final int NUM_PERCENTILES = 8;
+  static final int NUM_COLUMNS = COL_PERCENTILES + NUM_PERCENTILES;
+
+  /** Thread id for rows with statistics for all threads */
+  public static final int ALL_THREADS = -1;
+
+  public static final int DEFAULT_BUFFER_ROWS = 1024;
+  public static final int MAX_BUFFER_ROWS = 1 << 20;
+
+  /** How often the background thread writes out rows */
+  static final long DRAIN_INTERVAL_MS = 50;
+
+  /** Rows written by the background thread in one binary block at most */
+  private static final int MAX_BLOCK_ROWS = 1024;
+
+  /** Names of operation types by ordinal */
+  private static final String OP_NAMES[];
+  static {
+    LinkBenchOp ops[] = LinkBenchOp.values();
+    OP_NAMES = new String[ops.length];
+    for (int i = 0; i < ops.length; i++) {
+      OP_NAMES[i] = ops[i].name();
+    }
+  }
+
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private final Format format;
+  private final int bufferRows;
+
+  /** Only used by background thread after construction */
+  private final OutputStream rawOut;
+  private final PrintStream csvOut;
+  private final DataOutputStream binaryOut;
+  private final long block[] = new long[MAX_BLOCK_ROWS * NUM_COLUMNS];
+  private long rowsWritten = 0;
+
+  private final List<Channel> channels = new CopyOnWriteArrayList<Channel>();
+
+  private volatile boolean stopping = false;
+  private Thread thread = null;
+
+  /**
+   * Create output and write header.  Call start() before writing rows.
+   * @param bufferRows rows buffered per channel, rounded up to a power
+   *    of 2
+   */
+  public StatsOutput(OutputStream out, Format format, int bufferRows)
+                     throws IOException {
+    if (bufferRows <= 0 || bufferRows > MAX_BUFFER_ROWS) {
+      throw new IllegalArgumentException("Invalid buffer size: " +
+                                         bufferRows);
+    }
+    this.format = format;
+    int rows = 1;
+    while (rows < bufferRows) {
+      rows <<= 1;
+    }
+    this.bufferRows = rows;
+    this.rawOut = out;
+    BufferedOutputStream buffered = new BufferedOutputStream(out);
+    if (format == Format.CSV) {
+      csvOut = new PrintStream(buffered);
+      binaryOut = null;
+      SampledStats.writeCSVHeader(csvOut);
+      csvOut.flush();
+    } else {
+      csvOut = null;
+      binaryOut = new DataOutputStream(buffered);
+      binaryOut.writeInt(MAGIC);
+      binaryOut.writeInt(VERSION);
+      LinkBenchOp ops[] = LinkBenchOp.values();
+      binaryOut.writeShort(ops.length);
+      for (LinkBenchOp op: ops) {
+        binaryOut.writeUTF(op.name());
+      }
+      binaryOut.flush();
+    }
+  }
+
+  /**
+   * Create output with format and buffer size from configuration
+   */
+  public static StatsOutput create(Properties props, OutputStream out)
+                                   throws IOException {
+    String formatName = props.getProperty(Config.CSV_STREAM_FORMAT, "csv");
+    Format format;
+    try {
+      format = Format.valueOf(formatName.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new LinkBenchConfigError("Unknown " + Config.CSV_STREAM_FORMAT +
+                                     ": " + formatName);
+    }
+    int bufferRows = ConfigUtil.getInt(props, Config.CSV_STREAM_BUFFER,
+                                       DEFAULT_BUFFER_ROWS);
+    if (bufferRows <= 0 || bufferRows > MAX_BUFFER_ROWS) {
+      throw new LinkBenchConfigError(Config.CSV_STREAM_BUFFER +
+          " must be between 1 and " + MAX_BUFFER_ROWS);
+    }
+    return new StatsOutput(out, format, bufferRows);
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  public int getBufferRows() {
+    return bufferRows;
+  }
+
+  /** @return rows written out so far */
+  public long getRowsWritten() {
+    return rowsWritten;
+  }
+
+  /**
+   * @return new channel, to be written by a single thread
+   */
+  public Channel newChannel() {
+    Channel channel = new Channel(bufferRows);
+    channels.add(channel);
+    return channel;
+  }
+
+  /**
+   * Start background thread that writes rows
+   */
+  public void start() {
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (true) {
+          // Rows written before stopping was set are drained in last pass
+          boolean stop = stopping;
+          try {
+            if (drain() > 0) {
+              flush();
+            }
+          } catch (IOException e) {
+            logger.error("Error writing stats output, no more rows will " +
+                         "be written", e);
+            stopDraining();
+            return;
+          }
+          if (stop) {
+            return;
+          }
+          LockSupport.parkNanos(DRAIN_INTERVAL_MS * 1000000L);
+        }
+      }
+    }, "StatsOutput");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Write remaining rows, stop background thread and close output.
+   * Threads should have finished writing rows.
+   */
+  @Override
+  public void close() throws IOException {
+    stopping = true;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted waiting for stats output", e);
+      }
+      thread = null;
+    } else {
+      drain();
+    }
+    if (binaryOut != null) {
+      binaryOut.writeInt(0);
+    }
+    flush();
+    rawOut.close();
+    long waits = 0;
+    for (Channel channel: channels) {
+      waits += channel.fullWaits;
+    }
+    if (waits > 0) {
+      logger.warn("Threads waited " + waits + " times for room in stats " +
+          "output buffers: consider increasing " + Config.CSV_STREAM_BUFFER);
+    }
+  }
+
+  private void flush() throws IOException {
+    if (csvOut != null) {
+      csvOut.flush();
+    } else {
+      binaryOut.flush();
+    }
+  }
+
+  /**
+   * If writing fails, unblock any threads waiting for room
+   */
+  private void stopDraining() {
+    for (Channel channel: channels) {
+      channel.discard = true;
+    }
+  }
+
+  /**
+   * Write out all rows in channels
+   * @return number of rows written
+   */
+  int drain() throws IOException {
+    int total = 0;
+    int rows = 0;
+    for (Channel channel: channels) {
+      while (true) {
+        int n = channel.take(block, rows, MAX_BLOCK_ROWS - rows);
+        if (n == 0) {
+          break;
+        }
+        rows += n;
+        total += n;
+        if (rows == MAX_BLOCK_ROWS) {
+          writeRows(rows);
+          rows = 0;
+        }
+      }
+    }
+    if (rows > 0) {
+      writeRows(rows);
+    }
+    rowsWritten += total;
+    return total;
+  }
+
+  private void writeRows(int rows) throws IOException {
+    if (csvOut != null) {
+      for (int r = 0; r < rows; r++) {
+        writeCSVRow(csvOut, block, r * NUM_COLUMNS);
+      }
+    } else {
+      binaryOut.writeInt(rows);
+      for (int c = 0; c < NUM_COLUMNS; c++) {
+        long prev = 0;
+        for (int r = 0; r < rows; r++) {
+          long value = block[r * NUM_COLUMNS + c];
+          writeVarLong(binaryOut, value - prev);
+          prev = value;
+        }
+      }
+    }
+  }
+
+  /**
+   * Write row starting at offset in same format as SampledStats
+   * @param opNames names of operation types by index
+   */
+  static void writeCSVRow(PrintStream out, long row[], int offset,
+                          String opNames[]) {
+    StringBuilder sb = new StringBuilder();
+    long thread = row[offset + COL_THREAD];
+    sb.append(thread == ALL_THREADS ? "all" : Long.toString(thread))
+      .append(',').append(row[offset + COL_TIMESTAMP])
+      .append(',').append(opNames[(int) row[offset + COL_OP]])
+      .append(',').append(row[offset + COL_TOTAL_OPS])
+      .append(',').append(row[offset + COL_TOTAL_ERRORS])
+      .append(',').append(row[offset + COL_OPS])
+      .append(',').append(row[offset + COL_SAMPLE_DURATION])
+      .append(',').append(row[offset + COL_SAMPLE_OPS]);
+    if (row[offset + COL_SAMPLE_OPS] == 0) {
+      sb.append(",,,,,,,,,");
+    } else {
+      sb.append(',').append(
+          Double.longBitsToDouble(row[offset + COL_MEAN]));
+      for (int p = 0; p < NUM_PERCENTILES; p++) {
+        sb.append(',').append(row[offset + COL_PERCENTILES + p]);
+      }
+    }
+    out.println(sb);
+  }
+
+  private static void writeCSVRow(PrintStream out, long row[], int offset) {
+    writeCSVRow(out, row, offset, OP_NAMES);
+  }
+
+  static void writeVarLong(DataOutputStream out, long value)
+                           throws IOException {
+    // Zigzag encode so that small negative differences are small
+    long v = (value << 1) ^ (value >> 63);
+    while ((v & ~0x7FL) != 0) {
+      out.writeByte((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int) v);
+  }
+
+  /**
+   * Ring buffer of rows written by one thread and read by the background
+   * thread
+   */
+  public static class Channel {
+    private final long buffer[];
+    private final int mask;
+
+    /** Rows written, only updated by the writing thread */
+    private final AtomicLong head = new AtomicLong();
+    /** Rows taken, only updated by the background thread */
+    private final AtomicLong tail = new AtomicLong();
+    /** Writing thread's copy of tail, to avoid reading it for every row */
+    private long tailCache = 0;
+
+    /** Times the writing thread had to wait for room */
+    private volatile long fullWaits = 0;
+    /** Set if output failed, so rows should be dropped */
+    private volatile boolean discard = false;
+
+    private Channel(int rows) {
+      buffer = new long[rows * NUM_COLUMNS];
+      mask = rows - 1;
+    }
+
+    /**
+     * Write a row of statistics
+     * @param threadID thread, or ALL_THREADS
+     * @param timestamp seconds since the epoch
+     * @param ops operations since the last row
+     * @param sampleDuration_ms time since the last row
+     * @param sampleOps operations the mean and percentiles are over
+     * @param percentiles min, p25, p50, p75, p90, p95, p99 and max, or null
+     *    if sampleOps is 0
+     */
+    public void write(int threadID, long timestamp, LinkBenchOp type,
+        long totalOps, long totalErrors, long ops, long sampleDuration_ms,
+        long sampleOps, double mean, long percentiles[]) {
+      long h = head.get();
+      int rows = mask + 1;
+      if (h - tailCache >= rows) {
+        tailCache = tail.get();
+        while (h - tailCache >= rows) {
+          if (discard) {
+            return;
+          }
+          fullWaits++;
+          LockSupport.parkNanos(DRAIN_INTERVAL_MS * 1000000L / 10);
+          tailCache = tail.get();
+        }
+      }
+      int off = (int) (h & mask) * NUM_COLUMNS;
+      buffer[off + COL_THREAD] = threadID;
+      buffer[off + COL_TIMESTAMP] = timestamp;
+      buffer[off + COL_OP] = type.ordinal();
+      buffer[off + COL_TOTAL_OPS] = totalOps;
+      buffer[off + COL_TOTAL_ERRORS] = totalErrors;
+      buffer[off + COL_OPS] = ops;
+      buffer[off + COL_SAMPLE_DURATION] = sampleDuration_ms;
+      buffer[off + COL_SAMPLE_OPS] = sampleOps;
+      buffer[off + COL_MEAN] = Double.doubleToRawLongBits(mean);
+      for (int p = 0; p < NUM_PERCENTILES; p++) {
+        buffer[off + COL_PERCENTILES + p] =
+                                percentiles == null ? 0 : percentiles[p];
+      }
+      // Publish row after its contents
+      head.lazySet(h + 1);
+    }
+
+    /**
+     * Copy up to max rows into dest, starting at row destRow
+     * @return number of rows copied
+     */
+    private int take(long dest[], int destRow, int max) {
+      long t = tail.get();
+      int n = (int) Math.min(max, head.get() - t);
+      for (int i = 0; i < n; i++) {
+        int off = (int) ((t + i) & mask) * NUM_COLUMNS;
+        System.arraycopy(buffer, off, dest, (destRow + i) * NUM_COLUMNS,
+                         NUM_COLUMNS);
+      }
+      if (n > 0) {
+        // Free the rows for the writer after copying them
+        tail.lazySet(t + n);
+      }
+      return n;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.stats;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Read streaming statistics written by StatsOutput in binary format.
+ * Operation types are identified by name, so output can be read by a
+ * different version of LinkBench.  Output that was cut short, e.g.
+ * because the benchmark is still running, is read up to the last complete
+ * block.
+ */
+public class StatsOutputReader implements Closeable {
+  private final DataInputStream in;
+  private final String opNames[];
+
+  /** Rows of current block, and position in it */
+  private long block[] = new long[0];
+  private int blockRows = 0;
+  private int nextRow = 0;
+  private boolean done = false;
+
+  public StatsOutputReader(File file) throws IOException {
+    this(new FileInputStream(file));
+  }
+
+  public StatsOutputReader(InputStream is) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(is));
+    int magic = in.readInt();
+    if (magic != StatsOutput.MAGIC) {
+      throw new IOException("Not binary stats output: bad magic number " +
+                            Integer.toHexString(magic));
+    }
+    int version = in.readInt();
+    if (version != StatsOutput.VERSION) {
+      throw new IOException("Unsupported stats output version " + version);
+    }
+    int nOps = in.readShort();
+    if (nOps < 0) {
+      throw new IOException("Invalid number of operation types " + nOps);
+    }
+    opNames = new String[nOps];
+    for (int i = 0; i < nOps; i++) {
+      opNames[i] = in.readUTF();
+    }
+  }
+
+  /**
+   * Read next row into row, with columns as in StatsOutput
+   * @return false at end of output
+   */
+  boolean next(long row[]) throws IOException {
+    if (nextRow == blockRows && !readBlock()) {
+      return false;
+    }
+    System.arraycopy(block, nextRow * StatsOutput.NUM_COLUMNS, row, 0,
+                     StatsOutput.NUM_COLUMNS);
+    nextRow++;
+    return true;
+  }
+
+  private boolean readBlock() throws IOException {
+    if (done) {
+      return false;
+    }
+    try {
+      int rows = in.readInt();
+      if (rows == 0) {
+        done = true;
+        return false;
+      } else if (rows < 0) {
+        throw new IOException("Invalid block size " + rows +
+                              " in stats output");
+      }
+      int ncols = StatsOutput.NUM_COLUMNS;
+      if (block.length < rows * ncols) {
+        block = new long[rows * ncols];
+      }
+      for (int c = 0; c < ncols; c++) {
+        long value = 0;
+        for (int r = 0; r < rows; r++) {
+          value += readVarLong(in);
+          block[r * ncols + c] = value;
+        }
+      }
+      for (int r = 0; r < rows; r++) {
+        long op = block[r * ncols + StatsOutput.COL_OP];
+        if (op < 0 || op >= opNames.length) {
+          throw new IOException("Invalid operation type " + op +
+                                " in stats output");
+        }
+      }
+      blockRows = rows;
+      nextRow = 0;
+      return true;
+    } catch (EOFException e) {
+      // Output was not closed: ignore incomplete block at end
+      done = true;
+      return false;
+    }
+  }
+
+  static long readVarLong(DataInputStream in) throws IOException {
+    long v = 0;
+    int shift = 0;
+    while (true) {
+      int b = in.readUnsignedByte();
+      v |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+      shift += 7;
+      if (shift > 63) {
+        throw new IOException("Invalid variable length value");
+      }
+    }
+    // Undo zigzag encoding
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  /**
+   * Write all remaining rows as CSV, in the same format as the -csvstream
+   * output, without header
+   * @return number of rows written
+   */
+  public long writeCSV(PrintStream out) throws IOException {
+    long row[] = new long[StatsOutput.NUM_COLUMNS];
+    long rows = 0;
+    while (next(row)) {
+      StatsOutput.writeCSVRow(out, row, 0, opNames);
+      rows++;
+    }
+    return rows;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Convert binary stats output files to CSV on standard output
+   */
+  public static void main(String args[]) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: StatsOutputReader <binary stats file>...");
+      System.exit(1);
+    }
+    SampledStats.writeCSVHeader(System.out);
+    for (String file: args) {
+      StatsOutputReader reader = new StatsOutputReader(new File(file));
+      try {
+        reader.writeCSV(System.out);
+      } finally {
+        reader.close();
+      }
+    }
+    System.out.flush();
+  }
+}
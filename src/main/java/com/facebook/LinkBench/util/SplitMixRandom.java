@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.util;
+
+import java.util.Random;
+
+/**
+ * A fast, non-thread-safe random number generator using the SplitMix64
+ * algorithm from "Fast Splittable Pseudorandom Number Generators"
+ * (Steele, Lea and Flood).  The state is a single counter that is advanced
+ * by a fixed odd constant, with each output being a strong mix of the
+ * counter value.
+ *
+ * Because the generator is cheap to seed, a separate stream can be derived
+ * for each key, e.g. each requester or each id1 being loaded, from one base
+ * seed.  The values generated for a key then don't depend on how work was
+ * divided between threads.
+ *
+ * Subclasses Random so that it can be used anywhere a Random is expected,
+ * but instances must not be shared between threads.
+ */
+public class SplitMixRandom extends Random {
+  private static final long serialVersionUID = 1L;
+
+  /** Odd constant that counter is advanced by: 2^64 / golden ratio */
+  private static final long GAMMA = 0x9e3779b97f4a7c15L;
+
+  private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+  /** Set by setSeed, which is called from superclass constructor */
+  private long state;
+
+  public SplitMixRandom() {
+    super();
+  }
+
+  public SplitMixRandom(long seed) {
+    super(seed);
+  }
+
+  /**
+   * @return a generator for the stream identified by key, derived from seed
+   */
+  public static SplitMixRandom forKey(long seed, long key) {
+    SplitMixRandom rng = new SplitMixRandom(0);
+    rng.reseed(seed, key);
+    return rng;
+  }
+
+  /**
+   * Reset this generator to the start of the stream identified by key,
+   * so that the same (seed, key) pair always gives the same values.
+   */
+  public void reseed(long seed, long key) {
+    setSeed(seed ^ mix64((key + 1) * GAMMA));
+  }
+
+  /**
+   * @return a new generator with a stream independent of this one's.
+   *    Advances this generator.
+   */
+  public SplitMixRandom split() {
+    return new SplitMixRandom(nextLong());
+  }
+
+  @Override
+  public void setSeed(long seed) {
+    // Clears cached gaussian in superclass
+    super.setSeed(seed);
+    state = mix64(seed);
+  }
+
+  @Override
+  protected int next(int bits) {
+    return (int)(nextLong() >>> (64 - bits));
+  }
+
+  @Override
+  public long nextLong() {
+    return mix64(state += GAMMA);
+  }
+
+  @Override
+  public int nextInt() {
+    return (int)(nextLong() >>> 32);
+  }
+
+  @Override
+  public double nextDouble() {
+    return (nextLong() >>> 11) * DOUBLE_UNIT;
+  }
+
+  @Override
+  public boolean nextBoolean() {
+    return nextLong() < 0;
+  }
+
+  /**
+   * Variant 13 of Stafford's 64-bit mix function
+   */
+  static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
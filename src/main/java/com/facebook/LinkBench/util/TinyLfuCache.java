@@ -0,0 +1,522 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench.util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A bounded cache with W-TinyLFU eviction, as described in "TinyLFU: A
+ * Highly Efficient Cache Admission Policy" (Einziger, Friedman and Manes).
+ *
+ * New entries go into a small LRU window.  Entries evicted from the window
+ * are only admitted to the main cache if they have been accessed more often
+ * than the main cache's eviction victim, going by an approximate count of
+ * recent accesses kept in a count-min sketch.  The main cache is a
+ * segmented LRU with probation and protected segments.
+ *
+ * Entries have a weight, such as their approximate size in bytes, and the
+ * total weight is bounded.  The cache is divided into independently locked
+ * segments by key hash, each with an equal share of the weight.
+ *
+ * Each segment counts writes, and remembers the count at the latest write
+ * to each recently written key, so that a value read from a backing store
+ * can be added only if no write was made to that key since the read
+ * started: see stamp and putIfUnchanged.  Only the last MAX_TOMBSTONES
+ * writes to each segment are remembered, and a value read before older
+ * writes is not added, in case one of them was to its key.
+ */
+public class TinyLfuCache<K, V> {
+  /** Fraction of weight for window */
+  static final double WINDOW_FRACTION = 0.01;
+
+  /** Fraction of main cache weight for protected segment */
+  static final double PROTECTED_FRACTION = 0.8;
+
+  /** Number of recent writes remembered per segment */
+  public static final int MAX_TOMBSTONES = 1024;
+
+  private final Segment<K, V> segments[];
+
+  /**
+   * @param maxWeight bound on total weight of entries
+   * @param nsegments number of independently locked segments
+   * @param expectedEntries expected number of entries when full, used to
+   *    size the frequency sketch
+   */
+  @SuppressWarnings("unchecked")
+  public TinyLfuCache(long maxWeight, int nsegments, long expectedEntries) {
+    if (maxWeight <= 0 || nsegments <= 0) {
+      throw new IllegalArgumentException("Bad cache size " + maxWeight +
+                                         " with " + nsegments + " segments");
+    }
+    segments = (Segment<K, V>[]) new Segment<?, ?>[nsegments];
+    long segEntries = Math.max(1, expectedEntries / nsegments);
+    for (int i = 0; i < nsegments; i++) {
+      segments[i] = new Segment<K, V>(Math.max(1, maxWeight / nsegments),
+                                      segEntries);
+    }
+  }
+
+  /**
+   * Look up key, recording the access
+   * @return value, or null if not present
+   */
+  public V get(K key) {
+    int hash = spread(key.hashCode());
+    return segmentFor(hash).get(key, hash);
+  }
+
+  /**
+   * @return a stamp to pass to putIfUnchanged for the key
+   */
+  public long stamp(K key) {
+    return segmentFor(spread(key.hashCode())).stamp();
+  }
+
+  /**
+   * Add or replace value for key, as a result of a write
+   */
+  public void put(K key, V value, int weight) {
+    int hash = spread(key.hashCode());
+    segmentFor(hash).put(key, hash, value, weight, -1);
+  }
+
+  /**
+   * Add or replace value for key, unless there was a write to key since
+   * stamp was taken
+   * @return true if added
+   */
+  public boolean putIfUnchanged(K key, V value, int weight, long stamp) {
+    int hash = spread(key.hashCode());
+    return segmentFor(hash).put(key, hash, value, weight, stamp);
+  }
+
+  /**
+   * Remove value for key, as a result of a write
+   */
+  public void invalidate(K key) {
+    int hash = spread(key.hashCode());
+    segmentFor(hash).invalidate(key);
+  }
+
+  /**
+   * Remove all entries
+   */
+  public void clear() {
+    for (Segment<K, V> seg: segments) {
+      seg.clear();
+    }
+  }
+
+  public long size() {
+    long size = 0;
+    for (Segment<K, V> seg: segments) {
+      size += seg.size();
+    }
+    return size;
+  }
+
+  public long weight() {
+    long weight = 0;
+    for (Segment<K, V> seg: segments) {
+      weight += seg.weight();
+    }
+    return weight;
+  }
+
+  /**
+   * @return number of entries evicted to make space, or not admitted
+   */
+  public long evictions() {
+    long evictions = 0;
+    for (Segment<K, V> seg: segments) {
+      evictions += seg.evictions();
+    }
+    return evictions;
+  }
+
+  private Segment<K, V> segmentFor(int hash) {
+    return segments[(hash >>> 1) % segments.length];
+  }
+
+  private static int spread(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private static final byte WINDOW = 0;
+  private static final byte PROBATION = 1;
+  private static final byte PROTECTED = 2;
+
+  private static class Entry<K, V> {
+    final K key;
+    final int hash;
+    V value;
+    int weight;
+    byte queue;
+    Entry<K, V> prev;
+    Entry<K, V> next;
+
+    Entry(K key, int hash) {
+      this.key = key;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * Doubly linked list of entries, least recently used first
+   */
+  private static class Queue<K, V> {
+    private final Entry<K, V> head = new Entry<K, V>(null, 0);
+    long weight = 0;
+
+    Queue() {
+      head.prev = head;
+      head.next = head;
+    }
+
+    Entry<K, V> first() {
+      return head.next == head ? null : head.next;
+    }
+
+    Entry<K, V> last() {
+      return head.prev == head ? null : head.prev;
+    }
+
+    void addLast(Entry<K, V> e) {
+      e.prev = head.prev;
+      e.next = head;
+      head.prev.next = e;
+      head.prev = e;
+      weight += e.weight;
+    }
+
+    void remove(Entry<K, V> e) {
+      e.prev.next = e.next;
+      e.next.prev = e.prev;
+      e.prev = null;
+      e.next = null;
+      weight -= e.weight;
+    }
+
+    void clear() {
+      head.prev = head;
+      head.next = head;
+      weight = 0;
+    }
+  }
+
+  /**
+   * Write count at the latest write to a key
+   */
+  private static class Tombstone<K> {
+    final K key;
+    final long write;
+
+    Tombstone(K key, long write) {
+      this.key = key;
+      this.write = write;
+    }
+  }
+
+  private static class Segment<K, V> {
+    private final HashMap<K, Entry<K, V>> map = new HashMap<K, Entry<K, V>>();
+    /** Latest write to each recently written key */
+    private final HashMap<K, Tombstone<K>> tombstones =
+                                          new HashMap<K, Tombstone<K>>();
+    /** Recent writes, oldest first */
+    private final ArrayDeque<Tombstone<K>> writeOrder =
+                                          new ArrayDeque<Tombstone<K>>();
+    private final Queue<K, V> window = new Queue<K, V>();
+    private final Queue<K, V> probation = new Queue<K, V>();
+    private final Queue<K, V> protectedQ = new Queue<K, V>();
+    private final FrequencySketch sketch;
+
+    private final long maxWeight;
+    private final long maxWindow;
+    private final long maxProtected;
+    private long weight = 0;
+    private long writes = 0;
+    /** Writes up to this count are no longer remembered */
+    private long forgotten = 0;
+    private long evictions = 0;
+
+    Segment(long maxWeight, long expectedEntries) {
+      this.maxWeight = maxWeight;
+      this.maxWindow = Math.max(1, (long)(maxWeight * WINDOW_FRACTION));
+      this.maxProtected = (long)((maxWeight - maxWindow) * PROTECTED_FRACTION);
+      this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    synchronized V get(K key, int hash) {
+      sketch.increment(hash);
+      Entry<K, V> e = map.get(key);
+      if (e == null) {
+        return null;
+      }
+      switch (e.queue) {
+      case WINDOW:
+        window.remove(e);
+        window.addLast(e);
+        break;
+      case PROBATION:
+        // Promote, demoting least recently used protected entries
+        probation.remove(e);
+        e.queue = PROTECTED;
+        protectedQ.addLast(e);
+        while (protectedQ.weight > maxProtected) {
+          Entry<K, V> demoted = protectedQ.first();
+          protectedQ.remove(demoted);
+          demoted.queue = PROBATION;
+          probation.addLast(demoted);
+        }
+        break;
+      default:
+        protectedQ.remove(e);
+        protectedQ.addLast(e);
+        break;
+      }
+      return e.value;
+    }
+
+    synchronized long stamp() {
+      return writes;
+    }
+
+    /**
+     * @param stamp if >= 0, only add if no writes to key since stamp.
+     *    Otherwise this is a write.
+     */
+    synchronized boolean put(K key, int hash, V value, int weight,
+                             long stamp) {
+      if (stamp >= 0) {
+        if (writtenSince(key, stamp)) {
+          return false;
+        }
+      } else {
+        write(key);
+      }
+      Entry<K, V> e = map.get(key);
+      if (weight > maxWeight) {
+        // Can never fit
+        if (e != null) {
+          remove(e);
+        }
+        return false;
+      }
+      if (e != null) {
+        queueOf(e).weight += weight - e.weight;
+        this.weight += weight - e.weight;
+        e.value = value;
+        e.weight = weight;
+      } else {
+        e = new Entry<K, V>(key, hash);
+        e.value = value;
+        e.weight = weight;
+        e.queue = WINDOW;
+        window.addLast(e);
+        map.put(key, e);
+        this.weight += weight;
+      }
+      evict();
+      return map.containsKey(key);
+    }
+
+    synchronized void invalidate(K key) {
+      write(key);
+      Entry<K, V> e = map.get(key);
+      if (e != null) {
+        remove(e);
+      }
+    }
+
+    synchronized void clear() {
+      writes++;
+      // All reads in progress may be stale
+      forgotten = writes;
+      tombstones.clear();
+      writeOrder.clear();
+      map.clear();
+      window.clear();
+      probation.clear();
+      protectedQ.clear();
+      weight = 0;
+    }
+
+    synchronized long size() {
+      return map.size();
+    }
+
+    synchronized long weight() {
+      return weight;
+    }
+
+    synchronized long evictions() {
+      return evictions;
+    }
+
+    /**
+     * Count a write to key, and remember it in place of any earlier write
+     * to key
+     */
+    private void write(K key) {
+      writes++;
+      Tombstone<K> t = new Tombstone<K>(key, writes);
+      tombstones.put(key, t);
+      writeOrder.addLast(t);
+      if (writeOrder.size() > MAX_TOMBSTONES) {
+        Tombstone<K> oldest = writeOrder.removeFirst();
+        if (tombstones.get(oldest.key) == oldest) {
+          tombstones.remove(oldest.key);
+        }
+        forgotten = oldest.write;
+      }
+    }
+
+    private boolean writtenSince(K key, long stamp) {
+      if (stamp < forgotten) {
+        return true;
+      }
+      Tombstone<K> t = tombstones.get(key);
+      return t != null && t.write > stamp;
+    }
+
+    private Queue<K, V> queueOf(Entry<K, V> e) {
+      switch (e.queue) {
+      case WINDOW:
+        return window;
+      case PROBATION:
+        return probation;
+      default:
+        return protectedQ;
+      }
+    }
+
+    private void remove(Entry<K, V> e) {
+      queueOf(e).remove(e);
+      map.remove(e.key);
+      weight -= e.weight;
+    }
+
+    /**
+     * Move entries over the window's share into probation, then evict
+     * until under the weight limit.  Entries from the window are
+     * candidates for admission, and compete with the least recently used
+     * probation entry on access frequency.
+     */
+    private void evict() {
+      int candidates = 0;
+      while (window.weight > maxWindow && window.first() != null) {
+        Entry<K, V> e = window.first();
+        window.remove(e);
+        e.queue = PROBATION;
+        probation.addLast(e);
+        candidates++;
+      }
+
+      while (weight > maxWeight) {
+        Entry<K, V> victim = probation.first();
+        if (victim == null) {
+          victim = protectedQ.first();
+        }
+        if (victim == null) {
+          victim = window.first();
+        }
+        Entry<K, V> candidate = candidates > 0 ? probation.last() : null;
+        if (candidate == null || candidate == victim) {
+          if (victim == candidate) {
+            candidates--;
+          }
+          remove(victim);
+        } else if (sketch.frequency(candidate.hash) >
+                   sketch.frequency(victim.hash)) {
+          remove(victim);
+        } else {
+          remove(candidate);
+          candidates--;
+        }
+        evictions++;
+      }
+    }
+  }
+
+  /**
+   * Count-min sketch of access frequency with 4 bit counters.  Counters
+   * are halved periodically, so that the counts reflect recent accesses.
+   */
+  static class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final long SEEDS[] = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+      0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final int MAX_COUNT = 15;
+
+    private final byte table[];
+    private final int width;
+    private final int sampleSize;
+    private int additions = 0;
+
+    FrequencySketch(long expectedEntries) {
+      int w = 16;
+      while (w < expectedEntries && w < (1 << 24)) {
+        w <<= 1;
+      }
+      width = w;
+      table = new byte[DEPTH * width];
+      sampleSize = 10 * width;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int i = 0; i < DEPTH; i++) {
+        int ix = index(hash, i);
+        if (table[ix] < MAX_COUNT) {
+          table[ix]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        reset();
+      }
+    }
+
+    int frequency(int hash) {
+      int freq = MAX_COUNT;
+      for (int i = 0; i < DEPTH; i++) {
+        freq = Math.min(freq, table[index(hash, i)]);
+      }
+      return freq;
+    }
+
+    private int index(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return i * width + ((int)h & (width - 1));
+    }
+
+    private void reset() {
+      for (int i = 0; i < table.length; i++) {
+        table[i] >>= 1;
+      }
+      additions /= 2;
+    }
+  }
+}
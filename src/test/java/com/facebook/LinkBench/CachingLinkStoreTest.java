@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Run link store tests against a cache in front of a memory store, with
+ * a cache small enough that entries are evicted
+ */
+public class CachingLinkStoreTest extends LinkStoreTestBase {
+
+  MemoryLinkStore store;
+  GraphCache cache;
+
+  @Override
+  protected void initStore(Properties props) throws IOException, Exception {
+    store = new MemoryLinkStore();
+    cache = new GraphCache(256 * 1024, true);
+  }
+
+  @Override
+  protected DummyLinkStore getStoreHandle(boolean initialized) {
+    MemoryLinkStore handle = store.newHandle();
+    return new DummyLinkStore(new CachingLinkStore(cache, handle, handle),
+                              initialized);
+  }
+
+  @Test
+  public void testHitsAndInvalidation() throws Exception {
+    CachingLinkStore cstore = new CachingLinkStore(cache, store.newHandle(),
+                                                   null);
+    cstore.initialize(basicProps(), Phase.REQUEST, 0);
+    long id1 = 4567;
+    long ltype = LinkStore.DEFAULT_LINK_TYPE;
+
+    // Miss, then hit on cached negative result
+    assertNull(cstore.getLinkList(testDB, id1, ltype));
+    assertNull(cstore.getLinkList(testDB, id1, ltype));
+    assertEquals(1, cache.getMisses(LinkBenchOp.GET_LINKS_LIST));
+    assertEquals(1, cache.getHits(LinkBenchOp.GET_LINKS_LIST));
+    assertEquals(0, cstore.countLinks(testDB, id1, ltype));
+
+    // Write invalidates list and count
+    Link l = new Link(id1, ltype, 1, LinkStore.VISIBILITY_DEFAULT,
+                      new byte[] {0x1}, 1, 1000);
+    cstore.addLink(testDB, l, true);
+    Link list[] = cstore.getLinkList(testDB, id1, ltype);
+    assertEquals(1, list.length);
+    assertEquals(l, list[0]);
+    assertEquals(1, cstore.countLinks(testDB, id1, ltype));
+    assertEquals(2, cache.getMisses(LinkBenchOp.GET_LINKS_LIST));
+    assertEquals(2, cache.getMisses(LinkBenchOp.COUNT_LINK));
+
+    // Hits return copies
+    list[0].data[0] = 0x7;
+    Link again[] = cstore.getLinkList(testDB, id1, ltype);
+    assertEquals(l, again[0]);
+    assertEquals(2, cache.getHits(LinkBenchOp.GET_LINKS_LIST));
+
+    // Multiget mixes hits and misses
+    assertEquals(1, cstore.multigetLinks(testDB, id1, ltype,
+                                         new long[] {1, 2}).length);
+    assertEquals(1, cstore.multigetLinks(testDB, id1, ltype,
+                                         new long[] {1, 2, 3}).length);
+    assertEquals(2, cache.getHits(LinkBenchOp.MULTIGET_LINK));
+    assertEquals(3, cache.getMisses(LinkBenchOp.MULTIGET_LINK));
+
+    // Changes in visibility are seen
+    cstore.deleteLink(testDB, id1, ltype, 1, true, false);
+    assertNull(cstore.getLinkList(testDB, id1, ltype));
+    assertEquals(LinkStore.VISIBILITY_HIDDEN,
+        cstore.multigetLinks(testDB, id1, ltype, new long[] {1})[0].visibility);
+    assertEquals(0.4, cache.getHitRate(LinkBenchOp.GET_LINKS_LIST), 1e-9);
+    cstore.close();
+  }
+
+  @Test
+  public void testNoNegativeCaching() throws Exception {
+    GraphCache posCache = new GraphCache(1024 * 1024, false);
+    MemoryLinkStore handle = store.newHandle();
+    CachingLinkStore cstore = new CachingLinkStore(posCache, handle, handle);
+    cstore.initialize(basicProps(), Phase.REQUEST, 0);
+    cstore.resetNodeStore(testDB, 1);
+
+    assertNull(cstore.getNode(testDB, LinkStore.DEFAULT_NODE_TYPE, 1));
+    assertNull(cstore.getNode(testDB, LinkStore.DEFAULT_NODE_TYPE, 1));
+    assertEquals(0, posCache.getHits(LinkBenchOp.GET_NODE));
+    assertEquals(2, posCache.getMisses(LinkBenchOp.GET_NODE));
+
+    Node n = new Node(-1, LinkStore.DEFAULT_NODE_TYPE, 1, 1, new byte[3]);
+    n.id = cstore.addNode(testDB, n);
+    assertEquals(n, cstore.getNode(testDB, n.type, n.id));
+    assertEquals(n, cstore.multigetNodes(testDB, n.type,
+                                         new long[] {n.id})[0]);
+    assertEquals(1, posCache.getHits(LinkBenchOp.GET_NODE));
+
+    n.data = new byte[] {0x1};
+    assertTrue(cstore.updateNode(testDB, n));
+    assertEquals(n, cstore.getNode(testDB, n.type, n.id));
+    assertTrue(cstore.deleteNode(testDB, n.type, n.id));
+    assertNull(cstore.getNode(testDB, n.type, n.id));
+    cstore.close();
+  }
+
+  /**
+   * Stores opened from the same configuration share a cache, which is
+   * dropped once they are all closed
+   */
+  @Test
+  public void testSharedCacheLifetime() throws Exception {
+    Properties props = basicProps();
+    props.setProperty(Config.CACHE_LINKSTORE_CLASS,
+                      MemoryLinkStore.class.getName());
+    props.setProperty(Config.CACHE_SIZE_MB, "1");
+    CachingLinkStore a = new CachingLinkStore();
+    CachingLinkStore b = new CachingLinkStore();
+    a.initialize(props, Phase.LOAD, 0);
+    b.initialize(props, Phase.LOAD, 1);
+    GraphCache loadCache = a.getCache();
+    assertSame(loadCache, b.getCache());
+    a.close();
+
+    // Still open by b
+    CachingLinkStore c = new CachingLinkStore();
+    c.initialize(props, Phase.LOAD, 2);
+    assertSame(loadCache, c.getCache());
+    b.close();
+    c.close();
+    assertNull(a.getCache());
+
+    // Next phase gets a new cache
+    a.initialize(props, Phase.REQUEST, 0);
+    assertNotSame(loadCache, a.getCache());
+    a.close();
+  }
+}
@@ -74,11 +74,14 @@ public class DummyLinkStore extends GraphStore {
   public long getLinkLists = 0;
   public long getLinkListsHistory = 0;
   public long countLinks = 0;
+  public long multiCountLinks = 0;
+  public long multigetLinkLists = 0;
 
   public long addNodes = 0;
   public long updateNodes = 0;
   public long deleteNodes = 0;
   public long getNodes = 0;
+  public long multigetNodes = 0;
 
   public int bulkLoadBatchSize;
   public long bulkLoadLinkOps;
@@ -215,6 +218,30 @@ public class DummyLinkStore extends GraphStore {
     }
   }
 
+  @Override
+  public long[] multiCountLinks(String dbid, long[] id1s, long[] link_types)
+      throws Exception {
+    checkInitialized();
+    multiCountLinks++;
+    if (wrappedStore != null) {
+      return wrappedStore.multiCountLinks(dbid, id1s, link_types);
+    } else {
+      return new long[id1s.length];
+    }
+  }
+
+  @Override
+  public Link[][] multigetLinkLists(String dbid, long[] id1s, long link_type)
+      throws Exception {
+    checkInitialized();
+    multigetLinkLists++;
+    if (wrappedStore != null) {
+      return wrappedStore.multigetLinkLists(dbid, id1s, link_type);
+    } else {
+      return new Link[id1s.length][];
+    }
+  }
+
   private void checkInitialized() {
     if (!initialized) {
       throw new RuntimeException("Expected store to be initialized");
@@ -292,6 +319,16 @@ public class DummyLinkStore extends GraphStore {
     return null;
   }
 
+  @Override
+  public Node[] multigetNodes(String dbid, int type, long[] ids)
+      throws Exception {
+    multigetNodes++;
+    if (wrappedGraphStore != null) {
+      return wrappedGraphStore.multigetNodes(dbid, type, ids);
+    }
+    return new Node[ids.length];
+  }
+
   @Override
   public boolean updateNode(String dbid, Node node) throws Exception {
     updateNodes++;
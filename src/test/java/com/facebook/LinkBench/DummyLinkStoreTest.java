@@ -18,6 +18,13 @@ package com.facebook.LinkBench;
 import java.io.IOException;
 import java.util.Properties;
 
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.stats.AllocationStats;
+import com.facebook.LinkBench.stats.LatencyStats;
+
 public class DummyLinkStoreTest extends LinkStoreTestBase {
 
   private Properties props;
@@ -37,4 +44,53 @@ public class DummyLinkStoreTest extends LinkStoreTestBase {
     }
     return store;
   }
+
+  /**
+   * With buffer reuse and a store that allocates nothing, the request loop
+   * itself should allocate next to nothing per operation
+   */
+  @Test
+  public void testRequesterAllocation() throws Exception {
+    if (!AllocationStats.isSupported()) {
+      System.err.println("Allocation stats not supported, skipping");
+      return;
+    }
+    double reuseBytes = requesterBytesPerOp(true);
+    double noReuseBytes = requesterBytesPerOp(false);
+    System.err.println("Bytes allocated per op: " + reuseBytes +
+                       " with reuse, " + noReuseBytes + " without");
+    assertTrue(reuseBytes < 32);
+    assertTrue(noReuseBytes > reuseBytes);
+  }
+
+  private double requesterBytesPerOp(boolean reuseBuffers) throws Exception {
+    long startId = 1, idCount = 1000;
+    int requests = 50000;
+    Properties props = basicProps();
+    fillLoadProps(props, startId, idCount, 5);
+    fillReqProps(props, startId, idCount, requests, requests,
+        20, 20, 10, 10, 20, 20, true);
+    props.setProperty(Config.REQUEST_REUSE_BUFFERS,
+                      Boolean.toString(reuseBuffers));
+    initStore(props);
+
+    Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+    RequestProgress tracker = new RequestProgress(logger, requests, requests,
+                                                  0, 1000);
+    LinkBenchRequest requester = new LinkBenchRequest(getStoreHandle(false),
+        null, props, new LatencyStats(1), System.out, tracker, createRNG(),
+        0, 1);
+    AllocationStats allocationStats = new AllocationStats(1);
+    requester.setAllocationStats(allocationStats);
+    tracker.startTimer();
+    requester.run();
+
+    long ops = 0, bytes = 0;
+    for (LinkBenchOp type: LinkBenchOp.values()) {
+      ops += allocationStats.getCount(type);
+      bytes += allocationStats.getBytes(type);
+    }
+    assertEquals(requests, ops);
+    return bytes / (double) ops;
+  }
 }
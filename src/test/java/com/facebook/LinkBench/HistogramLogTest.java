@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.facebook.LinkBench.stats.HistogramLogReader;
+import com.facebook.LinkBench.stats.HistogramLogWriter;
+import com.facebook.LinkBench.stats.LogLinearHistogram;
+
+public class HistogramLogTest extends TestCase {
+
+  /**
+   * Write log with 3 intervals of 1 second from two requesters
+   */
+  private static byte[] writeLog() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    HistogramLogWriter writer = new HistogramLogWriter(bytes, 1000, 2);
+    long start = writer.getStart_ns();
+    long second = 1000000000L;
+    HistogramLogWriter.Recorder a = writer.newRecorder();
+    HistogramLogWriter.Recorder b = writer.newRecorder();
+    a.record(LinkBenchOp.GET_NODE, 100, start);
+    a.record(LinkBenchOp.GET_NODE, 200, start + second / 2);
+    b.record(LinkBenchOp.GET_NODE, 300, start);
+    a.record(LinkBenchOp.ADD_LINK, 1000, start + second);
+    b.record(LinkBenchOp.GET_NODE, 50000, start + 2 * second);
+    // Histograms not flushed by recorders are written on close
+    a.flush();
+    writer.close();
+    assertEquals(3, writer.getIntervalsWritten());
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void testWriteRead() throws IOException {
+    HistogramLogReader reader = new HistogramLogReader(
+                                new ByteArrayInputStream(writeLog()));
+    assertEquals(1000, reader.getInterval_ms());
+    assertEquals(2, reader.getPrecisionDigits());
+    long start = reader.getStartTime_ms();
+
+    HistogramLogReader.Interval interval = reader.next();
+    assertEquals(start, interval.start_ms);
+    assertEquals(1, interval.histograms.size());
+    LogLinearHistogram hist = interval.histograms.get("GET_NODE");
+    assertEquals(3, hist.getTotalCount());
+    assertEquals(300, hist.getMaxValue());
+
+    interval = reader.next();
+    assertEquals(start + 1000, interval.start_ms);
+    assertEquals(1, interval.histograms.get("ADD_LINK").getTotalCount());
+
+    interval = reader.next();
+    assertEquals(start + 2000, interval.start_ms);
+    assertEquals(50000, interval.histograms.get("GET_NODE").getMaxValue());
+
+    assertNull(reader.next());
+    reader.close();
+  }
+
+  /**
+   * Histograms of a requester that stops recording are written once
+   * their interval is over, without waiting for the requester
+   */
+  @Test
+  public void testIdleRecorder() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    HistogramLogWriter writer = new HistogramLogWriter(bytes, 20, 2);
+    writer.start();
+    HistogramLogWriter.Recorder recorder = writer.newRecorder();
+    recorder.record(LinkBenchOp.GET_NODE, 100, System.nanoTime());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (writer.getIntervalsWritten() == 0 &&
+           System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, writer.getIntervalsWritten());
+    writer.close();
+
+    HistogramLogReader reader = new HistogramLogReader(
+                                new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(1, reader.next().histograms.get("GET_NODE").getTotalCount());
+    assertNull(reader.next());
+    reader.close();
+  }
+
+  @Test
+  public void testTruncatedLog() throws IOException {
+    byte log[] = writeLog();
+    // Drop the end of the log, as if the benchmark was still running
+    HistogramLogReader reader = new HistogramLogReader(
+        new ByteArrayInputStream(Arrays.copyOf(log, log.length - 12)));
+    int intervals = 0;
+    while (reader.next() != null) {
+      intervals++;
+    }
+    assertTrue(intervals <= 3);
+    reader.close();
+  }
+
+  @Test
+  public void testSlice() throws IOException {
+    List<HistogramLogReader> logs = new ArrayList<HistogramLogReader>();
+    // Two copies of the same log, as if from two drivers
+    byte log[] = writeLog();
+    logs.add(new HistogramLogReader(new ByteArrayInputStream(log)));
+    logs.add(new HistogramLogReader(new ByteArrayInputStream(log)));
+
+    HistogramLogTool tool = new HistogramLogTool();
+    tool.setRange(0, 2);
+    tool.setWindow(1);
+    tool.setOps(new HashSet<String>(Arrays.asList("GET_NODE", "ADD_LINK")));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    tool.slice(logs, new PrintStream(out));
+
+    String lines[] = out.toString().split("\\n");
+    assertEquals("time,offset_s,op,count,p50,p90,p99,p99.9,p99.99,max",
+                 lines[0].trim());
+    // Last interval is outside range
+    assertEquals(3, lines.length);
+    String first[] = lines[1].trim().split(",");
+    assertEquals("0", first[1]);
+    assertEquals("GET_NODE", first[2]);
+    assertEquals("6", first[3]);
+    assertEquals("0.3", first[first.length - 1]);
+    String second[] = lines[2].trim().split(",");
+    assertEquals("1", second[1]);
+    assertEquals("ADD_LINK", second[2]);
+    assertEquals("2", second[3]);
+  }
+}
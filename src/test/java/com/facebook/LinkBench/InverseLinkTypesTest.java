@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class InverseLinkTypesTest extends TestCase {
+
+  @Test
+  public void testPairs() {
+    InverseLinkTypes types = InverseLinkTypes.parse("1:2, 3:3,10:20");
+    assertTrue(types.hasInverse(1));
+    assertEquals(2, types.getInverse(1));
+    assertEquals(1, types.getInverse(2));
+    assertEquals(3, types.getInverse(3));
+    assertEquals(10, types.getInverse(20));
+    assertFalse(types.hasInverse(4));
+
+    Link l = new Link(5, 1, 6, LinkStore.VISIBILITY_HIDDEN, new byte[] {1},
+                      2, 1000);
+    Link inv = types.inverseOf(l);
+    assertEquals(new Link(6, 2, 5, LinkStore.VISIBILITY_HIDDEN,
+                          new byte[] {1}, 2, 1000), inv);
+    l.link_type = 4;
+    assertNull(types.inverseOf(l));
+  }
+
+  @Test
+  public void testSymmetric() {
+    InverseLinkTypes types = InverseLinkTypes.parse("symmetric");
+    assertTrue(types.hasInverse(LinkStore.DEFAULT_LINK_TYPE));
+    assertEquals(LinkStore.DEFAULT_LINK_TYPE,
+                 types.getInverse(LinkStore.DEFAULT_LINK_TYPE));
+  }
+
+  @Test
+  public void testConfig() {
+    Properties props = new Properties();
+    assertNull(InverseLinkTypes.fromConfig(props));
+    props.setProperty(Config.INVERSE_LINK_TYPES, " ");
+    assertNull(InverseLinkTypes.fromConfig(props));
+
+    for (String bad: new String[] {"1", "1:2:3", "a:b", "1:2,1:3"}) {
+      props.setProperty(Config.INVERSE_LINK_TYPES, bad);
+      try {
+        InverseLinkTypes.fromConfig(props);
+        fail("Expected error for " + bad);
+      } catch (LinkBenchConfigError e) {
+        // Expected
+      }
+    }
+  }
+}
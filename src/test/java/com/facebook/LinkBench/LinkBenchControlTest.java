@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.stats.LatencyStats;
+
+public class LinkBenchControlTest extends TestCase {
+  private static final String DBID = "test";
+
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  private static Properties requestProps(int requests) {
+    Properties props = new Properties();
+    LinkStoreTestBase.fillLoadProps(props, 1, 100, 5);
+    LinkStoreTestBase.fillReqProps(props, 1, 100, requests, 100,
+        10, 10, 10, 10, 30, 30, true);
+    props.setProperty(Config.DBID, DBID);
+    return props;
+  }
+
+  private LinkBenchRequest requester(Properties props,
+                LatencyStats latencyStats, RequestProgress tracker) {
+    return new LinkBenchRequest(new MemoryLinkStore(), null, props,
+        latencyStats, System.out, tracker, new Random(1), 0, 1);
+  }
+
+  @Test
+  public void testOpMix() {
+    LinkBenchControl control = new LinkBenchControl(requestProps(100));
+    assertEquals(30.0, control.getOpMix().get(Config.PR_GET_LINK_LIST));
+    assertEquals(0.0, control.getOpMix().get(Config.PR_GET_NODE));
+
+    control.changeOpMix(Config.PR_GET_LINK_LIST + "=50, " +
+                        Config.PR_GET_LINK + "=10");
+    assertEquals(50.0, control.getOpMix().get(Config.PR_GET_LINK_LIST));
+    assertEquals(10.0, control.getOpMix().get(Config.PR_GET_LINK));
+    assertEquals(10.0, control.getOpMix().get(Config.PR_ADD_LINK));
+    assertNotNull(control.getSettings().getOpMix());
+
+    for (String bad: Arrays.asList(
+        // Doesn't add to 100
+        Config.PR_GET_LINK_LIST + "=60",
+        // Not enabled at startup
+        Config.PR_GET_LINK_LIST + "=40," + Config.PR_GET_NODE + "=10",
+        Config.PR_GET_LINK_LIST + "=-10," + Config.PR_GET_LINK + "=70",
+        "nosuchkey=10", Config.PR_GET_LINK, Config.PR_GET_LINK + "=x")) {
+      try {
+        control.changeOpMix(bad);
+        fail("Expected mix to be rejected: " + bad);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+    // Unchanged by failed attempts
+    assertEquals(50.0, control.getOpMix().get(Config.PR_GET_LINK_LIST));
+  }
+
+  @Test
+  public void testRequestRate() {
+    Properties props = requestProps(100);
+    LinkBenchControl control = new LinkBenchControl(props);
+    assertEquals(0, control.getRequestRate());
+    assertEquals(-1, control.getSettings().getRequestRate());
+    control.setRequestRate(500);
+    assertEquals(500, control.getRequestRate());
+
+    props.setProperty(Config.REQUEST_OPEN_LOOP, "true");
+    try {
+      control.setRequestRate(0);
+      fail("Open loop needs a rate");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+    props.setProperty(Config.REQUEST_GLOBAL_RATE, "1000");
+    try {
+      control.setRequestRate(100);
+      fail("Global rate is set");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  /**
+   * Requester should pick up mix and pause settings
+   */
+  @Test
+  public void testRequester() throws Exception {
+    int requests = 1000;
+    Properties props = requestProps(requests);
+    LinkBenchControl control = new LinkBenchControl(props);
+    control.changeOpMix(Config.PR_ADD_LINK + "=0," + Config.PR_DELETE_LINK +
+        "=0," + Config.PR_UPDATE_LINK + "=0," + Config.PR_COUNT_LINKS + "=0," +
+        Config.PR_GET_LINK + "=0," + Config.PR_GET_LINK_LIST + "=100");
+    control.pause();
+    assertTrue(control.isPaused());
+
+    LatencyStats latencyStats = new LatencyStats(1);
+    RequestProgress tracker = new RequestProgress(logger, requests, 100, 0,
+                                                  1000);
+    LinkBenchRequest requester = requester(props, latencyStats, tracker);
+    requester.setControl(control);
+    control.setRequesters(Arrays.asList(requester));
+    control.setRequestProgress(tracker);
+    assertEquals(0, control.getActiveRequesters());
+
+    tracker.startTimer();
+    Thread t = new Thread(requester);
+    t.start();
+    Thread.sleep(300);
+    assertEquals(0, requester.getRequestsDone());
+    control.snapshotStats();
+    control.resume();
+    assertEquals(1, control.getActiveRequesters());
+    t.join();
+
+    assertEquals(requests, requester.getRequestsDone());
+    assertEquals(requests, latencyStats.getCount(LinkBenchOp.GET_LINKS_LIST));
+    assertEquals(requests, (long) control.getOpCounts().get(
+                                  LinkBenchOp.GET_LINKS_LIST.name()));
+    assertEquals(1, control.getOpCounts().size());
+    assertEquals(requests, control.getRequestsDone());
+  }
+
+  @Test
+  public void testRegister() throws Exception {
+    Properties props = requestProps(100);
+    assertNull(LinkBenchControl.create(props));
+    props.setProperty(Config.JMX_CONTROL, "true");
+    LinkBenchControl control = LinkBenchControl.create(props);
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(LinkBenchControl.OBJECT_NAME);
+      assertTrue(server.isRegistered(name));
+      server.setAttribute(name, new Attribute("RequestRate", 200L));
+      assertEquals(200L, server.getAttribute(name, "RequestRate"));
+      assertEquals(200, control.getSettings().getRequestRate());
+      server.invoke(name, "pause", new Object[0], new String[0]);
+      assertTrue(control.isPaused());
+    } finally {
+      control.unregister();
+    }
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+        new ObjectName(LinkBenchControl.OBJECT_NAME)));
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.facebook.LinkBench.LinkBenchCoordinator.PhaseResult;
+
+/**
+ * Run a distributed benchmark with agents in separate JVMs on localhost
+ */
+public class LinkBenchCoordinatorTest extends TestCase {
+
+  private static final int NAGENTS = 2;
+
+  private Process startAgent(int port, File logFile) throws Exception {
+    String java = System.getProperty("java.home") + File.separator + "bin"
+                  + File.separator + "java";
+    ProcessBuilder pb = new ProcessBuilder(java, "-cp",
+        System.getProperty("java.class.path"),
+        LinkBenchCoordinatorTest.class.getName(), Integer.toString(port),
+        logFile.getPath());
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+    return pb.start();
+  }
+
+  /**
+   * Entry point for agent JVMs
+   * @param args coordinator port and log file
+   */
+  public static void main(String args[]) throws Throwable {
+    new LinkBenchAgent("localhost", Integer.parseInt(args[0]),
+                       new Properties(), args[1]).run();
+  }
+
+  @Test
+  public void testLoadAndRequest() throws Exception {
+    long startId = 1, idCount = 1000;
+    int linksPerId = 3, requests = 500;
+    Properties props = new Properties();
+    props.setProperty(Config.DBID, "linkbench_unittestdb");
+    props.setProperty(Config.LINKSTORE_CLASS, MemoryLinkStore.class.getName());
+    props.setProperty(Config.NODESTORE_CLASS, MemoryLinkStore.class.getName());
+    GraphStoreTestBase.fillLoadProps(props, startId, idCount, linksPerId);
+    GraphStoreTestBase.fillReqProps(props, startId, idCount, requests,
+        1000, 20, 10, 10, 10, 20, 30, 0, 0, 0, 0);
+    props.setProperty(Config.GENERATE_NODES, "true");
+    props.setProperty(Config.NUM_LOADERS, "2");
+    props.setProperty(Config.NUM_REQUESTERS, "2");
+    props.setProperty(Config.DIST_AGENTS, Integer.toString(NAGENTS));
+    props.setProperty(Config.DIST_PORT, "0");
+
+    LinkBenchCoordinator coordinator = new LinkBenchCoordinator(props, null);
+    int port = coordinator.listen();
+
+    List<Process> agents = new ArrayList<Process>();
+    List<File> logs = new ArrayList<File>();
+    try {
+      for (int i = 0; i < NAGENTS; i++) {
+        File log = File.createTempFile("linkbench-agent", ".log");
+        logs.add(log);
+        agents.add(startAgent(port, log));
+      }
+      coordinator.acceptAgents();
+
+      PhaseResult load = coordinator.runPhase(Phase.LOAD);
+      assertEquals(idCount * linksPerId, load.ops);
+      assertEquals(idCount, load.nodes);
+      assertTrue(load.latencyStats.getCount(LinkBenchOp.LOAD_LINK) > 0);
+
+      PhaseResult request = coordinator.runPhase(Phase.REQUEST);
+      assertEquals(NAGENTS * 2 * requests, request.ops);
+      assertEquals(0, request.abortedRequesters);
+      long recorded = 0;
+      for (LinkBenchOp op: LinkBenchOp.values()) {
+        recorded += request.latencyStats.getCount(op);
+      }
+      assertTrue(recorded >= request.ops);
+
+      coordinator.shutdown();
+      for (Process agent: agents) {
+        assertEquals(0, agent.waitFor());
+      }
+    } finally {
+      for (Process agent: agents) {
+        agent.destroy();
+      }
+      for (File log: logs) {
+        log.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class LinkHistoryCacheTest extends TestCase {
+
+  private static Link link(long id1, long link_type, long time) {
+    return new Link(id1, link_type, 1, LinkStore.VISIBILITY_DEFAULT,
+                    new byte[0], 1, time);
+  }
+
+  @Test
+  public void testAddChooseRemove() {
+    Random rng = new Random();
+    LinkHistoryCache cache = new LinkHistoryCache(64);
+    assertTrue(cache.isEmpty());
+    assertNull(cache.choose(12345));
+
+    Link a = link(1, 1, 100);
+    cache.add(a, rng);
+    // Same list is only stored once
+    cache.add(link(1, 1, 50), rng);
+    assertEquals(1, cache.size());
+
+    // Only entry is chosen, and a copy is kept
+    Link chosen = cache.choose(rng.nextInt(Integer.MAX_VALUE));
+    assertNotSame(a, chosen);
+    assertEquals(a, chosen);
+
+    // Advance to older link
+    cache.advance(chosen, link(1, 1, 40), rng);
+    assertEquals(1, cache.size());
+    Link next = cache.choose(0);
+    assertEquals(40, next.time);
+
+    // Stale entry has no effect
+    cache.remove(chosen);
+    assertEquals(1, cache.size());
+    cache.remove(next);
+    assertTrue(cache.isEmpty());
+    assertNull(cache.choose(0));
+  }
+
+  @Test
+  public void testEviction() {
+    Random rng = new Random();
+    LinkHistoryCache cache = new LinkHistoryCache(100);
+    assertEquals(100, cache.capacity());
+    for (long id1 = 0; id1 < 10000; id1++) {
+      cache.add(link(id1, 2, id1), rng);
+      assertTrue(cache.size() <= cache.capacity());
+    }
+    // Table fills up, apart from collisions between buckets
+    assertTrue(cache.size() > cache.capacity() / 2);
+
+    // Random choices reach many different entries
+    Set<Long> seen = new HashSet<Long>();
+    for (int i = 0; i < 2000; i++) {
+      seen.add(cache.choose(rng.nextInt(Integer.MAX_VALUE)).id1);
+    }
+    assertTrue(seen.size() > cache.size() / 2);
+  }
+
+  /**
+   * Check that the cache stays consistent with several threads updating it
+   */
+  @Test
+  public void testConcurrent() throws Exception {
+    final LinkHistoryCache cache = new LinkHistoryCache(256);
+    final int nthreads = 4;
+    Thread threads[] = new Thread[nthreads];
+    for (int t = 0; t < nthreads; t++) {
+      final long seed = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          Random rng = new Random(seed);
+          for (int i = 0; i < 50000; i++) {
+            int action = rng.nextInt(3);
+            if (action == 0) {
+              cache.add(link(rng.nextInt(1000), 1, 1000), rng);
+            } else {
+              Link prev = cache.choose(rng.nextInt(Integer.MAX_VALUE));
+              if (prev == null) {
+                continue;
+              }
+              if (action == 1) {
+                cache.advance(prev, link(prev.id1, 1, prev.time - 1), rng);
+              } else {
+                cache.remove(prev);
+              }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t: threads) {
+      t.join();
+    }
+
+    int found = 0;
+    Set<Link> distinct = Collections.newSetFromMap(
+                                new IdentityHashMap<Link, Boolean>());
+    for (int i = 0; i < cache.capacity() * 50; i++) {
+      Link entry = cache.choose(i);
+      if (entry != null) {
+        found++;
+        distinct.add(entry);
+      }
+    }
+    assertTrue(cache.size() >= 0 && cache.size() <= cache.capacity());
+    assertEquals(cache.isEmpty(), found == 0);
+    // Index of occupied slots matches the entries
+    assertEquals(cache.size(), distinct.size());
+  }
+
+  /**
+   * Entries of a sparse cache should be chosen equally often
+   */
+  @Test
+  public void testSparseChoice() {
+    Random rng = new Random();
+    LinkHistoryCache cache = new LinkHistoryCache(1 << 14);
+    int nentries = 3;
+    for (long id1 = 0; id1 < nentries; id1++) {
+      cache.add(link(id1, 1, 1), rng);
+    }
+    int trials = 6000;
+    int counts[] = new int[nentries];
+    for (int i = 0; i < trials; i++) {
+      counts[(int) cache.choose(rng.nextInt(Integer.MAX_VALUE)).id1]++;
+    }
+    for (int count: counts) {
+      double frac = count / (double) trials;
+      assertTrue("fraction " + frac, Math.abs(frac - 1.0 / nentries) < 0.05);
+    }
+  }
+
+  /**
+   * Requesters adding the same list at once should leave one entry, even
+   * when they evict different entries to make room.  The race is forced by
+   * adding from inside the random number generator of another add, after
+   * it has checked that the list is not present.
+   */
+  @Test
+  public void testConcurrentAddSameList() {
+    final LinkHistoryCache cache = new LinkHistoryCache(
+                                        LinkHistoryCache.BUCKET_SIZE);
+    Random rng = new Random();
+    for (long id1 = 1; id1 <= LinkHistoryCache.BUCKET_SIZE; id1++) {
+      cache.add(link(id1, 1, 1), rng);
+    }
+    final Random otherRng = new Random() {
+      @Override
+      public int nextInt(int n) {
+        return 0;
+      }
+    };
+    Random racingRng = new Random() {
+      @Override
+      public int nextInt(int n) {
+        cache.add(link(0, 1, 2), otherRng);
+        return 1;
+      }
+    };
+    cache.add(link(0, 1, 1), racingRng);
+
+    Set<Link> entries = Collections.newSetFromMap(
+                                new IdentityHashMap<Link, Boolean>());
+    for (int i = 0; i < 1000; i++) {
+      Link entry = cache.choose(i);
+      if (entry != null && entry.id1 == 0) {
+        entries.add(entry);
+      }
+    }
+    assertEquals(1, entries.size());
+    assertEquals(LinkHistoryCache.BUCKET_SIZE - 1, cache.size());
+  }
+
+  /**
+   * The configured limit applies to each requester sharing the cache
+   */
+  @Test
+  public void testLimitPerRequester() {
+    Properties props = new Properties();
+    assertEquals(LinkHistoryCache.DEFAULT_LIMIT * 4,
+                 LinkHistoryCache.fromConfig(props, 4).capacity());
+    props.setProperty(Config.GETLINKLIST_HISTORY_LIMIT, "100");
+    assertEquals(100, LinkHistoryCache.fromConfig(props, 1).capacity());
+    assertEquals(800, LinkHistoryCache.fromConfig(props, 8).capacity());
+  }
+}
@@ -15,10 +15,19 @@
  */
 package com.facebook.LinkBench;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -36,7 +45,11 @@ import com.facebook.LinkBench.distributions.ZipfDistribution;
 import com.facebook.LinkBench.distributions.LinkDistributions.LinkDistMode;
 import com.facebook.LinkBench.distributions.UniformDistribution;
 import com.facebook.LinkBench.generators.UniformDataGenerator;
+import com.facebook.LinkBench.stats.HistogramLogReader;
+import com.facebook.LinkBench.stats.HistogramLogWriter;
 import com.facebook.LinkBench.stats.LatencyStats;
+import com.facebook.LinkBench.stats.LogLinearHistogram;
+import com.facebook.LinkBench.stats.OverheadStats;
 
 /**
  * This test implements unit tests that *all* implementations of LinkStore
@@ -363,6 +376,126 @@ public abstract class LinkStoreTestBase extends TestCase {
     }
   }
 
+  /**
+   * Check that batched counts and link list reads match the results of
+   * reading each key separately
+   */
+  @Test
+  public void testBatchedReads() throws IOException, Exception {
+    DummyLinkStore store = getStoreHandle(true);
+    long ida = 5432, idb = 5433, idc = 5434;
+    long ltype = LinkStore.DEFAULT_LINK_TYPE, ltype2 = ltype + 1;
+    for (int i = 0; i < 3; i++) {
+      store.addLink(testDB, new Link(ida, ltype, 100 + i,
+          LinkStore.VISIBILITY_DEFAULT, new byte[] {(byte)i}, 1, 1000 + i),
+          true);
+    }
+    store.addLink(testDB, new Link(idb, ltype, 100,
+        LinkStore.VISIBILITY_DEFAULT, new byte[0], 1, 2000), true);
+    store.addLink(testDB, new Link(idb, ltype2, 100,
+        LinkStore.VISIBILITY_DEFAULT, new byte[0], 1, 2000), true);
+    // Hidden links are not counted or returned
+    store.addLink(testDB, new Link(idb, ltype, 101,
+        LinkStore.VISIBILITY_HIDDEN, new byte[0], 1, 2001), true);
+
+    long id1s[] = new long[] {idb, ida, idc, idb, ida};
+    long types[] = new long[] {ltype2, ltype, ltype, ltype, ltype};
+    long counts[] = store.multiCountLinks(testDB, id1s, types);
+    if (store.isRealLinkStore()) {
+      assertEquals(id1s.length, counts.length);
+      for (int i = 0; i < id1s.length; i++) {
+        assertEquals(store.countLinks(testDB, id1s[i], types[i]), counts[i]);
+      }
+      assertEquals(3, counts[1]);
+      assertEquals(0, counts[2]);
+    }
+
+    Link lists[][] = store.multigetLinkLists(testDB, id1s, ltype);
+    if (store.isRealLinkStore()) {
+      assertEquals(id1s.length, lists.length);
+      for (int i = 0; i < id1s.length; i++) {
+        Link expected[] = store.getLinkList(testDB, id1s[i], ltype);
+        if (expected == null) {
+          assertNull(lists[i]);
+        } else {
+          assertTrue(Arrays.equals(expected, lists[i]));
+        }
+      }
+      assertEquals(3, lists[1].length);
+      assertNull(lists[2]);
+    }
+
+    assertEquals(0, store.multiCountLinks(testDB, new long[0],
+                                          new long[0]).length);
+    assertEquals(0, store.multigetLinkLists(testDB, new long[0],
+                                            ltype).length);
+  }
+
+  /**
+   * Check that inverse links are added and deleted with links of types
+   * that have an inverse, if requested
+   */
+  @Test
+  public void testInverseLinks() throws Exception {
+    Properties props = basicProps();
+    props.setProperty(Config.INVERSE_LINK_TYPES, "11:12, 13:13");
+    DummyLinkStore store = getStoreHandle(false);
+    store.initialize(props, Phase.REQUEST, 0);
+
+    long id1 = 2123, id2 = 2124;
+    Link l = new Link(id1, 11, id2, LinkStore.VISIBILITY_DEFAULT,
+                      new byte[] {0x1}, 1, 1994);
+    Link inv = new Link(id2, 12, id1, LinkStore.VISIBILITY_DEFAULT,
+                        new byte[] {0x1}, 1, 1994);
+    store.addLink(testDB, l, false);
+    checkExpectedList(store, id1, 11, l);
+    checkExpectedList(store, id2, 12, inv);
+
+    // Mapping applies in both directions
+    Link back = new Link(id2, 12, id1 + 1, LinkStore.VISIBILITY_DEFAULT,
+                         new byte[] {0x2}, 1, 1995);
+    store.addLink(testDB, back, false);
+    if (store.isRealLinkStore()) {
+      assertNotNull(store.getLink(testDB, id1 + 1, 11, id2));
+    }
+
+    // Not written if noinverse or type has no inverse
+    store.addLink(testDB, new Link(id1, 11, id2 + 1,
+        LinkStore.VISIBILITY_DEFAULT, new byte[0], 1, 1994), true);
+    store.addLink(testDB, new Link(id1, 14, id2,
+        LinkStore.VISIBILITY_DEFAULT, new byte[0], 1, 1994), false);
+    if (store.isRealLinkStore()) {
+      assertNull(store.getLink(testDB, id2 + 1, 12, id1));
+      assertNull(store.getLink(testDB, id2, 14, id1));
+    }
+
+    // Symmetric type
+    store.addLink(testDB, new Link(id1, 13, id2,
+        LinkStore.VISIBILITY_DEFAULT, new byte[0], 1, 1994), false);
+    if (store.isRealLinkStore()) {
+      assertNotNull(store.getLink(testDB, id2, 13, id1));
+    }
+
+    // Hide both directions
+    store.deleteLink(testDB, id1, 11, id2, false, false);
+    if (store.isRealLinkStore()) {
+      assertEquals(1, store.countLinks(testDB, id1, 11));
+      assertEquals(1, store.countLinks(testDB, id2, 12));
+      assertEquals(LinkStore.VISIBILITY_HIDDEN,
+                   store.getLink(testDB, id2, 12, id1).visibility);
+    }
+
+    // Clean up
+    store.deleteLink(testDB, id1, 11, id2, false, true);
+    store.deleteLink(testDB, id1, 11, id2 + 1, true, true);
+    store.deleteLink(testDB, id2, 12, id1 + 1, false, true);
+    store.deleteLink(testDB, id1, 13, id2, false, true);
+    store.deleteLink(testDB, id1, 14, id2, true, true);
+    checkExpectedList(store, id1, 11, new Link[0]);
+    checkExpectedList(store, id2, 12, new Link[0]);
+    checkExpectedList(store, id2, 13, new Link[0]);
+  }
+
   /**
    * Regression test for flaw in MySql where visibility is assumed to
    * be default on add
@@ -627,6 +760,494 @@ public abstract class LinkStoreTestBase extends TestCase {
     System.err.println("Done!");
   }
 
+  /**
+   * Run the requester with multiple requests in flight, using the blocking
+   * adapter for the async store interface
+   */
+  @Test
+  public void testPipelinedRequester() throws IOException, Exception {
+    long startId = 532;
+    long idCount = getIDCount();
+    int linksPerId = 5;
+    int pipelineDepth = 4;
+
+    int requests = getRequestCount();
+    long timeLimit = requests;
+
+    Properties props = basicProps();
+    fillLoadProps(props, startId, idCount, linksPerId);
+
+    double p_add = 0.2, p_del = 0.2, p_up = 0.1, p_count = 0.1,
+           p_multiget = 0.2, p_getlinks = 0.2;
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+        p_add * 100, p_del * 100, p_up * 100, p_count * 100, p_multiget * 100,
+        p_getlinks * 100, true);
+    props.setProperty(Config.REQUEST_PIPELINE_DEPTH,
+                      Integer.toString(pipelineDepth));
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+
+      List<DummyLinkStore> handles = new ArrayList<DummyLinkStore>();
+      for (int i = 0; i < pipelineDepth; i++) {
+        handles.add(getStoreHandle(false));
+      }
+      BlockingAsyncStore reqStore = new BlockingAsyncStore(handles, null);
+      LatencyStats latencyStats = new LatencyStats(1);
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+
+      LinkBenchRequest requester = new LinkBenchRequest(reqStore,
+                      null, props, latencyStats, System.out, tracker, rng,
+                      0, 1);
+      tracker.startTimer();
+      requester.run();
+
+      long adds = 0, deletes = 0, countLinks = 0, multigetLinks = 0,
+           getLinkLists = 0;
+      for (DummyLinkStore handle: handles) {
+        assertFalse(handle.initialized); // Should be closed
+        adds += handle.adds;
+        deletes += handle.deletes;
+        countLinks += handle.countLinks;
+        multigetLinks += handle.multigetLinks;
+        getLinkLists += handle.getLinkLists;
+      }
+      assertEquals(requests, requester.getRequestsDone());
+      assertEquals(requests, adds + deletes + countLinks + multigetLinks +
+                             getLinkLists);
+      assertTrue(Math.abs(adds / (double)requests - (p_add + p_up)) < 0.01);
+      assertTrue(Math.abs(deletes / (double)requests - p_del) < 0.01);
+      assertTrue(Math.abs(getLinkLists / (double)requests - p_getlinks) < 0.01);
+    } finally {
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Run the pipelined requester reusing buffers between requests, and
+   * check that the store is handed the same objects over and over
+   */
+  @Test
+  public void testRequesterReuseBuffers() throws IOException, Exception {
+    long startId = 532;
+    long idCount = getIDCount();
+    int linksPerId = 5;
+    int pipelineDepth = 4;
+
+    int requests = getRequestCount();
+    long timeLimit = requests;
+
+    Properties props = basicProps();
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+        20, 20, 10, 10, 20, 20, true);
+    props.setProperty(Config.REQUEST_PIPELINE_DEPTH,
+                      Integer.toString(pipelineDepth));
+    props.setProperty(Config.REQUEST_REUSE_BUFFERS, "true");
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+
+      Set<Object> links = Collections.newSetFromMap(
+                                  new IdentityHashMap<Object, Boolean>());
+      Set<Object> id2Arrays = Collections.newSetFromMap(
+                                  new IdentityHashMap<Object, Boolean>());
+      List<DummyLinkStore> handles = new ArrayList<DummyLinkStore>();
+      List<DummyLinkStore> trackers = new ArrayList<DummyLinkStore>();
+      for (int i = 0; i < pipelineDepth; i++) {
+        DummyLinkStore handle = getStoreHandle(false);
+        handles.add(handle);
+        trackers.add(new ReuseTrackingStore(handle, links, id2Arrays));
+      }
+      BlockingAsyncStore reqStore = new BlockingAsyncStore(trackers, null);
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+
+      LinkBenchRequest requester = new LinkBenchRequest(reqStore,
+                      null, props, new LatencyStats(1), System.out, tracker,
+                      rng, 0, 1);
+      tracker.startTimer();
+      requester.run();
+
+      long adds = 0, deletes = 0, countLinks = 0, multigetLinks = 0,
+           getLinkLists = 0;
+      for (DummyLinkStore handle: handles) {
+        adds += handle.adds;
+        deletes += handle.deletes;
+        countLinks += handle.countLinks;
+        multigetLinks += handle.multigetLinks;
+        getLinkLists += handle.getLinkLists;
+      }
+      assertEquals(requests, requester.getRequestsDone());
+      assertEquals(requests, adds + deletes + countLinks + multigetLinks +
+                             getLinkLists);
+      assertEquals(0, requester.getRequestsInFlight());
+      long counted = 0;
+      for (LinkBenchOp type: LinkBenchOp.values()) {
+        if (type.isOperation()) {
+          counted += requester.getOpCount(type);
+        }
+      }
+      assertEquals(requests, counted);
+
+      // Each in-flight request owns one link, and one id2 array for each
+      // multiget size (at most 10 here)
+      assertTrue(adds > 0 && multigetLinks > 0);
+      assertTrue("links: " + links.size(), links.size() <= pipelineDepth);
+      assertTrue("id2 arrays: " + id2Arrays.size(),
+                 id2Arrays.size() <= pipelineDepth * 11);
+    } finally {
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Records the identity of links and id2 arrays passed to the store
+   */
+  private static class ReuseTrackingStore extends DummyLinkStore {
+    private final Set<Object> links;
+    private final Set<Object> id2Arrays;
+
+    ReuseTrackingStore(LinkStore wrappedStore, Set<Object> links,
+                       Set<Object> id2Arrays) {
+      super(wrappedStore);
+      this.links = links;
+      this.id2Arrays = id2Arrays;
+    }
+
+    @Override
+    public boolean addLink(String dbid, Link a, boolean noinverse)
+        throws Exception {
+      synchronized (links) {
+        links.add(a);
+      }
+      return super.addLink(dbid, a, noinverse);
+    }
+
+    @Override
+    public boolean updateLink(String dbid, Link a, boolean noinverse)
+        throws Exception {
+      synchronized (links) {
+        links.add(a);
+      }
+      return super.updateLink(dbid, a, noinverse);
+    }
+
+    @Override
+    public Link[] multigetLinks(String dbid, long id1, long link_type,
+        long[] id2s) throws Exception {
+      synchronized (id2Arrays) {
+        id2Arrays.add(id2s);
+      }
+      return super.multigetLinks(dbid, id1, link_type, id2s);
+    }
+  }
+
+  /**
+   * Run the requester with overhead stats, checking that every request
+   * is accounted for
+   */
+  @Test
+  public void testRequesterOverheadStats() throws IOException, Exception {
+    long startId = 532;
+    long idCount = getIDCount();
+    int linksPerId = 5;
+
+    int requests = getRequestCount();
+    long timeLimit = requests;
+
+    Properties props = basicProps();
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+        20, 20, 10, 10, 20, 20, true);
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+      LinkBenchRequest requester = new LinkBenchRequest(getStoreHandle(false),
+                      null, props, new LatencyStats(1), System.out, tracker,
+                      rng, 0, 1);
+      OverheadStats overheadStats = new OverheadStats(1);
+      requester.setOverheadStats(overheadStats);
+      tracker.startTimer();
+      requester.run();
+
+      overheadStats.displayOverheadStats();
+      long overheadRecorded = 0;
+      for (LinkBenchOp type: LinkBenchOp.values()) {
+        overheadRecorded += overheadStats.getCount(type);
+      }
+      assertEquals(requests, overheadRecorded);
+    } finally {
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Run the requester with a histogram log, checking that every request
+   * is logged
+   */
+  @Test
+  public void testRequesterHistogramLog() throws IOException, Exception {
+    long startId = 532;
+    long idCount = getIDCount();
+    int linksPerId = 5;
+
+    int requests = getRequestCount();
+    long timeLimit = requests;
+
+    Properties props = basicProps();
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+        20, 20, 10, 10, 20, 20, true);
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+      LinkBenchRequest requester = new LinkBenchRequest(getStoreHandle(false),
+                      null, props, new LatencyStats(1), System.out, tracker,
+                      rng, 0, 1);
+      ByteArrayOutputStream histogramBytes = new ByteArrayOutputStream();
+      HistogramLogWriter histogramLog = new HistogramLogWriter(
+                                          histogramBytes, 100, 2);
+      requester.setHistogramLog(histogramLog);
+      histogramLog.start();
+      tracker.startTimer();
+      requester.run();
+
+      histogramLog.close();
+      HistogramLogReader histogramReader = new HistogramLogReader(
+          new ByteArrayInputStream(histogramBytes.toByteArray()));
+      long logged = 0;
+      HistogramLogReader.Interval interval;
+      while ((interval = histogramReader.next()) != null) {
+        for (LogLinearHistogram hist: interval.histograms.values()) {
+          logged += hist.getTotalCount();
+        }
+      }
+      assertEquals(requests, logged);
+    } finally {
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Run the requester with a workload script, checking that each phase
+   * uses its own mix and that the requester stops after the last phase
+   */
+  @Test
+  public void testRequesterPhases() throws IOException, Exception {
+    long startId = 532;
+    long idCount = getIDCount();
+    int linksPerId = 5;
+
+    int requests = 1000000;
+    long timeLimit = 60;
+    double rate = 200;
+
+    Properties props = basicProps();
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+        20, 20, 10, 10, 20, 20, true);
+
+    Properties script = new Properties();
+    script.setProperty("phases", "writes,reads");
+    script.setProperty("phase.writes.duration", "1");
+    script.setProperty("phase.writes.rate", Double.toString(rate));
+    script.setProperty("phase.writes.addlink", "100");
+    script.setProperty("phase.reads.duration", "1");
+    script.setProperty("phase.reads.rate", Double.toString(rate));
+    script.setProperty("phase.reads.countlink", "100");
+    File scriptFile = File.createTempFile("linkbench", ".properties");
+    FileOutputStream out = new FileOutputStream(scriptFile);
+    script.store(out, null);
+    out.close();
+    props.setProperty(Config.WORKLOAD_SCRIPT, scriptFile.getAbsolutePath());
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+
+      DummyLinkStore reqStore = getStoreHandle(false);
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+      LinkBenchRequest requester = new LinkBenchRequest(reqStore, null,
+                      props, new LatencyStats(1), System.out, tracker, rng,
+                      0, 1);
+      LatencyStats phaseStats[] = {new LatencyStats(1), new LatencyStats(1)};
+      requester.setPhaseLatencyStats(phaseStats);
+      long start = System.currentTimeMillis();
+      tracker.startTimer();
+      requester.run();
+      long elapsed = System.currentTimeMillis() - start;
+      phaseStats[0].displayLatencyStats();
+      phaseStats[1].displayLatencyStats();
+
+      assertFalse(requester.didAbort());
+      assertTrue(elapsed >= 2000);
+      assertTrue("Took " + elapsed + "ms", elapsed < 10000);
+      assertEquals(requester.getRequestsDone(),
+                   reqStore.adds + reqStore.countLinks);
+      assertEquals(0, reqStore.deletes + reqStore.multigetLinks +
+                      reqStore.getLinkLists);
+      // Poisson arrivals: allow for random variation
+      assertTrue("adds: " + reqStore.adds,
+                 reqStore.adds > rate / 2 && reqStore.adds < rate * 2);
+      assertTrue("counts: " + reqStore.countLinks,
+                 reqStore.countLinks > rate / 2 && reqStore.countLinks < rate * 2);
+    } finally {
+      scriptFile.delete();
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Test that the requester executes the operations from a compiled op
+   * stream, stopping when the stream is exhausted
+   */
+  @Test
+  public void testRequesterOpStream() throws IOException, Exception {
+    long startId = 532;
+    long idCount = getIDCount();
+    int linksPerId = 5;
+
+    int requests = getRequestCount();
+    int compiledOps = requests / 2;
+    long timeLimit = requests;
+
+    Properties props = basicProps();
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+        20, 20, 10, 10, 20, 20, true);
+
+    File opStreamDir = File.createTempFile("linkbench", "ops");
+    opStreamDir.delete();
+    opStreamDir.mkdir();
+    props.setProperty(Config.REQUEST_OP_STREAM_DIR, opStreamDir.getPath());
+    File streamFile = OpStreamWriter.streamFile(opStreamDir.getPath(), 0);
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+
+      new OpStreamCompiler(props, streamFile, compiledOps,
+                           new Random(rng.nextLong()), 0, 1).run();
+
+      // Count operations of each type in stream
+      long expectedCounts[] = new long[LinkBenchOp.values().length];
+      OpStreamReader reader = new OpStreamReader(streamFile, 0);
+      RequestOp op = new RequestOp();
+      while (reader.hasNext()) {
+        reader.next(op);
+        expectedCounts[op.type.ordinal()]++;
+      }
+      reader.close();
+
+      DummyLinkStore reqStore = getStoreHandle(false);
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+      LinkBenchRequest requester = new LinkBenchRequest(reqStore, null,
+                      props, new LatencyStats(1), System.out, tracker, rng,
+                      0, 1);
+      tracker.startTimer();
+      requester.run();
+
+      assertEquals(compiledOps, requester.getRequestsDone());
+      assertEquals(expectedCounts[LinkBenchOp.ADD_LINK.ordinal()] +
+                   expectedCounts[LinkBenchOp.UPDATE_LINK.ordinal()],
+                   reqStore.adds);
+      assertEquals(expectedCounts[LinkBenchOp.DELETE_LINK.ordinal()],
+                   reqStore.deletes);
+      assertEquals(expectedCounts[LinkBenchOp.COUNT_LINK.ordinal()],
+                   reqStore.countLinks);
+      assertEquals(expectedCounts[LinkBenchOp.MULTIGET_LINK.ordinal()],
+                   reqStore.multigetLinks);
+      assertEquals(expectedCounts[LinkBenchOp.GET_LINKS_LIST.ordinal()],
+                   reqStore.getLinkLists);
+    } finally {
+      streamFile.delete();
+      opStreamDir.delete();
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Test that the requester journals each operation, and that the journal
+   * can be replayed
+   */
+  @Test
+  public void testRequesterJournal() throws IOException, Exception {
+    long startId = 532;
+    long idCount = getIDCount();
+    int linksPerId = 5;
+
+    int requests = getRequestCount();
+    long timeLimit = requests;
+
+    Properties props = basicProps();
+    fillLoadProps(props, startId, idCount, linksPerId);
+    // Read-only so that replay should produce same results
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+        0, 0, 0, 30, 40, 30, true);
+
+    File journalDir = File.createTempFile("linkbench", "journal");
+    journalDir.delete();
+    journalDir.mkdir();
+    props.setProperty(Config.REQUEST_JOURNAL_DIR, journalDir.getPath());
+    File journalFile = OpJournalWriter.journalFile(journalDir.getPath(), 0);
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+      LinkBenchRequest requester = new LinkBenchRequest(getStoreHandle(false),
+                      null, props, new LatencyStats(1), System.out, tracker,
+                      rng, 0, 1);
+      tracker.startTimer();
+      requester.run();
+      assertEquals(requests, requester.getRequestsDone());
+
+      // Check journal has all requests
+      OpJournalReader reader = new OpJournalReader(journalFile);
+      RequestOp op = new RequestOp();
+      int journaled = 0;
+      while (reader.hasNext()) {
+        reader.next(op);
+        assertFalse(reader.isError());
+        assertTrue(reader.getEndTime_ns() >= reader.getStartTime_ns());
+        journaled++;
+      }
+      reader.close();
+      assertEquals(requests, journaled);
+
+      // Replay as fast as possible
+      DummyLinkStore replayStore = getStoreHandle(false);
+      OpJournalReplayer replayer = new OpJournalReplayer(replayStore, null,
+          props, journalFile, new LatencyStats(1), 0, 1, 0.0);
+      replayer.run();
+      assertEquals(requests, replayer.getOpsDone());
+      assertEquals(0, replayer.getErrors());
+      assertEquals(0, replayer.getMismatches());
+      assertEquals(requests, replayStore.countLinks +
+                   replayStore.multigetLinks + replayStore.getLinkLists);
+    } finally {
+      journalFile.delete();
+      journalDir.delete();
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
   /**
    * Test that the requester throttling slows down requests
    * @throws Exception
@@ -677,6 +1298,247 @@ public abstract class LinkStoreTestBase extends TestCase {
     System.err.println("Done!");
   }
 
+  /**
+   * Test open loop mode, where latency is measured from the intended
+   * start time of each request, so that requests held up behind a stall
+   * of the store count the time they waited
+   */
+  @Test
+  public void testRequesterOpenLoop() throws IOException, Exception {
+    long startId = 1000000;
+    long idCount = getIDCount() / 10;
+    int linksPerId = 3;
+
+    Properties props = basicProps();
+    int requests = 500;
+    long timeLimit = requests;
+    // A request every 2ms, stalling for 100ms every 100 requests
+    int requestsPerSec = 500;
+    final long stall_ms = 100;
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+                 0, 0, 0, 100, 0, 0, false);
+    props.setProperty(Config.REQUEST_RATE, Integer.toString(requestsPerSec));
+    props.setProperty(Config.REQUEST_OPEN_LOOP, "true");
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+
+      DummyLinkStore reqStore = new DummyLinkStore(getStoreHandle(false)) {
+        @Override
+        public long countLinks(String dbid, long id1, long link_type)
+            throws Exception {
+          if (countLinks % 100 == 50) {
+            Thread.sleep(stall_ms);
+          }
+          return super.countLinks(dbid, id1, link_type);
+        }
+      };
+      LatencyStats responseStats = new LatencyStats(1);
+      LatencyStats serviceStats = new LatencyStats(1);
+      LinkBenchRequest requester = new LinkBenchRequest(reqStore, null,
+                      props, responseStats, serviceStats, System.out,
+                      tracker, rng, 0, 1);
+      tracker.startTimer();
+      requester.run();
+
+      assertEquals(requests, requester.getRequestsDone());
+      LinkBenchOp op = LinkBenchOp.COUNT_LINK;
+      assertEquals(requests, responseStats.getCount(op));
+      assertEquals(requests, serviceStats.getCount(op));
+
+      long stall_us = stall_ms * 1000;
+      // Only the stalled requests were slow to be served ...
+      assertTrue(serviceStats.getPercentileValue(op, 100) >= stall_us);
+      long serviceP90 = serviceStats.getPercentileValue(op, 90);
+      assertTrue("service p90 = " + serviceP90, serviceP90 < stall_us / 5);
+      // ... but about half of requests were queued behind a stall, by up
+      // to the length of the stall
+      long responseP90 = responseStats.getPercentileValue(op, 90);
+      assertTrue("response p90 = " + responseP90, responseP90 >= stall_us / 2);
+      long responseP50 = responseStats.getPercentileValue(op, 50);
+      assertTrue("response p50 = " + responseP50,
+                 responseP50 > serviceStats.getPercentileValue(op, 50));
+      assertTrue(responseStats.getPercentileValue(op, 100) >= stall_us);
+      // Request after a stall started late by about the stall
+      assertTrue("max schedule lag = " + requester.maxScheduleLag_ns,
+          requester.maxScheduleLag_ns >= (stall_ms - 10) * 1000000L);
+    } finally {
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Check that requester writes inverse links if configured, and records
+   * those writes separately
+   */
+  @Test
+  public void testRequesterInverses() throws IOException, Exception {
+    long startId = 3000;
+    long idCount = getIDCount() / 10;
+    int linksPerId = 3;
+
+    Properties props = basicProps();
+    int requests = 1000;
+    long timeLimit = requests;
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+                 20, 20, 10, 10, 20, 20, false);
+    props.setProperty(Config.REQUEST_WRITE_INVERSES, "true");
+    props.setProperty(Config.INVERSE_LINK_TYPES, InverseLinkTypes.SYMMETRIC);
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+
+      DummyLinkStore reqStore = getStoreHandle(false);
+      LatencyStats latencyStats = new LatencyStats(1);
+      LinkBenchRequest requester = new LinkBenchRequest(reqStore, null,
+                      props, latencyStats, System.out, tracker, rng, 0, 1);
+      tracker.startTimer();
+      requester.run();
+
+      assertEquals(requests, requester.getRequestsDone());
+      // All link types are symmetric, so all writes have inverses
+      assertEquals(0, latencyStats.getCount(LinkBenchOp.ADD_LINK));
+      assertEquals(0, latencyStats.getCount(LinkBenchOp.DELETE_LINK));
+      assertTrue(latencyStats.getCount(LinkBenchOp.ADD_LINK_INVERSE) > 0);
+      assertTrue(latencyStats.getCount(LinkBenchOp.DELETE_LINK_INVERSE) > 0);
+      assertTrue(latencyStats.getCount(LinkBenchOp.COUNT_LINK) > 0);
+    } finally {
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Check that the requester issues batched reads as single store calls
+   */
+  @Test
+  public void testRequesterBatchedReads() throws IOException, Exception {
+    long startId = 3000;
+    long idCount = getIDCount() / 10;
+    int linksPerId = 3;
+
+    Properties props = basicProps();
+    int requests = 1000;
+    long timeLimit = requests;
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+                 20, 20, 10, 10, 20, 20, false);
+    // Replace some link list and count requests with batched reads
+    props.setProperty(Config.PR_GET_LINK_LIST, "10");
+    props.setProperty(Config.PR_COUNT_LINKS, "5");
+    props.setProperty(Config.PR_MULTICOUNT_LINK, "5");
+    props.setProperty(Config.PR_MULTIGET_LINK_LIST, "10");
+    props.setProperty(Config.READ_BATCH_SIZE, "8");
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+      RequestProgress tracker = new RequestProgress(logger, requests, timeLimit, 0, 1000);
+
+      DummyLinkStore reqStore = getStoreHandle(false);
+      LatencyStats latencyStats = new LatencyStats(1);
+      LinkBenchRequest requester = new LinkBenchRequest(reqStore, null,
+                      props, latencyStats, System.out, tracker, rng, 0, 1);
+      tracker.startTimer();
+      requester.run();
+
+      assertEquals(requests, requester.getRequestsDone());
+      long multiCounts = latencyStats.getCount(LinkBenchOp.MULTICOUNT_LINK);
+      long multiLists = latencyStats.getCount(LinkBenchOp.MULTIGET_LINKS_LIST);
+      assertTrue(multiCounts > 0);
+      assertTrue(multiLists > 0);
+      assertEquals(multiCounts, reqStore.multiCountLinks);
+      assertEquals(multiLists, reqStore.multigetLinkLists);
+    } finally {
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
+  /**
+   * Test rate limits shared between requesters: aggregate rate and a
+   * ceiling on one operation type
+   */
+  @Test
+  public void testRequesterGlobalRate() throws IOException, Exception {
+    long startId = 1000000;
+    long idCount = getIDCount() / 10;
+    int linksPerId = 3;
+
+    Properties props = basicProps();
+    int nrequesters = 2;
+    int requests = 1000;
+    long timeLimit = requests;
+    int requestsPerSec = 1000;
+    int addsPerSec = 150;
+    fillLoadProps(props, startId, idCount, linksPerId);
+    fillReqProps(props, startId, idCount, requests, timeLimit,
+                 20, 20, 10, 10, 20, 20, false);
+    props.setProperty(Config.REQUEST_GLOBAL_RATE,
+                      Integer.toString(requestsPerSec));
+    props.setProperty(RequestRateLimits.opLimitKey(LinkBenchOp.ADD_LINK),
+                      Integer.toString(addsPerSec));
+
+    try {
+      Random rng = createRNG();
+
+      serialLoad(rng, logger, props, getStoreHandle(false));
+      RequestProgress tracker = new RequestProgress(logger,
+                      requests * nrequesters, timeLimit, 0, 1000);
+      RequestRateLimits rateLimits = RequestRateLimits.fromConfig(props, 1);
+
+      DummyLinkStore reqStores[] = new DummyLinkStore[nrequesters];
+      Thread threads[] = new Thread[nrequesters];
+      LatencyStats latencyStats = new LatencyStats(nrequesters);
+      for (int i = 0; i < nrequesters; i++) {
+        reqStores[i] = getStoreHandle(false);
+        LinkBenchRequest requester = new LinkBenchRequest(reqStores[i], null,
+                        props, latencyStats, System.out, tracker,
+                        new Random(rng.nextLong()), i, nrequesters);
+        requester.setRateLimits(rateLimits);
+        threads[i] = new Thread(requester);
+      }
+
+      long startTime = System.currentTimeMillis();
+      tracker.startTimer();
+      for (Thread t: threads) {
+        t.start();
+      }
+      for (Thread t: threads) {
+        t.join();
+      }
+      long endTime = System.currentTimeMillis();
+
+      int total = 0;
+      for (DummyLinkStore reqStore: reqStores) {
+        total += reqStore.adds + reqStore.updates + reqStore.deletes +
+            reqStore.countLinks + reqStore.multigetLinks + reqStore.getLinkLists;
+      }
+      assertEquals(requests * nrequesters, total);
+      // Updates also go through addLink, so count from stats
+      long adds = latencyStats.getCount(LinkBenchOp.ADD_LINK);
+      double elapsed_s = (endTime - startTime) / 1000.0;
+      double actualArrivalRate = total / elapsed_s;
+      double actualAddRate = adds / elapsed_s;
+      System.err.println("Expected request rate: " + requestsPerSec
+          + " actual request rate: " + actualArrivalRate
+          + " add rate limit: " + addsPerSec + " actual: " + actualAddRate);
+      assertTrue("arrival rate within 10% of expected",
+                 actualArrivalRate <= 1.1 * requestsPerSec);
+      assertTrue("add rate within 10% of limit",
+                 actualAddRate <= 1.1 * addsPerSec);
+    } finally {
+      deleteIDRange(testDB, getStoreHandle(true), startId, idCount);
+    }
+  }
+
   /**
    * Check that the get link list history requests occur
    */
@@ -779,9 +1641,10 @@ public abstract class LinkStoreTestBase extends TestCase {
 
     int chunkSize = 128;
     int seq = 0;
+    long seed = rng.nextLong();
     for (long i = startId; i < startId + idCount; i+= chunkSize) {
       LoadChunk chunk = new LoadChunk(seq, i,
-                        Math.min(idCount + startId, i + chunkSize), rng);
+                        Math.min(idCount + startId, i + chunkSize), seed);
       chunk_q.add(chunk);
       seq++;
     }
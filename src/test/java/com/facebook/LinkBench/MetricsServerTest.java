@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.facebook.LinkBench.LinkBenchLoad.LoadProgress;
+import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.stats.IntervalAggregator;
+
+public class MetricsServerTest extends TestCase {
+
+  private final Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+  @Test
+  public void testEscape() {
+    StringBuilder sb = new StringBuilder();
+    MetricsServer.escape(sb, "a\"b\\c\nd");
+    assertEquals("a\\\"b\\\\c\\nd", sb.toString());
+  }
+
+  @Test
+  public void testRender() throws Exception {
+    MetricsServer server = new MetricsServer(0);
+    String empty = server.render();
+    assertTrue(empty.contains("# TYPE linkbench_ops_total counter\n"));
+    assertTrue(empty.contains("\nlinkbench_requests_in_flight 0\n"));
+    assertTrue(empty.contains("\njvm_threads_live "));
+    assertTrue(empty.contains("\njvm_gc_collections_total{gc=\""));
+    assertFalse(empty.contains("linkbench_interval_"));
+    assertFalse(empty.contains("linkbench_load_"));
+
+    LoadProgress load = new LoadProgress(logger, 100, 1000);
+    load.startTimer();
+    load.update(10, 50);
+    server.setLoadProgress(load);
+    RequestProgress progress = new RequestProgress(logger, 1000, 60, 0, 1000);
+    progress.startTimer();
+    progress.update(250);
+    server.setRequestProgress(progress);
+
+    IntervalAggregator agg = new IntervalAggregator(1000, 1000, null);
+    IntervalAggregator.Recorder recorder = agg.newRecorder();
+    for (int i = 1; i <= 100; i++) {
+      recorder.record(LinkBenchOp.GET_NODE, i * 1000, i == 100);
+    }
+    recorder.record(LinkBenchOp.RANGE_SIZE, 10, false);
+    recorder.flush();
+    agg.stop();
+    server.setIntervalAggregator(agg);
+
+    String text = server.render();
+    assertTrue(text.contains("\nlinkbench_load_id1s_loaded 10\n"));
+    assertTrue(text.contains("\nlinkbench_load_id1s_target 100\n"));
+    assertTrue(text.contains("\nlinkbench_load_links_loaded 50\n"));
+    assertTrue(text.contains("\nlinkbench_requests_done 250\n"));
+    assertTrue(text.contains("\nlinkbench_requests_target 1000\n"));
+    assertTrue(text.contains(
+        "\nlinkbench_interval_ops_per_second{op=\"GET_NODE\"} 100.0\n"));
+    assertTrue(text.contains(
+        "\nlinkbench_interval_errors{op=\"GET_NODE\"} 1\n"));
+    assertTrue(text.contains(
+        "\nlinkbench_interval_latency_seconds{op=\"GET_NODE\",quantile=\"1.0\"} 0.1\n"));
+    assertTrue(text.contains(
+        "\nlinkbench_interval_latency_seconds{op=\"GET_NODE\",quantile=\"0.5\"} "));
+    // Not an operation, and not a latency
+    assertFalse(text.contains("RANGE_SIZE"));
+
+    // Every line is a comment or a sample with a numeric value
+    for (String line: text.split("\n")) {
+      if (!line.startsWith("#")) {
+        String value = line.substring(line.lastIndexOf(' ') + 1);
+        Double.parseDouble(value);
+      }
+    }
+  }
+
+  @Test
+  public void testServe() throws Exception {
+    MetricsServer server = new MetricsServer(0);
+    server.start();
+    try {
+      URL url = new URL("http://localhost:" + server.getPort() +
+                        MetricsServer.PATH);
+      HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      assertEquals(200, conn.getResponseCode());
+      assertEquals(MetricsServer.CONTENT_TYPE, conn.getContentType());
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+                                      conn.getInputStream(), "UTF-8"));
+      StringBuilder body = new StringBuilder();
+      String line;
+      while ((line = in.readLine()) != null) {
+        body.append(line).append('\n');
+      }
+      in.close();
+      assertTrue(body.toString().contains("# TYPE jvm_threads_live gauge\n"));
+    } finally {
+      server.stop();
+    }
+  }
+}
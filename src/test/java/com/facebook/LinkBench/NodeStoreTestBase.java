@@ -131,6 +131,33 @@ public abstract class NodeStoreTestBase extends TestCase {
     assertTrue(test.equals(test2));
   }
 
+  @Test
+  public void testMultiget() throws IOException, Exception {
+    NodeStore store = getNodeStoreHandle(true);
+    store.resetNodeStore(testDB, 0);
+
+    final int nodeType = 1234;
+    Node a = new Node(-1, nodeType, 1, 1, "a".getBytes());
+    a.id = store.addNode(testDB, a);
+    Node b = new Node(-1, nodeType, 2, 2, "b".getBytes());
+    b.id = store.addNode(testDB, b);
+    Node other = new Node(-1, nodeType + 1, 3, 3, "c".getBytes());
+    other.id = store.addNode(testDB, other);
+
+    // Results are in order of ids, with nulls for missing nodes or
+    // nodes of the wrong type, and repeated ids are allowed
+    Node fetched[] = store.multigetNodes(testDB, nodeType,
+        new long[] {b.id, 1000, a.id, other.id, b.id});
+    assertEquals(5, fetched.length);
+    assertEquals(b, fetched[0]);
+    assertNull(fetched[1]);
+    assertEquals(a, fetched[2]);
+    assertNull(fetched[3]);
+    assertEquals(b, fetched[4]);
+
+    assertEquals(0, store.multigetNodes(testDB, nodeType, new long[0]).length);
+  }
+
   @Test
   public void testBinary() throws IOException, Exception {
     byte data[] = new byte[4096];
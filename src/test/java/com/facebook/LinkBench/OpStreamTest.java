@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.facebook.LinkBench.stats.LatencyStats;
+
+/**
+ * Check that compiled op streams read back the same operations as the
+ * request generator produced
+ */
+public class OpStreamTest extends TestCase {
+
+  private Properties props;
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    props = new Properties();
+    LinkStoreTestBase.fillLoadProps(props, 1, 10000, 5);
+    LinkStoreTestBase.fillReqProps(props, 1, 10000, 1000, 1000,
+        20, 10, 10, 10, 30, 20, true);
+    props.setProperty(Config.PR_GETLINKLIST_HISTORY, "50");
+    // Replace some link list requests with page loads and traversals
+    props.setProperty(Config.PR_GET_LINK_LIST, "10");
+    props.setProperty(Config.PR_PAGE_LOAD, "5");
+    props.setProperty(Config.PR_GET_2HOP, "2");
+    props.setProperty(Config.PR_MULTICOUNT_LINK, "1");
+    props.setProperty(Config.PR_MULTIGET_LINK_LIST, "2");
+    props.setProperty(Config.READ_BATCH_SIZE, "7");
+    file = File.createTempFile("linkbench", ".ops");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    file.delete();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    int nops = 20000;
+    long seed = System.currentTimeMillis();
+    System.err.println("Random seed: " + seed);
+
+    new OpStreamCompiler(props, file, nops, new Random(seed), 1, 4).run();
+
+    // Regenerate same sequence to compare against
+    RequestGenerator gen = new RequestGenerator(props, 1, 4);
+    Random rng = new Random(seed);
+    RequestOp expected = new RequestOp();
+    RequestOp actual = new RequestOp();
+
+    // Small window so that file is remapped many times
+    OpStreamReader reader = new OpStreamReader(file, 1,
+                                      RequestOp.MAX_ENCODED_BYTES * 2);
+    try {
+      for (int i = 0; i < nops; i++) {
+        assertTrue(reader.hasNext());
+        gen.nextOp(rng, expected);
+        reader.next(actual);
+        checkSameOp(expected, actual);
+      }
+      assertFalse(reader.hasNext());
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testWrongRequester() throws IOException {
+    new OpStreamCompiler(props, file, 10, new Random(), 0, 2).run();
+    try {
+      new OpStreamReader(file, 1).close();
+      fail("Should not be able to read op stream for other requester");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testJournalRoundTrip() throws IOException {
+    int nops = 5000;
+    long seed = System.currentTimeMillis();
+    System.err.println("Random seed: " + seed);
+
+    RequestGenerator gen = new RequestGenerator(props, 2, 4);
+    Random rng = new Random(seed);
+    RequestOp op = new RequestOp();
+    OpJournalWriter writer = new OpJournalWriter(file, 2);
+    long base = System.nanoTime();
+    for (int i = 0; i < nops; i++) {
+      gen.nextOp(rng, op);
+      writer.record(op, base + i * 1000, base + i * 1000 + 5,
+                    base + i * 1000 + 10, i, i % 7 == 0);
+    }
+    writer.close();
+    assertEquals(nops, writer.getRecordsWritten());
+
+    gen = new RequestGenerator(props, 2, 4);
+    rng = new Random(seed);
+    RequestOp actual = new RequestOp();
+    OpJournalReader reader = new OpJournalReader(file);
+    try {
+      assertEquals(2, reader.getRequesterID());
+      long firstIntended = 0;
+      for (int i = 0; i < nops; i++) {
+        assertTrue(reader.hasNext());
+        gen.nextOp(rng, op);
+        reader.next(actual);
+        checkSameOp(op, actual);
+        if (i == 0) {
+          firstIntended = reader.getIntendedStart_ns();
+        }
+        assertEquals(i * 1000, reader.getIntendedStart_ns() - firstIntended);
+        assertEquals(5, reader.getStartTime_ns() -
+                        reader.getIntendedStart_ns());
+        assertEquals(10, reader.getEndTime_ns() -
+                         reader.getIntendedStart_ns());
+        assertEquals(i, reader.getResult());
+        assertEquals(i % 7 == 0, reader.isError());
+      }
+      assertFalse(reader.hasNext());
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Replaying page loads without asynchronous stores is a configuration
+   * error that should stop the replay, rather than an error for each op
+   */
+  @Test
+  public void testReplayPageLoadsNeedAsyncStores() throws IOException {
+    OpJournalWriter writer = new OpJournalWriter(file, 0);
+    RequestOp op = new RequestOp();
+    op.type = LinkBenchOp.PAGE_LOAD;
+    op.id1 = 1;
+    op.link_type = LinkStore.DEFAULT_LINK_TYPE;
+    long base = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      writer.record(op, base + i, base + i, base + i + 1, 1, false);
+    }
+    writer.close();
+
+    props.setProperty(Config.DBID, "linkbench");
+    DummyLinkStore store = new DummyLinkStore();
+    // Checked before replay if page loads are configured
+    try {
+      new OpJournalReplayer(store, store, props, file, new LatencyStats(1),
+                            0, 1, 0.0);
+      fail("Replayer accepted page loads with synchronous stores");
+    } catch (LinkBenchConfigError e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("asynchronous"));
+    }
+
+    // Otherwise checked at the first page load in the journal
+    props.setProperty(Config.PR_PAGE_LOAD, "0");
+    props.setProperty(Config.PR_GET_LINK_LIST, "15");
+    OpJournalReplayer replayer = new OpJournalReplayer(store, store, props,
+                                    file, new LatencyStats(1), 0, 1, 0.0);
+    try {
+      replayer.run();
+      fail("Replayed page loads with synchronous stores");
+    } catch (LinkBenchConfigError e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("asynchronous"));
+    }
+    assertEquals(0, replayer.getErrors());
+  }
+
+  /**
+   * Check that reusing buffers gives the same operations and payloads, and
+   * that the memory store keeps its own copy of reused objects
+   */
+  @Test
+  public void testReuseBuffers() throws Exception {
+    props = new Properties();
+    GraphStoreTestBase.fillLoadProps(props, 1, 10000, 5);
+    GraphStoreTestBase.fillReqProps(props, 1, 10000, 1000, 1000,
+        20, 5, 10, 10, 20, 15, 5, 5, 5, 5);
+    long seed = System.currentTimeMillis();
+    System.err.println("Random seed: " + seed);
+
+    RequestGenerator gen = new RequestGenerator(props, 0, 1);
+    RequestGenerator reuseGen = new RequestGenerator(props, 0, 1);
+    Random rng = new Random(seed);
+    Random reuseRng = new Random(seed);
+    RequestOp op = new RequestOp();
+    RequestOp reuseOp = new RequestOp();
+    reuseOp.reuseBuffers = true;
+
+    MemoryLinkStore store = new MemoryLinkStore();
+    store.resetNodeStore("test", 1);
+    Link lastLink = null;
+    Node lastNode = null;
+    for (int i = 0; i < 5000; i++) {
+      gen.nextOp(rng, op);
+      reuseGen.nextOp(reuseRng, reuseOp);
+      checkSameOp(op, reuseOp);
+      switch (op.type) {
+      case ADD_LINK:
+      case UPDATE_LINK:
+        Link link = reuseGen.createLink(reuseOp);
+        assertTrue(lastLink == null || lastLink == link);
+        lastLink = link;
+        assertTrue(Arrays.equals(gen.createLink(op).data, link.data));
+        store.addLink("test", link, true);
+        byte expected[] = link.data.clone();
+        Arrays.fill(link.data, (byte)0);
+        assertTrue(Arrays.equals(expected,
+            store.getLink("test", link.id1, link.link_type, link.id2).data));
+        break;
+      case ADD_NODE:
+      case UPDATE_NODE:
+        Node node = reuseGen.createNode(reuseOp);
+        assertTrue(lastNode == null || lastNode == node);
+        lastNode = node;
+        assertTrue(Arrays.equals(gen.createNode(op).data, node.data));
+        long id = store.addNode("test", node);
+        expected = node.data.clone();
+        Arrays.fill(node.data, (byte)0);
+        assertTrue(Arrays.equals(expected,
+            store.getNode("test", node.type, id).data));
+        break;
+      default:
+        break;
+      }
+    }
+  }
+
+  @SuppressWarnings("fallthrough")
+  private static void checkSameOp(RequestOp expected, RequestOp actual) {
+    assertEquals(expected.type, actual.type);
+    switch (expected.type) {
+    case ADD_LINK:
+    case UPDATE_LINK:
+      assertEquals(expected.dataSize, actual.dataSize);
+      assertEquals(expected.dataSeed, actual.dataSeed);
+      // Fall through
+    case DELETE_LINK:
+      assertEquals(expected.id2, actual.id2);
+      // Fall through
+    case COUNT_LINK:
+    case PAGE_LOAD:
+      assertEquals(expected.id1, actual.id1);
+      assertEquals(expected.link_type, actual.link_type);
+      break;
+    case GET_2HOP:
+      assertEquals(expected.id1, actual.id1);
+      assertEquals(expected.link_type, actual.link_type);
+      assertEquals(expected.fanout, actual.fanout);
+      break;
+    case MULTICOUNT_LINK:
+      assertTrue(Arrays.equals(expected.linkTypes, actual.linkTypes));
+      // Fall through
+    case MULTIGET_NODE:
+      assertTrue(Arrays.equals(expected.ids, actual.ids));
+      break;
+    case MULTIGET_LINKS_LIST:
+      assertEquals(expected.link_type, actual.link_type);
+      assertTrue(Arrays.equals(expected.ids, actual.ids));
+      break;
+    case MULTIGET_LINK:
+      assertEquals(expected.id1, actual.id1);
+      assertEquals(expected.link_type, actual.link_type);
+      assertTrue(Arrays.equals(expected.id2s, actual.id2s));
+      break;
+    case ADD_NODE:
+      assertEquals(expected.dataSize, actual.dataSize);
+      assertEquals(expected.dataSeed, actual.dataSeed);
+      break;
+    case UPDATE_NODE:
+      assertEquals(expected.dataSize, actual.dataSize);
+      assertEquals(expected.dataSeed, actual.dataSeed);
+      // Fall through
+    case DELETE_NODE:
+    case GET_NODE:
+      assertEquals(expected.id1, actual.id1);
+      break;
+    case GET_LINKS_LIST:
+      assertEquals(expected.id1, actual.id1);
+      assertEquals(expected.link_type, actual.link_type);
+      assertEquals(expected.history, actual.history);
+      if (expected.history) {
+        assertEquals(expected.historyChoice, actual.historyChoice);
+      }
+      break;
+    default:
+      fail("Unexpected op type " + expected.type);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.stats.LatencyStats;
+
+public class PageLoadTest extends TestCase {
+  private static final String DBID = "test";
+
+  private MemoryLinkStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    store = new MemoryLinkStore();
+    store.resetNodeStore(DBID, 1);
+  }
+
+  /**
+   * @return async store with the given number of handles to the memory store
+   */
+  private BlockingAsyncStore asyncStore(int handles) throws Exception {
+    List<MemoryLinkStore> stores = new ArrayList<MemoryLinkStore>();
+    for (int i = 0; i < handles; i++) {
+      stores.add(store.newHandle());
+    }
+    BlockingAsyncStore asyncStore = new BlockingAsyncStore(stores, stores);
+    return asyncStore;
+  }
+
+  private void addPage(long id1, long link_type, int nlinks) throws Exception {
+    for (int i = 0; i < nlinks; i++) {
+      long id2 = store.addNode(DBID, new Node(-1, LinkStore.DEFAULT_NODE_TYPE,
+                               1, 1, new byte[] {(byte) i}));
+      Link link = new Link(id1, link_type, id2, LinkStore.VISIBILITY_DEFAULT,
+                           new byte[0], 1, i);
+      store.addLink(DBID, link, true);
+    }
+  }
+
+  @Test
+  public void testPageLoad() throws Exception {
+    addPage(1, 123, 8);
+    BlockingAsyncStore asyncStore = asyncStore(4);
+    asyncStore.initialize(new Properties(), Phase.REQUEST, 0);
+    try {
+      PageLoad load = new PageLoad(asyncStore, asyncStore, DBID, 3, 5);
+      for (int rep = 0; rep < 3; rep++) {
+        assertEquals(8, load.run(1, 123));
+        // Node, link list, multiget, then fanout
+        assertEquals(3 + 5, load.getSubOpCount());
+        assertEquals(LinkBenchOp.GET_NODE, load.getSubOpType(0));
+        assertEquals(LinkBenchOp.GET_LINKS_LIST, load.getSubOpType(1));
+        assertEquals(LinkBenchOp.MULTIGET_LINK, load.getSubOpType(2));
+        for (int i = 3; i < load.getSubOpCount(); i++) {
+          assertEquals(LinkBenchOp.GET_NODE, load.getSubOpType(i));
+          // Second stage starts after link list completes
+          assertTrue(load.getSubOpStartTime(i) >= load.getSubOpEndTime(1));
+        }
+        for (int i = 0; i < load.getSubOpCount(); i++) {
+          assertTrue(load.getSubOpStartTime(i) >= load.getStartTime());
+          assertTrue(load.getSubOpEndTime(i) <= load.getEndTime());
+        }
+      }
+
+      // Empty page only has first stage
+      assertEquals(0, load.run(2, 123));
+      assertEquals(3, load.getSubOpCount());
+      assertNull(load.getSubOpType(2));
+    } finally {
+      asyncStore.close();
+    }
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    addPage(1, 123, 2);
+    BlockingAsyncStore asyncStore = asyncStore(2);
+    asyncStore.initialize(new Properties(), Phase.REQUEST, 0);
+    try {
+      // Unknown dbid
+      PageLoad load = new PageLoad(asyncStore, asyncStore, "nosuchdb", 3, 5);
+      try {
+        load.run(1, 123);
+        fail("Expected page load to fail");
+      } catch (Exception e) {
+        // Expected
+      }
+      // Can be reused after failure
+      load = new PageLoad(asyncStore, asyncStore, DBID, 3, 5);
+      assertEquals(2, load.run(1, 123));
+    } finally {
+      asyncStore.close();
+    }
+  }
+
+  /**
+   * Errors thrown by the store must be passed to the callback
+   */
+  @Test
+  public void testStoreError() throws Exception {
+    List<MemoryLinkStore> stores = new ArrayList<MemoryLinkStore>();
+    stores.add(new MemoryLinkStore() {
+      @Override
+      public Node getNode(String dbid, int type, long id) {
+        throw new AssertionError("broken store");
+      }
+    });
+    BlockingAsyncStore asyncStore = new BlockingAsyncStore(stores, stores);
+    asyncStore.initialize(new Properties(), Phase.REQUEST, 0);
+    try {
+      final CountDownLatch failed = new CountDownLatch(1);
+      asyncStore.getNodeAsync(DBID, LinkStore.DEFAULT_NODE_TYPE, 1,
+          new StoreCallback<Node>() {
+            @Override
+            public void completed(Node result) {
+            }
+
+            @Override
+            public void failed(Throwable error) {
+              if (error instanceof AssertionError) {
+                failed.countDown();
+              }
+            }
+          });
+      assertTrue(failed.await(10, TimeUnit.SECONDS));
+    } finally {
+      asyncStore.close();
+    }
+  }
+
+  /**
+   * Run requester with page loads, with and without pipelining
+   */
+  @Test
+  public void testRequester() throws Exception {
+    long startId = 1, idCount = 100;
+    for (long id1 = startId; id1 < startId + idCount; id1++) {
+      addPage(id1, LinkStore.DEFAULT_LINK_TYPE, 5);
+    }
+    Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+    for (int depth: new int[] {1, 3}) {
+      Properties props = new Properties();
+      GraphStoreTestBase.fillLoadProps(props, startId, idCount, 5);
+      int requests = 2000;
+      GraphStoreTestBase.fillReqProps(props, startId, idCount, requests, 100,
+          0, 0, 0, 10, 0, 20, 0, 0, 0, 20);
+      props.setProperty(Config.DBID, DBID);
+      props.setProperty(Config.PR_PAGE_LOAD, "50");
+      props.setProperty(Config.REQUEST_PIPELINE_DEPTH,
+                        Integer.toString(depth));
+      props.setProperty(Config.PAGELOAD_NODE_FANOUT, "3");
+
+      BlockingAsyncStore asyncStore = asyncStore(depth *
+                                        PageLoad.getMaxConcurrency(props));
+      LatencyStats latencyStats = new LatencyStats(1);
+      RequestProgress tracker = new RequestProgress(logger, requests, 100, 0,
+                                                    1000);
+      LinkBenchRequest requester = new LinkBenchRequest(asyncStore,
+          asyncStore, props, latencyStats, System.out, tracker, new Random(),
+          0, 1);
+      tracker.startTimer();
+      requester.run();
+
+      assertEquals(requests, requester.getRequestsDone());
+      assertEquals(0, requester.getErrors());
+      long pageLoads = latencyStats.getCount(LinkBenchOp.PAGE_LOAD);
+      assertTrue(Math.abs(pageLoads / (double) requests - 0.5) < 0.05);
+      // Each page load gets a node and link list, plus up to 3 nodes,
+      // recorded apart from standalone operations
+      long getNodes = latencyStats.getCount(LinkBenchOp.PAGE_LOAD_GET_NODE);
+      assertTrue(getNodes >= pageLoads);
+      assertTrue(getNodes <= pageLoads * 4);
+      assertEquals(pageLoads,
+          latencyStats.getCount(LinkBenchOp.PAGE_LOAD_GET_LINKS_LIST));
+      assertTrue(latencyStats.getCount(LinkBenchOp.PAGE_LOAD_MULTIGET_LINK) > 0);
+      // Standalone operations are in the proportion of the mix
+      long standalone = 0;
+      for (LinkBenchOp type: LinkBenchOp.values()) {
+        if (type.isOperation()) {
+          standalone += requester.getOpCount(type);
+        }
+      }
+      assertEquals(requests, standalone);
+      assertEquals(pageLoads, requester.getOpCount(LinkBenchOp.PAGE_LOAD));
+      assertTrue(Math.abs(latencyStats.getCount(LinkBenchOp.GET_NODE) /
+                          (double) requests - 0.2) < 0.05);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class RateLimiterTest extends TestCase {
+
+  @Test
+  public void testFixedRate() {
+    RateLimiter limiter = new RateLimiter(1000, 1, false);
+    Random rng = new Random();
+    long start = 1000000000L;
+    // Callers arriving together are spread out by the interval
+    for (int i = 0; i < 10; i++) {
+      assertEquals(start + i * 1000000L, limiter.nextSlot(rng, start, false));
+    }
+  }
+
+  @Test
+  public void testBurst() {
+    RateLimiter limiter = new RateLimiter(1000, 5, false);
+    Random rng = new Random();
+    long start = 1000000000L;
+    assertEquals(start, limiter.nextSlot(rng, start, false));
+    // After a long idle period, only a burst of slots is in the past
+    long now = start + 1000000000L;
+    int immediate = 0;
+    while (limiter.nextSlot(rng, now, false) <= now) {
+      immediate++;
+    }
+    assertEquals(5, immediate);
+  }
+
+  @Test
+  public void testFollowSchedule() {
+    RateLimiter limiter = new RateLimiter(1000, 1, false);
+    Random rng = new Random();
+    long start = 1000000000L;
+    limiter.nextSlot(rng, start, true);
+    // Missed slots are handed out in order
+    long now = start + 100000000L;
+    for (int i = 1; i <= 100; i++) {
+      assertEquals(start + i * 1000000L, limiter.nextSlot(rng, now, true));
+    }
+    assertTrue(limiter.nextSlot(rng, now, true) > now);
+  }
+
+  @Test
+  public void testPoissonRate() {
+    double rate = 2000;
+    RateLimiter limiter = new RateLimiter(rate, 1, true);
+    Random rng = new Random();
+    long start = 0;
+    long last = 0;
+    int n = 100000;
+    for (int i = 0; i < n; i++) {
+      last = limiter.nextSlot(rng, start, false);
+    }
+    double actual = n / ((last - start) / 1e9);
+    assertTrue("rate " + actual, Math.abs(actual - rate) < 0.02 * rate);
+  }
+
+  /**
+   * Check that threads sharing a limiter never get the same slot, and
+   * together keep to the rate
+   */
+  @Test
+  public void testShared() throws InterruptedException {
+    final RateLimiter limiter = new RateLimiter(1e6, 1, false);
+    final int nthreads = 4;
+    final int perThread = 50000;
+    final long slots[] = new long[nthreads * perThread];
+    Thread threads[] = new Thread[nthreads];
+    for (int t = 0; t < nthreads; t++) {
+      final int threadNum = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          Random rng = new Random();
+          for (int i = 0; i < perThread; i++) {
+            // All at same time, so no slots are skipped
+            slots[threadNum * perThread + i] = limiter.nextSlot(rng, 0, false);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread: threads) {
+      thread.join();
+    }
+    Arrays.sort(slots);
+    for (int i = 0; i < slots.length; i++) {
+      assertEquals(i * 1000L, slots[i]);
+    }
+  }
+
+  @Test
+  public void testConfig() {
+    Properties props = new Properties();
+    assertNull(RequestRateLimits.fromConfig(props, 1));
+
+    props.setProperty(RequestRateLimits.opLimitKey(LinkBenchOp.ADD_LINK),
+                      "1000");
+    RequestRateLimits limits = RequestRateLimits.fromConfig(props, 2);
+    assertFalse(limits.hasGlobalLimit());
+    Random rng = new Random();
+    // Half the configured rate for each share
+    assertEquals(0, limits.nextOpTime(LinkBenchOp.ADD_LINK, rng, 0));
+    assertEquals(2000000, limits.nextOpTime(LinkBenchOp.ADD_LINK, rng, 0));
+    // No ceiling
+    assertEquals(5, limits.nextOpTime(LinkBenchOp.GET_NODE, rng, 5));
+
+    props.setProperty(Config.REQUEST_GLOBAL_RATE, "100");
+    limits = RequestRateLimits.fromConfig(props, 1);
+    assertTrue(limits.hasGlobalLimit());
+    assertEquals(7, limits.nextRequestTime(rng, 7, false));
+
+    props.setProperty(Config.REQUEST_RATE_BURST, "0.5");
+    try {
+      RequestRateLimits.fromConfig(props, 1);
+      fail("Expected config error");
+    } catch (LinkBenchConfigError e) {
+      // Expected
+    }
+  }
+}
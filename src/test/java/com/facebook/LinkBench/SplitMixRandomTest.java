@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.facebook.LinkBench.util.SplitMixRandom;
+
+public class SplitMixRandomTest extends TestCase {
+
+  @Test
+  public void testReproducible() {
+    SplitMixRandom a = new SplitMixRandom(1234);
+    SplitMixRandom b = new SplitMixRandom(1234);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(a.nextLong(), b.nextLong());
+    }
+    a.setSeed(99);
+    b.setSeed(99);
+    assertEquals(a.nextInt(1000), b.nextInt(1000));
+    assertEquals(a.nextDouble(), b.nextDouble());
+  }
+
+  /**
+   * Stream for a key must only depend on seed and key, not on which
+   * other keys were generated first
+   */
+  @Test
+  public void testKeyed() {
+    long seed = 42;
+    SplitMixRandom rng = new SplitMixRandom();
+    long vals[] = new long[100];
+    for (int key = 0; key < vals.length; key++) {
+      rng.reseed(seed, key);
+      vals[key] = rng.nextLong();
+    }
+    for (int key = vals.length - 1; key >= 0; key--) {
+      assertEquals(vals[key], SplitMixRandom.forKey(seed, key).nextLong());
+      rng.reseed(seed, key);
+      assertEquals(vals[key], rng.nextLong());
+    }
+    for (int key = 1; key < vals.length; key++) {
+      assertTrue(vals[key] != vals[key - 1]);
+    }
+    assertTrue(SplitMixRandom.forKey(seed, 0).nextLong() !=
+               SplitMixRandom.forKey(seed + 1, 0).nextLong());
+  }
+
+  @Test
+  public void testSplit() {
+    SplitMixRandom a = new SplitMixRandom(7);
+    SplitMixRandom b = a.split();
+    int same = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (a.nextLong() == b.nextLong()) {
+        same++;
+      }
+    }
+    assertEquals(0, same);
+  }
+
+  /**
+   * Rough check that values are spread evenly
+   */
+  @Test
+  public void testUniform() {
+    Random rng = new SplitMixRandom(1);
+    int buckets = 10;
+    int n = 100000;
+    int counts[] = new int[buckets];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      counts[rng.nextInt(buckets)]++;
+      double d = rng.nextDouble();
+      assertTrue(d >= 0.0 && d < 1.0);
+      sum += d;
+    }
+    for (int i = 0; i < buckets; i++) {
+      assertEquals(n / buckets, counts[i], n / buckets / 20);
+    }
+    assertEquals(0.5, sum / n, 0.01);
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.facebook.LinkBench.stats.SampledStats;
+import com.facebook.LinkBench.stats.StatsOutput;
+import com.facebook.LinkBench.stats.StatsOutputReader;
+
+public class StatsOutputTest extends TestCase {
+
+  private static List<String> lines(byte bytes[]) {
+    return new ArrayList<String>(Arrays.asList(new String(bytes).split("\n")));
+  }
+
+  /**
+   * Record the same stats in two SampledStats, one writing directly to
+   * the stream and one through output
+   * @return lines written directly
+   */
+  private static List<String> writeStats(StatsOutput output) {
+    ByteArrayOutputStream direct = new ByteArrayOutputStream();
+    PrintStream directOut = new PrintStream(direct);
+    SampledStats.writeCSVHeader(directOut);
+    SampledStats stats1 = new SampledStats(3, 1000, directOut);
+    SampledStats stats2 = new SampledStats(3, 1000, null);
+    stats2.setStatsOutput(output);
+    for (SampledStats stats: Arrays.asList(stats1, stats2)) {
+      for (int i = 1; i <= 100; i++) {
+        stats.addStats(LinkBenchOp.GET_NODE, i * 10, i % 10 == 0);
+      }
+      stats.displayStats(1000, 3000, Arrays.asList(LinkBenchOp.GET_NODE,
+                         LinkBenchOp.ADD_LINK));
+    }
+    directOut.flush();
+    return lines(direct.toByteArray());
+  }
+
+  @Test
+  public void testCSV() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StatsOutput output = new StatsOutput(bytes, StatsOutput.Format.CSV, 16);
+    output.start();
+    List<String> expected = writeStats(output);
+    output.close();
+    assertEquals(2, output.getRowsWritten());
+    assertEquals(3, expected.size());
+    assertTrue(expected.get(2).endsWith(",0,,,,,,,,,"));
+    assertEquals(expected, lines(bytes.toByteArray()));
+  }
+
+  @Test
+  public void testBinary() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StatsOutput output = new StatsOutput(bytes, StatsOutput.Format.BINARY,
+                                         16);
+    output.start();
+    List<String> expected = writeStats(output);
+    output.close();
+
+    StatsOutputReader reader = new StatsOutputReader(
+                            new ByteArrayInputStream(bytes.toByteArray()));
+    ByteArrayOutputStream csv = new ByteArrayOutputStream();
+    PrintStream csvOut = new PrintStream(csv);
+    SampledStats.writeCSVHeader(csvOut);
+    assertEquals(2, reader.writeCSV(csvOut));
+    csvOut.flush();
+    assertEquals(expected, lines(csv.toByteArray()));
+
+    // Truncated output is read up to last complete block
+    byte truncated[] = Arrays.copyOf(bytes.toByteArray(),
+                                     bytes.size() - 6);
+    reader = new StatsOutputReader(new ByteArrayInputStream(truncated));
+    assertEquals(0, reader.writeCSV(new PrintStream(
+                                        new ByteArrayOutputStream())));
+  }
+
+  /**
+   * Several threads writing more rows than fit in their buffers
+   */
+  @Test
+  public void testThreads() throws Exception {
+    for (StatsOutput.Format format: StatsOutput.Format.values()) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final StatsOutput output = new StatsOutput(bytes, format, 4);
+      assertEquals(4, output.getBufferRows());
+      output.start();
+      final int nthreads = 4, rows = 500;
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < nthreads; t++) {
+        final int threadID = t;
+        final StatsOutput.Channel channel = output.newChannel();
+        threads.add(new Thread() {
+          @Override
+          public void run() {
+            for (int i = 0; i < rows; i++) {
+              channel.write(threadID, i, LinkBenchOp.ADD_LINK, i, 0, 1,
+                  1000, 1, 5.5, new long[] {1, 2, 3, 4, 5, 6, 7, -i});
+            }
+          }
+        });
+      }
+      for (Thread t: threads) {
+        t.start();
+      }
+      for (Thread t: threads) {
+        t.join();
+      }
+      output.close();
+      assertEquals(nthreads * rows, output.getRowsWritten());
+
+      List<String> lines;
+      if (format == StatsOutput.Format.CSV) {
+        lines = lines(bytes.toByteArray());
+        lines.remove(0);
+      } else {
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        PrintStream csvOut = new PrintStream(csv);
+        new StatsOutputReader(new ByteArrayInputStream(
+            bytes.toByteArray())).writeCSV(csvOut);
+        csvOut.flush();
+        lines = lines(csv.toByteArray());
+      }
+      List<String> expected = new ArrayList<String>();
+      for (int t = 0; t < nthreads; t++) {
+        for (int i = 0; i < rows; i++) {
+          expected.add(t + "," + i + ",ADD_LINK," + i + ",0,1,1000,1,5.5," +
+                       "1,2,3,4,5,6,7," + (-i));
+        }
+      }
+      Collections.sort(expected);
+      Collections.sort(lines);
+      assertEquals(expected, lines);
+    }
+  }
+
+  @Test
+  public void testAllThreads() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StatsOutput output = new StatsOutput(bytes, StatsOutput.Format.CSV, 16);
+    output.newChannel().write(StatsOutput.ALL_THREADS, 100,
+        LinkBenchOp.GET_NODE, 10, 1, 10, 1000, 10, 2.0,
+        new long[] {1, 2, 2, 2, 3, 3, 3, 4});
+    // Without background thread, rows are written by close
+    output.close();
+    assertEquals("all,100,GET_NODE,10,1,10,1000,10,2.0,1,2,2,2,3,3,3,4",
+                 lines(bytes.toByteArray()).get(1));
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class TaskPoolTest extends TestCase {
+
+  /**
+   * Task with a fixed number of steps at a fixed interval
+   */
+  private static class CountingTask implements SteppedTask {
+    final int nsteps;
+    final long interval_ns;
+    long lastTime_ns;
+    int started = 0;
+    int stepsDone = 0;
+    int finished = 0;
+    boolean outOfOrder = false;
+
+    CountingTask(int nsteps, long interval_ns) {
+      this.nsteps = nsteps;
+      this.interval_ns = interval_ns;
+    }
+
+    @Override
+    public void run() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void startSteps() {
+      started++;
+      lastTime_ns = System.nanoTime();
+    }
+
+    @Override
+    public boolean hasNextStep() {
+      return stepsDone < nsteps;
+    }
+
+    @Override
+    public long nextStepTime() {
+      lastTime_ns += interval_ns;
+      return lastTime_ns;
+    }
+
+    @Override
+    public void step(long scheduledTime_ns) {
+      if (scheduledTime_ns != lastTime_ns ||
+          System.nanoTime() < scheduledTime_ns) {
+        outOfOrder = true;
+      }
+      stepsDone++;
+    }
+
+    @Override
+    public void finishSteps() {
+      finished++;
+    }
+  }
+
+  /**
+   * Check that many stepped tasks can share a small pool
+   */
+  @Test
+  public void testSteppedTasks() throws Exception {
+    int ntasks = 200;
+    int nsteps = 20;
+    long interval_ns = 5 * 1000 * 1000; // 5ms
+    List<CountingTask> tasks = new ArrayList<CountingTask>();
+    for (int i = 0; i < ntasks; i++) {
+      tasks.add(new CountingTask(nsteps, interval_ns));
+    }
+
+    TaskPool pool = new TaskPool(2);
+    long elapsed = pool.runAll(tasks);
+    pool.displayStats();
+
+    for (CountingTask task: tasks) {
+      assertEquals(1, task.started);
+      assertEquals(nsteps, task.stepsDone);
+      assertEquals(1, task.finished);
+      assertFalse(task.outOfOrder);
+    }
+    assertEquals(ntasks * nsteps, pool.getSteps());
+    assertTrue(pool.getMaxDispatchLag_ns() >= pool.getMeanDispatchLag_ns());
+    assertTrue(pool.getMaxScheduleLag_ns() >= pool.getMeanScheduleLag_ns());
+    // Tasks must have run concurrently: serially would take 20s
+    assertTrue(elapsed >= nsteps * interval_ns / 1e6);
+    assertTrue("took " + elapsed + "ms", elapsed < 5000);
+  }
+
+  /**
+   * A task that is behind its own schedule should show schedule lag, not
+   * dispatch lag
+   */
+  @Test
+  public void testScheduleLag() throws Exception {
+    final long behind_ns = 1000L * 1000L * 1000L; // 1s
+    CountingTask task = new CountingTask(50, 0) {
+      @Override
+      public void startSteps() {
+        super.startSteps();
+        lastTime_ns -= behind_ns;
+      }
+    };
+    List<CountingTask> tasks = new ArrayList<CountingTask>();
+    tasks.add(task);
+    TaskPool pool = new TaskPool(2);
+    pool.runAll(tasks);
+
+    assertEquals(50, pool.getSteps());
+    assertTrue(pool.getMeanScheduleLag_ns() >= behind_ns);
+    assertTrue(pool.getMeanDispatchLag_ns() < behind_ns / 10);
+  }
+
+  /**
+   * Check that plain runnables are run to completion
+   */
+  @Test
+  public void testRunnables() throws Exception {
+    final AtomicInteger runs = new AtomicInteger();
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (int i = 0; i < 10; i++) {
+      tasks.add(new Runnable() {
+        @Override
+        public void run() {
+          runs.incrementAndGet();
+        }
+      });
+    }
+    new TaskPool(3).runAll(tasks);
+    assertEquals(10, runs.get());
+  }
+}
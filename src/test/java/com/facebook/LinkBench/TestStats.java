@@ -15,30 +15,313 @@
  */
 package com.facebook.LinkBench;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
 import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 
 import org.junit.Test;
 
+import com.facebook.LinkBench.stats.IntervalAggregator;
 import com.facebook.LinkBench.stats.LatencyStats;
+import com.facebook.LinkBench.stats.LogLinearHistogram;
+import com.facebook.LinkBench.stats.OverheadStats;
+import com.facebook.LinkBench.stats.QuantileSketch;
 
 public class TestStats extends TestCase {
 
   @Test
   public void testBucketing() {
     // 0 microseconds until 100 seconds
-    for (long us = 0; us < 100 * 1000 * 1000; us += 100 ) {
-      int bucket = LatencyStats.latencyToBucket(us);
-      try {
-        assertTrue(bucket >= 0);
-        assertTrue(bucket < LatencyStats.NUM_BUCKETS);
-        long range[] = LatencyStats.bucketBound(bucket);
-        assertTrue(us >= range[0]);
-        assertTrue(us < range[1]);
-      } catch (AssertionFailedError e) {
-        System.err.println("Failed for " + us + "us, bucket=" + bucket);
-        throw e;
+    for (int digits = LogLinearHistogram.MIN_DIGITS;
+         digits <= LogLinearHistogram.MAX_DIGITS; digits++) {
+      LogLinearHistogram hist = new LogLinearHistogram(digits);
+      double maxError = Math.pow(10, -digits);
+      for (long us = 0; us < 100 * 1000 * 1000; us = us * 11 / 10 + 1) {
+        int bucket = hist.bucketIndex(us);
+        try {
+          assertTrue(bucket >= 0);
+          long low = hist.lowestEquivalentValue(bucket);
+          long high = hist.highestEquivalentValue(bucket);
+          assertTrue(us >= low);
+          assertTrue(us <= high);
+          assertTrue((high - low) <= maxError * us);
+          if (bucket > 0) {
+            // Buckets are contiguous
+            assertEquals(low - 1, hist.highestEquivalentValue(bucket - 1));
+          }
+        } catch (AssertionFailedError e) {
+          System.err.println("Failed for " + us + "us, bucket=" + bucket +
+                             ", digits=" + digits);
+          throw e;
+        }
       }
     }
   }
+
+  @Test
+  public void testHistogramPercentiles() {
+    LogLinearHistogram hist = new LogLinearHistogram(3);
+    assertEquals(0, hist.getValueAtPercentile(99));
+    for (long us = 1; us <= 100000; us++) {
+      hist.record(us);
+    }
+    assertEquals(100000, hist.getTotalCount());
+    assertEquals(1, hist.getMinValue());
+    assertEquals(100000, hist.getMaxValue());
+    assertEquals(1, hist.getValueAtPercentile(0));
+    assertEquals(100000, hist.getValueAtPercentile(100));
+    double percentiles[] = {25, 50, 99, 99.9, 99.99};
+    for (double percentile: percentiles) {
+      long expected = Math.round(percentile * 1000);
+      long actual = hist.getValueAtPercentile(percentile);
+      assertTrue(actual >= expected);
+      assertTrue(actual <= expected * 1.001);
+    }
+  }
+
+  @Test
+  public void testHistogramMerge() throws IOException {
+    LogLinearHistogram a = new LogLinearHistogram(2);
+    LogLinearHistogram b = new LogLinearHistogram(2);
+    for (int i = 0; i < 999; i++) {
+      a.record(100);
+    }
+    b.record(5000000);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    b.writeTo(new DataOutputStream(bytes));
+    LogLinearHistogram b2 = LogLinearHistogram.read(new DataInputStream(
+                              new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(1, b2.getTotalCount());
+    assertEquals(5000000, b2.getMaxValue());
+
+    a.add(b2);
+    assertEquals(1000, a.getTotalCount());
+    assertEquals(100, a.getValueAtPercentile(99.9));
+    assertEquals(5000000, a.getValueAtPercentile(99.99));
+    assertEquals(5000000, a.getMaxValue());
+
+    try {
+      a.add(new LogLinearHistogram(3));
+      fail("Added histograms with different precision");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+
+    a.reset();
+    assertEquals(0, a.getTotalCount());
+    assertEquals(0, a.getMaxValue());
+    a.record(300);
+    assertEquals(300, a.getMinValue());
+    assertEquals(300, a.getValueAtPercentile(99.99));
+  }
+
+  @Test
+  public void testLatencyStatsMerge() throws IOException {
+    LatencyStats stats = new LatencyStats(2);
+    for (int i = 0; i < 10000; i++) {
+      stats.recordLatency(i % 2, LinkBenchOp.GET_NODE, 1000 + i);
+    }
+    stats.recordLatency(1, LinkBenchOp.ADD_LINK, 250);
+    assertEquals(10999, stats.getPercentileValue(LinkBenchOp.GET_NODE, 100));
+    assertEquals(-1, stats.getPercentileValue(LinkBenchOp.DELETE_LINK, 50));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    stats.writeTo(new DataOutputStream(bytes));
+    LatencyStats merged = new LatencyStats(2);
+    for (int thread = 0; thread < 2; thread++) {
+      merged.merge(thread, new DataInputStream(
+                  new ByteArrayInputStream(bytes.toByteArray())));
+    }
+    assertEquals(20000, merged.getCount(LinkBenchOp.GET_NODE));
+    assertEquals(2, merged.getCount(LinkBenchOp.ADD_LINK));
+    assertEquals(stats.getPercentileValue(LinkBenchOp.GET_NODE, 99.9),
+                 merged.getPercentileValue(LinkBenchOp.GET_NODE, 99.9));
+    assertEquals(250, merged.getPercentileValue(LinkBenchOp.ADD_LINK, 50));
+
+    ByteArrayOutputStream csv = new ByteArrayOutputStream();
+    merged.printCSVStats(new PrintStream(csv), true);
+    String lines[] = csv.toString().split("\n");
+    assertEquals("op,count,p25,p50,p75,p95,p99,p99.9,p99.99,max,mean",
+                 lines[0].trim());
+    assertEquals(3, lines.length);
+    merged.displayLatencyStats();
+
+    try {
+      new LatencyStats(1, 0, 2).merge(0, new DataInputStream(
+                  new ByteArrayInputStream(bytes.toByteArray())));
+      fail("Merged stats with different precision");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testSketchAccuracy() {
+    Random rng = new Random(1234);
+    QuantileSketch sketch = new QuantileSketch(0.01, 2048);
+    long values[] = new long[100000];
+    for (int i = 0; i < values.length; i++) {
+      // Log-normal latencies from about 10us to 1s
+      values[i] = 1 + (long) Math.exp(7 + 2 * rng.nextGaussian());
+      sketch.record(values[i]);
+    }
+    Arrays.sort(values);
+    assertEquals(values.length, sketch.getCount());
+    assertEquals(values[0], sketch.getMin());
+    assertEquals(values[values.length - 1], sketch.getMax());
+    assertEquals(values[values.length - 1], sketch.getValueAtPercentile(100));
+    double percentiles[] = {1, 25, 50, 75, 90, 99, 99.9};
+    for (double percentile: percentiles) {
+      long exact = values[(int) Math.ceil(percentile / 100 * values.length)
+                          - 1];
+      long estimate = sketch.getValueAtPercentile(percentile);
+      // Allow for rounding of small values to whole microseconds
+      assertEquals("p" + percentile, exact, estimate, exact * 0.01 + 1);
+    }
+  }
+
+  @Test
+  public void testSketchMerge() {
+    QuantileSketch a = new QuantileSketch(1000);
+    QuantileSketch b = new QuantileSketch(1000);
+    for (int i = 1; i <= 1000; i++) {
+      a.record(i);
+      b.record(i * 1000);
+    }
+    b.record(0);
+    a.add(b);
+    assertEquals(2001, a.getCount());
+    assertEquals(0, a.getMin());
+    assertEquals(1000000, a.getMax());
+    assertEquals(500, a.getValueAtPercentile(25), 500 * 0.01 + 1);
+    assertEquals(980000, a.getValueAtPercentile(99), 980000 * 0.01);
+
+    // With only 100 buckets the lowest values are merged, but the highest
+    // quantiles are still accurate
+    QuantileSketch small = new QuantileSketch(100);
+    small.add(a);
+    assertEquals(2001, small.getCount());
+    assertEquals(0, small.getMin());
+    assertTrue(small.getValueAtPercentile(25) > 1000);
+    assertEquals(980000, small.getValueAtPercentile(99), 980000 * 0.01);
+    for (int i = 1; i <= 1000; i++) {
+      small.record(i);
+    }
+    assertEquals(3001, small.getCount());
+    assertEquals(985000, small.getValueAtPercentile(99.5), 985000 * 0.01);
+
+    a.reset();
+    assertEquals(0, a.getCount());
+    assertEquals(0, a.getValueAtPercentile(50));
+    a.record(42);
+    assertEquals(42, a.getValueAtPercentile(50));
+
+    try {
+      a.add(new QuantileSketch(0.02, 100));
+      fail("Added sketches with different accuracy");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testIntervalAggregator() throws Exception {
+    ByteArrayOutputStream csv = new ByteArrayOutputStream();
+    final IntervalAggregator aggregator = new IntervalAggregator(20, 1000,
+                                                   new PrintStream(csv));
+    aggregator.start();
+    final int nthreads = 4;
+    final int opsPerThread = 20000;
+    Thread threads[] = new Thread[nthreads];
+    for (int t = 0; t < nthreads; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          IntervalAggregator.Recorder recorder = aggregator.newRecorder();
+          for (int i = 0; i < opsPerThread; i++) {
+            recorder.record(LinkBenchOp.GET_NODE, i % 1000, i % 100 == 0);
+            if (i % 1000 == 0) {
+              try {
+                // Spread over several intervals
+                Thread.sleep(1);
+              } catch (InterruptedException e) {
+                // Carry on
+              }
+            }
+          }
+          recorder.flush();
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t: threads) {
+      t.join();
+    }
+    aggregator.stop();
+
+    long ops = 0, errors = 0, lastTotal = 0;
+    for (String line: csv.toString().split("\\n")) {
+      String cols[] = line.trim().split(",");
+      assertEquals("all", cols[0]);
+      assertEquals("GET_NODE", cols[2]);
+      ops += Long.parseLong(cols[5]);
+      lastTotal = Long.parseLong(cols[3]);
+      errors = Long.parseLong(cols[4]);
+      assertTrue(Long.parseLong(cols[16]) <= 999);
+    }
+    assertEquals(nthreads * opsPerThread, ops);
+    assertEquals(nthreads * opsPerThread, lastTotal);
+    assertEquals(nthreads * opsPerThread / 100, errors);
+  }
+
+  /**
+   * An interval is reported on time even if a thread stops recording
+   * without flushing its recorder, e.g. while paused
+   */
+  @Test
+  public void testIntervalAggregatorIdleRecorder() throws Exception {
+    IntervalAggregator aggregator = new IntervalAggregator(20, 1000, null);
+    aggregator.start();
+    IntervalAggregator.Recorder recorder = aggregator.newRecorder();
+    recorder.record(LinkBenchOp.GET_NODE, 100, false);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (aggregator.getLatest() == null &&
+           System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    IntervalAggregator.Snapshot snap = aggregator.getLatest();
+    aggregator.stop();
+    assertNotNull(snap);
+    assertEquals(1, snap.getOps(LinkBenchOp.GET_NODE));
+  }
+
+  @Test
+  public void testOverheadStats() {
+    OverheadStats stats = new OverheadStats(2);
+    long cpu = stats.threadCpuTime();
+    long alloc = stats.threadAllocatedBytes();
+    // 10us generate, 70us store, 20us record => 30% overhead
+    stats.recordRequest(0, LinkBenchOp.GET_NODE, 10000, 70000, 20000, 5000,
+                        cpu, alloc);
+    stats.recordRequest(1, LinkBenchOp.GET_NODE, 10000, 70000, 20000, 0,
+                        cpu, alloc);
+    // Negative times from clock skew are ignored
+    stats.recordRequest(1, LinkBenchOp.ADD_LINK, -5, 1000, 0, -1, cpu, alloc);
+    assertEquals(2, stats.getCount(LinkBenchOp.GET_NODE));
+    assertEquals(1, stats.getCount(LinkBenchOp.ADD_LINK));
+    assertEquals(0, stats.getCount(LinkBenchOp.MULTIGET_LINK));
+    assertEquals(30.0, stats.getOverheadPercent(LinkBenchOp.GET_NODE), 1e-9);
+    assertEquals(0.0, stats.getOverheadPercent(LinkBenchOp.ADD_LINK), 1e-9);
+    assertEquals(0.0, stats.getOverheadPercent(LinkBenchOp.MULTIGET_LINK), 1e-9);
+    assertTrue(stats.getCpuPerOp_us(LinkBenchOp.GET_NODE) >= 0.0);
+    stats.displayOverheadStats();
+  }
 }
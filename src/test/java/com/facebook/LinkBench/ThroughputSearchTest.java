@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.facebook.LinkBench.stats.LatencyStats;
+
+public class ThroughputSearchTest extends TestCase {
+
+  /**
+   * Run search against objective that is met at rates up to threshold
+   */
+  private static ThroughputSearch runSearch(long min, long max,
+                                 double precision, long threshold) {
+    ThroughputSearch search = new ThroughputSearch(min, max, precision, 100);
+    while (search.hasNextStep()) {
+      long rate = search.nextRate();
+      assertTrue(rate >= min && rate <= max);
+      search.record(rate, rate <= threshold);
+    }
+    return search;
+  }
+
+  @Test
+  public void testConverges() {
+    for (long threshold: new long[] {1, 2, 17, 999, 5000, 99999}) {
+      ThroughputSearch search = runSearch(1, 100000, 0.01, threshold);
+      long best = search.getBestRate();
+      assertTrue(best <= threshold);
+      assertTrue("best " + best + " threshold " + threshold,
+                 threshold - best <= Math.max(1, threshold * 0.01));
+      assertTrue(search.getSteps() < 30);
+    }
+  }
+
+  @Test
+  public void testExact() {
+    ThroughputSearch search = runSearch(10, 1000, 0.0, 345);
+    assertEquals(345, search.getBestRate());
+  }
+
+  @Test
+  public void testMinFails() {
+    ThroughputSearch search = runSearch(100, 1000, 0.05, 50);
+    assertEquals(-1, search.getBestRate());
+    assertEquals(1, search.getSteps());
+  }
+
+  @Test
+  public void testMaxPasses() {
+    ThroughputSearch search = runSearch(100, 1000, 0.05, 5000);
+    assertEquals(1000, search.getBestRate());
+    assertEquals(2, search.getSteps());
+  }
+
+  @Test
+  public void testMaxSteps() {
+    ThroughputSearch search = new ThroughputSearch(1, 1000000, 0.0, 5);
+    while (search.hasNextStep()) {
+      long rate = search.nextRate();
+      search.record(rate, rate <= 123456);
+    }
+    assertEquals(5, search.getSteps());
+    assertTrue(search.getBestRate() > 0);
+  }
+
+  @Test
+  public void testPercentileBound() {
+    LatencyStats stats = new LatencyStats(1);
+    assertEquals(-1, stats.getPercentileBound(LinkBenchOp.GET_NODE, 99));
+    for (int i = 0; i < 99; i++) {
+      stats.recordLatency(0, LinkBenchOp.GET_NODE, 50);
+    }
+    stats.recordLatency(0, LinkBenchOp.GET_NODE, 50000);
+    long p99 = stats.getPercentileBound(LinkBenchOp.GET_NODE, 99);
+    assertTrue(p99 > 50 && p99 < 1000);
+    long p100 = stats.getPercentileBound(LinkBenchOp.GET_NODE, 100);
+    assertTrue(p100 > 50000);
+    assertEquals(100, stats.getCount(LinkBenchOp.GET_NODE));
+  }
+}
@@ -58,6 +58,56 @@ public class TimerTest extends TestCase {
     assertTrue(endTime - startTime < 1.02e8); // no longer than 102ms
   }
 
+  /**
+   * Test that waits shorter than a millisecond are not rounded up
+   */
+  @Test
+  public void testTimerSubMillisecond() {
+    int waits = 1000;
+    long totalLate = 0;
+    for (int i = 0; i < waits; i++) {
+      long wakeTime = System.nanoTime() + 50 * 1000; // 50us
+      Timer.waitUntil(wakeTime);
+      long now = System.nanoTime();
+      assertTrue(now >= wakeTime);
+      totalLate += now - wakeTime;
+    }
+    long avgLate = totalLate / waits;
+    assertTrue(avgLate < 5e5); // Much better than 1ms granularity
+  }
+
+  /**
+   * Test that an interrupted wait returns promptly and keeps the interrupt
+   */
+  @Test
+  public void testTimerInterrupted() {
+    Thread.currentThread().interrupt();
+    long start = System.nanoTime();
+    try {
+      assertFalse(Timer.waitUntil(start + 1000L * 1000L * 1000L));
+      assertTrue(System.nanoTime() - start < 5e8);
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  public void testNextExpInterval() {
+    Random rng = new Random(System.currentTimeMillis());
+    double arrivalRate_ns = 1000 / 1e9;
+    long start = System.nanoTime();
+    long time = start;
+    for (int i = 0; i < 1000; i++) {
+      long next = Timer.nextExpInterval(rng, time, arrivalRate_ns);
+      assertTrue(next >= time);
+      time = next;
+    }
+    // Should be ~1 second of schedule computed without waiting
+    assertTrue(time - start > 5e8);
+    assertTrue(System.nanoTime() - start < 5e8);
+  }
+
   @Test
   public void testExponentialArrivals() {
     long randSeed = System.currentTimeMillis();
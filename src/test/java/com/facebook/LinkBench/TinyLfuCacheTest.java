@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.facebook.LinkBench.util.TinyLfuCache;
+
+public class TinyLfuCacheTest extends TestCase {
+
+  @Test
+  public void testBasic() {
+    TinyLfuCache<Long, String> cache = new TinyLfuCache<Long, String>(
+                                                  1000, 1, 100);
+    assertNull(cache.get(1L));
+    cache.put(1L, "one", 10);
+    assertEquals("one", cache.get(1L));
+    cache.put(1L, "uno", 20);
+    assertEquals("uno", cache.get(1L));
+    assertEquals(1, cache.size());
+    assertEquals(20, cache.weight());
+
+    // Too large to ever fit
+    cache.put(2L, "two", 2000);
+    assertNull(cache.get(2L));
+
+    cache.invalidate(1L);
+    assertNull(cache.get(1L));
+    assertEquals(0, cache.weight());
+  }
+
+  @Test
+  public void testStamp() {
+    TinyLfuCache<Long, String> cache = new TinyLfuCache<Long, String>(
+                                                  1000, 1, 100);
+    long stamp = cache.stamp(1L);
+    assertTrue(cache.putIfUnchanged(1L, "one", 10, stamp));
+    stamp = cache.stamp(1L);
+    // Write while value was being read
+    cache.invalidate(1L);
+    assertFalse(cache.putIfUnchanged(1L, "stale", 10, stamp));
+    assertNull(cache.get(1L));
+
+    // Writes to other keys don't make the value stale
+    stamp = cache.stamp(1L);
+    cache.invalidate(2L);
+    cache.put(3L, "three", 10);
+    assertTrue(cache.putIfUnchanged(1L, "one", 10, stamp));
+    assertEquals("one", cache.get(1L));
+
+    // Write to key may have been forgotten
+    stamp = cache.stamp(4L);
+    for (long i = 0; i <= TinyLfuCache.MAX_TOMBSTONES; i++) {
+      cache.invalidate(100 + i);
+    }
+    assertFalse(cache.putIfUnchanged(4L, "four", 10, stamp));
+  }
+
+  /**
+   * Values read while other threads write to unrelated keys in the same
+   * segments are still added
+   */
+  @Test
+  public void testFillDuringUnrelatedWrites() throws Exception {
+    final TinyLfuCache<Long, Long> cache = new TinyLfuCache<Long, Long>(
+                                                  1000000, 2, 1000);
+    final AtomicBoolean done = new AtomicBoolean(false);
+    Thread writers[] = new Thread[2];
+    for (int t = 0; t < writers.length; t++) {
+      final long base = -1000000L * (t + 1);
+      writers[t] = new Thread() {
+        @Override
+        public void run() {
+          long i = 0;
+          while (!done.get()) {
+            // Keys that readers never use
+            cache.invalidate(base - (i++ % 100));
+            Thread.yield();
+          }
+        }
+      };
+      writers[t].start();
+    }
+    int filled = 0;
+    try {
+      for (long key = 0; key < 10000; key++) {
+        long stamp = cache.stamp(key);
+        // Read from backing store while writes go on
+        Thread.yield();
+        if (cache.putIfUnchanged(key, key, 10, stamp)) {
+          filled++;
+        }
+      }
+    } finally {
+      done.set(true);
+      for (Thread t: writers) {
+        t.join();
+      }
+    }
+    // Only fills that were overtaken by MAX_TOMBSTONES writes are dropped
+    assertTrue("Only " + filled + " filled", filled > 9000);
+  }
+
+  @Test
+  public void testBounded() {
+    TinyLfuCache<Long, Long> cache = new TinyLfuCache<Long, Long>(
+                                                  1000, 4, 100);
+    for (long i = 0; i < 10000; i++) {
+      cache.put(i, i, 10);
+      assertTrue(cache.weight() <= 1000);
+    }
+    assertTrue(cache.size() > 50);
+    assertTrue(cache.evictions() > 0);
+  }
+
+  /**
+   * Frequently accessed entries should survive a scan of entries that are
+   * only accessed once
+   */
+  @Test
+  public void testScanResistance() {
+    TinyLfuCache<Long, Long> cache = new TinyLfuCache<Long, Long>(
+                                                  1000, 1, 100);
+    for (int round = 0; round < 5; round++) {
+      for (long i = 0; i < 50; i++) {
+        if (cache.get(i) == null) {
+          cache.put(i, i, 10);
+        }
+      }
+    }
+    for (long i = 1000; i < 5000; i++) {
+      cache.put(i, i, 10);
+    }
+    int hot = 0;
+    for (long i = 0; i < 50; i++) {
+      if (cache.get(i) != null) {
+        hot++;
+      }
+    }
+    assertTrue("Only " + hot + " hot entries left", hot >= 45);
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import com.facebook.LinkBench.LinkBenchRequest.RequestProgress;
+import com.facebook.LinkBench.stats.LatencyStats;
+
+public class TwoHopTraversalTest extends TestCase {
+  private static final String DBID = "test";
+  private static final long LINK_TYPE = 123;
+
+  private MemoryLinkStore store;
+
+  @Override
+  protected void setUp() throws Exception {
+    store = new MemoryLinkStore();
+    store.resetNodeStore(DBID, 1);
+  }
+
+  private BlockingAsyncStore asyncStore(int handles) throws Exception {
+    List<MemoryLinkStore> stores = new ArrayList<MemoryLinkStore>();
+    for (int i = 0; i < handles; i++) {
+      stores.add(store.newHandle());
+    }
+    BlockingAsyncStore asyncStore = new BlockingAsyncStore(stores, stores);
+    asyncStore.initialize(new Properties(), Phase.REQUEST, 0);
+    return asyncStore;
+  }
+
+  private void addLinks(long id1, long link_type, long firstId2, int nlinks)
+      throws Exception {
+    for (int i = 0; i < nlinks; i++) {
+      Link link = new Link(id1, link_type, firstId2 + i,
+                  LinkStore.VISIBILITY_DEFAULT, new byte[0], 1, i);
+      store.addLink(DBID, link, true);
+    }
+  }
+
+  /**
+   * Node 1 links to 10 .. 14, each of which has 3 links
+   */
+  private void addGraph() throws Exception {
+    addLinks(1, LINK_TYPE, 10, 5);
+    for (long id = 10; id < 15; id++) {
+      addLinks(id, LINK_TYPE, 100, 3);
+    }
+  }
+
+  @Test
+  public void testSerial() throws Exception {
+    addGraph();
+    TwoHopTraversal traversal = new TwoHopTraversal(null, DBID, false, 1);
+    assertEquals(5 + 5 * 3, traversal.runSerial(store, 1, LINK_TYPE, 10));
+    assertEquals(5, traversal.getFanout());
+    assertEquals(5 + 5 * 3, traversal.getRowsTouched());
+
+    // Fanout limits number of links followed
+    assertEquals(5 + 2 * 3, traversal.runSerial(store, 1, LINK_TYPE, 2));
+    assertEquals(2, traversal.getFanout());
+
+    // No links at first hop
+    assertEquals(0, traversal.runSerial(store, 2, LINK_TYPE, 10));
+    assertEquals(0, traversal.getFanout());
+
+    // Counts read a single row per id2
+    traversal = new TwoHopTraversal(null, DBID, true, 1);
+    assertEquals(5 + 4, traversal.runSerial(store, 1, LINK_TYPE, 4));
+    assertEquals(4, traversal.getFanout());
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    addGraph();
+    BlockingAsyncStore asyncStore = asyncStore(3);
+    try {
+      for (int parallelism: new int[] {1, 3, 10}) {
+        TwoHopTraversal traversal = new TwoHopTraversal(asyncStore, DBID,
+                                                        false, parallelism);
+        for (int rep = 0; rep < 5; rep++) {
+          assertEquals(5 + 5 * 3, traversal.run(1, LINK_TYPE, 10));
+          assertEquals(5, traversal.getFanout());
+          assertEquals(5 + 3 * 3, traversal.run(1, LINK_TYPE, 3));
+          assertEquals(3, traversal.getFanout());
+          assertEquals(0, traversal.run(2, LINK_TYPE, 3));
+          assertEquals(0, traversal.getFanout());
+        }
+        traversal = new TwoHopTraversal(asyncStore, DBID, true, parallelism);
+        assertEquals(5 + 5, traversal.execute(store, 1, LINK_TYPE, 5));
+      }
+    } finally {
+      asyncStore.close();
+    }
+  }
+
+  @Test
+  public void testFailure() throws Exception {
+    addGraph();
+    // Counts fail at second hop
+    MemoryLinkStore failing = new MemoryLinkStore() {
+      @Override
+      public long countLinks(String dbid, long id1, long link_type)
+          throws Exception {
+        throw new Exception("Injected failure");
+      }
+    };
+    List<MemoryLinkStore> stores = new ArrayList<MemoryLinkStore>();
+    stores.add(failing);
+    stores.add(failing);
+    for (int i = 0; i < 5; i++) {
+      failing.addLink(DBID, new Link(1, LINK_TYPE, 10 + i,
+          LinkStore.VISIBILITY_DEFAULT, new byte[0], 1, i), true);
+    }
+    BlockingAsyncStore asyncStore = new BlockingAsyncStore(stores, stores);
+    asyncStore.initialize(new Properties(), Phase.REQUEST, 0);
+    try {
+      TwoHopTraversal traversal = new TwoHopTraversal(asyncStore, DBID,
+                                                      true, 2);
+      for (int rep = 0; rep < 3; rep++) {
+        try {
+          traversal.run(1, LINK_TYPE, 5);
+          fail("Expected traversal to fail");
+        } catch (Exception e) {
+          assertEquals("Injected failure", e.getMessage());
+        }
+        // Still completes when there is nothing at second hop
+        assertEquals(0, traversal.run(2, LINK_TYPE, 5));
+      }
+    } finally {
+      asyncStore.close();
+    }
+  }
+
+  /**
+   * Run requester with two hop traversals, with and without pipelining
+   */
+  @Test
+  public void testRequester() throws Exception {
+    long startId = 1, idCount = 100;
+    for (long id1 = startId; id1 < startId + idCount; id1++) {
+      addLinks(id1, LinkStore.DEFAULT_LINK_TYPE, startId, 4);
+    }
+    Logger logger = Logger.getLogger(ConfigUtil.LINKBENCH_LOGGER);
+
+    for (int depth: new int[] {1, 2}) {
+      Properties props = new Properties();
+      GraphStoreTestBase.fillLoadProps(props, startId, idCount, 5);
+      int requests = 1000;
+      GraphStoreTestBase.fillReqProps(props, startId, idCount, requests, 100,
+          0, 0, 0, 10, 0, 40, 0, 0, 0, 0);
+      props.setProperty(Config.DBID, DBID);
+      props.setProperty(Config.PR_GET_2HOP, "50");
+      props.setProperty(Config.GET2HOP_FANOUT, "3");
+      props.setProperty(Config.GET2HOP_PARALLELISM, "2");
+      props.setProperty(Config.REQUEST_PIPELINE_DEPTH,
+                        Integer.toString(depth));
+
+      BlockingAsyncStore asyncStore = asyncStore(depth *
+                            LinkBenchRequest.getOpConcurrency(props));
+      LatencyStats latencyStats = new LatencyStats(1);
+      RequestProgress tracker = new RequestProgress(logger, requests, 100, 0,
+                                                    1000);
+      LinkBenchRequest requester = new LinkBenchRequest(asyncStore,
+          asyncStore, props, latencyStats, System.out, tracker, new Random(),
+          0, 1);
+      tracker.startTimer();
+      requester.run();
+      asyncStore.close();
+
+      assertEquals(requests, requester.getRequestsDone());
+      assertEquals(0, requester.getErrors());
+      long twoHops = latencyStats.getCount(LinkBenchOp.GET_2HOP);
+      assertTrue(Math.abs(twoHops / (double) requests - 0.5) < 0.06);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012, Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.facebook.LinkBench;
+
+import java.io.File;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.facebook.LinkBench.WorkloadPhase.RateShape;
+
+public class WorkloadPhaseTest extends TestCase {
+
+  private static final long SEC_NS = 1000L * 1000L * 1000L;
+
+  /**
+   * Check that the example script shipped with LinkBench is valid
+   */
+  @Test
+  public void testExampleScript() {
+    Properties props = new Properties();
+    props.setProperty(Config.WORKLOAD_SCRIPT,
+        new File("config/WorkloadPhases.properties").getAbsolutePath());
+    List<WorkloadPhase> phases = WorkloadPhase.loadScript(props);
+    assertEquals(5, phases.size());
+    assertEquals("rampup", phases.get(0).getName());
+    assertEquals("readonly", phases.get(4).getName());
+    for (WorkloadPhase phase: phases) {
+      assertTrue(phase.getDuration_s() > 0);
+      assertTrue(phase.isThrottled());
+    }
+  }
+
+  @Test
+  public void testNoScript() {
+    assertNull(WorkloadPhase.loadScript(new Properties()));
+  }
+
+  @Test
+  public void testRates() {
+    Properties script = new Properties();
+    script.setProperty("phases", "fast, ramp,wave");
+    script.setProperty("phase.fast.duration", "10");
+    script.setProperty("phase.ramp.duration", "100");
+    script.setProperty("phase.ramp.rate_shape", "ramp");
+    script.setProperty("phase.ramp.rate", "100");
+    script.setProperty("phase.ramp.rate_end", "300");
+    script.setProperty("phase.wave.duration", "100");
+    script.setProperty("phase.wave.rate_shape", "SINE");
+    script.setProperty("phase.wave.rate", "100");
+    script.setProperty("phase.wave.sine_amplitude", "0.5");
+    script.setProperty("phase.wave.sine_period", "40");
+    List<WorkloadPhase> phases = WorkloadPhase.parseScript(script);
+    assertEquals(3, phases.size());
+
+    WorkloadPhase fast = phases.get(0);
+    assertFalse(fast.isThrottled());
+    assertEquals(10 * SEC_NS, fast.getDuration_ns());
+
+    WorkloadPhase ramp = phases.get(1);
+    assertTrue(ramp.isThrottled());
+    assertEquals(100.0, ramp.rateAt(0), 1e-6);
+    assertEquals(200.0, ramp.rateAt(50 * SEC_NS), 1e-6);
+    assertEquals(300.0, ramp.rateAt(100 * SEC_NS), 1e-6);
+    // Rate stays at end value if phase overruns
+    assertEquals(300.0, ramp.rateAt(200 * SEC_NS), 1e-6);
+
+    WorkloadPhase wave = phases.get(2);
+    assertEquals(100.0, wave.rateAt(0), 1e-6);
+    assertEquals(150.0, wave.rateAt(10 * SEC_NS), 1e-6);
+    assertEquals(100.0, wave.rateAt(20 * SEC_NS), 1e-6);
+    assertEquals(50.0, wave.rateAt(30 * SEC_NS), 1e-6);
+  }
+
+  @Test
+  public void testMinRate() {
+    WorkloadPhase ramp = new WorkloadPhase("ramp", 10, RateShape.RAMP,
+                                           0, 100, 0, 0, null);
+    assertEquals(WorkloadPhase.MIN_SHAPED_RATE, ramp.rateAt(0), 1e-6);
+    WorkloadPhase wave = new WorkloadPhase("wave", 10, RateShape.SINE,
+                                           100, 0, 1.0, 4, null);
+    assertEquals(WorkloadPhase.MIN_SHAPED_RATE, wave.rateAt(3 * SEC_NS),
+                 1e-6);
+  }
+
+  @Test
+  public void testMix() {
+    Properties script = new Properties();
+    script.setProperty("phases", "default,reads");
+    script.setProperty("phase.default.duration", "1");
+    script.setProperty("phase.reads.duration", "1");
+    script.setProperty("phase.reads.getlinklist", "75");
+    script.setProperty("phase.reads.getnode", "25");
+    List<WorkloadPhase> phases = WorkloadPhase.parseScript(script);
+
+    Properties base = new Properties();
+    base.setProperty(Config.PR_ADD_LINK, "50");
+    base.setProperty(Config.PR_GET_LINK_LIST, "50");
+    base.setProperty(Config.MAX_ID, "1000");
+
+    Properties defaultMix = phases.get(0).applyMix(base);
+    assertEquals(base, defaultMix);
+    assertNotSame(base, defaultMix);
+
+    Properties readMix = phases.get(1).applyMix(base);
+    assertEquals(0.0, Double.parseDouble(
+                      readMix.getProperty(Config.PR_ADD_LINK)));
+    assertEquals(75.0, Double.parseDouble(
+                       readMix.getProperty(Config.PR_GET_LINK_LIST)));
+    assertEquals(25.0, Double.parseDouble(
+                       readMix.getProperty(Config.PR_GET_NODE)));
+    assertEquals("1000", readMix.getProperty(Config.MAX_ID));
+    // Base config unchanged
+    assertEquals("50", base.getProperty(Config.PR_ADD_LINK));
+  }
+
+  @Test
+  public void testBadScripts() {
+    Properties script = new Properties();
+    script.setProperty("phases", "p");
+    script.setProperty("phase.p.duration", "10");
+    script.setProperty("phase.p.addlink", "60");
+    checkBadScript(script); // mix doesn't add to 100
+
+    script.setProperty("phase.p.addlink", "100");
+    WorkloadPhase.parseScript(script); // ok
+
+    script.setProperty("phase.p.rate_shape", "square");
+    checkBadScript(script);
+
+    script.setProperty("phase.p.rate_shape", "sine");
+    script.setProperty("phase.p.rate", "10");
+    script.setProperty("phase.p.sine_period", "5");
+    script.setProperty("phase.p.sine_amplitude", "1.5");
+    checkBadScript(script);
+
+    script.setProperty("phase.p.sine_amplitude", "0.5");
+    script.setProperty("phase.p.duration", "0");
+    checkBadScript(script);
+
+    script.setProperty("phases", ",");
+    checkBadScript(script);
+  }
+
+  private static void checkBadScript(Properties script) {
+    try {
+      WorkloadPhase.parseScript(script);
+      fail("Expected config error for " + script);
+    } catch (LinkBenchConfigError e) {
+      // Expected
+    }
+  }
+}